@@ -0,0 +1,133 @@
+package com.newerty.derivedStats;
+
+import com.google.common.collect.ImmutableMap;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Expressions and stat values shared by the benchmarks.
+ */
+final class BenchmarkData {
+
+    static final String CATEGORY = "bench";
+
+    static final String SMALL = "kill_ratio = kills / (shots + 1)";
+
+    static final String PLAIN = "foo = games > 10 ? kills / (deaths + 1) : -kills + SUM(kills, shots, MAX(deaths, 1)) / 2";
+
+    static final String WILDCARD = "foo = SUM(kills{map:\"*\"}) / MAX(SUM(shots{map:\"*\"}), 1)";
+
+    static final String PLACEHOLDER = "foo{map:\"*\"} = kills{map:\"*\"} / (shots{map:\"*\"} + 1) * 100";
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * An expression of {@code terms} weighted ratios mixing ternaries and aggregates, reading 3 stats per term
+     */
+    static String large(int terms) {
+        StringBuilder expr = new StringBuilder("foo = ");
+        for (int i = 0; i < terms; i++) {
+            if (i > 0) {
+                expr.append(" + ");
+            }
+            if ((i % 3) == 0) {
+                expr.append("(games_").append(i).append(" > 10 ? kills_").append(i).append(" / (deaths_").append(i)
+                        .append(" + 1) : 0)");
+            } else if ((i % 3) == 1) {
+                expr.append("SUM(kills_").append(i).append(", deaths_").append(i).append(", 2) * ").append(i);
+            } else {
+                expr.append("MAX(kills_").append(i).append(" / (games_").append(i).append(" + 1), -1)");
+            }
+        }
+        return expr.toString();
+    }
+
+    /**
+     * {@code count} definitions of 1 to 12 terms mixing plain, dimensioned and qualified statIds, ternaries,
+     * wildcard aggregates and constants, the same for every run
+     */
+    static List<String> corpus(int count) {
+        String[] stats = {"kills", "shots", "deaths", "games", "wins"};
+        String[] operators = {" + ", " - ", " * ", " / "};
+        Random random = new Random(1);
+
+        List<String> corpus = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            StringBuilder expr = new StringBuilder("derived_").append(i).append(" = ");
+            int terms = 1 + random.nextInt(12);
+            for (int t = 0; t < terms; t++) {
+                if (t > 0) {
+                    expr.append(operators[random.nextInt(operators.length)]);
+                }
+                String stat = stats[random.nextInt(stats.length)];
+                switch (random.nextInt(5)) {
+                    case 0:
+                        expr.append(stat).append('_').append(random.nextInt(50));
+                        break;
+                    case 1:
+                        expr.append('(').append(stat).append(" > ").append(random.nextInt(10)).append(" ? ")
+                                .append(stats[random.nextInt(stats.length)]).append(" : 0)");
+                        break;
+                    case 2:
+                        expr.append("SUM(hits{map:\"*\"}, ").append(stat).append(')');
+                        break;
+                    case 3:
+                        expr.append(random.nextBoolean() ? "damage{weapon:\"awp\"}" : "catB.kills");
+                        break;
+                    default:
+                        expr.append(random.nextInt(100)).append(".5");
+                        break;
+                }
+            }
+            corpus.add(expr.toString());
+        }
+        return corpus;
+    }
+
+    /**
+     * Values for the plain stats of {@link #PLAIN}, {@link #WILDCARD} and {@link #PLACEHOLDER}, with
+     * {@code mapCount} maps worth of kills{map} and shots{map} and as many unrelated stats padding the map
+     */
+    static Map<ExpressionStatId, Double> values(int mapCount) {
+        Map<ExpressionStatId, Double> values = new HashMap<>();
+        values.put(statId("kills"), 12d);
+        values.put(statId("shots"), 40d);
+        values.put(statId("deaths"), 3d);
+        values.put(statId("games"), 11d);
+        for (int i = 0; i < mapCount; i++) {
+            values.put(new ExpressionStatId("kills", CATEGORY, ImmutableMap.of("map", "map_" + i)), (double) (i % 17));
+            values.put(new ExpressionStatId("shots", CATEGORY, ImmutableMap.of("map", "map_" + i)), (double) (i % 31));
+            values.put(statId("unrelated_" + i), (double) i);
+        }
+        return values;
+    }
+
+    /**
+     * Values in the shape evaluateList and ReplaceStatIdsListener take, {@code count} values for kills{map:"*"}
+     */
+    static Map<ExpressionStatId, List<Double>> listValues(int count) {
+        List<Double> kills = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            kills.add((double) (i % 17));
+        }
+        return ImmutableMap.of(
+                new ExpressionStatId("kills", CATEGORY, ImmutableMap.of("map", "*")), kills,
+                statId("shots"), Collections.singletonList(40d));
+    }
+
+    static DerivedExpressionParser parser(String expr) {
+        return new DerivedExpressionParser(new CommonTokenStream(new DerivedExpressionLexer(CharStreams.fromString(expr))));
+    }
+
+    static ExpressionStatId statId(String name) {
+        return new ExpressionStatId(name, CATEGORY, null);
+    }
+}
@@ -0,0 +1,45 @@
+package com.newerty.derivedStats;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and building an evaluator, for a one line expression and one with a few hundred terms
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuildBenchmark {
+
+    @Param({"small", "large"})
+    public String size;
+
+    @Param({"CLOSURE_TREE", "COMPILED", "BYTECODE"})
+    public EvaluationMode mode;
+
+    private String expr;
+
+    @Setup
+    public void setUp() {
+        expr = "small".equals(size) ? BenchmarkData.SMALL : BenchmarkData.large(300);
+    }
+
+    @Benchmark
+    public DerivedExpressionEvaluator build() {
+        return DerivedExpressionEvaluator.build(expr, BenchmarkData.CATEGORY, mode);
+    }
+}
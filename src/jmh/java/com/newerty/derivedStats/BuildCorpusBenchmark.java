@@ -0,0 +1,50 @@
+package com.newerty.derivedStats;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Build throughput over a corpus of typical definitions, as loaded in bulk at startup. Scores are per definition.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuildCorpusBenchmark {
+
+    private static final int CORPUS_SIZE = 1000;
+
+    @Param({"CLOSURE_TREE", "COMPILED"})
+    public EvaluationMode mode;
+
+    private List<String> corpus;
+
+    @Setup
+    public void setUp() {
+        corpus = BenchmarkData.corpus(CORPUS_SIZE);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CORPUS_SIZE)
+    public void build(Blackhole blackhole) {
+        for (String definition : corpus) {
+            blackhole.consume(DerivedExpressionEvaluator.build(definition, BenchmarkData.CATEGORY, mode));
+        }
+    }
+}
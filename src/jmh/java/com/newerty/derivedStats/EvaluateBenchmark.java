@@ -0,0 +1,61 @@
+package com.newerty.derivedStats;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluating an expression with plain or wildcarded statIds, against values maps of several sizes. Wildcards are
+ * resolved by scanning a plain map, or through a {@link StatValueIndex}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EvaluateBenchmark {
+
+    @Param({"plain", "wildcard"})
+    public String statIds;
+
+    // maps worth of kills{map} and shots{map}, the values map holds 3 entries for each
+    @Param({"10", "1000", "100000"})
+    public int mapCount;
+
+    @Param({"CLOSURE_TREE", "COMPILED", "BYTECODE"})
+    public EvaluationMode mode;
+
+    private DerivedExpressionEvaluator evaluator;
+    private Map<ExpressionStatId, Double> values;
+    private StatValueIndex index;
+
+    @Setup
+    public void setUp() {
+        String expr = "plain".equals(statIds) ? BenchmarkData.PLAIN : BenchmarkData.WILDCARD;
+        evaluator = DerivedExpressionEvaluator.build(expr, BenchmarkData.CATEGORY, mode);
+        values = BenchmarkData.values(mapCount);
+        index = StatValueIndex.of(values);
+    }
+
+    @Benchmark
+    public double evaluate() {
+        return evaluator.evaluate(values);
+    }
+
+    @Benchmark
+    public double evaluateIndexed() {
+        return evaluator.evaluate(index);
+    }
+}
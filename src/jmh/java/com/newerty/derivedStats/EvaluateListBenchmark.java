@@ -0,0 +1,76 @@
+package com.newerty.derivedStats;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluating with a list or array of values per wildcarded statId, and rewriting the expression text with the values
+ * substituted, by re-parsing or with a prebuilt renderer. All take the values in the same shape.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EvaluateListBenchmark {
+
+    // values of kills{map:"*"}
+    @Param({"1", "10", "1000"})
+    public int valueCount;
+
+    @Param({"CLOSURE_TREE", "COMPILED"})
+    public EvaluationMode mode;
+
+    private DerivedExpressionEvaluator evaluator;
+    private ReplaceStatIdsListener replacer;
+    private ExpressionRenderer renderer;
+    private final StringBuilder rendered = new StringBuilder();
+    private Map<ExpressionStatId, List<Double>> values;
+    private Map<ExpressionStatId, double[]> arrays;
+
+    @Setup
+    public void setUp() {
+        evaluator = DerivedExpressionEvaluator.build(BenchmarkData.WILDCARD, BenchmarkData.CATEGORY, mode);
+        replacer = new ReplaceStatIdsListener(BenchmarkData.parser(BenchmarkData.WILDCARD), BenchmarkData.CATEGORY);
+        renderer = ExpressionRenderer.build(BenchmarkData.WILDCARD, BenchmarkData.CATEGORY);
+        values = BenchmarkData.listValues(valueCount);
+        arrays = new HashMap<>();
+        values.forEach((statId, list) -> arrays.put(statId, list.stream().mapToDouble(Double::doubleValue).toArray()));
+    }
+
+    @Benchmark
+    public double evaluateList() {
+        return evaluator.evaluateList(values);
+    }
+
+    @Benchmark
+    public double evaluateArrays() {
+        return evaluator.evaluateArrays(arrays);
+    }
+
+    @Benchmark
+    public String replace() {
+        return replacer.replace(values);
+    }
+
+    @Benchmark
+    public StringBuilder render() {
+        rendered.setLength(0);
+        return renderer.render(values, rendered);
+    }
+}
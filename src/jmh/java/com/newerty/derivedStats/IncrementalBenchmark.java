@@ -0,0 +1,61 @@
+package com.newerty.derivedStats;
+
+import com.google.common.collect.ImmutableMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Changing one map's kills and re-evaluating a wildcard expression, from scratch against an index of all the values
+ * or with running aggregate state
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IncrementalBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int mapCount;
+
+    private DerivedExpressionEvaluator evaluator;
+    private StatValueIndex index;
+    private IncrementalEvaluator incremental;
+    private ExpressionStatId changed;
+    private double value;
+
+    @Setup
+    public void setUp() {
+        Map<ExpressionStatId, Double> values = BenchmarkData.values(mapCount);
+        evaluator = DerivedExpressionEvaluator.build(BenchmarkData.WILDCARD, BenchmarkData.CATEGORY, EvaluationMode.COMPILED);
+        index = StatValueIndex.of(values);
+        incremental = IncrementalEvaluator.build(BenchmarkData.WILDCARD, BenchmarkData.CATEGORY);
+        values.forEach(incremental::set);
+        changed = new ExpressionStatId("kills", BenchmarkData.CATEGORY, ImmutableMap.of("map", "map_0"));
+    }
+
+    @Benchmark
+    public double reevaluate() {
+        // reads every matching value, and doesn't even count rebuilding the index for the changed value
+        return evaluator.evaluate(index);
+    }
+
+    @Benchmark
+    public double setAndEvaluate() {
+        incremental.set(changed, value++ % 17);
+        return incremental.evaluate();
+    }
+}
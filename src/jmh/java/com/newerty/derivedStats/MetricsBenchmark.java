@@ -0,0 +1,61 @@
+package com.newerty.derivedStats;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of recording evaluation metrics, against evaluators built with the no-op metrics
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsBenchmark {
+
+    @Param({"noop", "striped"})
+    public String metrics;
+
+    private DerivedExpressionEvaluator small;
+    private DerivedExpressionEvaluator wildcard;
+    private double[] slots;
+    private Map<ExpressionStatId, Double> values;
+
+    @Setup
+    public void setUp() {
+        DerivedExpressionEvaluator.setMetrics(metrics.equals("striped") ? StripedEvaluationMetrics.build() : EvaluationMetrics.NOOP);
+        small = DerivedExpressionEvaluator.build(BenchmarkData.SMALL, BenchmarkData.CATEGORY, EvaluationMode.BYTECODE);
+        wildcard = DerivedExpressionEvaluator.build(BenchmarkData.WILDCARD, BenchmarkData.CATEGORY, EvaluationMode.COMPILED);
+        slots = new double[]{12, 30};
+        values = BenchmarkData.values(20);
+    }
+
+    @TearDown
+    public void tearDown() {
+        DerivedExpressionEvaluator.setMetrics(EvaluationMetrics.NOOP);
+    }
+
+    @Benchmark
+    public double slots() {
+        return small.evaluate(slots);
+    }
+
+    @Benchmark
+    public double wildcard() {
+        return wildcard.evaluate(values);
+    }
+}
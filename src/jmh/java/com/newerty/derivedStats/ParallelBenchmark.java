@@ -0,0 +1,62 @@
+package com.newerty.derivedStats;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A profile's worth of derived stats against one snapshot of values, one after another on the calling thread or
+ * in batches on the common pool
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParallelBenchmark {
+
+    @Param({"50", "400"})
+    public int exprCount;
+
+    private List<DerivedExpressionEvaluator> evaluators;
+    private ParallelEvaluator parallel;
+    private Map<ExpressionStatId, Double> values;
+
+    @Setup
+    public void setUp() {
+        evaluators = new ArrayList<>(exprCount);
+        for (String expr : BenchmarkData.corpus(exprCount)) {
+            evaluators.add(DerivedExpressionEvaluator.build(expr, BenchmarkData.CATEGORY, EvaluationMode.COMPILED));
+        }
+        parallel = ParallelEvaluator.build(evaluators);
+        values = BenchmarkData.values(100);
+    }
+
+    @Benchmark
+    public double[] sequential() {
+        double[] results = new double[evaluators.size()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = evaluators.get(i).evaluate(values);
+        }
+        return results;
+    }
+
+    @Benchmark
+    public double[] parallel() {
+        return parallel.evaluate(values);
+    }
+}
@@ -0,0 +1,73 @@
+package com.newerty.derivedStats;
+
+import com.google.common.collect.ImmutableMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluating a placeholder expression for one dimension value, and for every dimension value either one call at a
+ * time or in one pass
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlaceholderBenchmark {
+
+    @Param({"10", "1000"})
+    public int mapCount;
+
+    @Param({"CLOSURE_TREE", "COMPILED"})
+    public EvaluationMode mode;
+
+    private DerivedExpressionEvaluator evaluator;
+    private Map<ExpressionStatId, Double> values;
+    private Map<String, String> placeholders;
+    private List<Map<String, String>> allPlaceholders;
+
+    @Setup
+    public void setUp() {
+        evaluator = DerivedExpressionEvaluator.build(BenchmarkData.PLACEHOLDER, BenchmarkData.CATEGORY, mode);
+        values = BenchmarkData.values(mapCount);
+        placeholders = ImmutableMap.of("map", "map_" + (mapCount / 2));
+        allPlaceholders = new ArrayList<>();
+        for (int i = 0; i < mapCount; i++) {
+            allPlaceholders.add(ImmutableMap.of("map", "map_" + i));
+        }
+    }
+
+    @Benchmark
+    public double evaluate() {
+        return evaluator.evaluate(values, placeholders);
+    }
+
+    @Benchmark
+    public double evaluateEach() {
+        double sum = 0;
+        for (Map<String, String> each : allPlaceholders) {
+            sum += evaluator.evaluate(values, each);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public PlaceholderResults evaluatePlaceholders() {
+        return evaluator.evaluatePlaceholders(values);
+    }
+}
@@ -0,0 +1,85 @@
+package com.newerty.derivedStats;
+
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.dfa.DFA;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+
+/**
+ * Parses assignment expressions with a lexer and parser per thread, which are reset for each expression rather than
+ * created anew.
+ * <p>
+ * Parsing is two-stage: SLL prediction first, which is much cheaper and succeeds on practically every valid input,
+ * bailing out at the first error. Only then is the input parsed again in full LL mode, which either succeeds where
+ * SLL couldn't decide or reports the syntax error through {@link ExpressionErrorListener} exactly as a single LL
+ * parse would.
+ */
+final class AssignmentParser {
+
+    private static final ThreadLocal<AssignmentParser> PARSERS = ThreadLocal.withInitial(AssignmentParser::new);
+
+    private final DerivedExpressionLexer lexer;
+    private final CommonTokenStream tokens;
+    private final DerivedExpressionParser parser;
+    private final BailErrorStrategy bail = new BailErrorStrategy();
+    private final DefaultErrorStrategy report = new DefaultErrorStrategy();
+
+    private AssignmentParser() {
+        lexer = new DerivedExpressionLexer(CharStreams.fromString(""));
+        lexer.removeErrorListeners();
+        lexer.addErrorListener(ExpressionErrorListener.INSTANCE);
+
+        tokens = new CommonTokenStream(lexer);
+        parser = new DerivedExpressionParser(tokens);
+    }
+
+    /**
+     * @param expr An assignment expression, e.g. "kill_ratio = kills / shots"
+     * @return The parse tree
+     * @throws ExpressionEvaluationException if the expression isn't valid
+     */
+    static DerivedExpressionParser.AssignmentContext parse(String expr) {
+        return PARSERS.get().parseAssignment(expr);
+    }
+
+    /**
+     * @return The number of DFA states the lexer and parser have learned so far. The DFA cache is static in the
+     * generated recognizers, so this counts what every thread's parser shares.
+     */
+    static int dfaStates() {
+        AssignmentParser assignmentParser = PARSERS.get();
+        return states(assignmentParser.lexer.getInterpreter().decisionToDFA)
+                + states(assignmentParser.parser.getInterpreter().decisionToDFA);
+    }
+
+    private static int states(DFA[] decisions) {
+        int states = 0;
+        for (DFA dfa : decisions) {
+            states += dfa.states.size();
+        }
+        return states;
+    }
+
+    private DerivedExpressionParser.AssignmentContext parseAssignment(String expr) {
+        lexer.setInputStream(CharStreams.fromString(expr));
+        tokens.setTokenSource(lexer);
+        parser.setTokenStream(tokens);
+
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.setErrorHandler(bail);
+        parser.removeErrorListeners();
+        try {
+            return parser.assignment();
+        } catch (ParseCancellationException e) {
+            tokens.seek(0);
+            parser.reset();
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            parser.setErrorHandler(report);
+            parser.addErrorListener(ExpressionErrorListener.INSTANCE);
+            return parser.assignment();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.newerty.derivedStats;
+
+import static com.newerty.derivedStats.EvaluationOps.ACC_SIZE;
+
+/**
+ * Runs a branch-free {@link ExpressionProgram} over columns of values, one instruction at a time across a block
+ * of rows. The operand stack holds a vector per entry, so each instruction is a tight loop over arrays with no
+ * per-row dispatch, boxing or map lookups.
+ */
+final class BatchInterpreter {
+
+    // rows per block, small enough that the stack vectors stay in cache
+    static final int BLOCK_SIZE = 1024;
+
+    private BatchInterpreter() {
+    }
+
+    /**
+     * @param program A program compiled with {@link ProgramCompiler#compileBranchFree}, reading only slots
+     * @param columns The values of each slot, one column per slot
+     * @param presence A bitmap per column, bit {@code row & 63} of word {@code row >>> 6} is set if the row has a
+     *                 value. A null bitmap, or a null array, means every row has a value. Rows without a value read 0.
+     * @param rows The number of rows to evaluate
+     * @param out Receives the result of each row
+     */
+    static void execute(ExpressionProgram program, double[][] columns, long[][] presence, int rows, double[] out) {
+        final int[] code = program.code;
+        final double[][] stack = new double[program.maxStack][Math.min(rows, BLOCK_SIZE)];
+        final double[][] acc = new double[program.maxAggregateDepth][Math.min(rows, BLOCK_SIZE) * ACC_SIZE];
+
+        for (int start = 0; start < rows; start += BLOCK_SIZE) {
+            final int n = Math.min(BLOCK_SIZE, rows - start);
+            int sp = 0;
+            int ap = -1;
+            int pc = 0;
+
+            while (pc < code.length) {
+                switch (code[pc++]) {
+                    case ExpressionProgram.CONST: {
+                        double value = program.constants[code[pc++]];
+                        double[] v = stack[sp++];
+                        for (int i = 0; i < n; i++) {
+                            v[i] = value;
+                        }
+                        break;
+                    }
+                    case ExpressionProgram.LOAD: {
+                        int slot = code[pc++];
+                        load(columns[slot], (presence == null) ? null : presence[slot], start, n, stack[sp++]);
+                        break;
+                    }
+                    case ExpressionProgram.NEGATE: {
+                        double[] v = stack[sp - 1];
+                        for (int i = 0; i < n; i++) {
+                            v[i] = v[i] * -1;
+                        }
+                        break;
+                    }
+                    case ExpressionProgram.ADD: {
+                        double[] l = stack[sp - 2], r = stack[--sp];
+                        for (int i = 0; i < n; i++) {
+                            l[i] = l[i] + r[i];
+                        }
+                        break;
+                    }
+                    case ExpressionProgram.SUBTRACT: {
+                        double[] l = stack[sp - 2], r = stack[--sp];
+                        for (int i = 0; i < n; i++) {
+                            l[i] = l[i] - r[i];
+                        }
+                        break;
+                    }
+                    case ExpressionProgram.MULTIPLY: {
+                        double[] l = stack[sp - 2], r = stack[--sp];
+                        for (int i = 0; i < n; i++) {
+                            l[i] = l[i] * r[i];
+                        }
+                        break;
+                    }
+                    case ExpressionProgram.DIVIDE: {
+                        double[] l = stack[sp - 2], r = stack[--sp];
+                        for (int i = 0; i < n; i++) {
+                            l[i] = l[i] / r[i];
+                        }
+                        break;
+                    }
+                    // the conditional expressions below compile to conditional moves, not branches
+                    case ExpressionProgram.AND: {
+                        double[] l = stack[sp - 2], r = stack[--sp];
+                        for (int i = 0; i < n; i++) {
+                            l[i] = EvaluationOps.and(l[i], r[i]);
+                        }
+                        break;
+                    }
+                    case ExpressionProgram.OR: {
+                        double[] l = stack[sp - 2], r = stack[--sp];
+                        for (int i = 0; i < n; i++) {
+                            l[i] = EvaluationOps.or(l[i], r[i]);
+                        }
+                        break;
+                    }
+                    case ExpressionProgram.GT: {
+                        double[] l = stack[sp - 2], r = stack[--sp];
+                        for (int i = 0; i < n; i++) {
+                            l[i] = EvaluationOps.gt(l[i], r[i]);
+                        }
+                        break;
+                    }
+                    case ExpressionProgram.GE: {
+                        double[] l = stack[sp - 2], r = stack[--sp];
+                        for (int i = 0; i < n; i++) {
+                            l[i] = EvaluationOps.ge(l[i], r[i]);
+                        }
+                        break;
+                    }
+                    case ExpressionProgram.LT: {
+                        double[] l = stack[sp - 2], r = stack[--sp];
+                        for (int i = 0; i < n; i++) {
+                            l[i] = EvaluationOps.lt(l[i], r[i]);
+                        }
+                        break;
+                    }
+                    case ExpressionProgram.LE: {
+                        double[] l = stack[sp - 2], r = stack[--sp];
+                        for (int i = 0; i < n; i++) {
+                            l[i] = EvaluationOps.le(l[i], r[i]);
+                        }
+                        break;
+                    }
+                    case ExpressionProgram.EQ: {
+                        double[] l = stack[sp - 2], r = stack[--sp];
+                        for (int i = 0; i < n; i++) {
+                            l[i] = EvaluationOps.eq(l[i], r[i]);
+                        }
+                        break;
+                    }
+                    case ExpressionProgram.NEQ: {
+                        double[] l = stack[sp - 2], r = stack[--sp];
+                        for (int i = 0; i < n; i++) {
+                            l[i] = EvaluationOps.neq(l[i], r[i]);
+                        }
+                        break;
+                    }
+                    case ExpressionProgram.SELECT: {
+                        double[] cond = stack[sp - 3], whenTrue = stack[sp - 2], whenFalse = stack[sp - 1];
+                        sp -= 2;
+                        for (int i = 0; i < n; i++) {
+                            cond[i] = (cond[i] > 0) ? whenTrue[i] : whenFalse[i];
+                        }
+                        break;
+                    }
+                    case ExpressionProgram.AGG_BEGIN: {
+                        double[] a = acc[++ap];
+                        for (int i = 0; i < n; i++) {
+                            EvaluationOps.resetAccumulator(a, i * ACC_SIZE);
+                        }
+                        break;
+                    }
+                    case ExpressionProgram.AGG_PUSH: {
+                        double[] a = acc[ap], v = stack[--sp];
+                        for (int i = 0; i < n; i++) {
+                            EvaluationOps.accumulate(a, i * ACC_SIZE, v[i]);
+                        }
+                        break;
+                    }
+                    case ExpressionProgram.AGG_SUM: {
+                        double[] a = acc[ap--], v = stack[sp++];
+                        for (int i = 0; i < n; i++) {
+                            v[i] = EvaluationOps.sum(a, i * ACC_SIZE);
+                        }
+                        break;
+                    }
+                    case ExpressionProgram.AGG_AVG: {
+                        double[] a = acc[ap--], v = stack[sp++];
+                        for (int i = 0; i < n; i++) {
+                            v[i] = EvaluationOps.average(a, i * ACC_SIZE);
+                        }
+                        break;
+                    }
+                    case ExpressionProgram.AGG_MIN: {
+                        double[] a = acc[ap--], v = stack[sp++];
+                        for (int i = 0; i < n; i++) {
+                            v[i] = EvaluationOps.min(a, i * ACC_SIZE);
+                        }
+                        break;
+                    }
+                    case ExpressionProgram.AGG_MAX: {
+                        double[] a = acc[ap--], v = stack[sp++];
+                        for (int i = 0; i < n; i++) {
+                            v[i] = EvaluationOps.max(a, i * ACC_SIZE);
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IllegalStateException("Opcode " + code[pc - 1] + " at " + (pc - 1) + " can't be run in a batch");
+                }
+            }
+
+            System.arraycopy(stack[0], 0, out, start, n);
+        }
+    }
+
+    private static void load(double[] column, long[] present, int start, int n, double[] v) {
+        if (present == null) {
+            System.arraycopy(column, start, v, 0, n);
+            return;
+        }
+
+        for (int i = 0; i < n; i++) {
+            int row = start + i;
+            v[i] = (((present[row >>> 6] >>> row) & 1L) != 0) ? column[row] : 0d;
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package com.newerty.derivedStats;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Translates an {@link ExpressionProgram} into a class with a single {@code double evaluate(double[] slots)}
+ * method. The program is already a stack machine, so each instruction maps onto one or a few JVM instructions
+ * and the JIT sees the whole expression as straight-line arithmetic it can inline.
+ * <p>
+ * The class file is written by hand (version 49, which needs no stack map frames) and defined as a hidden class
+ * when the runtime supports it, so it can be unloaded together with its evaluator. On older runtimes it is
+ * defined as an ordinary class in this package.
+ * <p>
+ * Programs that read wildcarded stat ids need the whole value map and are rejected with an
+ * {@link UnsupportedOperationException}; callers fall back to the interpreter.
+ */
+final class BytecodeGenerator {
+
+    // HotSpot doesn't JIT compile methods above -XX:HugeMethodLimit (8000 bytes), the interpreter is faster then.
+    static final int MAX_METHOD_SIZE = 8000;
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final String CLASS_NAME_PREFIX = BytecodeGenerator.class.getPackage().getName().replace('.', '/')
+            + "/GeneratedExpression";
+    private static final AtomicLong CLASS_COUNTER = new AtomicLong();
+
+    private static final Method DEFINE_HIDDEN_CLASS = findDefineHiddenClass();
+    private static final Object NO_CLASS_OPTIONS = (DEFINE_HIDDEN_CLASS == null) ? null
+            : Array.newInstance(DEFINE_HIDDEN_CLASS.getParameterTypes()[2].getComponentType(), 0);
+
+    private static final String OPS = EvaluationOps.class.getName().replace('.', '/');
+    private static final String BINARY_OP = "(DD)D";
+
+    // JVM opcodes
+    private static final int ICONST_0 = 0x03;
+    private static final int DCONST_0 = 0x0e;
+    private static final int DCONST_1 = 0x0f;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int LDC2_W = 0x14;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int DALOAD = 0x31;
+    private static final int DADD = 0x63;
+    private static final int DSUB = 0x67;
+    private static final int DMUL = 0x6b;
+    private static final int DDIV = 0x6f;
+    private static final int DCMPL = 0x97;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int IFLE = 0x9e;
+    private static final int GOTO = 0xa7;
+    private static final int DRETURN = 0xaf;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+
+    private BytecodeGenerator() {
+    }
+
+    static CompiledExpression generate(ExpressionProgram program) {
+        String className = CLASS_NAME_PREFIX + CLASS_COUNTER.incrementAndGet();
+        byte[] classBytes = new ClassWriter(className).write(program);
+        try {
+            return (CompiledExpression) define(classBytes).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to define generated class " + className, e);
+        }
+    }
+
+    private static Class<?> define(byte[] classBytes) throws ReflectiveOperationException {
+        if (DEFINE_HIDDEN_CLASS != null) {
+            MethodHandles.Lookup hidden = (MethodHandles.Lookup) DEFINE_HIDDEN_CLASS.invoke(
+                    LOOKUP, classBytes, true, NO_CLASS_OPTIONS);
+            return hidden.lookupClass();
+        }
+        return LOOKUP.defineClass(classBytes);
+    }
+
+    // Lookup.defineHiddenClass(byte[], boolean, ClassOption...) only exists from Java 15 on.
+    private static Method findDefineHiddenClass() {
+        for (Method method : MethodHandles.Lookup.class.getMethods()) {
+            if (method.getName().equals("defineHiddenClass") && (method.getParameterCount() == 3)) {
+                return method;
+            }
+        }
+        return null;
+    }
+
+    private static final class ClassWriter {
+
+        private final String className;
+        private final ConstantPool pool = new ConstantPool();
+
+        ClassWriter(String className) {
+            this.className = className;
+        }
+
+        byte[] write(ExpressionProgram program) {
+            byte[] evaluateCode = evaluateCode(program);
+            int maxStack = (program.maxStack * 2) + program.maxAggregateDepth + 2;
+
+            int thisClass = pool.classRef(className);
+            int superClass = pool.classRef("java/lang/Object");
+            int iface = pool.classRef(CompiledExpression.class.getName().replace('.', '/'));
+            int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+            int initName = pool.utf8("<init>");
+            int initDesc = pool.utf8("()V");
+            int evaluateName = pool.utf8("evaluate");
+            int evaluateDesc = pool.utf8("([D)D");
+            int codeAttr = pool.utf8("Code");
+
+            byte[] initCode = {(byte) ALOAD_0, (byte) INVOKESPECIAL, (byte) (objectInit >> 8), (byte) objectInit,
+                    (byte) RETURN};
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(49);
+                pool.write(out);
+                out.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(1);
+                out.writeShort(iface);
+                out.writeShort(0); // fields
+                out.writeShort(2); // methods
+                writeMethod(out, initName, initDesc, codeAttr, 1, 1, initCode);
+                writeMethod(out, evaluateName, evaluateDesc, codeAttr, maxStack, 2, evaluateCode);
+                out.writeShort(0); // attributes
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+        private static void writeMethod(DataOutputStream out, int name, int descriptor, int codeAttr,
+                                        int maxStack, int maxLocals, byte[] code) throws IOException {
+            out.writeShort(0x0001); // public
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(codeAttr);
+            out.writeInt(12 + code.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        }
+
+        private byte[] evaluateCode(ExpressionProgram program) {
+            int[] code = program.code;
+            int[] offsets = new int[code.length + 1];
+            List<int[]> branches = new ArrayList<>();
+            int aggregateDepth = 0;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            int pc = 0;
+            while (pc < code.length) {
+                offsets[pc] = out.size();
+                int opcode = code[pc];
+                int operand = (ExpressionProgram.operandCount(opcode) > 0) ? code[pc + 1] : 0;
+
+                switch (opcode) {
+                    case ExpressionProgram.CONST:
+                        pushDouble(out, program.constants[operand]);
+                        break;
+                    case ExpressionProgram.LOAD:
+                        out.write(ALOAD_1);
+                        pushInt(out, operand);
+                        out.write(DALOAD);
+                        break;
+                    case ExpressionProgram.NEGATE:
+                        pushDouble(out, -1d);
+                        out.write(DMUL);
+                        break;
+                    case ExpressionProgram.ADD:
+                        out.write(DADD);
+                        break;
+                    case ExpressionProgram.SUBTRACT:
+                        out.write(DSUB);
+                        break;
+                    case ExpressionProgram.MULTIPLY:
+                        out.write(DMUL);
+                        break;
+                    case ExpressionProgram.DIVIDE:
+                        out.write(DDIV);
+                        break;
+                    case ExpressionProgram.AND:
+                        invokeOps(out, "and", BINARY_OP);
+                        break;
+                    case ExpressionProgram.OR:
+                        invokeOps(out, "or", BINARY_OP);
+                        break;
+                    case ExpressionProgram.GT:
+                        invokeOps(out, "gt", BINARY_OP);
+                        break;
+                    case ExpressionProgram.GE:
+                        invokeOps(out, "ge", BINARY_OP);
+                        break;
+                    case ExpressionProgram.LT:
+                        invokeOps(out, "lt", BINARY_OP);
+                        break;
+                    case ExpressionProgram.LE:
+                        invokeOps(out, "le", BINARY_OP);
+                        break;
+                    case ExpressionProgram.EQ:
+                        invokeOps(out, "eq", BINARY_OP);
+                        break;
+                    case ExpressionProgram.NEQ:
+                        invokeOps(out, "neq", BINARY_OP);
+                        break;
+                    case ExpressionProgram.JUMP:
+                        branches.add(new int[]{out.size(), operand});
+                        out.write(GOTO);
+                        out.write(0);
+                        out.write(0);
+                        break;
+                    case ExpressionProgram.JUMP_IF_NOT_POSITIVE:
+                        out.write(DCONST_0);
+                        out.write(DCMPL);
+                        branches.add(new int[]{out.size(), operand});
+                        out.write(IFLE);
+                        out.write(0);
+                        out.write(0);
+                        break;
+                    case ExpressionProgram.JUMP_IF_ZERO:
+                    case ExpressionProgram.JUMP_IF_NOT_ZERO:
+                        // dcmpl gives -1 for NaN, which isn't 0
+                        out.write(DCONST_0);
+                        out.write(DCMPL);
+                        branches.add(new int[]{out.size(), operand});
+                        out.write((opcode == ExpressionProgram.JUMP_IF_ZERO) ? IFEQ : IFNE);
+                        out.write(0);
+                        out.write(0);
+                        break;
+                    case ExpressionProgram.AGG_BEGIN:
+                        // a per-thread accumulator for each nesting depth rather than a new array per aggregate
+                        pushInt(out, aggregateDepth++);
+                        invokeOps(out, "accumulator", "(I)[D");
+                        break;
+                    case ExpressionProgram.AGG_PUSH:
+                        invokeOps(out, "accumulate", "([DD)[D");
+                        break;
+                    case ExpressionProgram.AGG_SUM:
+                        invokeOps(out, "sum", "([D)D");
+                        aggregateDepth--;
+                        break;
+                    case ExpressionProgram.AGG_AVG:
+                        invokeOps(out, "average", "([D)D");
+                        aggregateDepth--;
+                        break;
+                    case ExpressionProgram.AGG_MIN:
+                        invokeOps(out, "min", "([D)D");
+                        aggregateDepth--;
+                        break;
+                    case ExpressionProgram.AGG_MAX:
+                        invokeOps(out, "max", "([D)D");
+                        aggregateDepth--;
+                        break;
+                    default:
+                        throw new UnsupportedOperationException("Opcode " + opcode + " can't be compiled to bytecode");
+                }
+                pc += 1 + ExpressionProgram.operandCount(opcode);
+            }
+            offsets[code.length] = out.size();
+            out.write(DRETURN);
+
+            byte[] bytes = out.toByteArray();
+            if (bytes.length > MAX_METHOD_SIZE) {
+                throw new UnsupportedOperationException("Expression is too large for bytecode: " + bytes.length + " bytes");
+            }
+            for (int[] branch : branches) {
+                int delta = offsets[branch[1]] - branch[0];
+                bytes[branch[0] + 1] = (byte) (delta >> 8);
+                bytes[branch[0] + 2] = (byte) delta;
+            }
+            return bytes;
+        }
+
+        private void invokeOps(ByteArrayOutputStream out, String name, String descriptor) {
+            int ref = pool.methodRef(OPS, name, descriptor);
+            out.write(INVOKESTATIC);
+            out.write(ref >> 8);
+            out.write(ref);
+        }
+
+        private void pushDouble(ByteArrayOutputStream out, double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            if (bits == 0L) {
+                out.write(DCONST_0);
+            } else if (bits == Double.doubleToRawLongBits(1d)) {
+                out.write(DCONST_1);
+            } else {
+                int index = pool.doubleConstant(value);
+                out.write(LDC2_W);
+                out.write(index >> 8);
+                out.write(index);
+            }
+        }
+
+        private void pushInt(ByteArrayOutputStream out, int value) {
+            if (value <= 5) {
+                out.write(ICONST_0 + value);
+            } else if (value <= Byte.MAX_VALUE) {
+                out.write(BIPUSH);
+                out.write(value);
+            } else if (value <= Short.MAX_VALUE) {
+                out.write(SIPUSH);
+                out.write(value >> 8);
+                out.write(value);
+            } else {
+                int index = pool.intConstant(value);
+                out.write(LDC_W);
+                out.write(index >> 8);
+                out.write(index);
+            }
+        }
+    }
+
+    private static final class ConstantPool {
+        private static final int UTF8 = 1;
+        private static final int INTEGER = 3;
+        private static final int DOUBLE = 6;
+        private static final int CLASS = 7;
+        private static final int METHOD_REF = 10;
+        private static final int NAME_AND_TYPE = 12;
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+        int utf8(String value) {
+            return entry("U" + value, 1, () -> {
+                out.writeByte(UTF8);
+                out.writeUTF(value);
+            });
+        }
+
+        int intConstant(int value) {
+            return entry("I" + value, 1, () -> {
+                out.writeByte(INTEGER);
+                out.writeInt(value);
+            });
+        }
+
+        int doubleConstant(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            return entry("D" + bits, 2, () -> {
+                out.writeByte(DOUBLE);
+                out.writeLong(bits);
+            });
+        }
+
+        int classRef(String internalName) {
+            int name = utf8(internalName);
+            return entry("C" + internalName, 1, () -> {
+                out.writeByte(CLASS);
+                out.writeShort(name);
+            });
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            int ownerRef = classRef(owner);
+            int nameRef = utf8(name);
+            int descriptorRef = utf8(descriptor);
+            int nameAndType = entry("N" + name + descriptor, 1, () -> {
+                out.writeByte(NAME_AND_TYPE);
+                out.writeShort(nameRef);
+                out.writeShort(descriptorRef);
+            });
+            return entry("M" + owner + "." + name + descriptor, 1, () -> {
+                out.writeByte(METHOD_REF);
+                out.writeShort(ownerRef);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        void write(DataOutputStream target) throws IOException {
+            out.flush();
+            target.writeShort(count);
+            bytes.writeTo(target);
+        }
+
+        private int entry(String key, int size, EntryWriter writer) {
+            Integer existing = entries.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            try {
+                writer.write();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            int index = count;
+            count += size;
+            if (count > 0xFFFF) {
+                throw new UnsupportedOperationException("Constant pool overflow");
+            }
+            entries.put(key, index);
+            return index;
+        }
+
+        @FunctionalInterface
+        private interface EntryWriter {
+            void write() throws IOException;
+        }
+    }
+}
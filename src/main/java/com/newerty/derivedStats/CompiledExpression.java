@@ -0,0 +1,9 @@
+package com.newerty.derivedStats;
+
+/**
+ * An expression compiled to straight-line JVM bytecode by {@link BytecodeGenerator}. The slots hold the value of
+ * each of the program's stat ids, in {@link ExpressionProgram#statIds} order.
+ */
+interface CompiledExpression {
+    double evaluate(double[] slots);
+}
@@ -1,20 +1,29 @@
 package com.newerty.derivedStats;
 
 import com.google.common.annotations.VisibleForTesting;
-import org.antlr.v4.runtime.CharStreams;
-import org.antlr.v4.runtime.CommonTokenStream;
-import org.antlr.v4.runtime.tree.ParseTree;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.IntStream;
 
-
+/**
+ * Evaluates one assignment expression in any {@link EvaluationMode}.
+ * <p>
+ * An evaluator is safe to share between threads once built, in every mode. Its state is fixed at build time, the
+ * statIds it holds are immutable, and evaluation never changes them. What an evaluation does mutate is confined to
+ * it: the closure tree gets a new {@link EvaluationContext} from every node on every call, and the program and
+ * generated bytecode work in per-thread scratch. Concurrent evaluations may share the same input map or provider
+ * as long as nothing changes it meanwhile. See {@link ParallelEvaluator} for evaluating many expressions at once.
+ */
 public class DerivedExpressionEvaluator implements Evaluator {
 
     private static final Logger LOG = LoggerFactory.getLogger(DerivedExpressionEvaluator.class);
@@ -23,28 +32,129 @@ public class DerivedExpressionEvaluator implements Evaluator {
 
     private final ExpressionStatIdList statIds;
     private final EvaluationFunction function;
+    // kept by closure tree evaluators, which lower it on first use
+    private final String expr;
+    // built up front in every mode but the closure tree, which only needs it to evaluate other than from a map,
+    // racing threads lower the same expression
+    private volatile Lowered lowered;
+    // compiled on the first batch evaluation, racing threads compile the same immutable program
+    private volatile ExpressionProgram batchProgram;
+    private final CompiledExpression compiled;
+    // from the metrics installed when the evaluator was built, null if they were the no-op ones
+    private final EvaluationMetrics.Recorder recorder;
 
     private final static char WILDCARD_CHAR = '*';
 
+    private static volatile EvaluationMetrics metrics = EvaluationMetrics.NOOP;
+
     DerivedExpressionEvaluator(String expr, String categoryId) {
+        this(expr, categoryId, EvaluationMode.CLOSURE_TREE);
+    }
+
+    DerivedExpressionEvaluator(String expr, String categoryId, EvaluationMode mode) {
+        this(expr, categoryId, mode, metrics);
+    }
+
+    // built reporting to the given metrics, ParserWarmup's builds report to none
+    DerivedExpressionEvaluator(String expr, String categoryId, EvaluationMode mode, EvaluationMetrics metrics) {
+        long start = System.nanoTime();
+        this.categoryId = categoryId;
+
+        if (mode == EvaluationMode.CLOSURE_TREE) {
+            // the closure tree runs off the ANTLR parse tree, one walk builds the closures and collects the statIds
+            DerivedExpressionEvaluatorVisitor visitor = new DerivedExpressionEvaluatorVisitor(categoryId, true);
+            this.function = visitor.visit(AssignmentParser.parse(expr));
+            this.statIds = visitor.getStatIds();
+            this.expr = expr;
+            this.compiled = null;
+        } else {
+            ExpressionStatIdList statIds = new ExpressionStatIdList();
+            Lowered lowered = new Lowered(parseNodes(expr, categoryId, statIds), statIds);
+            this.statIds = statIds;
+            this.function = null;
+            this.expr = null;
+            this.lowered = lowered;
+            this.compiled = (mode == EvaluationMode.BYTECODE) ? generateBytecode(lowered.program, expr) : null;
+        }
+        this.recorder = recordBuild(metrics, statIds.getDerivedStatId(), start);
+    }
+
+    // an evaluator read back by EvaluatorCodec, from the parts a built one had
+    DerivedExpressionEvaluator(String categoryId, ExpressionStatIdList statIds, ExpressionNode tree,
+                               ExpressionProgram program, EvaluationMode mode) {
+        long start = System.nanoTime();
         this.categoryId = categoryId;
+        this.statIds = statIds;
+        this.function = null;
+        this.expr = null;
+        this.lowered = new Lowered(tree, program.withPlaceholders(placeholdersOf(statIds.getDerivedStatId())),
+                new SlotBinder(statIds.getDependentStatIds()));
+        this.compiled = (mode == EvaluationMode.BYTECODE) ? generateBytecode(program, statIds.getDerivedStatId().toString()) : null;
+        this.recorder = recordBuild(metrics, statIds.getDerivedStatId(), start);
+    }
 
-        DerivedExpressionLexer lexer = new DerivedExpressionLexer(CharStreams.fromString(expr));
-        lexer.removeErrorListeners();
-        lexer.addErrorListener(ExpressionErrorListener.INSTANCE);
+    // Parses the expression straight to the node tree, collecting the statIds. ANTLR only parses what the fast
+    // parser can't, and reports the errors.
+    private static ExpressionNode parseNodes(String expr, String categoryId, ExpressionStatIdList statIds) {
+        ExpressionNode root = FastAssignmentParser.parse(expr, categoryId, statIds);
+        if (root == null) {
+            ExpressionNodeBuilderVisitor builder = new ExpressionNodeBuilderVisitor(categoryId);
+            root = builder.visit(AssignmentParser.parse(expr));
+            statIds.derivedStatId = builder.getStatIds().derivedStatId;
+            statIds.dependentStatIds = builder.getStatIds().dependentStatIds;
+        }
+        return root;
+    }
 
-        CommonTokenStream tokens = new CommonTokenStream(lexer);
+    private Lowered lowered() {
+        Lowered result = lowered;
+        if (result == null) {
+            result = new Lowered(parseNodes(expr, categoryId, new ExpressionStatIdList()), statIds);
+            lowered = result;
+        }
+        return result;
+    }
 
-        DerivedExpressionParser parser = new DerivedExpressionParser(tokens);
-        parser.removeErrorListeners();
-        parser.addErrorListener(ExpressionErrorListener.INSTANCE);
+    // The optimized node tree, its program and the binder of the program's slots. Every mode keeps a program, its
+    // slots follow the dependent statIds so evaluate(double[]) can use it.
+    private static final class Lowered {
+        final ExpressionNode tree;
+        final ExpressionProgram program;
+        final SlotBinder binder;
 
-        ParseTree parseTree = parser.assignment();
+        Lowered(ExpressionNode root, ExpressionStatIdList statIds) {
+            List<ExpressionStatId> dependentStatIds = statIds.getDependentStatIds();
+            this.tree = ExpressionOptimizer.optimize(root);
+            this.program = ProgramCompiler.compile(tree, dependentStatIds)
+                    .withPlaceholders(placeholdersOf(statIds.getDerivedStatId()));
+            this.binder = new SlotBinder(dependentStatIds);
+        }
 
-        ExtractDependentStatIdsListener extractor
-                = new ExtractDependentStatIdsListener(parseTree, categoryId);
-        this.statIds = extractor.getStatIds();
-        this.function = new DerivedExpressionEvaluatorVisitor(categoryId).visit(parseTree);
+        Lowered(ExpressionNode tree, ExpressionProgram program, SlotBinder binder) {
+            this.tree = tree;
+            this.program = program;
+            this.binder = binder;
+        }
+    }
+
+    // the metrics' recorder for the derived stat, told how long the build took since start
+    private static EvaluationMetrics.Recorder recordBuild(EvaluationMetrics metrics, ExpressionStatId derivedStatId,
+                                                          long start) {
+        EvaluationMetrics.Recorder recorder = metrics.recorder(derivedStatId);
+        if ((recorder == null) || (recorder == EvaluationMetrics.Recorder.NOOP)) {
+            return null;
+        }
+        recorder.built(System.nanoTime() - start);
+        return recorder;
+    }
+
+    private static CompiledExpression generateBytecode(ExpressionProgram program, String expr) {
+        try {
+            return BytecodeGenerator.generate(program);
+        } catch (RuntimeException | LinkageError e) {
+            LOG.debug("Falling back to the interpreter for '{}': {}", expr, e.toString());
+            return null;
+        }
     }
 
     /**
@@ -66,7 +176,124 @@ public class DerivedExpressionEvaluator implements Evaluator {
      */
     @Override
     public double evaluate(Map<ExpressionStatId, Double> values, Map<String, String> placeholders) {
-        return function.apply(values, placeholders).getValue();
+        long start = startEvaluation();
+        if (function != null) {
+            return evaluated(start, function.apply(values, placeholders).getValue());
+        }
+        if (compiled != null) {
+            return evaluated(start, lowered().program.execute(compiled, values));
+        }
+        return evaluated(start, lowered().program.execute(values, placeholders, recorder));
+    }
+
+    /**
+     * Evaluate the evaluator's expression pulling values from the provider as the expression reads them. Values
+     * are pulled by the evaluator's program whatever its evaluation mode, each statId at most once per evaluation.
+     *
+     * @param values The source of the stat values
+     * @param placeholders The dimensions to substitute for wildcards, or an empty map
+     * @return Returns the value of the evaluated expression
+     */
+    @Override
+    public double evaluate(StatValueProvider values, Map<String, String> placeholders) {
+        long start = startEvaluation();
+        return evaluated(start, lowered().program.execute(values, placeholders, recorder));
+    }
+
+    @Override
+    public double evaluate(StatValueProvider values) {
+        return evaluate(values, getPlaceholder());
+    }
+
+    @Override
+    public double evaluate(double[] values) {
+        Lowered lowered = lowered();
+        ExpressionProgram program = lowered.program;
+        if (!program.slotsOnly) {
+            throw new UnsupportedOperationException("Wildcarded statIds can't be evaluated from slots");
+        }
+        if (values.length < lowered.binder.size()) {
+            throw new IllegalArgumentException("Values array needs " + lowered.binder.size() + " slots, got " + values.length);
+        }
+
+        long start = startEvaluation();
+        if (compiled != null) {
+            return evaluated(start, compiled.evaluate(values));
+        }
+        return evaluated(start, program.execute(values, null, Collections.emptyMap()));
+    }
+
+    private long startEvaluation() {
+        return (recorder == null) ? EvaluationMetrics.Recorder.UNTIMED : recorder.start();
+    }
+
+    // reports a finished evaluation to the recorder, if there is one
+    private double evaluated(long start, double result) {
+        if (recorder != null) {
+            recorder.evaluated(start, result);
+        }
+        return result;
+    }
+
+    /**
+     * Evaluates the expression for many rows at once, e.g. one derived stat for every player. Values are given as a
+     * column per dependent statId and each operator runs as a loop over a block of rows, both sides of a ternary are
+     * evaluated and the result picked per row.
+     *
+     * @param columns The values of each dependent statId, indexed by the slots of {@link #getBinder()}, each column
+     *                at least {@code rows} long
+     * @param presence Optional bitmap per column, bit {@code row & 63} of word {@code row >>> 6} is set if the row
+     *                 has a value for the statId. Rows without a value read 0, like a missing map entry. Pass null
+     *                 for the array or a column when every row has a value.
+     * @param rows The number of rows to evaluate
+     * @param out Receives the value of each row, at least {@code rows} long
+     * @throws UnsupportedOperationException if the expression has wildcarded statIds
+     */
+    public void evaluateBatch(double[][] columns, long[][] presence, int rows, double[] out) {
+        Lowered lowered = lowered();
+        if (!lowered.program.slotsOnly) {
+            throw new UnsupportedOperationException("Wildcarded statIds can't be evaluated from columns");
+        }
+        if ((rows < 0) || (out.length < rows)) {
+            throw new IllegalArgumentException("Output array needs " + rows + " rows, got " + out.length);
+        }
+        checkColumns(lowered.binder, columns, presence, rows);
+
+        ExpressionProgram batch = batchProgram;
+        if (batch == null) {
+            batch = ProgramCompiler.compileBranchFree(lowered.tree, statIds.getDependentStatIds());
+            batchProgram = batch;
+        }
+        BatchInterpreter.execute(batch, columns, presence, rows, out);
+    }
+
+    public double[] evaluateBatch(double[][] columns, long[][] presence, int rows) {
+        double[] out = new double[rows];
+        evaluateBatch(columns, presence, rows, out);
+        return out;
+    }
+
+    private static void checkColumns(SlotBinder binder, double[][] columns, long[][] presence, int rows) {
+        if (columns.length < binder.size()) {
+            throw new IllegalArgumentException("Columns array needs " + binder.size() + " columns, got " + columns.length);
+        }
+        if ((presence != null) && (presence.length < binder.size())) {
+            throw new IllegalArgumentException("Presence array needs " + binder.size() + " bitmaps, got " + presence.length);
+        }
+
+        for (int slot = 0; slot < binder.size(); slot++) {
+            if (columns[slot].length < rows) {
+                throw new IllegalArgumentException("Column " + slot + " (" + binder.statIdAt(slot) + ") is shorter than " + rows + " rows");
+            }
+            if ((presence != null) && (presence[slot] != null) && (presence[slot].length < ((rows + 63) >>> 6))) {
+                throw new IllegalArgumentException("Presence bitmap " + slot + " (" + binder.statIdAt(slot) + ") is shorter than " + rows + " rows");
+            }
+        }
+    }
+
+    @Override
+    public SlotBinder getBinder() {
+        return lowered().binder;
     }
 
     @Override
@@ -75,8 +302,12 @@ public class DerivedExpressionEvaluator implements Evaluator {
     }
 
     private Map<String, String> getPlaceholder() {
-        if (getStatIds().derivedStatId.isWildcarded()) {
-            return getStatIds().derivedStatId.getDimensions();
+        return placeholdersOf(getStatIds().derivedStatId);
+    }
+
+    private static Map<String, String> placeholdersOf(ExpressionStatId derivedStatId) {
+        if (derivedStatId.isWildcarded()) {
+            return derivedStatId.getDimensions();
         } else {
             return Collections.emptyMap();
         }
@@ -104,6 +335,111 @@ public class DerivedExpressionEvaluator implements Evaluator {
         return evaluate(nMap, placeholder);
     }
 
+    /**
+     * Evaluates the same input as {@link #evaluateList} with the values of each statId in a primitive array. The
+     * values of a wildcarded statId go straight into the aggregates over it, where evaluateList makes up a statId
+     * per value first.
+     *
+     * @param values The values of each statId, a single one for a statId without wildcards or a placeholder
+     *               expression
+     * @return Returns the value of the evaluated expression
+     * @throws IllegalArgumentException if a placeholder expression is given other than one value per statId
+     */
+    public double evaluateArrays(Map<ExpressionStatId, double[]> values) {
+        Map<ExpressionStatId, DoubleBuffer> buffers = new HashMap<>();
+        values.forEach((statId, valueArray) -> buffers.put(statId, DoubleBuffer.wrap(valueArray)));
+        return evaluateBuffers(buffers);
+    }
+
+    /**
+     * As {@link #evaluateArrays}, reading the values between each buffer's position and limit. Buffers may be
+     * direct, the positions aren't changed.
+     */
+    public double evaluateBuffers(Map<ExpressionStatId, DoubleBuffer> values) {
+        Map<String, String> placeholder = getPlaceholder();
+        if (!placeholder.isEmpty()) {
+            values.forEach((statId, buffer) -> {
+                if (buffer.remaining() != 1) {
+                    throw new IllegalArgumentException("Placeholder value must contain exactly one element");
+                }
+            });
+        }
+
+        long start = startEvaluation();
+        return evaluated(start, lowered().program.execute(new StatValueLists(values), placeholder, recorder));
+    }
+
+    /**
+     * Evaluates a placeholder expression, e.g. {@code foo{map:"*"} = kills{map:"*"} / shots{map:"*"}}, for every
+     * placeholder binding that occurs in the values, giving the same value for each binding as
+     * {@link #evaluate(Map, Map)} with it. The values are grouped by binding in a single pass; each binding is then
+     * evaluated from its own slots, without looking up or creating a statId per wildcard reference.
+     * <p>
+     * A binding is the dimensions of a value whose stat is referenced with wildcards in the expression, and whose
+     * dimension names and non-wildcard dimension values are those of the derived statId.
+     *
+     * @param values A map of statIds and their values
+     * @return The value for each binding, keyed by the derived statId with the binding's dimensions
+     * @throws UnsupportedOperationException if the derived statId has no wildcards
+     */
+    public PlaceholderResults evaluatePlaceholders(Map<ExpressionStatId, Double> values) {
+        ExpressionStatId derived = statIds.getDerivedStatId();
+        if (!derived.isWildcarded()) {
+            throw new UnsupportedOperationException("Only placeholder expressions can be evaluated per placeholder");
+        }
+
+        // the wildcarded slots of each stat name, values of other stats can't make a binding
+        ExpressionProgram program = lowered().program;
+        ExpressionStatId[] slotStatIds = program.statIds;
+        Map<String, List<Integer>> wildcardSlots = new HashMap<>();
+        double[] plain = new double[slotStatIds.length];
+        for (int slot = 0; slot < slotStatIds.length; slot++) {
+            if (slotStatIds[slot].isWildcarded()) {
+                wildcardSlots.computeIfAbsent(slotStatIds[slot].getStatId(), name -> new ArrayList<>()).add(slot);
+            } else {
+                Double value = values.get(slotStatIds[slot]);
+                plain[slot] = (value == null) ? 0d : value;
+            }
+        }
+
+        Map<Map<String, String>, double[]> bindings = new LinkedHashMap<>();
+        values.forEach((statId, value) -> {
+            List<Integer> slots = wildcardSlots.get(statId.getStatId());
+            if ((slots == null) || statId.isWildcarded() || !isBinding(derived, statId.getDimensions())) {
+                return;
+            }
+            for (int slot : slots) {
+                if (slotStatIds[slot].getCategoryId().equals(statId.getCategoryId())) {
+                    bindings.computeIfAbsent(statId.getDimensions(), dimensions -> plain.clone())[slot] = value;
+                }
+            }
+        });
+
+        ExpressionStatId[] results = new ExpressionStatId[bindings.size()];
+        double[] resultValues = new double[bindings.size()];
+        int i = 0;
+        for (Map.Entry<Map<String, String>, double[]> binding : bindings.entrySet()) {
+            results[i] = ExpressionStatIdRegistry.INSTANCE.intern(derived.withDimensions(binding.getKey()));
+            resultValues[i] = program.executeBound(binding.getValue());
+            i++;
+        }
+        return new PlaceholderResults(results, resultValues);
+    }
+
+    // whether the dimensions fill in the derived statId's wildcards and agree with its other dimensions
+    private static boolean isBinding(ExpressionStatId derived, Map<String, String> dimensions) {
+        Map<String, String> pattern = derived.getDimensions();
+        if (!pattern.keySet().equals(dimensions.keySet())) {
+            return false;
+        }
+        for (Map.Entry<String, String> e : pattern.entrySet()) {
+            if (!e.getValue().equals("*") && !e.getValue().equals(dimensions.get(e.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private Map<ExpressionStatId, Double> normalizeStatId(ExpressionStatId statId, List<Double> values) {
         Map<ExpressionStatId, Double> vMap = new HashMap<>();
         IntStream.range(0, values.size()).forEach(idx -> {
@@ -122,6 +458,18 @@ public class DerivedExpressionEvaluator implements Evaluator {
 
 
     public static DerivedExpressionEvaluator build(String expr, String categoryId) {
+        return build(expr, categoryId, EvaluationMode.CLOSURE_TREE);
+    }
+
+    /**
+     * Builds an evaluator for the expression, running it with the given evaluation mode
+     *
+     * @param expr The assignment expression, e.g. "kill_ratio = kills / shots"
+     * @param categoryId The category of any statIds in the expression that aren't qualified
+     * @param mode How the expression is run; all modes produce the same results
+     * @return The evaluator
+     */
+    public static DerivedExpressionEvaluator build(String expr, String categoryId, EvaluationMode mode) {
         if ((expr == null) || expr.isEmpty()) {
             throw new IllegalArgumentException("Expression is required");
         }
@@ -130,12 +478,77 @@ public class DerivedExpressionEvaluator implements Evaluator {
             throw new IllegalArgumentException("CategoryId is required");
         }
 
-        return new DerivedExpressionEvaluator(expr, categoryId);
+        if (mode == null) {
+            throw new IllegalArgumentException("EvaluationMode is required");
+        }
+
+        return new DerivedExpressionEvaluator(expr, categoryId, mode);
+    }
+
+    /**
+     * Writes the evaluator in the versioned binary format of {@link EvaluatorCodec}: its statIds, program and node
+     * tree, so that {@link #fromBytes} restores it without parsing or compiling the expression again. Closures
+     * can only be built from a parse, an evaluator of any mode is read back in a compiled mode.
+     */
+    public byte[] toBytes() {
+        return EvaluatorCodec.toBytes(this);
+    }
+
+    /**
+     * Restores an evaluator written by {@link #toBytes()}
+     *
+     * @param bytes The serialized evaluator
+     * @param mode  How the evaluator runs, either {@link EvaluationMode#COMPILED} or {@link EvaluationMode#BYTECODE}
+     * @return The evaluator
+     * @throws IllegalArgumentException if the bytes aren't a serialized evaluator of a supported version
+     */
+    public static DerivedExpressionEvaluator fromBytes(byte[] bytes, EvaluationMode mode) {
+        if (bytes == null) {
+            throw new IllegalArgumentException("Bytes are required");
+        }
+        return EvaluatorCodec.fromBytes(ByteBuffer.wrap(bytes), mode);
+    }
+
+    /**
+     * Installs the metrics that evaluators built from now on, or decoded by {@link #fromBytes}, report to. Each
+     * evaluator records its build time and every single-value evaluation, including those of
+     * {@link #evaluateList} and {@link #evaluateArrays}, along with the fan-in of the wildcards it aggregates over
+     * in the modes running its program. Batch and per-placeholder evaluations aren't recorded. Evaluators built
+     * before keep reporting to the metrics they were built with.
+     *
+     * @param evaluationMetrics The metrics, {@link EvaluationMetrics#NOOP} to stop recording
+     */
+    public static void setMetrics(EvaluationMetrics evaluationMetrics) {
+        if (evaluationMetrics == null) {
+            throw new IllegalArgumentException("Metrics are required, use EvaluationMetrics.NOOP for none");
+        }
+        metrics = evaluationMetrics;
+    }
+
+    public static EvaluationMetrics getMetrics() {
+        return metrics;
+    }
+
+    String getCategoryId() {
+        return categoryId;
+    }
+
+    ExpressionNode getTree() {
+        return lowered().tree;
+    }
+
+    ExpressionProgram getProgram() {
+        return lowered().program;
+    }
+
+    @VisibleForTesting
+    boolean usesGeneratedBytecode() {
+        return compiled != null;
     }
 
     @VisibleForTesting
     @NonNull
     Double evaluate() {
-        return function.apply(Collections.emptyMap(), Collections.emptyMap()).getValue();
+        return evaluate(Collections.emptyMap(), Collections.emptyMap());
     }
 }
@@ -1,8 +1,10 @@
 package com.newerty.derivedStats;
 
+import org.antlr.v4.runtime.tree.ParseTree;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -13,9 +15,56 @@ public class DerivedExpressionEvaluatorVisitor extends DerivedExpressionBaseVisi
     private static final Logger LOG = LoggerFactory.getLogger(DerivedExpressionEvaluatorVisitor.class);
 
     private final String categoryId;
+    private final boolean foldConstants;
+
+    // number of statIds visited so far, a subtree that doesn't change it doesn't read any values
+    private int statIdCount;
+    private final ExpressionStatIdList statIds = new ExpressionStatIdList();
 
     public DerivedExpressionEvaluatorVisitor(String categoryId) {
+        this(categoryId, false);
+    }
+
+    /**
+     * @param foldConstants Evaluate subtrees without statIds, and ternaries with a constant condition, once at build
+     *                      time rather than on every call. The results are identical either way.
+     */
+    public DerivedExpressionEvaluatorVisitor(String categoryId, boolean foldConstants) {
         this.categoryId = categoryId;
+        this.foldConstants = foldConstants;
+    }
+
+    /**
+     * Returns the statIds of the assignments visited so far, in the same order as
+     * {@link ExtractDependentStatIdsListener} finds them, so building the closures needs no separate walk for them
+     */
+    public ExpressionStatIdList getStatIds() {
+        return statIds;
+    }
+
+    @Override
+    public EvaluationFunction visit(ParseTree tree) {
+        int statIdsBefore = statIdCount;
+        EvaluationFunction function = super.visit(tree);
+
+        if (foldConstants && (statIdCount == statIdsBefore) && (function != null) && !(function instanceof Constant)) {
+            return new Constant(function.apply(Collections.emptyMap(), Collections.emptyMap()).getValue());
+        }
+        return function;
+    }
+
+    // a folded subtree, it hands out a new context on each call since contexts are mutated by the operators
+    private static final class Constant implements EvaluationFunction {
+        private final double value;
+
+        Constant(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public EvaluationContext apply(Map<ExpressionStatId, Double> statValues, Map<String, String> placeholders) {
+            return new EvaluationContext(value);
+        }
     }
 
     // A = B
@@ -24,6 +73,11 @@ public class DerivedExpressionEvaluatorVisitor extends DerivedExpressionBaseVisi
         if (LOG.isTraceEnabled()) {
             LOG.trace(" => assignContext:: {}", ctx.getText());
         }
+        if (statIds.derivedStatId == null) {
+            statIds.derivedStatId = new ExpressionStatIdBuilder()
+                    .from(ctx.statId(), categoryId)
+                    .build();
+        }
         return visit(ctx.expression());
     }
 
@@ -144,7 +198,11 @@ public class DerivedExpressionEvaluatorVisitor extends DerivedExpressionBaseVisi
         }
         EvaluationFunction left = visit(ctx.logical_and_expression());
         EvaluationFunction right = visit(ctx.equality_expression());
-        return (values, ph) -> left.apply(values, ph).logicalAnd(right.apply(values, ph));
+        // the right side is only evaluated if the left one doesn't decide the result
+        return (values, ph) -> {
+            EvaluationContext result = left.apply(values, ph);
+            return (result.getValue() == 0) ? new EvaluationContext(0d) : result.logicalAnd(right.apply(values, ph));
+        };
     }
 
     // A || B
@@ -155,7 +213,10 @@ public class DerivedExpressionEvaluatorVisitor extends DerivedExpressionBaseVisi
         }
         EvaluationFunction left = visit(ctx.logical_or_expression());
         EvaluationFunction right = visit(ctx.logical_and_expression());
-        return (values, ph) -> left.apply(values, ph).logicalOr(right.apply(values, ph));
+        return (values, ph) -> {
+            EvaluationContext result = left.apply(values, ph);
+            return (result.getValue() != 0) ? new EvaluationContext(1d) : result.logicalOr(right.apply(values, ph));
+        };
     }
 
     // A > B
@@ -310,6 +371,10 @@ public class DerivedExpressionEvaluatorVisitor extends DerivedExpressionBaseVisi
         EvaluationFunction left = visit(ctx.expression(0));
         EvaluationFunction right = visit(ctx.expression(1));
 
+        if (arg instanceof Constant) {
+            return (((Constant) arg).value > 0) ? left : right;
+        }
+
         return (values, ph) -> {
             if (arg.apply(values, ph).getValue() > 0) {
                 return left.apply(values, ph);
@@ -325,17 +390,22 @@ public class DerivedExpressionEvaluatorVisitor extends DerivedExpressionBaseVisi
             LOG.trace(" => StatIdContext:: {}", ctx.getText());
         }
 
+        statIdCount++;
         ExpressionStatId dependentStatId = new ExpressionStatIdBuilder()
                 .from(ctx, categoryId)
                 .build();
+        statIds.dependentStatIds.add(dependentStatId);
 
         if (dependentStatId.isWildcarded()) {
             return (values, ph) -> {
                 if (ph.isEmpty()) {
                     // if no placeholders, assume this is a stream for aggregation
-                    DoubleStream v = DoubleStream.empty();
+                    if (values instanceof StatValueIndex) {
+                        return new EvaluationContext(DoubleStream.of(((StatValueIndex) values).matching(dependentStatId)));
+                    }
 
-                    // TODO: optimize this to not do a linear scan, at least pass in a sorted map and then bisect
+                    // a plain map has to be scanned, callers evaluating often should pass a StatValueIndex
+                    DoubleStream v = DoubleStream.empty();
                     for (Map.Entry<ExpressionStatId, Double> e : values.entrySet()) {
                         if (dependentStatId.keysEquals(e.getKey())) {
                             v = DoubleStream.concat(v, DoubleStream.of(e.getValue()));
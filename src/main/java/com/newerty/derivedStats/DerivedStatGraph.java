@@ -0,0 +1,270 @@
+package com.newerty.derivedStats;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A registry of evaluators whose derived stats may depend on each other. It links every evaluator to the
+ * evaluators of its dependent statIds, rejects cycles and keeps the evaluators in topological order, so a change
+ * to some stats re-evaluates only the derived stats downstream of them, each once and after everything it reads.
+ * <p>
+ * A wildcarded dependent statId, e.g. {@code kills{map:"*"}} in an aggregate, depends on every statId with the same
+ * category, stat and dimension names, as in {@link ExpressionStatId#keysEquals(ExpressionStatId)}.
+ * <p>
+ * All methods are synchronized.
+ */
+public final class DerivedStatGraph {
+
+    private static final class Node {
+        final Evaluator evaluator;
+        final ExpressionStatId derivedStatId;
+        final Set<Node> upstream = new LinkedHashSet<>();
+        final Set<Node> downstream = new LinkedHashSet<>();
+        int position;
+
+        Node(Evaluator evaluator) {
+            this.evaluator = evaluator;
+            this.derivedStatId = evaluator.getStatIds().getDerivedStatId();
+        }
+    }
+
+    private static final Comparator<Node> BY_POSITION = Comparator.comparingInt(node -> node.position);
+
+    private final Map<ExpressionStatId, Node> nodes = new LinkedHashMap<>();
+    // derived stats with dimensions by category/stat/names, for the wildcards that read them
+    private final Map<ExpressionStatId, List<Node>> nodesByKeys = new HashMap<>();
+    // readers of each dependent statId, by the exact statId and, for ids with dimensions, by category/stat/names
+    private final Map<ExpressionStatId, List<Node>> readers = new HashMap<>();
+    private final Map<ExpressionStatId, Map<ExpressionStatId, List<Node>>> readersByKeys = new HashMap<>();
+
+    private final List<Node> order = new ArrayList<>();
+
+    /**
+     * Adds an evaluator to the graph. Only the new evaluator is linked, and the order is fixed up between its first
+     * reader and itself, so adding evaluators in evaluation order costs no more than their dependent statIds.
+     *
+     * @param evaluator The evaluator of a derived stat
+     * @throws IllegalArgumentException if the graph already has an evaluator for the derived stat, or if the
+     *                                  evaluator would close a cycle of derived stats
+     */
+    public synchronized void add(Evaluator evaluator) {
+        Node node = new Node(Objects.requireNonNull(evaluator));
+        if (nodes.containsKey(node.derivedStatId)) {
+            throw new IllegalArgumentException("Derived stat " + node.derivedStatId + " is already in the graph");
+        }
+
+        List<ExpressionStatId> dependentStatIds = evaluator.getStatIds().getDependentStatIds();
+        Set<Node> upstream = new LinkedHashSet<>();
+        for (ExpressionStatId statId : dependentStatIds) {
+            if (reads(statId, node.derivedStatId)) {
+                throw new IllegalArgumentException("Derived stat " + node.derivedStatId + " reads itself");
+            }
+            forEachDerived(statId, upstream::add);
+        }
+        Set<Node> downstream = new LinkedHashSet<>();
+        forEachReader(node.derivedStatId, downstream::add);
+
+        // the new node goes last, so only its readers sit out of order, along with everything after them
+        Set<Node> forward = reach(downstream, n -> n.downstream, n -> true);
+        for (Node reached : forward) {
+            if (upstream.contains(reached)) {
+                throw new IllegalArgumentException("Derived stat " + node.derivedStatId
+                        + " would close a cycle through " + reached.derivedStatId);
+            }
+        }
+
+        nodes.put(node.derivedStatId, node);
+        if (!node.derivedStatId.getDimensions().isEmpty()) {
+            nodesByKeys.computeIfAbsent(node.derivedStatId.keysPattern(), id -> new ArrayList<>()).add(node);
+        }
+        dependentStatIds.forEach(statId -> addReader(statId, node));
+        upstream.forEach(n -> link(n, node));
+        downstream.forEach(n -> link(node, n));
+        node.position = order.size();
+        order.add(node);
+
+        if (!downstream.isEmpty()) {
+            reorder(node, forward);
+        }
+    }
+
+    /**
+     * @return The derived statIds in evaluation order, every stat after the derived stats it reads
+     */
+    public synchronized List<ExpressionStatId> getTopologicalOrder() {
+        List<ExpressionStatId> statIds = new ArrayList<>(order.size());
+        order.forEach(node -> statIds.add(node.derivedStatId));
+        return statIds;
+    }
+
+    /**
+     * @param changed StatIds whose values changed
+     * @return The derived statIds that need to be re-evaluated, in evaluation order
+     */
+    public synchronized List<ExpressionStatId> getDirty(Collection<ExpressionStatId> changed) {
+        BitSet dirty = new BitSet(order.size());
+        changed.forEach(statId -> markReaders(statId, dirty));
+
+        // downstream nodes always sit later in the order, so one pass reaches all of them
+        List<ExpressionStatId> statIds = new ArrayList<>();
+        for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+            Node node = order.get(i);
+            statIds.add(node.derivedStatId);
+            node.downstream.forEach(n -> dirty.set(n.position));
+        }
+        return statIds;
+    }
+
+    /**
+     * Re-evaluates the derived stats downstream of the changed stats and stores their new values in {@code values}.
+     * Each derived stat is evaluated at most once, after all of the derived stats it reads. A derived stat whose
+     * value comes out unchanged doesn't dirty its own readers.
+     *
+     * @param values The values of all stats, updated in place
+     * @param changed StatIds whose values in the map changed
+     * @return The derived statIds that were re-evaluated, in evaluation order
+     */
+    public synchronized List<ExpressionStatId> recompute(Map<ExpressionStatId, Double> values,
+                                                         Collection<ExpressionStatId> changed) {
+        BitSet dirty = new BitSet(order.size());
+        changed.forEach(statId -> markReaders(statId, dirty));
+        return evaluate(values, dirty);
+    }
+
+    /**
+     * Evaluates every derived stat in evaluation order and stores the values in {@code values}.
+     *
+     * @return The derived statIds, in evaluation order
+     */
+    public synchronized List<ExpressionStatId> recomputeAll(Map<ExpressionStatId, Double> values) {
+        BitSet dirty = new BitSet(order.size());
+        dirty.set(0, order.size());
+        return evaluate(values, dirty);
+    }
+
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    private List<ExpressionStatId> evaluate(Map<ExpressionStatId, Double> values, BitSet dirty) {
+        List<ExpressionStatId> evaluated = new ArrayList<>();
+        for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+            Node node = order.get(i);
+            double value = node.evaluator.evaluate(values);
+            Double previous = values.put(node.derivedStatId, value);
+            evaluated.add(node.derivedStatId);
+
+            if ((previous == null) || (Double.doubleToLongBits(previous) != Double.doubleToLongBits(value))) {
+                node.downstream.forEach(n -> dirty.set(n.position));
+            }
+        }
+        return evaluated;
+    }
+
+    private void markReaders(ExpressionStatId statId, BitSet dirty) {
+        forEachReader(statId, node -> dirty.set(node.position));
+    }
+
+    // puts the new node, and the stats upstream of it placed after its first reader, ahead of the stats downstream
+    // of it, shuffling them among the positions they already take up (Pearce and Kelly's dynamic topological order)
+    private void reorder(Node node, Set<Node> forward) {
+        int first = Collections.min(forward, BY_POSITION).position;
+        Set<Node> backward = reach(Collections.singleton(node), n -> n.upstream, n -> n.position > first);
+
+        List<Node> moved = new ArrayList<>(backward);
+        moved.sort(BY_POSITION);
+        List<Node> after = new ArrayList<>(forward);
+        after.sort(BY_POSITION);
+        moved.addAll(after);
+
+        int[] positions = new int[moved.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = moved.get(i).position;
+        }
+        Arrays.sort(positions);
+        for (int i = 0; i < positions.length; i++) {
+            Node n = moved.get(i);
+            n.position = positions[i];
+            order.set(positions[i], n);
+        }
+    }
+
+    // the nodes reachable from the start nodes, themselves included, through nodes inside the bound
+    private static Set<Node> reach(Collection<Node> start, Function<Node, Set<Node>> next, Predicate<Node> within) {
+        Set<Node> reached = new LinkedHashSet<>(start);
+        ArrayDeque<Node> pending = new ArrayDeque<>(start);
+        while (!pending.isEmpty()) {
+            for (Node n : next.apply(pending.pop())) {
+                if (within.test(n) && reached.add(n)) {
+                    pending.push(n);
+                }
+            }
+        }
+        return reached;
+    }
+
+    private static void link(Node from, Node to) {
+        from.downstream.add(to);
+        to.upstream.add(from);
+    }
+
+    // true if reading statId reads the derived stat, exactly or through a wildcard on either side
+    private static boolean reads(ExpressionStatId statId, ExpressionStatId derivedStatId) {
+        return statId.equals(derivedStatId)
+                || (!statId.getDimensions().isEmpty()
+                && (statId.isWildcarded() || derivedStatId.isWildcarded())
+                && statId.keysPattern().equals(derivedStatId.keysPattern()));
+    }
+
+    private void forEachDerived(ExpressionStatId statId, Consumer<Node> action) {
+        Node exact = nodes.get(statId);
+        if (exact != null) {
+            action.accept(exact);
+        }
+
+        if (!statId.getDimensions().isEmpty()) {
+            nodesByKeys.getOrDefault(statId.keysPattern(), Collections.emptyList()).forEach(node -> {
+                if ((node.derivedStatId.isWildcarded() || statId.isWildcarded()) && !node.derivedStatId.equals(statId)) {
+                    action.accept(node);
+                }
+            });
+        }
+    }
+
+    private void forEachReader(ExpressionStatId statId, Consumer<Node> action) {
+        readers.getOrDefault(statId, Collections.emptyList()).forEach(action);
+
+        if (!statId.getDimensions().isEmpty()) {
+            // a wildcard on either side matches whatever the dimension values are
+            readersByKeys.getOrDefault(statId.keysPattern(), Collections.emptyMap()).forEach((readStatId, nodes) -> {
+                if ((readStatId.isWildcarded() || statId.isWildcarded()) && !readStatId.equals(statId)) {
+                    nodes.forEach(action);
+                }
+            });
+        }
+    }
+
+    private void addReader(ExpressionStatId statId, Node node) {
+        readers.computeIfAbsent(statId, id -> new ArrayList<>()).add(node);
+        if (!statId.getDimensions().isEmpty()) {
+            readersByKeys.computeIfAbsent(statId.keysPattern(), id -> new HashMap<>())
+                    .computeIfAbsent(statId, id -> new ArrayList<>())
+                    .add(node);
+        }
+    }
+}
@@ -4,6 +4,11 @@ import org.checkerframework.checker.nullness.qual.NonNull;
 
 import java.util.stream.DoubleStream;
 
+/**
+ * The value of a node in the closure tree while it is evaluated. Operators mutate their left operand's context in
+ * place, which is safe since every node hands out a new context on each call and a context never outlives the
+ * evaluation that created it, so contexts are never shared between threads.
+ */
 public class EvaluationContext {
 
     // For most cases, we can use this as an accumulator and mutate the value
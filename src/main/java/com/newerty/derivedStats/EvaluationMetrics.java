@@ -0,0 +1,74 @@
+package com.newerty.derivedStats;
+
+/**
+ * A hook for recording how evaluators are built and run, installed with
+ * {@link DerivedExpressionEvaluator#setMetrics}. Each evaluator asks for its {@link Recorder} once when it's built
+ * and reports to it on every evaluation, so recorders are called from many threads at once and should be cheap,
+ * see {@link StripedEvaluationMetrics}. The default, {@link #NOOP}, records nothing, and evaluators built with it
+ * skip recording altogether.
+ */
+public interface EvaluationMetrics {
+
+    EvaluationMetrics NOOP = derivedStatId -> Recorder.NOOP;
+
+    /**
+     * @param derivedStatId The derived statId of the evaluator being built
+     * @return The recorder the evaluator reports to, or {@link Recorder#NOOP}
+     */
+    Recorder recorder(ExpressionStatId derivedStatId);
+
+    /**
+     * Receives the measurements of one evaluator
+     */
+    interface Recorder {
+
+        /**
+         * Returned by {@link #start()} for an evaluation that isn't timed
+         */
+        long UNTIMED = Long.MIN_VALUE;
+
+        Recorder NOOP = new Recorder() {
+            @Override
+            public void built(long nanos) {
+            }
+
+            @Override
+            public long start() {
+                return UNTIMED;
+            }
+
+            @Override
+            public void evaluated(long start, double result) {
+            }
+
+            @Override
+            public void wildcard(int matches) {
+            }
+        };
+
+        /**
+         * @param nanos How long the evaluator took to build from its expression, or from the parts of a serialized one
+         */
+        void built(long nanos);
+
+        /**
+         * Called as an evaluation starts, so the recorder decides which evaluations are timed
+         *
+         * @return A {@link System#nanoTime()} to time the evaluation from, or {@link #UNTIMED}
+         */
+        long start();
+
+        /**
+         * @param start  What {@link #start()} returned for the evaluation
+         * @param result The value of the expression
+         */
+        void evaluated(long start, double result);
+
+        /**
+         * Called for each wildcarded statId an evaluation aggregates over, e.g. {@code kills{map:"*"}}
+         *
+         * @param matches The number of values that matched it, the aggregate's fan-in
+         */
+        void wildcard(int matches);
+    }
+}
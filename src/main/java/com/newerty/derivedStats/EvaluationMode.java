@@ -0,0 +1,24 @@
+package com.newerty.derivedStats;
+
+/**
+ * Selects how a {@link DerivedExpressionEvaluator} runs its expression.
+ */
+public enum EvaluationMode {
+
+    /**
+     * Nested {@link EvaluationFunction} closures built by {@link DerivedExpressionEvaluatorVisitor}.
+     */
+    CLOSURE_TREE,
+
+    /**
+     * A flat {@link ExpressionProgram} run by a single interpreter loop. Produces the same results as
+     * {@link #CLOSURE_TREE} without the per-node allocations and interface calls.
+     */
+    COMPILED,
+
+    /**
+     * The {@link #COMPILED} program translated into a generated class, so the JIT can inline the whole expression.
+     * Falls back to {@link #COMPILED} for expressions that can't be generated, e.g. ones with wildcarded statIds.
+     */
+    BYTECODE
+}
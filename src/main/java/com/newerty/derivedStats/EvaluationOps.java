@@ -0,0 +1,177 @@
+package com.newerty.derivedStats;
+
+import java.util.Arrays;
+
+/**
+ * Scalar operators and aggregate accumulators shared by the compiled evaluation backends. The semantics mirror
+ * {@link EvaluationContext} and the {@link java.util.stream.DoubleStream} reductions used by
+ * {@link DerivedExpressionEvaluatorVisitor}, so every backend produces the same results.
+ */
+final class EvaluationOps {
+
+    // Accumulator layout, ACC_SIZE doubles per open aggregate.
+    static final int ACC_SUM = 0;
+    static final int ACC_COMPENSATION = 1;
+    static final int ACC_SIMPLE_SUM = 2;
+    static final int ACC_COUNT = 3;
+    static final int ACC_MIN = 4;
+    static final int ACC_MAX = 5;
+    static final int ACC_SIZE = 6;
+
+    private EvaluationOps() {
+    }
+
+    static double and(double left, double right) {
+        return ((left != 0) && (right != 0)) ? 1d : 0d;
+    }
+
+    static double or(double left, double right) {
+        return ((left != 0) || (right != 0)) ? 1d : 0d;
+    }
+
+    static double gt(double left, double right) {
+        return (left > right) ? 1d : 0d;
+    }
+
+    static double ge(double left, double right) {
+        return (left >= right) ? 1d : 0d;
+    }
+
+    static double lt(double left, double right) {
+        return (left < right) ? 1d : 0d;
+    }
+
+    static double le(double left, double right) {
+        return (left <= right) ? 1d : 0d;
+    }
+
+    static double eq(double left, double right) {
+        if (Double.isNaN(left) || Double.isNaN(right)) {
+            return Double.NaN;
+        }
+        return (left == right) ? 1d : 0d;
+    }
+
+    static double neq(double left, double right) {
+        if (Double.isNaN(left) || Double.isNaN(right)) {
+            return Double.NaN;
+        }
+        return (left == right) ? 0d : 1d;
+    }
+
+    static void resetAccumulator(double[] acc, int offset) {
+        acc[offset + ACC_SUM] = 0d;
+        acc[offset + ACC_COMPENSATION] = 0d;
+        acc[offset + ACC_SIMPLE_SUM] = 0d;
+        acc[offset + ACC_COUNT] = 0d;
+        acc[offset + ACC_MIN] = Double.POSITIVE_INFINITY;
+        acc[offset + ACC_MAX] = Double.NEGATIVE_INFINITY;
+    }
+
+    // Kahan summation, exactly as DoubleStream.sum() does it.
+    static void accumulate(double[] acc, int offset, double value) {
+        double tmp = value - acc[offset + ACC_COMPENSATION];
+        double sum = acc[offset + ACC_SUM];
+        double velvel = sum + tmp;
+        acc[offset + ACC_COMPENSATION] = (velvel - sum) - tmp;
+        acc[offset + ACC_SUM] = velvel;
+        acc[offset + ACC_SIMPLE_SUM] += value;
+        acc[offset + ACC_COUNT] += 1d;
+        acc[offset + ACC_MIN] = Math.min(acc[offset + ACC_MIN], value);
+        acc[offset + ACC_MAX] = Math.max(acc[offset + ACC_MAX], value);
+    }
+
+    /**
+     * Adds {@code count} values at once, given their sum, minimum and maximum, as if each had been accumulated. The
+     * sum joins the compensated sum as a single value, so the result can differ from adding the values one by one in
+     * the last bits.
+     */
+    static void accumulateAll(double[] acc, int offset, double sum, double count, double min, double max) {
+        if (count == 0) {
+            return;
+        }
+        double tmp = sum - acc[offset + ACC_COMPENSATION];
+        double oldSum = acc[offset + ACC_SUM];
+        double velvel = oldSum + tmp;
+        acc[offset + ACC_COMPENSATION] = (velvel - oldSum) - tmp;
+        acc[offset + ACC_SUM] = velvel;
+        acc[offset + ACC_SIMPLE_SUM] += sum;
+        acc[offset + ACC_COUNT] += count;
+        acc[offset + ACC_MIN] = Math.min(acc[offset + ACC_MIN], min);
+        acc[offset + ACC_MAX] = Math.max(acc[offset + ACC_MAX], max);
+    }
+
+    static double sum(double[] acc, int offset) {
+        double tmp = acc[offset + ACC_SUM] - acc[offset + ACC_COMPENSATION];
+        double simpleSum = acc[offset + ACC_SIMPLE_SUM];
+        if (Double.isNaN(tmp) && Double.isInfinite(simpleSum)) {
+            return simpleSum;
+        }
+        return tmp;
+    }
+
+    static double average(double[] acc, int offset) {
+        double count = acc[offset + ACC_COUNT];
+        return (count > 0) ? sum(acc, offset) / count : 0d;
+    }
+
+    static double min(double[] acc, int offset) {
+        return (acc[offset + ACC_COUNT] > 0) ? acc[offset + ACC_MIN] : 0d;
+    }
+
+    static double max(double[] acc, int offset) {
+        return (acc[offset + ACC_COUNT] > 0) ? acc[offset + ACC_MAX] : 0d;
+    }
+
+    // Single accumulator variants, used by generated bytecode which keeps one array per open aggregate.
+
+    // the calling thread's accumulator per aggregate nesting depth, generated code never calls back into an
+    // evaluator so a thread only ever uses them for one evaluation at a time
+    private static final ThreadLocal<double[][]> ACCUMULATORS = ThreadLocal.withInitial(() -> new double[0][]);
+
+    static double[] newAccumulator() {
+        double[] acc = new double[ACC_SIZE];
+        resetAccumulator(acc, 0);
+        return acc;
+    }
+
+    /**
+     * Returns the calling thread's reset accumulator for aggregates nested {@code depth} deep, without allocating
+     * once the thread has used that depth before.
+     */
+    static double[] accumulator(int depth) {
+        double[][] accumulators = ACCUMULATORS.get();
+        if (depth >= accumulators.length) {
+            accumulators = Arrays.copyOf(accumulators, depth + 1);
+            ACCUMULATORS.set(accumulators);
+        }
+        double[] acc = accumulators[depth];
+        if (acc == null) {
+            acc = new double[ACC_SIZE];
+            accumulators[depth] = acc;
+        }
+        resetAccumulator(acc, 0);
+        return acc;
+    }
+
+    static double[] accumulate(double[] acc, double value) {
+        accumulate(acc, 0, value);
+        return acc;
+    }
+
+    static double sum(double[] acc) {
+        return sum(acc, 0);
+    }
+
+    static double average(double[] acc) {
+        return average(acc, 0);
+    }
+
+    static double min(double[] acc) {
+        return min(acc, 0);
+    }
+
+    static double max(double[] acc) {
+        return max(acc, 0);
+    }
+}
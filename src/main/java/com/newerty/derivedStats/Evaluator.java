@@ -1 +1 @@
-package com.newerty.derivedStats;import java.util.Map;public interface Evaluator {    /**     * Evaluate the evaluator's expression by first replacing the statIds with provided values in the map     *     * @param values A map of the statIds in the expression and their values     * @return Returns the value of the evaluated expression as a double     */    double evaluate(Map<ExpressionStatId, Double> values, Map<String, String> placeholders);    double evaluate(Map<ExpressionStatId, Double> values);    /**     * Returns all of the statIds in the evaluator's expression     *     * @return An ExpressionStatIdList containing the derived statId and the dependent statIds in the     * evaluator's expression     */    ExpressionStatIdList getStatIds();}
\ No newline at end of file
+package com.newerty.derivedStats;import java.util.Map;public interface Evaluator {    /**     * Evaluate the evaluator's expression by first replacing the statIds with provided values in the map     *     * @param values A map of the statIds in the expression and their values     * @return Returns the value of the evaluated expression as a double     */    double evaluate(Map<ExpressionStatId, Double> values, Map<String, String> placeholders);    double evaluate(Map<ExpressionStatId, Double> values);    /**     * Evaluate the evaluator's expression with values resolved to slots up front. This avoids hashing statIds and     * boxing values on every evaluation, and once warmed up it allocates nothing whatever the evaluation mode.     *     * @param values The value of each dependent statId, indexed by the slots of {@link #getBinder()}     * @return Returns the value of the evaluated expression as a double     * @throws UnsupportedOperationException if the expression has wildcarded statIds, which don't have a single value     */    double evaluate(double[] values);    /**     * Returns the binder that maps the dependent statIds to the slots read by {@link #evaluate(double[])}     */    SlotBinder getBinder();    /**     * Evaluate the evaluator's expression pulling values from the provider as the expression reads them. Stats in     * the untaken branch of a ternary, or behind a short-circuited {@code &&} or {@code ||}, are never fetched.     *     * @param values The source of the stat values     * @param placeholders The dimensions to substitute for wildcards, or an empty map     * @return Returns the value of the evaluated expression as a double     */    double evaluate(StatValueProvider values, Map<String, String> placeholders);    double evaluate(StatValueProvider values);    /**     * Returns all of the statIds in the evaluator's expression     *     * @return An ExpressionStatIdList containing the derived statId and the dependent statIds in the     * evaluator's expression     */    ExpressionStatIdList getStatIds();}
\ No newline at end of file
@@ -0,0 +1,103 @@
+package com.newerty.derivedStats;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A size-bounded cache of built evaluators, keyed by expression text, category and evaluation mode. Evaluators are
+ * immutable, so a cached one can be shared by any number of threads. The least recently used evaluators are
+ * evicted once the cache is full. Expressions that fail to build aren't cached.
+ */
+public final class EvaluatorCache {
+
+    private final Cache<Key, DerivedExpressionEvaluator> cache;
+
+    /**
+     * @param maximumSize The maximum number of evaluators to keep
+     */
+    public EvaluatorCache(long maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("Maximum size must be positive");
+        }
+
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Returns the cached evaluator for the expression, building it with {@link DerivedExpressionEvaluator#build}
+     * on a miss
+     */
+    public DerivedExpressionEvaluator build(String expr, String categoryId) {
+        return build(expr, categoryId, EvaluationMode.CLOSURE_TREE);
+    }
+
+    public DerivedExpressionEvaluator build(String expr, String categoryId, EvaluationMode mode) {
+        try {
+            return cache.get(new Key(expr, categoryId, mode), () -> DerivedExpressionEvaluator.build(expr, categoryId, mode));
+        } catch (UncheckedExecutionException | ExecutionException e) {
+            // rethrow what build() threw, e.g. ExpressionEvaluationException for an invalid expression
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public long hitCount() {
+        return cache.stats().hitCount();
+    }
+
+    public long missCount() {
+        return cache.stats().missCount();
+    }
+
+    public long evictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private static final class Key {
+        private final String expr;
+        private final String categoryId;
+        private final EvaluationMode mode;
+        private final int hash;
+
+        Key(String expr, String categoryId, EvaluationMode mode) {
+            this.expr = expr;
+            this.categoryId = categoryId;
+            this.mode = mode;
+            this.hash = Objects.hash(expr, categoryId, mode);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key that = (Key) o;
+            return (hash == that.hash)
+                    && Objects.equals(expr, that.expr)
+                    && Objects.equals(categoryId, that.categoryId)
+                    && (mode == that.mode);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.newerty.derivedStats;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A file of serialized evaluators, see {@link DerivedExpressionEvaluator#toBytes()}, opened by memory-mapping it.
+ * Opening reads only the header and checks the table and offsets, each evaluator is decoded on first use and kept,
+ * so startup costs a file map rather than a parse of every expression. Evaluators are found by their derived statId through an open-addressing
+ * table in the file. The file is:
+ * <pre>
+ *   magic, version, evaluator count, table size
+ *   table          per slot the index of an evaluator plus one, 0 for empty, slotted by its derived statId's hash
+ *   hashes         the hash of each evaluator's derived statId
+ *   offsets        the start of each evaluator's record, and the end of the last
+ *   records        in the format of {@link EvaluatorCodec}
+ * </pre>
+ * A catalog is safe to share between threads, racing threads may both decode an evaluator but all get the same one.
+ */
+public final class EvaluatorCatalog {
+
+    private static final int MAGIC = 0x44534543; // "DSEC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private final ByteBuffer buffer;
+    private final EvaluationMode mode;
+    private final int count;
+    private final int tableSize;
+    private final AtomicReferenceArray<DerivedExpressionEvaluator> evaluators;
+    private final AtomicInteger loaded = new AtomicInteger();
+
+    private EvaluatorCatalog(ByteBuffer buffer, EvaluationMode mode, int count, int tableSize) {
+        this.buffer = buffer;
+        this.mode = mode;
+        this.count = count;
+        this.tableSize = tableSize;
+        this.evaluators = new AtomicReferenceArray<>(count);
+    }
+
+    /**
+     * Writes a catalog of the evaluators, which {@link #open} maps back
+     *
+     * @param file       The file to write, replaced if it exists
+     * @param evaluators The evaluators, each with a different derived statId
+     * @throws IllegalArgumentException if two evaluators derive the same stat
+     */
+    public static void write(Path file, Collection<DerivedExpressionEvaluator> evaluators) throws IOException {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream recordOut = new DataOutputStream(records);
+        int[] hashes = new int[evaluators.size()];
+        int[] offsets = new int[evaluators.size() + 1];
+        Set<ExpressionStatId> derivedStatIds = new HashSet<>();
+
+        int i = 0;
+        for (DerivedExpressionEvaluator evaluator : evaluators) {
+            ExpressionStatId derived = evaluator.getStatIds().getDerivedStatId();
+            if (!derivedStatIds.add(derived)) {
+                throw new IllegalArgumentException("Derived stat " + derived + " is defined more than once");
+            }
+            hashes[i] = derived.hashCode();
+            offsets[i++] = records.size();
+            EvaluatorCodec.write(evaluator, recordOut);
+        }
+        offsets[i] = records.size();
+
+        int tableSize = Integer.highestOneBit(Math.max(1, hashes.length) * 2) * 2;
+        long size = HEADER_SIZE + 4L * (tableSize + hashes.length + offsets.length) + records.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Catalog of " + size + " bytes is too large to map");
+        }
+        int[] table = new int[tableSize];
+        for (int e = 0; e < hashes.length; e++) {
+            int slot = slot(hashes[e], tableSize);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & (tableSize - 1);
+            }
+            table[slot] = e + 1;
+        }
+
+        int recordsStart = (int) (size - records.size());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(hashes.length);
+            out.writeInt(tableSize);
+            for (int entry : table) {
+                out.writeInt(entry);
+            }
+            for (int hash : hashes) {
+                out.writeInt(hash);
+            }
+            for (int offset : offsets) {
+                out.writeInt(recordsStart + offset);
+            }
+            records.writeTo(out);
+        }
+    }
+
+    /**
+     * Maps a catalog written by {@link #write}. Nothing is decoded yet.
+     *
+     * @param mode How the evaluators run, either {@link EvaluationMode#COMPILED} or {@link EvaluationMode#BYTECODE}
+     * @throws IOException if the file can't be read or isn't a catalog of a supported version
+     */
+    public static EvaluatorCatalog open(Path file, EvaluationMode mode) throws IOException {
+        if ((mode != EvaluationMode.COMPILED) && (mode != EvaluationMode.BYTECODE)) {
+            throw new IllegalArgumentException("Serialized evaluators run in COMPILED or BYTECODE mode, not " + mode);
+        }
+
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // the mapping stays valid once the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if ((buffer.capacity() < HEADER_SIZE) || (buffer.getInt(0) != MAGIC)) {
+            throw new IOException("Not an evaluator catalog: " + file);
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("Unsupported evaluator catalog version " + version + ": " + file);
+        }
+        int count = buffer.getInt(8);
+        int tableSize = buffer.getInt(12);
+        if ((count < 0) || (tableSize <= count) || (Integer.bitCount(tableSize) != 1)
+                || (HEADER_SIZE + 4L * (tableSize + 2L * count + 1) > buffer.capacity())) {
+            throw new IOException("Corrupt evaluator catalog header: " + file);
+        }
+        checkIndex(buffer, count, tableSize, file);
+        return new EvaluatorCatalog(buffer, mode, count, tableSize);
+    }
+
+    // every table entry names an evaluator, at least one slot is empty so probes end, and the records lie in order
+    // between the offsets and the end of the file
+    private static void checkIndex(ByteBuffer buffer, int count, int tableSize, Path file) throws IOException {
+        boolean empty = false;
+        for (int slot = 0; slot < tableSize; slot++) {
+            int entry = buffer.getInt(HEADER_SIZE + 4 * slot);
+            if ((entry < 0) || (entry > count)) {
+                throw new IOException("Corrupt evaluator catalog: table slot " + slot + " names evaluator " + entry + ": " + file);
+            }
+            empty |= (entry == 0);
+        }
+        if (!empty) {
+            throw new IOException("Corrupt evaluator catalog: no empty table slot: " + file);
+        }
+
+        int offsets = HEADER_SIZE + 4 * (tableSize + count);
+        int previous = offsets + 4 * (count + 1);
+        for (int i = 0; i <= count; i++) {
+            int offset = buffer.getInt(offsets + 4 * i);
+            if ((offset < previous) || (offset > buffer.capacity())) {
+                throw new IOException("Corrupt evaluator catalog: offset " + offset + " of record " + i + ": " + file);
+            }
+            previous = offset;
+        }
+    }
+
+    /**
+     * @return The number of evaluators in the catalog
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return The number of evaluators decoded so far
+     */
+    public int getLoadedCount() {
+        return loaded.get();
+    }
+
+    /**
+     * @return The index'th evaluator, in the order they were written
+     * @throws IllegalArgumentException if its record is corrupt
+     */
+    public DerivedExpressionEvaluator get(int index) {
+        if ((index < 0) || (index >= count)) {
+            throw new IndexOutOfBoundsException("Index " + index + " of " + count + " evaluators");
+        }
+
+        DerivedExpressionEvaluator evaluator = evaluators.get(index);
+        if (evaluator == null) {
+            int offsets = HEADER_SIZE + 4 * (tableSize + count);
+            int start = buffer.getInt(offsets + 4 * index);
+            int end = buffer.getInt(offsets + 4 * (index + 1));
+            if ((start < offsets) || (start > end) || (end > buffer.capacity())) {
+                throw new IllegalArgumentException("Corrupt evaluator catalog: record " + index + " at " + start + ".." + end);
+            }
+
+            ByteBuffer record = buffer.duplicate();
+            record.limit(end).position(start);
+            DerivedExpressionEvaluator decoded = EvaluatorCodec.read(record, mode);
+            if (evaluators.compareAndSet(index, null, decoded)) {
+                loaded.incrementAndGet();
+            }
+            evaluator = evaluators.get(index);
+        }
+        return evaluator;
+    }
+
+    /**
+     * @param derivedStatId The derived stat of one of the evaluators
+     * @return Its evaluator, or null if the catalog has none for it
+     */
+    public DerivedExpressionEvaluator find(ExpressionStatId derivedStatId) {
+        int hash = derivedStatId.hashCode();
+        int hashes = HEADER_SIZE + 4 * tableSize;
+        // open() made sure a slot is empty, the bound only guards against a file changed under the mapping
+        int slot = slot(hash, tableSize);
+        for (int probes = 0; probes < tableSize; probes++, slot = (slot + 1) & (tableSize - 1)) {
+            int entry = buffer.getInt(HEADER_SIZE + 4 * slot);
+            if (entry == 0) {
+                return null;
+            }
+            // only decode evaluators whose hash matches
+            if (buffer.getInt(hashes + 4 * (entry - 1)) == hash) {
+                DerivedExpressionEvaluator evaluator = get(entry - 1);
+                if (evaluator.getStatIds().getDerivedStatId().equals(derivedStatId)) {
+                    return evaluator;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decodes every evaluator not decoded yet
+     *
+     * @return All of the evaluators, in the order they were written
+     */
+    public List<DerivedExpressionEvaluator> loadAll() {
+        List<DerivedExpressionEvaluator> all = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            all.add(get(i));
+        }
+        return all;
+    }
+
+    // statId hashes are stable across JVMs, they only hash strings, so the table can be built by another process
+    private static int slot(int hash, int tableSize) {
+        int mixed = hash * 0x9E3779B9;
+        return (mixed ^ (mixed >>> 16)) & (tableSize - 1);
+    }
+}
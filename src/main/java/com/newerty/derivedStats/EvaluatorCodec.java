@@ -0,0 +1,490 @@
+package com.newerty.derivedStats;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The binary format of a compiled {@link DerivedExpressionEvaluator}, everything a build produces short of the
+ * closures of {@link EvaluationMode#CLOSURE_TREE}, so reading one back parses and compiles nothing. All numbers are
+ * varints, unsigned ints in 7 bit groups low group first, unless noted. Strings are a table of UTF-8 byte runs
+ * referenced by index. A record is:
+ * <pre>
+ *   flags                   bit 0: a placeholder expression, bit 1: reads wildcards
+ *   category                string index
+ *   statId count, statIds   stat, category, dimension count, then name and value per dimension, all string indices.
+ *                           The derived statId first, then the dependent statIds in their slot order
+ *   dependent count
+ *   code length, code
+ *   constant count, constants as doubles
+ *   slot count, statId index of each program slot
+ *   max stack, max aggregate depth
+ *   tree                    the optimized node tree in prefix order: a tag byte per node, then the constant as a
+ *                           double, the statId index, or the operator ordinal as a byte and for aggregates the
+ *                           argument count, followed by the children
+ * </pre>
+ * preceded by the string table, a count then a length and bytes per string. {@link #toBytes} writes a single
+ * record behind a 4 byte magic number and version, {@link EvaluatorCatalog} writes many behind one header of its
+ * own.
+ */
+final class EvaluatorCodec {
+
+    static final int MAGIC = 0x44534556; // "DSEV"
+    static final int VERSION = 1;
+
+    private static final int PLACEHOLDER = 1;
+    private static final int WILDCARDS = 2;
+
+    private static final byte CONSTANT = 0;
+    private static final byte STAT_REF = 1;
+    private static final byte NEGATE = 2;
+    private static final byte BINARY = 3;
+    private static final byte TERNARY = 4;
+    private static final byte AGGREGATE = 5;
+
+    private EvaluatorCodec() {
+    }
+
+    static byte[] toBytes(DerivedExpressionEvaluator evaluator) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            write(evaluator, out);
+        } catch (IOException e) {
+            // nothing to fail writing to memory
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static DerivedExpressionEvaluator fromBytes(ByteBuffer in, EvaluationMode mode) {
+        if ((in.remaining() < 8) || (in.getInt() != MAGIC)) {
+            throw new IllegalArgumentException("Not a serialized evaluator");
+        }
+        int version = in.getInt();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported serialized evaluator version " + version);
+        }
+        return read(in, mode);
+    }
+
+    /**
+     * Writes the record of an evaluator, without the magic number and version
+     */
+    static void write(DerivedExpressionEvaluator evaluator, DataOutputStream out) throws IOException {
+        ExpressionStatIdList ids = evaluator.getStatIds();
+        ExpressionProgram program = evaluator.getProgram();
+        ExpressionNode tree = evaluator.getTree();
+
+        // the derived and dependent statIds, then any the program or tree read besides, which normally is none
+        Map<ExpressionStatId, Integer> statIds = new LinkedHashMap<>();
+        statIds.put(ids.getDerivedStatId(), 0);
+        for (ExpressionStatId statId : ids.dependentStatIds) {
+            statIds.putIfAbsent(statId, statIds.size());
+        }
+        for (ExpressionStatId statId : program.statIds) {
+            statIds.putIfAbsent(statId, statIds.size());
+        }
+        collectStatIds(tree, statIds);
+
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        strings.put(evaluator.getCategoryId(), 0);
+        for (ExpressionStatId statId : statIds.keySet()) {
+            strings.putIfAbsent(statId.getStatId(), strings.size());
+            strings.putIfAbsent(statId.getCategoryId(), strings.size());
+            for (Map.Entry<String, String> dimension : statId.getDimensions().entrySet()) {
+                strings.putIfAbsent(dimension.getKey(), strings.size());
+                strings.putIfAbsent(dimension.getValue(), strings.size());
+            }
+        }
+
+        writeVarInt(out, strings.size());
+        for (String string : strings.keySet()) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(out, bytes.length);
+            out.write(bytes);
+        }
+
+        writeVarInt(out, (ids.getDerivedStatId().isWildcarded() ? PLACEHOLDER : 0) | (program.slotsOnly ? 0 : WILDCARDS));
+        writeVarInt(out, strings.get(evaluator.getCategoryId()));
+
+        writeVarInt(out, statIds.size());
+        for (ExpressionStatId statId : statIds.keySet()) {
+            writeVarInt(out, strings.get(statId.getStatId()));
+            writeVarInt(out, strings.get(statId.getCategoryId()));
+            writeVarInt(out, statId.getDimensions().size());
+            for (Map.Entry<String, String> dimension : statId.getDimensions().entrySet()) {
+                writeVarInt(out, strings.get(dimension.getKey()));
+                writeVarInt(out, strings.get(dimension.getValue()));
+            }
+        }
+        writeVarInt(out, ids.dependentStatIds.size());
+
+        writeVarInt(out, program.code.length);
+        for (int word : program.code) {
+            writeVarInt(out, word);
+        }
+        writeVarInt(out, program.constants.length);
+        for (double constant : program.constants) {
+            out.writeDouble(constant);
+        }
+        writeVarInt(out, program.statIds.length);
+        for (ExpressionStatId statId : program.statIds) {
+            writeVarInt(out, statIds.get(statId));
+        }
+        writeVarInt(out, program.maxStack);
+        writeVarInt(out, program.maxAggregateDepth);
+
+        writeNode(tree, statIds, out);
+    }
+
+    /**
+     * Reads a record written by {@link #write}, the buffer must end where the record does
+     *
+     * @throws IllegalArgumentException if the record is malformed
+     */
+    static DerivedExpressionEvaluator read(ByteBuffer in, EvaluationMode mode) {
+        if ((mode != EvaluationMode.COMPILED) && (mode != EvaluationMode.BYTECODE)) {
+            throw new IllegalArgumentException("Serialized evaluators run in COMPILED or BYTECODE mode, not " + mode);
+        }
+
+        try {
+            String[] strings = new String[count(in)];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[count(in)];
+                in.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            int flags = readVarInt(in);
+            String categoryId = strings[readVarInt(in)];
+
+            ExpressionStatId[] statIds = new ExpressionStatId[count(in)];
+            for (int i = 0; i < statIds.length; i++) {
+                String stat = strings[readVarInt(in)];
+                String category = strings[readVarInt(in)];
+                Map<String, String> dimensions = new TreeMap<>();
+                for (int d = count(in); d > 0; d--) {
+                    dimensions.put(strings[readVarInt(in)], strings[readVarInt(in)]);
+                }
+                statIds[i] = ExpressionStatIdRegistry.INSTANCE.intern(stat, category, dimensions);
+            }
+            int dependentCount = count(in);
+            if ((statIds.length == 0) || (dependentCount >= statIds.length)) {
+                throw new IllegalArgumentException("Corrupt serialized evaluator: " + dependentCount + " dependent statIds of " + statIds.length);
+            }
+
+            ExpressionStatIdList ids = new ExpressionStatIdList();
+            ids.derivedStatId = statIds[0];
+            for (int i = 1; i <= dependentCount; i++) {
+                ids.dependentStatIds.add(statIds[i]);
+            }
+
+            int[] code = new int[count(in)];
+            for (int i = 0; i < code.length; i++) {
+                code[i] = readVarInt(in);
+            }
+            double[] constants = new double[count(in)];
+            for (int i = 0; i < constants.length; i++) {
+                constants[i] = in.getDouble();
+            }
+            ExpressionStatId[] slots = new ExpressionStatId[count(in)];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = statIds[readVarInt(in)];
+            }
+            int maxStack = readVarInt(in);
+            int maxAggregateDepth = readVarInt(in);
+            verify(code, constants.length, slots.length, maxStack, maxAggregateDepth);
+            ExpressionProgram program = new ExpressionProgram(code, constants, slots, maxStack, maxAggregateDepth);
+
+            ExpressionNode tree = readNode(in, statIds);
+            if (in.hasRemaining()) {
+                throw new IllegalArgumentException("Corrupt serialized evaluator: " + in.remaining() + " trailing bytes");
+            }
+            if (((flags & PLACEHOLDER) != 0) != ids.getDerivedStatId().isWildcarded()
+                    || ((flags & WILDCARDS) != 0) == program.slotsOnly) {
+                throw new IllegalArgumentException("Corrupt serialized evaluator: flags " + flags + " don't match " + ids.getDerivedStatId());
+            }
+
+            return new DerivedExpressionEvaluator(categoryId, ids, tree, program, mode);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Corrupt serialized evaluator: " + e, e);
+        }
+    }
+
+    // a non-negative count, anything else is a corrupt record that would otherwise fail far from here
+    private static int count(ByteBuffer in) {
+        int count = readVarInt(in);
+        if ((count < 0) || (count > in.remaining())) {
+            throw new IllegalArgumentException("Corrupt serialized evaluator: count " + count + " with " + in.remaining() + " bytes left");
+        }
+        return count;
+    }
+
+    // Rejects code the interpreter or the bytecode generator would run off the end of an array with, or loop in.
+    // Jumps only go forward and land on an instruction, so one walk in order sees every way into an instruction
+    // before it, and the stack and aggregate depths there must agree and stay within the declared limits.
+    private static void verify(int[] code, int constantCount, int slotCount, int maxStack, int maxAggregateDepth) {
+        // the depths each instruction is reached with by a jump, -1 if none jumps there
+        int[] stackAt = new int[code.length + 1];
+        int[] aggregatesAt = new int[code.length + 1];
+        Arrays.fill(stackAt, -1);
+        int depth = 0;
+        int aggregates = 0;
+        boolean reachable = true;
+
+        int pc = 0;
+        while (pc < code.length) {
+            if (stackAt[pc] >= 0) {
+                if (reachable && ((stackAt[pc] != depth) || (aggregatesAt[pc] != aggregates))) {
+                    throw new IllegalArgumentException("Corrupt serialized evaluator: stack depths disagree at " + pc);
+                }
+                depth = stackAt[pc];
+                aggregates = aggregatesAt[pc];
+            } else if (!reachable) {
+                throw new IllegalArgumentException("Corrupt serialized evaluator: unreachable code at " + pc);
+            }
+            reachable = true;
+
+            int opcode = code[pc];
+            if ((opcode < ExpressionProgram.CONST) || (opcode > ExpressionProgram.JUMP_IF_NOT_ZERO)
+                    || (opcode == ExpressionProgram.TEMP_STORE) || (opcode == ExpressionProgram.TEMP_LOAD)
+                    || (opcode == ExpressionProgram.OUTPUT)) {
+                throw new IllegalArgumentException("Corrupt serialized evaluator: opcode " + opcode + " at " + pc);
+            }
+            int operands = ExpressionProgram.operandCount(opcode);
+            if (pc + operands >= code.length) {
+                throw new IllegalArgumentException("Corrupt serialized evaluator: missing operand at " + pc);
+            }
+
+            int limit;
+            int pops;
+            int pushes = 1;
+            boolean jump = false;
+            switch (opcode) {
+                case ExpressionProgram.CONST:
+                    limit = constantCount;
+                    pops = 0;
+                    break;
+                case ExpressionProgram.LOAD:
+                case ExpressionProgram.LOAD_PLACEHOLDER:
+                    limit = slotCount;
+                    pops = 0;
+                    break;
+                case ExpressionProgram.AGG_WILDCARD:
+                    limit = slotCount;
+                    pops = 0;
+                    pushes = 0;
+                    break;
+                case ExpressionProgram.JUMP:
+                case ExpressionProgram.JUMP_IF_NOT_POSITIVE:
+                case ExpressionProgram.JUMP_IF_ZERO:
+                case ExpressionProgram.JUMP_IF_NOT_ZERO:
+                    limit = code.length + 1;
+                    pops = (opcode == ExpressionProgram.JUMP) ? 0 : 1;
+                    pushes = 0;
+                    jump = true;
+                    break;
+                case ExpressionProgram.AGG_PUSH:
+                    limit = -1;
+                    pops = 1;
+                    pushes = 0;
+                    break;
+                case ExpressionProgram.NEGATE:
+                    limit = -1;
+                    pops = 1;
+                    break;
+                case ExpressionProgram.AGG_BEGIN:
+                case ExpressionProgram.AGG_SUM:
+                case ExpressionProgram.AGG_AVG:
+                case ExpressionProgram.AGG_MIN:
+                case ExpressionProgram.AGG_MAX:
+                    limit = -1;
+                    pops = 0;
+                    pushes = (opcode == ExpressionProgram.AGG_BEGIN) ? 0 : 1;
+                    break;
+                case ExpressionProgram.SELECT:
+                    limit = -1;
+                    pops = 3;
+                    break;
+                default:
+                    // the binary operators
+                    limit = -1;
+                    pops = 2;
+                    break;
+            }
+            if ((limit >= 0) && ((code[pc + 1] < 0) || (code[pc + 1] >= limit))) {
+                throw new IllegalArgumentException("Corrupt serialized evaluator: operand " + code[pc + 1] + " at " + pc);
+            }
+
+            if (depth < pops) {
+                throw new IllegalArgumentException("Corrupt serialized evaluator: stack underflow at " + pc);
+            }
+            depth += pushes - pops;
+            if (depth > maxStack) {
+                throw new IllegalArgumentException("Corrupt serialized evaluator: stack depth " + depth + " at " + pc + " over " + maxStack);
+            }
+            if (opcode == ExpressionProgram.AGG_BEGIN) {
+                if (++aggregates > maxAggregateDepth) {
+                    throw new IllegalArgumentException("Corrupt serialized evaluator: aggregate depth " + aggregates + " at " + pc + " over " + maxAggregateDepth);
+                }
+            } else if ((opcode >= ExpressionProgram.AGG_PUSH) && (opcode <= ExpressionProgram.AGG_MAX)) {
+                // AGG_PUSH, AGG_WILDCARD and the closing AGG_SUM to AGG_MAX
+                if (aggregates == 0) {
+                    throw new IllegalArgumentException("Corrupt serialized evaluator: no open aggregate at " + pc);
+                }
+                if (opcode >= ExpressionProgram.AGG_SUM) {
+                    aggregates--;
+                }
+            }
+
+            if (jump) {
+                int target = code[pc + 1];
+                if (target <= pc + operands) {
+                    throw new IllegalArgumentException("Corrupt serialized evaluator: jump back to " + target + " at " + pc);
+                }
+                if (stackAt[target] < 0) {
+                    stackAt[target] = depth;
+                    aggregatesAt[target] = aggregates;
+                } else if ((stackAt[target] != depth) || (aggregatesAt[target] != aggregates)) {
+                    throw new IllegalArgumentException("Corrupt serialized evaluator: stack depths disagree at " + target);
+                }
+                reachable = (opcode != ExpressionProgram.JUMP);
+            }
+            pc += 1 + operands;
+            // a jump into the operand just stepped over would land mid-instruction
+            if ((operands > 0) && (stackAt[pc - 1] >= 0)) {
+                throw new IllegalArgumentException("Corrupt serialized evaluator: jump into the operand at " + (pc - 1));
+            }
+        }
+
+        if (stackAt[pc] >= 0) {
+            if (reachable && ((stackAt[pc] != depth) || (aggregatesAt[pc] != aggregates))) {
+                throw new IllegalArgumentException("Corrupt serialized evaluator: stack depths disagree at " + pc);
+            }
+            depth = stackAt[pc];
+            aggregates = aggregatesAt[pc];
+        }
+        if ((depth != 1) || (aggregates != 0)) {
+            throw new IllegalArgumentException("Corrupt serialized evaluator: code leaves " + depth + " values and " + aggregates + " open aggregates");
+        }
+    }
+
+    // an int in 7 bit groups, low group first, the high bit of a byte set if another follows
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Corrupt serialized evaluator: varint longer than 5 bytes");
+    }
+
+    private static void collectStatIds(ExpressionNode node, Map<ExpressionStatId, Integer> statIds) {
+        if (node instanceof ExpressionNode.StatRef) {
+            statIds.putIfAbsent(((ExpressionNode.StatRef) node).statId, statIds.size());
+        } else if (node instanceof ExpressionNode.Negate) {
+            collectStatIds(((ExpressionNode.Negate) node).operand, statIds);
+        } else if (node instanceof ExpressionNode.Binary) {
+            collectStatIds(((ExpressionNode.Binary) node).left, statIds);
+            collectStatIds(((ExpressionNode.Binary) node).right, statIds);
+        } else if (node instanceof ExpressionNode.Ternary) {
+            collectStatIds(((ExpressionNode.Ternary) node).condition, statIds);
+            collectStatIds(((ExpressionNode.Ternary) node).whenTrue, statIds);
+            collectStatIds(((ExpressionNode.Ternary) node).whenFalse, statIds);
+        } else if (node instanceof ExpressionNode.Aggregate) {
+            for (ExpressionNode arg : ((ExpressionNode.Aggregate) node).args) {
+                collectStatIds(arg, statIds);
+            }
+        }
+    }
+
+    private static void writeNode(ExpressionNode node, Map<ExpressionStatId, Integer> statIds, DataOutputStream out) throws IOException {
+        if (node instanceof ExpressionNode.Constant) {
+            out.writeByte(CONSTANT);
+            out.writeDouble(((ExpressionNode.Constant) node).value);
+        } else if (node instanceof ExpressionNode.StatRef) {
+            out.writeByte(STAT_REF);
+            writeVarInt(out, statIds.get(((ExpressionNode.StatRef) node).statId));
+        } else if (node instanceof ExpressionNode.Negate) {
+            out.writeByte(NEGATE);
+            writeNode(((ExpressionNode.Negate) node).operand, statIds, out);
+        } else if (node instanceof ExpressionNode.Binary) {
+            ExpressionNode.Binary binary = (ExpressionNode.Binary) node;
+            out.writeByte(BINARY);
+            out.writeByte(binary.op.ordinal());
+            writeNode(binary.left, statIds, out);
+            writeNode(binary.right, statIds, out);
+        } else if (node instanceof ExpressionNode.Ternary) {
+            ExpressionNode.Ternary ternary = (ExpressionNode.Ternary) node;
+            out.writeByte(TERNARY);
+            writeNode(ternary.condition, statIds, out);
+            writeNode(ternary.whenTrue, statIds, out);
+            writeNode(ternary.whenFalse, statIds, out);
+        } else if (node instanceof ExpressionNode.Aggregate) {
+            ExpressionNode.Aggregate aggregate = (ExpressionNode.Aggregate) node;
+            out.writeByte(AGGREGATE);
+            out.writeByte(aggregate.op.ordinal());
+            writeVarInt(out, aggregate.args.size());
+            for (ExpressionNode arg : aggregate.args) {
+                writeNode(arg, statIds, out);
+            }
+        } else {
+            throw new IllegalStateException("Unknown node " + node);
+        }
+    }
+
+    private static ExpressionNode readNode(ByteBuffer in, ExpressionStatId[] statIds) {
+        byte tag = in.get();
+        switch (tag) {
+            case CONSTANT:
+                return new ExpressionNode.Constant(in.getDouble());
+            case STAT_REF:
+                return new ExpressionNode.StatRef(statIds[readVarInt(in)]);
+            case NEGATE:
+                return new ExpressionNode.Negate(readNode(in, statIds));
+            case BINARY: {
+                ExpressionNode.BinaryOp op = ExpressionNode.BinaryOp.values()[in.get()];
+                ExpressionNode left = readNode(in, statIds);
+                return new ExpressionNode.Binary(op, left, readNode(in, statIds));
+            }
+            case TERNARY: {
+                ExpressionNode condition = readNode(in, statIds);
+                ExpressionNode whenTrue = readNode(in, statIds);
+                return new ExpressionNode.Ternary(condition, whenTrue, readNode(in, statIds));
+            }
+            case AGGREGATE: {
+                ExpressionNode.AggregateOp op = ExpressionNode.AggregateOp.values()[in.get()];
+                List<ExpressionNode> args = new ArrayList<>();
+                for (int i = count(in); i > 0; i--) {
+                    args.add(readNode(in, statIds));
+                }
+                return new ExpressionNode.Aggregate(op, args);
+            }
+            default:
+                throw new IllegalArgumentException("Corrupt serialized evaluator: node tag " + tag);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.newerty.derivedStats;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A minimal, immutable expression tree built from the ANTLR parse tree. Unlike the parse tree it carries no
+ * grammar plumbing (parens, unary plus and the single-child precedence rules are gone), which makes it a
+ * convenient input for lowering the expression into an {@link ExpressionProgram}.
+ * <p>
+ * Nodes are equal if their trees are structurally identical, and cache their hash codes, so identical subtrees of
+ * different expressions can be found with a hash map.
+ */
+abstract class ExpressionNode {
+
+    private final int hash;
+
+    ExpressionNode(int hash) {
+        this.hash = hash;
+    }
+
+    @Override
+    public final int hashCode() {
+        return hash;
+    }
+
+    interface Visitor<T> {
+        T visitConstant(Constant node);
+
+        T visitStatRef(StatRef node);
+
+        T visitNegate(Negate node);
+
+        T visitBinary(Binary node);
+
+        T visitTernary(Ternary node);
+
+        T visitAggregate(Aggregate node);
+    }
+
+    abstract <T> T accept(Visitor<T> visitor);
+
+    enum BinaryOp {
+        ADD, SUBTRACT, MULTIPLY, DIVIDE, AND, OR, GT, GE, LT, LE, EQ, NEQ;
+
+        /**
+         * Applies the operator with the same semantics as the matching {@link EvaluationContext} method.
+         */
+        double apply(double left, double right) {
+            switch (this) {
+                case ADD:
+                    return left + right;
+                case SUBTRACT:
+                    return left - right;
+                case MULTIPLY:
+                    return left * right;
+                case DIVIDE:
+                    return left / right;
+                case AND:
+                    return EvaluationOps.and(left, right);
+                case OR:
+                    return EvaluationOps.or(left, right);
+                case GT:
+                    return EvaluationOps.gt(left, right);
+                case GE:
+                    return EvaluationOps.ge(left, right);
+                case LT:
+                    return EvaluationOps.lt(left, right);
+                case LE:
+                    return EvaluationOps.le(left, right);
+                case EQ:
+                    return EvaluationOps.eq(left, right);
+                case NEQ:
+                    return EvaluationOps.neq(left, right);
+                default:
+                    throw new IllegalStateException("Unknown operator " + this);
+            }
+        }
+    }
+
+    enum AggregateOp {
+        SUM, AVG, MIN, MAX
+    }
+
+    static final class Constant extends ExpressionNode {
+        final double value;
+
+        Constant(double value) {
+            super(Double.hashCode(value));
+            this.value = value;
+        }
+
+        // compares bits, so -0.0 and 0.0 differ and NaN equals NaN
+        @Override
+        public boolean equals(Object o) {
+            return (this == o) || ((o instanceof Constant)
+                    && (Double.doubleToLongBits(value) == Double.doubleToLongBits(((Constant) o).value)));
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitConstant(this);
+        }
+    }
+
+    static final class StatRef extends ExpressionNode {
+        final ExpressionStatId statId;
+
+        StatRef(ExpressionStatId statId) {
+            super(statId.hashCode());
+            this.statId = statId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (this == o) || ((o instanceof StatRef) && statId.equals(((StatRef) o).statId));
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitStatRef(this);
+        }
+    }
+
+    static final class Negate extends ExpressionNode {
+        final ExpressionNode operand;
+
+        Negate(ExpressionNode operand) {
+            super(31 * operand.hashCode() + 1);
+            this.operand = operand;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (this == o) || ((o instanceof Negate) && (hashCode() == o.hashCode())
+                    && operand.equals(((Negate) o).operand));
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitNegate(this);
+        }
+    }
+
+    static final class Binary extends ExpressionNode {
+        final BinaryOp op;
+        final ExpressionNode left;
+        final ExpressionNode right;
+
+        Binary(BinaryOp op, ExpressionNode left, ExpressionNode right) {
+            super(Objects.hash(op, left, right));
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Binary) || (hashCode() != o.hashCode())) return false;
+
+            Binary that = (Binary) o;
+            return (op == that.op) && left.equals(that.left) && right.equals(that.right);
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitBinary(this);
+        }
+    }
+
+    static final class Ternary extends ExpressionNode {
+        final ExpressionNode condition;
+        final ExpressionNode whenTrue;
+        final ExpressionNode whenFalse;
+
+        Ternary(ExpressionNode condition, ExpressionNode whenTrue, ExpressionNode whenFalse) {
+            super(Objects.hash(Ternary.class, condition, whenTrue, whenFalse));
+            this.condition = condition;
+            this.whenTrue = whenTrue;
+            this.whenFalse = whenFalse;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Ternary) || (hashCode() != o.hashCode())) return false;
+
+            Ternary that = (Ternary) o;
+            return condition.equals(that.condition) && whenTrue.equals(that.whenTrue) && whenFalse.equals(that.whenFalse);
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitTernary(this);
+        }
+    }
+
+    static final class Aggregate extends ExpressionNode {
+        final AggregateOp op;
+        final List<ExpressionNode> args;
+
+        Aggregate(AggregateOp op, List<ExpressionNode> args) {
+            super(Objects.hash(op, args));
+            this.op = op;
+            this.args = ImmutableList.copyOf(args);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Aggregate) || (hashCode() != o.hashCode())) return false;
+
+            Aggregate that = (Aggregate) o;
+            return (op == that.op) && args.equals(that.args);
+        }
+
+        @Override
+        <T> T accept(Visitor<T> visitor) {
+            return visitor.visitAggregate(this);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.newerty.derivedStats;
+
+import com.newerty.derivedStats.ExpressionNode.AggregateOp;
+import com.newerty.derivedStats.ExpressionNode.BinaryOp;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Builds an {@link ExpressionNode} tree from the right hand side of an assignment. Rules that only exist to
+ * encode precedence fall through to {@code visitChildren}, which returns the single child's node.
+ * <p>
+ * The statIds are collected on the way, in the same order as {@link ExtractDependentStatIdsListener} finds them,
+ * so building an evaluator needs no separate walk for them.
+ */
+public class ExpressionNodeBuilderVisitor extends DerivedExpressionBaseVisitor<ExpressionNode> {
+
+    private final String categoryId;
+    private final ExpressionStatIdList statIds = new ExpressionStatIdList();
+
+    public ExpressionNodeBuilderVisitor(String categoryId) {
+        this.categoryId = categoryId;
+    }
+
+    /**
+     * Returns the statIds of the assignments visited so far
+     */
+    public ExpressionStatIdList getStatIds() {
+        return statIds;
+    }
+
+    // A = B
+    @Override
+    public ExpressionNode visitAssignment(DerivedExpressionParser.AssignmentContext ctx) {
+        if (statIds.derivedStatId == null) {
+            statIds.derivedStatId = statId(ctx.statId());
+        }
+        return visit(ctx.expression());
+    }
+
+    // A ? B : C
+    @Override
+    public ExpressionNode visitTernary_expression(DerivedExpressionParser.Ternary_expressionContext ctx) {
+        DerivedExpressionParser.TernaryContext clause = (DerivedExpressionParser.TernaryContext) ctx.ternary_clause();
+        return new ExpressionNode.Ternary(
+                visit(ctx.logical_or_expression()),
+                visit(clause.expression(0)),
+                visit(clause.expression(1)));
+    }
+
+    @Override
+    public ExpressionNode visitLogicalOR(DerivedExpressionParser.LogicalORContext ctx) {
+        return binary(BinaryOp.OR, ctx.logical_or_expression(), ctx.logical_and_expression());
+    }
+
+    @Override
+    public ExpressionNode visitLogicalAND(DerivedExpressionParser.LogicalANDContext ctx) {
+        return binary(BinaryOp.AND, ctx.logical_and_expression(), ctx.equality_expression());
+    }
+
+    @Override
+    public ExpressionNode visitEqualityEQ(DerivedExpressionParser.EqualityEQContext ctx) {
+        return binary(BinaryOp.EQ, ctx.equality_expression(), ctx.relational_expression());
+    }
+
+    @Override
+    public ExpressionNode visitEqualityNEQ(DerivedExpressionParser.EqualityNEQContext ctx) {
+        return binary(BinaryOp.NEQ, ctx.equality_expression(), ctx.relational_expression());
+    }
+
+    @Override
+    public ExpressionNode visitRelationalLT(DerivedExpressionParser.RelationalLTContext ctx) {
+        return binary(BinaryOp.LT, ctx.relational_expression(), ctx.additive_expression());
+    }
+
+    @Override
+    public ExpressionNode visitRelationalGT(DerivedExpressionParser.RelationalGTContext ctx) {
+        return binary(BinaryOp.GT, ctx.relational_expression(), ctx.additive_expression());
+    }
+
+    @Override
+    public ExpressionNode visitRelationalLE(DerivedExpressionParser.RelationalLEContext ctx) {
+        return binary(BinaryOp.LE, ctx.relational_expression(), ctx.additive_expression());
+    }
+
+    @Override
+    public ExpressionNode visitRelationalGE(DerivedExpressionParser.RelationalGEContext ctx) {
+        return binary(BinaryOp.GE, ctx.relational_expression(), ctx.additive_expression());
+    }
+
+    @Override
+    public ExpressionNode visitAdditivePLUS(DerivedExpressionParser.AdditivePLUSContext ctx) {
+        return binary(BinaryOp.ADD, ctx.additive_expression(), ctx.multiplicative_expression());
+    }
+
+    @Override
+    public ExpressionNode visitAdditiveMINUS(DerivedExpressionParser.AdditiveMINUSContext ctx) {
+        return binary(BinaryOp.SUBTRACT, ctx.additive_expression(), ctx.multiplicative_expression());
+    }
+
+    @Override
+    public ExpressionNode visitMultiplicativeMULTI(DerivedExpressionParser.MultiplicativeMULTIContext ctx) {
+        return binary(BinaryOp.MULTIPLY, ctx.multiplicative_expression(), ctx.unary_expression());
+    }
+
+    @Override
+    public ExpressionNode visitMultiplicativeDIV(DerivedExpressionParser.MultiplicativeDIVContext ctx) {
+        return binary(BinaryOp.DIVIDE, ctx.multiplicative_expression(), ctx.unary_expression());
+    }
+
+    @Override
+    public ExpressionNode visitMINUSPrimary(DerivedExpressionParser.MINUSPrimaryContext ctx) {
+        return new ExpressionNode.Negate(visit(ctx.primary_expression()));
+    }
+
+    @Override
+    public ExpressionNode visitPLUSPrimary(DerivedExpressionParser.PLUSPrimaryContext ctx) {
+        return visit(ctx.primary_expression());
+    }
+
+    @Override
+    public ExpressionNode visitParens(DerivedExpressionParser.ParensContext ctx) {
+        return visit(ctx.expression());
+    }
+
+    @Override
+    public ExpressionNode visitDecimalLiteral(DerivedExpressionParser.DecimalLiteralContext ctx) {
+        return new ExpressionNode.Constant(Double.valueOf(ctx.DECIMAL().getText()));
+    }
+
+    @Override
+    public ExpressionNode visitPosINF(DerivedExpressionParser.PosINFContext ctx) {
+        return new ExpressionNode.Constant(Double.POSITIVE_INFINITY);
+    }
+
+    @Override
+    public ExpressionNode visitNegInf(DerivedExpressionParser.NegInfContext ctx) {
+        return new ExpressionNode.Constant(Double.NEGATIVE_INFINITY);
+    }
+
+    @Override
+    public ExpressionNode visitNaN(DerivedExpressionParser.NaNContext ctx) {
+        return new ExpressionNode.Constant(Double.NaN);
+    }
+
+    @Override
+    public ExpressionNode visitSUMAggregate(DerivedExpressionParser.SUMAggregateContext ctx) {
+        return aggregate(AggregateOp.SUM, ctx.aggregateList());
+    }
+
+    @Override
+    public ExpressionNode visitAVGAggregate(DerivedExpressionParser.AVGAggregateContext ctx) {
+        return aggregate(AggregateOp.AVG, ctx.aggregateList());
+    }
+
+    @Override
+    public ExpressionNode visitMAXAggregate(DerivedExpressionParser.MAXAggregateContext ctx) {
+        return aggregate(AggregateOp.MAX, ctx.aggregateList());
+    }
+
+    @Override
+    public ExpressionNode visitMINAggregate(DerivedExpressionParser.MINAggregateContext ctx) {
+        return aggregate(AggregateOp.MIN, ctx.aggregateList());
+    }
+
+    @Override
+    public ExpressionNode visitStatId(DerivedExpressionParser.StatIdContext ctx) {
+        ExpressionStatId statId = statId(ctx);
+        statIds.dependentStatIds.add(statId);
+        return new ExpressionNode.StatRef(statId);
+    }
+
+    private ExpressionStatId statId(DerivedExpressionParser.StatIdContext ctx) {
+        return new ExpressionStatIdBuilder()
+                .from(ctx, categoryId)
+                .build();
+    }
+
+    private ExpressionNode binary(BinaryOp op, ParseTree left, ParseTree right) {
+        return new ExpressionNode.Binary(op, visit(left), visit(right));
+    }
+
+    private ExpressionNode aggregate(AggregateOp op, DerivedExpressionParser.AggregateListContext ctx) {
+        List<ExpressionNode> args = ctx.aggregateClause()
+                .expression()
+                .stream()
+                .map(this::visit)
+                .collect(Collectors.toList());
+        return new ExpressionNode.Aggregate(op, args);
+    }
+}
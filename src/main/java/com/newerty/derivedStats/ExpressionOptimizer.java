@@ -0,0 +1,155 @@
+package com.newerty.derivedStats;
+
+import com.newerty.derivedStats.ExpressionNode.BinaryOp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Simplifies an {@link ExpressionNode} tree before it is compiled. Every rewrite gives bit-identical results:
+ * <ul>
+ *     <li>subtrees without statIds are folded into a constant, using the same operator semantics as evaluation</li>
+ *     <li>a ternary with a constant condition is replaced by the branch it always takes</li>
+ *     <li>{@code x * 1}, {@code 1 * x}, {@code x / 1}, {@code x - 0}, {@code x + -0}, {@code -0 + x} and
+ *     {@code -(-x)} become {@code x}</li>
+ * </ul>
+ * {@code x + 0} is left alone, since {@code -0 + 0} is {@code +0}, and so is {@code x - -0}. Identities never expose
+ * a wildcarded statId as a bare aggregate argument, which would turn a single lookup into a sum over every match.
+ */
+final class ExpressionOptimizer implements ExpressionNode.Visitor<ExpressionNode> {
+
+    private static final ExpressionOptimizer INSTANCE = new ExpressionOptimizer();
+
+    private static final long POSITIVE_ZERO = Double.doubleToRawLongBits(0d);
+    private static final long NEGATIVE_ZERO = Double.doubleToRawLongBits(-0d);
+    private static final long ONE = Double.doubleToRawLongBits(1d);
+
+    private ExpressionOptimizer() {
+    }
+
+    static ExpressionNode optimize(ExpressionNode root) {
+        return root.accept(INSTANCE);
+    }
+
+    @Override
+    public ExpressionNode visitConstant(ExpressionNode.Constant node) {
+        return node;
+    }
+
+    @Override
+    public ExpressionNode visitStatRef(ExpressionNode.StatRef node) {
+        return node;
+    }
+
+    @Override
+    public ExpressionNode visitNegate(ExpressionNode.Negate node) {
+        ExpressionNode operand = node.operand.accept(this);
+
+        if (operand instanceof ExpressionNode.Constant) {
+            return new ExpressionNode.Constant(((ExpressionNode.Constant) operand).value * -1);
+        }
+        if ((operand instanceof ExpressionNode.Negate) && !isWildcard(((ExpressionNode.Negate) operand).operand)) {
+            return ((ExpressionNode.Negate) operand).operand;
+        }
+        return (operand == node.operand) ? node : new ExpressionNode.Negate(operand);
+    }
+
+    @Override
+    public ExpressionNode visitBinary(ExpressionNode.Binary node) {
+        ExpressionNode left = node.left.accept(this);
+        ExpressionNode right = node.right.accept(this);
+
+        if ((left instanceof ExpressionNode.Constant) && (right instanceof ExpressionNode.Constant)) {
+            return new ExpressionNode.Constant(
+                    node.op.apply(((ExpressionNode.Constant) left).value, ((ExpressionNode.Constant) right).value));
+        }
+
+        ExpressionNode identity = identity(node.op, left, right);
+        if ((identity != null) && !isWildcard(identity)) {
+            return identity;
+        }
+
+        return ((left == node.left) && (right == node.right)) ? node : new ExpressionNode.Binary(node.op, left, right);
+    }
+
+    // the operand an identity reduces the operation to, or null
+    private static ExpressionNode identity(BinaryOp op, ExpressionNode left, ExpressionNode right) {
+        switch (op) {
+            case MULTIPLY:
+                if (is(right, ONE)) return left;
+                if (is(left, ONE)) return right;
+                return null;
+            case DIVIDE:
+                return is(right, ONE) ? left : null;
+            case SUBTRACT:
+                return is(right, POSITIVE_ZERO) ? left : null;
+            case ADD:
+                if (is(right, NEGATIVE_ZERO)) return left;
+                if (is(left, NEGATIVE_ZERO)) return right;
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public ExpressionNode visitTernary(ExpressionNode.Ternary node) {
+        ExpressionNode condition = node.condition.accept(this);
+
+        if (condition instanceof ExpressionNode.Constant) {
+            ExpressionNode taken = (((ExpressionNode.Constant) condition).value > 0) ? node.whenTrue : node.whenFalse;
+            return taken.accept(this);
+        }
+
+        ExpressionNode whenTrue = node.whenTrue.accept(this);
+        ExpressionNode whenFalse = node.whenFalse.accept(this);
+        if ((condition == node.condition) && (whenTrue == node.whenTrue) && (whenFalse == node.whenFalse)) {
+            return node;
+        }
+        return new ExpressionNode.Ternary(condition, whenTrue, whenFalse);
+    }
+
+    @Override
+    public ExpressionNode visitAggregate(ExpressionNode.Aggregate node) {
+        List<ExpressionNode> args = new ArrayList<>(node.args.size());
+        boolean constant = true;
+        boolean changed = false;
+        for (ExpressionNode arg : node.args) {
+            ExpressionNode optimized = arg.accept(this);
+            args.add(optimized);
+            constant &= (optimized instanceof ExpressionNode.Constant);
+            changed |= (optimized != arg);
+        }
+
+        if (constant) {
+            double[] acc = EvaluationOps.newAccumulator();
+            args.forEach(arg -> EvaluationOps.accumulate(acc, ((ExpressionNode.Constant) arg).value));
+            return new ExpressionNode.Constant(aggregate(node.op, acc));
+        }
+        return changed ? new ExpressionNode.Aggregate(node.op, args) : node;
+    }
+
+    private static double aggregate(ExpressionNode.AggregateOp op, double[] acc) {
+        switch (op) {
+            case SUM:
+                return EvaluationOps.sum(acc);
+            case AVG:
+                return EvaluationOps.average(acc);
+            case MIN:
+                return EvaluationOps.min(acc);
+            case MAX:
+                return EvaluationOps.max(acc);
+            default:
+                throw new IllegalStateException("Unknown aggregate " + op);
+        }
+    }
+
+    private static boolean is(ExpressionNode node, long bits) {
+        return (node instanceof ExpressionNode.Constant)
+                && (Double.doubleToRawLongBits(((ExpressionNode.Constant) node).value) == bits);
+    }
+
+    private static boolean isWildcard(ExpressionNode node) {
+        return (node instanceof ExpressionNode.StatRef) && ((ExpressionNode.StatRef) node).statId.isWildcarded();
+    }
+}
@@ -0,0 +1,613 @@
+package com.newerty.derivedStats;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import static com.newerty.derivedStats.EvaluationOps.ACC_COUNT;
+import static com.newerty.derivedStats.EvaluationOps.ACC_SIZE;
+
+/**
+ * A derived expression lowered into a flat stack-machine program: an instruction array with inline operands,
+ * a constant pool and a table of the stat ids the program reads (its "slots"). Programs are immutable and may
+ * be shared between threads.
+ * <p>
+ * The interpreter runs in per-thread buffers, so in steady state an evaluation allocates nothing. That includes
+ * wildcarded stat ids when the placeholders come in an immutable map, as a derived statId's own dimensions do, and
+ * aggregates over wildcards read a {@link HashMap}, a {@link StatValueIndex} or a {@link WildcardAccumulator}.
+ */
+final class ExpressionProgram {
+
+    // CONST index: push constants[index]
+    static final int CONST = 0;
+    // LOAD slot: push slots[slot], the value of statIds[slot]
+    static final int LOAD = 1;
+    // LOAD_PLACEHOLDER slot: push the value of the wildcarded statIds[slot] with the placeholders applied
+    static final int LOAD_PLACEHOLDER = 2;
+    static final int NEGATE = 3;
+    static final int ADD = 4;
+    static final int SUBTRACT = 5;
+    static final int MULTIPLY = 6;
+    static final int DIVIDE = 7;
+    static final int AND = 8;
+    static final int OR = 9;
+    static final int GT = 10;
+    static final int GE = 11;
+    static final int LT = 12;
+    static final int LE = 13;
+    static final int EQ = 14;
+    static final int NEQ = 15;
+    // JUMP target: continue at target
+    static final int JUMP = 16;
+    // JUMP_IF_NOT_POSITIVE target: pop the condition, continue at target unless it is > 0
+    static final int JUMP_IF_NOT_POSITIVE = 17;
+    // AGG_BEGIN: open a new aggregate accumulator
+    static final int AGG_BEGIN = 18;
+    // AGG_PUSH: pop a value into the current accumulator
+    static final int AGG_PUSH = 19;
+    // AGG_WILDCARD slot: add every value matching the wildcarded statIds[slot] to the current accumulator
+    static final int AGG_WILDCARD = 20;
+    // AGG_SUM, AGG_AVG, AGG_MIN, AGG_MAX: close the current accumulator and push its result
+    static final int AGG_SUM = 21;
+    static final int AGG_AVG = 22;
+    static final int AGG_MIN = 23;
+    static final int AGG_MAX = 24;
+    // SELECT: pop whenFalse, whenTrue and the condition, push whenTrue if the condition is > 0 else whenFalse.
+    // Replaces the jumps of a ternary in branch-free programs, which evaluate both sides.
+    static final int SELECT = 25;
+    // TEMP_STORE temp: pop a value into temps[temp], TEMP_LOAD temp: push temps[temp]. Used for subexpressions
+    // shared by several expressions of one program, which are computed once up front.
+    static final int TEMP_STORE = 26;
+    static final int TEMP_LOAD = 27;
+    // OUTPUT index: pop the result of the index'th expression of a multi-expression program into results[index]
+    static final int OUTPUT = 28;
+    // JUMP_IF_ZERO target, JUMP_IF_NOT_ZERO target: pop a value, continue at target if it is (not) 0. NaN isn't 0.
+    // Used for && and ||, which skip their right operand once the left one decides the result.
+    static final int JUMP_IF_ZERO = 29;
+    static final int JUMP_IF_NOT_ZERO = 30;
+
+    final int[] code;
+    final double[] constants;
+    final ExpressionStatId[] statIds;
+    final int maxStack;
+    final int maxAggregateDepth;
+    final int tempCount;
+    final int outputCount;
+    // true if every stat id is read with LOAD, i.e. the slot values are all the program needs
+    final boolean slotsOnly;
+
+    // Per-thread buffers for running programs, so that an evaluation doesn't allocate once they have grown to fit
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+    private static final ThreadLocal<WildcardScan> SCANS = ThreadLocal.withInitial(WildcardScan::new);
+
+    // the evaluator's own placeholders, the derived statId's dimensions, and the interned statId each wildcarded
+    // slot resolves to with them, or null
+    private final Map<String, String> ownPlaceholders;
+    private final ExpressionStatId[] ownTargets;
+    // the statId each wildcarded slot last resolved to with other placeholders, racily cached
+    private final PlaceholderTarget[] placeholderTargets;
+
+    ExpressionProgram(int[] code, double[] constants, ExpressionStatId[] statIds, int maxStack, int maxAggregateDepth) {
+        this(code, constants, statIds, maxStack, maxAggregateDepth, 0, 0);
+    }
+
+    ExpressionProgram(int[] code, double[] constants, ExpressionStatId[] statIds, int maxStack, int maxAggregateDepth,
+                      int tempCount, int outputCount) {
+        this.code = code;
+        this.constants = constants;
+        this.statIds = statIds;
+        this.maxStack = maxStack;
+        this.maxAggregateDepth = maxAggregateDepth;
+        this.tempCount = tempCount;
+        this.outputCount = outputCount;
+        this.slotsOnly = onlyLoadsSlots(code);
+        this.ownPlaceholders = null;
+        this.ownTargets = null;
+        this.placeholderTargets = new PlaceholderTarget[slotsOnly ? 0 : statIds.length];
+    }
+
+    private ExpressionProgram(ExpressionProgram program, Map<String, String> placeholders) {
+        this.code = program.code;
+        this.constants = program.constants;
+        this.statIds = program.statIds;
+        this.maxStack = program.maxStack;
+        this.maxAggregateDepth = program.maxAggregateDepth;
+        this.tempCount = program.tempCount;
+        this.outputCount = program.outputCount;
+        this.slotsOnly = program.slotsOnly;
+        this.ownPlaceholders = placeholders;
+        this.ownTargets = new ExpressionStatId[statIds.length];
+        for (int i = 0; i < statIds.length; i++) {
+            if (statIds[i].isWildcarded()) {
+                ownTargets[i] = ExpressionStatIdRegistry.INSTANCE.intern(statIds[i].withDimensions(placeholders));
+            }
+        }
+        this.placeholderTargets = new PlaceholderTarget[statIds.length];
+    }
+
+    /**
+     * Returns this program resolving its wildcards with the evaluator's own placeholders to interned statIds, up
+     * front. Those are the only placeholders whose statIds are interned, since others come from callers and would
+     * grow the registry without bound.
+     *
+     * @param placeholders The derived statId's dimensions, or an empty map if it isn't wildcarded
+     */
+    ExpressionProgram withPlaceholders(Map<String, String> placeholders) {
+        return (slotsOnly || placeholders.isEmpty()) ? this : new ExpressionProgram(this, placeholders);
+    }
+
+    private static boolean onlyLoadsSlots(int[] code) {
+        for (int pc = 0; pc < code.length; pc += 1 + operandCount(code[pc])) {
+            if ((code[pc] == LOAD_PLACEHOLDER) || (code[pc] == AGG_WILDCARD)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int operandCount(int opcode) {
+        switch (opcode) {
+            case CONST:
+            case LOAD:
+            case LOAD_PLACEHOLDER:
+            case JUMP:
+            case JUMP_IF_NOT_POSITIVE:
+            case JUMP_IF_ZERO:
+            case JUMP_IF_NOT_ZERO:
+            case AGG_WILDCARD:
+            case TEMP_STORE:
+            case TEMP_LOAD:
+            case OUTPUT:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Reads the value of every slot from the map, in slot order. Missing values default to 0. Wildcarded slots
+     * aren't read since they don't have a single value.
+     */
+    double[] loadSlots(Map<ExpressionStatId, Double> values) {
+        return loadSlots(values, new double[statIds.length]);
+    }
+
+    private double[] loadSlots(Map<ExpressionStatId, Double> values, double[] slots) {
+        for (int i = 0; i < statIds.length; i++) {
+            if (!statIds[i].isWildcarded()) {
+                slots[i] = lookup(values, statIds[i]);
+            }
+        }
+        return slots;
+    }
+
+    double execute(Map<ExpressionStatId, Double> values, Map<String, String> placeholders) {
+        return execute(values, placeholders, null);
+    }
+
+    /**
+     * As {@link #execute(Map, Map)}, reporting the fan-in of each wildcard to the recorder if there is one
+     */
+    double execute(Map<ExpressionStatId, Double> values, Map<String, String> placeholders,
+                   EvaluationMetrics.Recorder recorder) {
+        Scratch scratch = acquire(recorder);
+        try {
+            return execute(loadSlots(values, scratch.slots), null, values, null, placeholders, false, null, scratch);
+        } finally {
+            scratch.inUse = false;
+        }
+    }
+
+    /**
+     * Runs generated bytecode for this program with the slots read from the map.
+     */
+    double execute(CompiledExpression compiled, Map<ExpressionStatId, Double> values) {
+        Scratch scratch = acquire();
+        try {
+            return compiled.evaluate(loadSlots(values, scratch.slots));
+        } finally {
+            scratch.inUse = false;
+        }
+    }
+
+    /**
+     * Runs the program reading {@link #LOAD} values from {@code slots}. The map is only consulted for wildcarded
+     * stat ids, so it may be null when {@link #slotsOnly} is set.
+     */
+    double execute(double[] slots, Map<ExpressionStatId, Double> values, Map<String, String> placeholders) {
+        Scratch scratch = acquire();
+        try {
+            return execute(slots, null, values, null, placeholders, false, null, scratch);
+        } finally {
+            scratch.inUse = false;
+        }
+    }
+
+    /**
+     * Runs the program pulling values from the provider as they are read. Each slot is fetched at most once, and
+     * not at all if the instructions reading it are jumped over.
+     */
+    double execute(StatValueProvider provider, Map<String, String> placeholders) {
+        return execute(provider, placeholders, null);
+    }
+
+    /**
+     * As {@link #execute(StatValueProvider, Map)}, reporting the fan-in of each wildcard to the recorder if there
+     * is one
+     */
+    double execute(StatValueProvider provider, Map<String, String> placeholders, EvaluationMetrics.Recorder recorder) {
+        Scratch scratch = acquire(recorder);
+        try {
+            Arrays.fill(scratch.fetched, 0, statIds.length, false);
+            return execute(scratch.slots, scratch.fetched, null, provider, placeholders, false, null, scratch);
+        } finally {
+            scratch.inUse = false;
+        }
+    }
+
+    /**
+     * Runs the program for one placeholder binding with the binding's value of every wildcarded stat id already in
+     * its slot, so {@link #LOAD_PLACEHOLDER} and {@link #AGG_WILDCARD} read the slot rather than look the stat up.
+     */
+    double executeBound(double[] slots) {
+        Scratch scratch = acquire();
+        try {
+            return execute(slots, null, null, null, Collections.emptyMap(), true, null, scratch);
+        } finally {
+            scratch.inUse = false;
+        }
+    }
+
+    /**
+     * Runs a multi-expression program, storing the result of each expression in {@code results}.
+     */
+    void executeAll(double[] slots, Map<ExpressionStatId, Double> values, Map<String, String> placeholders,
+                    double[] results) {
+        Scratch scratch = acquire();
+        try {
+            execute(slots, null, values, null, placeholders, false, results, scratch);
+        } finally {
+            scratch.inUse = false;
+        }
+    }
+
+    private Scratch acquire() {
+        return acquire(null);
+    }
+
+    // the calling thread's buffers, grown to fit this program and marked in use until the caller clears inUse
+    private Scratch acquire(EvaluationMetrics.Recorder recorder) {
+        Scratch scratch = SCRATCH.get();
+        if (scratch.inUse) {
+            // a provider evaluating another expression from inside getValue, the outer run still needs the buffers
+            scratch = new Scratch();
+        }
+        scratch.inUse = true;
+        scratch.recorder = recorder;
+        scratch.fit(this);
+        return scratch;
+    }
+
+    // Values come from the map, or from the provider if there is one. With a provider, slots are filled on their
+    // first LOAD and marked in fetched.
+    private double execute(double[] slots, boolean[] fetched, Map<ExpressionStatId, Double> values,
+                           StatValueProvider provider, Map<String, String> placeholders, boolean bound,
+                           double[] results, Scratch scratch) {
+        final int[] code = this.code;
+        final double[] stack = scratch.stack;
+        final double[] temps = scratch.temps;
+        final double[] acc = scratch.acc;
+        final EvaluationMetrics.Recorder recorder = scratch.recorder;
+        int sp = 0;
+        int ap = -ACC_SIZE;
+        int pc = 0;
+
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case CONST:
+                    stack[sp++] = constants[code[pc++]];
+                    break;
+                case LOAD:
+                    stack[sp++] = (fetched == null) ? slots[code[pc++]] : fetch(provider, slots, fetched, code[pc++]);
+                    break;
+                case LOAD_PLACEHOLDER:
+                    stack[sp++] = bound ? slots[code[pc++]] : (provider == null)
+                            ? lookupPlaceholder(values, code[pc++], placeholders)
+                            : lookupPlaceholder(provider, code[pc++], placeholders);
+                    break;
+                case NEGATE:
+                    stack[sp - 1] = stack[sp - 1] * -1;
+                    break;
+                case ADD:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] + stack[sp];
+                    break;
+                case SUBTRACT:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] - stack[sp];
+                    break;
+                case MULTIPLY:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] * stack[sp];
+                    break;
+                case DIVIDE:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] / stack[sp];
+                    break;
+                case AND:
+                    sp--;
+                    stack[sp - 1] = EvaluationOps.and(stack[sp - 1], stack[sp]);
+                    break;
+                case OR:
+                    sp--;
+                    stack[sp - 1] = EvaluationOps.or(stack[sp - 1], stack[sp]);
+                    break;
+                case GT:
+                    sp--;
+                    stack[sp - 1] = EvaluationOps.gt(stack[sp - 1], stack[sp]);
+                    break;
+                case GE:
+                    sp--;
+                    stack[sp - 1] = EvaluationOps.ge(stack[sp - 1], stack[sp]);
+                    break;
+                case LT:
+                    sp--;
+                    stack[sp - 1] = EvaluationOps.lt(stack[sp - 1], stack[sp]);
+                    break;
+                case LE:
+                    sp--;
+                    stack[sp - 1] = EvaluationOps.le(stack[sp - 1], stack[sp]);
+                    break;
+                case EQ:
+                    sp--;
+                    stack[sp - 1] = EvaluationOps.eq(stack[sp - 1], stack[sp]);
+                    break;
+                case NEQ:
+                    sp--;
+                    stack[sp - 1] = EvaluationOps.neq(stack[sp - 1], stack[sp]);
+                    break;
+                case JUMP:
+                    pc = code[pc];
+                    break;
+                case JUMP_IF_NOT_POSITIVE:
+                    pc = (stack[--sp] > 0) ? pc + 1 : code[pc];
+                    break;
+                case JUMP_IF_ZERO:
+                    pc = (stack[--sp] == 0) ? code[pc] : pc + 1;
+                    break;
+                case JUMP_IF_NOT_ZERO:
+                    pc = (stack[--sp] != 0) ? code[pc] : pc + 1;
+                    break;
+                case SELECT:
+                    sp -= 2;
+                    stack[sp - 1] = (stack[sp - 1] > 0) ? stack[sp] : stack[sp + 1];
+                    break;
+                case TEMP_STORE:
+                    temps[code[pc++]] = stack[--sp];
+                    break;
+                case TEMP_LOAD:
+                    stack[sp++] = temps[code[pc++]];
+                    break;
+                case OUTPUT:
+                    results[code[pc++]] = stack[--sp];
+                    break;
+                case AGG_BEGIN:
+                    ap += ACC_SIZE;
+                    EvaluationOps.resetAccumulator(acc, ap);
+                    break;
+                case AGG_PUSH:
+                    EvaluationOps.accumulate(acc, ap, stack[--sp]);
+                    break;
+                case AGG_WILDCARD:
+                    if (bound) {
+                        EvaluationOps.accumulate(acc, ap, slots[code[pc++]]);
+                    } else {
+                        double count = acc[ap + ACC_COUNT];
+                        if (provider == null) {
+                            accumulateWildcard(values, code[pc++], placeholders, acc, ap);
+                        } else {
+                            accumulateWildcard(provider, code[pc++], placeholders, acc, ap);
+                        }
+                        if (recorder != null) {
+                            recorder.wildcard((int) (acc[ap + ACC_COUNT] - count));
+                        }
+                    }
+                    break;
+                case AGG_SUM:
+                    stack[sp++] = EvaluationOps.sum(acc, ap);
+                    ap -= ACC_SIZE;
+                    break;
+                case AGG_AVG:
+                    stack[sp++] = EvaluationOps.average(acc, ap);
+                    ap -= ACC_SIZE;
+                    break;
+                case AGG_MIN:
+                    stack[sp++] = EvaluationOps.min(acc, ap);
+                    ap -= ACC_SIZE;
+                    break;
+                case AGG_MAX:
+                    stack[sp++] = EvaluationOps.max(acc, ap);
+                    ap -= ACC_SIZE;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode " + code[pc - 1] + " at " + (pc - 1));
+            }
+        }
+
+        // a multi-expression program leaves nothing on the stack
+        return (sp > 0) ? stack[0] : Double.NaN;
+    }
+
+    private double fetch(StatValueProvider provider, double[] slots, boolean[] fetched, int slot) {
+        if (!fetched[slot]) {
+            slots[slot] = provider.getValue(statIds[slot]);
+            fetched[slot] = true;
+        }
+        return slots[slot];
+    }
+
+    // not getOrDefault, which would box the default on every miss
+    private static double lookup(Map<ExpressionStatId, Double> values, ExpressionStatId statId) {
+        Double value = (values == null) ? null : values.get(statId);
+        return (value == null) ? 0d : value;
+    }
+
+    // A wildcard outside of an aggregate only has a single value once placeholders pick the dimension.
+    private double lookupPlaceholder(Map<ExpressionStatId, Double> values, int slot, Map<String, String> placeholders) {
+        if (placeholders.isEmpty()) {
+            return Double.NaN;
+        }
+        return lookup(values, placeholderTarget(slot, placeholders));
+    }
+
+    private void accumulateWildcard(Map<ExpressionStatId, Double> values,
+                                    int slot,
+                                    Map<String, String> placeholders,
+                                    double[] acc,
+                                    int offset) {
+        if (!placeholders.isEmpty()) {
+            EvaluationOps.accumulate(acc, offset, lookup(values, placeholderTarget(slot, placeholders)));
+            return;
+        }
+        accumulateMatching(values, statIds[slot], acc, offset);
+    }
+
+    /**
+     * Adds the value of every statId in the map matching the wildcarded one to the accumulator at {@code offset}.
+     * Allocates nothing for a {@link StatValueIndex}, or for a {@link HashMap} once each of its statIds has cached its
+     * {@link ExpressionStatId#keysPattern()}.
+     */
+    static void accumulateMatching(Map<ExpressionStatId, Double> values, ExpressionStatId statId, double[] acc,
+                                   int offset) {
+        if (values instanceof StatValueIndex) {
+            double[] matching = ((StatValueIndex) values).matching(statId);
+            for (int i = 0; i < matching.length; i++) {
+                EvaluationOps.accumulate(acc, offset, matching[i]);
+            }
+            return;
+        }
+
+        // HashMap.forEach walks its table without an iterator
+        WildcardScan scan = SCANS.get();
+        scan.start(statId.keysPattern(), acc, offset);
+        try {
+            values.forEach(scan);
+        } finally {
+            scan.acc = null;
+        }
+    }
+
+    private double lookupPlaceholder(StatValueProvider provider, int slot, Map<String, String> placeholders) {
+        if (placeholders.isEmpty()) {
+            return Double.NaN;
+        }
+        return provider.getValue(placeholderTarget(slot, placeholders));
+    }
+
+    private void accumulateWildcard(StatValueProvider provider,
+                                    int slot,
+                                    Map<String, String> placeholders,
+                                    double[] acc,
+                                    int offset) {
+        if (!placeholders.isEmpty()) {
+            EvaluationOps.accumulate(acc, offset, provider.getValue(placeholderTarget(slot, placeholders)));
+            return;
+        }
+
+        if (provider instanceof WildcardAccumulator) {
+            ((WildcardAccumulator) provider).accumulateMatching(statIds[slot], acc, offset);
+            return;
+        }
+
+        for (double value : provider.getMatchingValues(statIds[slot])) {
+            EvaluationOps.accumulate(acc, offset, value);
+        }
+    }
+
+    // The slot's statId with the placeholders for dimensions. Evaluations nearly always pass the evaluator's own
+    // placeholders, whose interned statIds are resolved up front. Others are looked up in the registry but never
+    // added to it, and the statId of the last immutable ones is kept per slot for as long as they are passed again.
+    // A mutable map could change under the cache, so its statId is built afresh.
+    private ExpressionStatId placeholderTarget(int slot, Map<String, String> placeholders) {
+        if (placeholders == ownPlaceholders) {
+            return ownTargets[slot];
+        }
+        PlaceholderTarget cached = placeholderTargets[slot];
+        if ((cached != null) && (cached.placeholders == placeholders)) {
+            return cached.target;
+        }
+
+        ExpressionStatId target = statIds[slot].withDimensions(placeholders);
+        ExpressionStatId interned = ExpressionStatIdRegistry.INSTANCE.find(target);
+        if (interned != null) {
+            target = interned;
+        }
+        if (placeholders instanceof ImmutableMap) {
+            // final fields, so a thread reading the slot without a lock sees the whole entry
+            placeholderTargets[slot] = new PlaceholderTarget(placeholders, target);
+        }
+        return target;
+    }
+
+    private static final class PlaceholderTarget {
+        final Map<String, String> placeholders;
+        final ExpressionStatId target;
+
+        PlaceholderTarget(Map<String, String> placeholders, ExpressionStatId target) {
+            this.placeholders = placeholders;
+            this.target = target;
+        }
+    }
+
+    // adds the values of the statIds with the pattern's category, stat and dimension names, one per thread so a
+    // scan of a map needs no capturing lambda
+    private static final class WildcardScan implements BiConsumer<ExpressionStatId, Double> {
+        ExpressionStatId pattern;
+        double[] acc;
+        int offset;
+
+        void start(ExpressionStatId pattern, double[] acc, int offset) {
+            this.pattern = pattern;
+            this.acc = acc;
+            this.offset = offset;
+        }
+
+        @Override
+        public void accept(ExpressionStatId statId, Double value) {
+            if (statId.keysPattern() == pattern) {
+                EvaluationOps.accumulate(acc, offset, value);
+            }
+        }
+    }
+
+    private static final class Scratch {
+        double[] slots = new double[0];
+        boolean[] fetched = new boolean[0];
+        double[] stack = new double[0];
+        double[] temps = new double[0];
+        double[] acc = new double[0];
+        boolean inUse;
+        // where the running evaluation reports wildcard fan-in, or null
+        EvaluationMetrics.Recorder recorder;
+
+        void fit(ExpressionProgram program) {
+            if (slots.length < program.statIds.length) {
+                slots = new double[program.statIds.length];
+                fetched = new boolean[program.statIds.length];
+            }
+            if (stack.length < program.maxStack) {
+                stack = new double[program.maxStack];
+            }
+            if (temps.length < program.tempCount) {
+                temps = new double[program.tempCount];
+            }
+            if (acc.length < program.maxAggregateDepth * ACC_SIZE) {
+                acc = new double[program.maxAggregateDepth * ACC_SIZE];
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.newerty.derivedStats;
+
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders an expression with values substituted for its dependent statIds, e.g. "kill_ratio=12.0/40.0&lt;EOF&gt;"
+ * for "kill_ratio = kills / shots". The output is the text {@link ReplaceStatIdsListener#replace} produces, but the
+ * expression is parsed once when the renderer is built, into the literal text between the statIds. Rendering then
+ * only appends strings and numbers, and can reuse the caller's {@link StringBuilder}.
+ * <p>
+ * Values are written with {@link Double#toString(double)}. Unlike {@code replace}, which re-lexes each value and so
+ * drops the exponent of e.g. 1.0E-5, the renderer writes such values whole.
+ * <p>
+ * A renderer is immutable and can be shared between threads.
+ */
+public final class ExpressionRenderer {
+
+    // literals[i] precedes statIds[i], the last literal follows the last statId
+    private final String[] literals;
+    private final ExpressionStatId[] statIds;
+    // the statId as written, for statIds without a value
+    private final String[] statIdTexts;
+    // whether the statId is in an aggregate's arguments, where it can be replaced by several values
+    private final boolean[] inAggregate;
+
+    private ExpressionRenderer(List<String> literals, List<ExpressionStatId> statIds, List<String> statIdTexts,
+                               List<Boolean> inAggregate) {
+        this.literals = literals.toArray(new String[0]);
+        this.statIds = statIds.toArray(new ExpressionStatId[0]);
+        this.statIdTexts = statIdTexts.toArray(new String[0]);
+        this.inAggregate = new boolean[inAggregate.size()];
+        for (int i = 0; i < this.inAggregate.length; i++) {
+            this.inAggregate[i] = inAggregate.get(i);
+        }
+    }
+
+    /**
+     * @param expr       The assignment expression, e.g. "kill_ratio = kills / shots"
+     * @param categoryId The category of any statIds in the expression that aren't qualified
+     * @return The renderer
+     * @throws ExpressionEvaluationException if the expression isn't valid
+     */
+    public static ExpressionRenderer build(String expr, String categoryId) {
+        if ((expr == null) || expr.isEmpty()) {
+            throw new IllegalArgumentException("Expression is required");
+        }
+
+        if ((categoryId == null) || categoryId.isEmpty()) {
+            throw new IllegalArgumentException("CategoryId is required");
+        }
+
+        SegmentListener listener = new SegmentListener(categoryId);
+        ParseTreeWalker.DEFAULT.walk(listener, AssignmentParser.parse(expr));
+        listener.literals.add(listener.literal.toString());
+        return new ExpressionRenderer(listener.literals, listener.statIds, listener.statIdTexts, listener.inAggregate);
+    }
+
+    /**
+     * @see #render(Map, StringBuilder)
+     */
+    public String render(Map<ExpressionStatId, List<Double>> values) {
+        return render(values, new StringBuilder()).toString();
+    }
+
+    /**
+     * Appends the expression to {@code out} with every dependent statId that has an entry in {@code values}
+     * replaced by its values. A null or empty list renders as 0.0, and a list of more than one value is only
+     * allowed for a statId in an aggregate's arguments, where the values are joined with commas.
+     *
+     * @return {@code out}
+     * @throws ExpressionEvaluationException if a statId outside an aggregate has more than one value
+     */
+    public StringBuilder render(Map<ExpressionStatId, List<Double>> values, StringBuilder out) {
+        out.append(literals[0]);
+        for (int i = 0; i < statIds.length; i++) {
+            List<Double> replacement = values.get(statIds[i]);
+            if ((replacement == null) && !values.containsKey(statIds[i])) {
+                out.append(statIdTexts[i]);
+            } else if ((replacement == null) || replacement.isEmpty()) {
+                out.append(0.0);
+            } else if (replacement.size() == 1) {
+                out.append(replacement.get(0).doubleValue());
+            } else if (inAggregate[i]) {
+                for (int j = 0; j < replacement.size(); j++) {
+                    if (j > 0) {
+                        out.append(',');
+                    }
+                    out.append(replacement.get(j).doubleValue());
+                }
+            } else {
+                throw new ExpressionEvaluationException("Unrecoverable error during expression evaluation.");
+            }
+            out.append(literals[i + 1]);
+        }
+        return out;
+    }
+
+    // splits the token text into literals and dependent statIds, the same statIds ReplaceStatIdsListener replaces
+    private static final class SegmentListener extends DerivedExpressionBaseListener {
+        private final String categoryId;
+        private final List<String> literals = new ArrayList<>();
+        private final List<ExpressionStatId> statIds = new ArrayList<>();
+        private final List<String> statIdTexts = new ArrayList<>();
+        private final List<Boolean> inAggregate = new ArrayList<>();
+
+        private final StringBuilder literal = new StringBuilder();
+        // the dependent statId being walked, whose tokens don't belong to a literal
+        private DerivedExpressionParser.StatIdContext current;
+        private int aggregateClauses;
+
+        SegmentListener(String categoryId) {
+            this.categoryId = categoryId;
+        }
+
+        @Override
+        public void enterAggregateClause(DerivedExpressionParser.AggregateClauseContext ctx) {
+            aggregateClauses++;
+        }
+
+        @Override
+        public void exitAggregateClause(DerivedExpressionParser.AggregateClauseContext ctx) {
+            aggregateClauses--;
+        }
+
+        @Override
+        public void enterStatId(DerivedExpressionParser.StatIdContext ctx) {
+            if (ctx.getParent() instanceof DerivedExpressionParser.AssignmentContext) {
+                return;
+            }
+
+            literals.add(literal.toString());
+            literal.setLength(0);
+            statIds.add(new ExpressionStatIdBuilder()
+                    .from(ctx, categoryId)
+                    .build());
+            statIdTexts.add(ctx.getText());
+            inAggregate.add(aggregateClauses > 0);
+            current = ctx;
+        }
+
+        @Override
+        public void exitStatId(DerivedExpressionParser.StatIdContext ctx) {
+            if (ctx == current) {
+                current = null;
+            }
+        }
+
+        @Override
+        public void visitTerminal(TerminalNode node) {
+            if (current == null) {
+                literal.append(node.getText());
+            }
+        }
+    }
+}
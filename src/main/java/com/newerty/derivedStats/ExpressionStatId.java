@@ -1,33 +1,59 @@
 package com.newerty.derivedStats;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSortedMap;
 
-import java.util.Collections;
 import java.util.Map;
 import java.util.Optional;
-import java.util.TreeMap;
 import java.util.stream.Collectors;
 
 
+/**
+ * An immutable statId. The hash code is computed once up front. Ids handed out by
+ * {@link ExpressionStatIdRegistry#intern(ExpressionStatId)}, which includes every id built by
+ * {@link ExpressionStatIdBuilder}, are canonical and carry a dense int {@link #getId() id}, so two interned ids are
+ * equal only if they are the same instance.
+ */
 public class ExpressionStatId implements Comparable<ExpressionStatId> {
 
+    // the id of an instance that hasn't been interned
+    static final int UNINTERNED = -1;
+
     private final String statId;
     private final String categoryId;
-    private Map<String, String> dimensions = Collections.emptyMap();
+    private final ImmutableSortedMap<String, String> dimensions;
 
     private final boolean wildcarded;
+    private final int hash;
+    private final int id;
+    // computed on first use, threads racing to compute it intern the same instance
+    private ExpressionStatId keysPattern;
 
     public ExpressionStatId(String statId, String categoryId, Map<String, String> dimensions) {
+        this(statId, categoryId, (dimensions == null) ? ImmutableSortedMap.of() : ImmutableSortedMap.copyOf(dimensions), UNINTERNED);
+    }
+
+    private ExpressionStatId(String statId, String categoryId, ImmutableSortedMap<String, String> dimensions, int id) {
         this.statId = Preconditions.checkNotNull(statId);
         this.categoryId = Preconditions.checkNotNull(categoryId);
-        this.dimensions = (dimensions == null) ? Collections.emptyMap() : dimensions;
+        this.dimensions = dimensions;
         this.wildcarded = checkWildcard();
+        this.hash = computeHashCode();
+        this.id = id;
     }
 
+    /**
+     * Returns a copy of this statId with other dimensions. The copy isn't interned.
+     */
     public ExpressionStatId withDimensions(Map<String, String> dimensions) {
         return new ExpressionStatId(statId, categoryId, dimensions);
     }
 
+    // the canonical copy of this statId, called by the registry
+    ExpressionStatId withId(int id) {
+        return new ExpressionStatId(statId, categoryId, dimensions, id);
+    }
+
 
     boolean checkWildcard() {
         if ((this.dimensions == null) || (this.dimensions.isEmpty())) {
@@ -56,16 +82,23 @@ public class ExpressionStatId implements Comparable<ExpressionStatId> {
         return wildcarded;
     }
 
-    public void setDimensions(Map<String, String> dimensions) {
-        this.dimensions = (dimensions == null) ? Collections.emptyMap() : dimensions;
+    /**
+     * @return The dense id assigned by {@link ExpressionStatIdRegistry}, or -1 if this instance isn't interned
+     */
+    public int getId() {
+        return id;
+    }
+
+    public boolean isInterned() {
+        return id != UNINTERNED;
     }
 
+    // Orders by "categoryId.statId". Identifier characters all sort after '.', so comparing the parts in turn gives
+    // the same order without concatenating them.
     @Override
     public int compareTo(ExpressionStatId other) {
-        String id = categoryId + "." + statId;
-        String otherId = other.categoryId + "." + other.statId;
-
-        return id.compareTo(otherId);
+        int result = categoryId.compareTo(other.categoryId);
+        return (result != 0) ? result : statId.compareTo(other.statId);
     }
 
     @Override
@@ -75,22 +108,51 @@ public class ExpressionStatId implements Comparable<ExpressionStatId> {
 
         ExpressionStatId that = (ExpressionStatId) o;
 
+        // interned ids are canonical, so distinct instances are never equal
+        if (isInterned() && that.isInterned()) return false;
+        if (hash != that.hash) return false;
+
         if (!statId.equals(that.statId)) return false;
-        if (categoryId != null ? !categoryId.equals(that.categoryId) : that.categoryId != null) return false;
-        return dimensions != null ? dimensions.equals(that.dimensions) : that.dimensions == null;
+        if (!categoryId.equals(that.categoryId)) return false;
+        // both maps are sorted the same way, so comparing their keys and values as lists is comparing the maps,
+        // and unlike Map.equals it doesn't allocate iterators
+        return dimensions.keySet().asList().equals(that.dimensions.keySet().asList())
+                && dimensions.values().asList().equals(that.dimensions.values().asList());
     }
 
     public boolean keysEquals(ExpressionStatId that) {
         if (!statId.equals(that.statId)) return false;
-        if (categoryId != null ? !categoryId.equals(that.categoryId) : that.categoryId != null) return false;
+        if (!categoryId.equals(that.categoryId)) return false;
         return dimensions.keySet().equals(that.dimensions.keySet());
     }
 
+    /**
+     * Returns the statId with the same category, stat and dimension names and every dimension value wildcarded,
+     * e.g. {@code kills{map:"*"}} for {@code kills{map:"dust2"}}. It's interned, so every statId this one
+     * {@link #keysEquals} returns the same instance, and it can key a group of them without allocating.
+     */
+    public ExpressionStatId keysPattern() {
+        ExpressionStatId pattern = keysPattern;
+        if (pattern == null) {
+            ImmutableSortedMap.Builder<String, String> wildcards = ImmutableSortedMap.naturalOrder();
+            for (String name : dimensions.keySet()) {
+                wildcards.put(name, "*");
+            }
+            pattern = ExpressionStatIdRegistry.INSTANCE.intern(new ExpressionStatId(statId, categoryId, wildcards.build(), UNINTERNED));
+            keysPattern = pattern;
+        }
+        return pattern;
+    }
+
     @Override
     public int hashCode() {
+        return hash;
+    }
+
+    private int computeHashCode() {
         int result = statId.hashCode();
-        result = 31 * result + (categoryId != null ? categoryId.hashCode() : 0);
-        result = 31 * result + (dimensions != null ? dimensions.hashCode() : 0);
+        result = 31 * result + categoryId.hashCode();
+        result = 31 * result + dimensions.hashCode();
         return result;
     }
 
@@ -104,8 +166,8 @@ public class ExpressionStatId implements Comparable<ExpressionStatId> {
             catPhrase = Optional.of(categoryId + ".");
         }
 
-        if ((dimensions != null) && !dimensions.isEmpty()) {
-            dimPhrase = Optional.of("{" + new TreeMap<String, String>(dimensions).entrySet().stream()
+        if (!dimensions.isEmpty()) {
+            dimPhrase = Optional.of("{" + dimensions.entrySet().stream()
                     .map(n -> dimString(n))
                     .collect(Collectors.joining(",")) + "}");
 
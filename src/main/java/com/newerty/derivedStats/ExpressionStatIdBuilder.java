@@ -63,8 +63,11 @@ public class ExpressionStatIdBuilder {
         return quotedString.replace("\"", "");
     }
 
+    /**
+     * @return The interned statId, see {@link ExpressionStatIdRegistry}
+     */
     public ExpressionStatId build() {
-        return new ExpressionStatId(statId, categoryId, dimensions);
+        return ExpressionStatIdRegistry.INSTANCE.intern(statId, categoryId, dimensions);
     }
 
 
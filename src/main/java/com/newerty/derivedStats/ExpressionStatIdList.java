@@ -1,7 +1,7 @@
 package com.newerty.derivedStats;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -10,13 +10,17 @@ public class ExpressionStatIdList {
     Set<ExpressionStatId> dependentStatIds;
 
     ExpressionStatIdList() {
-        this.dependentStatIds = new HashSet<>();
+        this.dependentStatIds = new LinkedHashSet<>();
     }
 
     public ExpressionStatId getDerivedStatId() {
         return derivedStatId;
     }
 
+    /**
+     * Returns the dependent statIds in the order they first appear in the expression. This order is stable and is
+     * the slot order used by {@link Evaluator#evaluate(double[])}.
+     */
     public List<ExpressionStatId> getDependentStatIds() {
         return new ArrayList<>(dependentStatIds);
     }
@@ -0,0 +1,90 @@
+package com.newerty.derivedStats;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Canonicalizes statIds. Interning returns one shared instance per distinct statId, numbered with a dense int id
+ * in the order the statIds were first seen, so they can be compared by identity and used as array indexes.
+ * <p>
+ * Interned statIds are kept for the life of the registry. Lookups of known statIds are lock-free; only the first
+ * intern of a new statId synchronizes.
+ */
+public final class ExpressionStatIdRegistry {
+
+    public final static ExpressionStatIdRegistry INSTANCE = new ExpressionStatIdRegistry();
+
+    private final ConcurrentHashMap<ExpressionStatId, ExpressionStatId> canonical = new ConcurrentHashMap<>();
+
+    // written under the registry's lock, published by the volatile write
+    private volatile ExpressionStatId[] byId = new ExpressionStatId[64];
+    private volatile int size;
+
+    private ExpressionStatIdRegistry() {
+    }
+
+    /**
+     * @param statId A statId
+     * @return The canonical, interned instance equal to {@code statId}
+     */
+    public ExpressionStatId intern(ExpressionStatId statId) {
+        if (statId.isInterned()) {
+            return statId;
+        }
+
+        ExpressionStatId existing = canonical.get(statId);
+        return (existing != null) ? existing : add(statId);
+    }
+
+    public ExpressionStatId intern(String statId, String categoryId, Map<String, String> dimensions) {
+        return intern(new ExpressionStatId(statId, categoryId, dimensions));
+    }
+
+    /**
+     * @return The interned instance equal to {@code statId}, or null if there is none. Unlike {@link #intern} this
+     * never adds a statId.
+     */
+    ExpressionStatId find(ExpressionStatId statId) {
+        return statId.isInterned() ? statId : canonical.get(statId);
+    }
+
+    private synchronized ExpressionStatId add(ExpressionStatId statId) {
+        ExpressionStatId existing = canonical.get(statId);
+        if (existing != null) {
+            return existing;
+        }
+
+        int id = size;
+        ExpressionStatId[] ids = byId;
+        if (id == ids.length) {
+            ids = Arrays.copyOf(ids, id * 2);
+        }
+
+        ExpressionStatId interned = statId.withId(id);
+        ids[id] = interned;
+        byId = ids;
+        size = id + 1;
+
+        canonical.put(interned, interned);
+        return interned;
+    }
+
+    /**
+     * @param id A dense id from {@link ExpressionStatId#getId()}
+     * @return The interned statId with that id
+     */
+    public ExpressionStatId get(int id) {
+        if ((id < 0) || (id >= size)) {
+            throw new IllegalArgumentException("Unknown statId id " + id);
+        }
+        return byId[id];
+    }
+
+    /**
+     * @return The number of interned statIds, one more than the highest id handed out
+     */
+    public int size() {
+        return size;
+    }
+}
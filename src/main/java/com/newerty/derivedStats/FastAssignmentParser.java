@@ -0,0 +1,511 @@
+package com.newerty.derivedStats;
+
+import com.newerty.derivedStats.ExpressionNode.AggregateOp;
+import com.newerty.derivedStats.ExpressionNode.BinaryOp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A recursive-descent parser for the whole DerivedExpression.g4 language that goes straight from the text to the
+ * {@link ExpressionNode} tree and statIds {@link ExpressionNodeBuilderVisitor} would build from the ANTLR parse tree,
+ * without a token stream or parse tree in between. It scans one token ahead and never backtracks.
+ * <p>
+ * It doesn't report errors. Anything it can't parse makes {@link #parse} return null, and the caller parses the
+ * expression again with {@link AssignmentParser}, which stays the reference: it reports the syntax error, or in
+ * principle parses what this parser wrongly rejected.
+ */
+final class FastAssignmentParser {
+
+    // token types
+    private static final int EOF = 0;
+    private static final int QUESTION = 1;
+    private static final int COLON = 2;
+    private static final int LE = 3;
+    private static final int GE = 4;
+    private static final int LT = 5;
+    private static final int GT = 6;
+    private static final int EQ = 7;
+    private static final int NEQ = 8;
+    private static final int LOGICAL_OR = 9;
+    private static final int LOGICAL_AND = 10;
+    private static final int DIM_LIST_START = 11;
+    private static final int DIM_LIST_END = 12;
+    private static final int DIM_VALUE = 13;
+    private static final int ASSIGN = 14;
+    private static final int DOT = 15;
+    private static final int SUM = 16;
+    private static final int AVG = 17;
+    private static final int MIN = 18;
+    private static final int MAX = 19;
+    private static final int COMMA = 20;
+    private static final int MULT = 21;
+    private static final int DIV = 22;
+    private static final int PLUS = 23;
+    private static final int MINUS = 24;
+    private static final int LPAREN = 25;
+    private static final int RPAREN = 26;
+    private static final int DECIMAL = 27;
+    private static final int POSITIVE_INFINITY = 28;
+    private static final int NEGATIVE_INFINITY = 29;
+    private static final int NAN = 30;
+    private static final int IDENTIFIER = 31;
+
+    private static final String NEGATIVE_INFINITY_TEXT = "-Infinity";
+
+    // thrown to unwind on the first error, the caller only needs to know parsing failed
+    private static final RuntimeException SYNTAX_ERROR = new RuntimeException("Syntax error", null, false, false) {
+        private static final long serialVersionUID = 1L;
+    };
+
+    private final String expr;
+    private final String categoryId;
+    private final ExpressionStatIdList statIds = new ExpressionStatIdList();
+
+    // the current token
+    private int type;
+    private int start;
+    private int end;
+
+    private FastAssignmentParser(String expr, String categoryId) {
+        this.expr = expr;
+        this.categoryId = categoryId;
+    }
+
+    /**
+     * Parses an assignment, collecting its statIds into {@code statIds}
+     *
+     * @param expr       An assignment expression, e.g. "kill_ratio = kills / shots"
+     * @param categoryId The category of any statIds in the expression that aren't qualified
+     * @param statIds    Receives the derived and dependent statIds
+     * @return The tree of the right hand side, or null if the expression couldn't be parsed
+     */
+    static ExpressionNode parse(String expr, String categoryId, ExpressionStatIdList statIds) {
+        FastAssignmentParser parser = new FastAssignmentParser(expr, categoryId);
+        ExpressionNode root;
+        try {
+            parser.advance();
+            root = parser.assignment();
+        } catch (RuntimeException e) {
+            if (e != SYNTAX_ERROR) {
+                throw e;
+            }
+            return null;
+        }
+
+        statIds.derivedStatId = parser.statIds.derivedStatId;
+        statIds.dependentStatIds = parser.statIds.dependentStatIds;
+        return root;
+    }
+
+    // assignment : statId ASSIGN expression EOF
+    private ExpressionNode assignment() {
+        statIds.derivedStatId = statId();
+        expect(ASSIGN);
+        ExpressionNode root = expression();
+        expect(EOF);
+        return root;
+    }
+
+    // expression : logical_or_expression (QUESTION expression COLON expression)?
+    private ExpressionNode expression() {
+        ExpressionNode condition = logicalOr();
+        if (type != QUESTION) {
+            return condition;
+        }
+        advance();
+        ExpressionNode whenTrue = expression();
+        expect(COLON);
+        return new ExpressionNode.Ternary(condition, whenTrue, expression());
+    }
+
+    private ExpressionNode logicalOr() {
+        ExpressionNode left = logicalAnd();
+        while (type == LOGICAL_OR) {
+            advance();
+            left = new ExpressionNode.Binary(BinaryOp.OR, left, logicalAnd());
+        }
+        return left;
+    }
+
+    private ExpressionNode logicalAnd() {
+        ExpressionNode left = equality();
+        while (type == LOGICAL_AND) {
+            advance();
+            left = new ExpressionNode.Binary(BinaryOp.AND, left, equality());
+        }
+        return left;
+    }
+
+    private ExpressionNode equality() {
+        ExpressionNode left = relational();
+        while ((type == EQ) || (type == NEQ)) {
+            BinaryOp op = (type == EQ) ? BinaryOp.EQ : BinaryOp.NEQ;
+            advance();
+            left = new ExpressionNode.Binary(op, left, relational());
+        }
+        return left;
+    }
+
+    private ExpressionNode relational() {
+        ExpressionNode left = additive();
+        while (true) {
+            BinaryOp op;
+            switch (type) {
+                case LT:
+                    op = BinaryOp.LT;
+                    break;
+                case GT:
+                    op = BinaryOp.GT;
+                    break;
+                case LE:
+                    op = BinaryOp.LE;
+                    break;
+                case GE:
+                    op = BinaryOp.GE;
+                    break;
+                default:
+                    return left;
+            }
+            advance();
+            left = new ExpressionNode.Binary(op, left, additive());
+        }
+    }
+
+    private ExpressionNode additive() {
+        ExpressionNode left = multiplicative();
+        while ((type == PLUS) || (type == MINUS)) {
+            BinaryOp op = (type == PLUS) ? BinaryOp.ADD : BinaryOp.SUBTRACT;
+            advance();
+            left = new ExpressionNode.Binary(op, left, multiplicative());
+        }
+        return left;
+    }
+
+    private ExpressionNode multiplicative() {
+        ExpressionNode left = unary();
+        while ((type == MULT) || (type == DIV)) {
+            BinaryOp op = (type == MULT) ? BinaryOp.MULTIPLY : BinaryOp.DIVIDE;
+            advance();
+            left = new ExpressionNode.Binary(op, left, unary());
+        }
+        return left;
+    }
+
+    // unary_expression : (PLUS | MINUS)? primary_expression, the sign doesn't nest
+    private ExpressionNode unary() {
+        if (type == PLUS) {
+            advance();
+            return primary();
+        }
+        if (type == MINUS) {
+            advance();
+            return new ExpressionNode.Negate(primary());
+        }
+        return primary();
+    }
+
+    private ExpressionNode primary() {
+        switch (type) {
+            case DECIMAL: {
+                double value = Double.parseDouble(text());
+                advance();
+                return new ExpressionNode.Constant(value);
+            }
+            case POSITIVE_INFINITY:
+                advance();
+                return new ExpressionNode.Constant(Double.POSITIVE_INFINITY);
+            case NEGATIVE_INFINITY:
+                advance();
+                return new ExpressionNode.Constant(Double.NEGATIVE_INFINITY);
+            case NAN:
+                advance();
+                return new ExpressionNode.Constant(Double.NaN);
+            case LPAREN: {
+                advance();
+                ExpressionNode inner = expression();
+                expect(RPAREN);
+                return inner;
+            }
+            case SUM:
+                return aggregate(AggregateOp.SUM);
+            case AVG:
+                return aggregate(AggregateOp.AVG);
+            case MIN:
+                return aggregate(AggregateOp.MIN);
+            case MAX:
+                return aggregate(AggregateOp.MAX);
+            case IDENTIFIER: {
+                ExpressionStatId statId = statId();
+                statIds.dependentStatIds.add(statId);
+                return new ExpressionNode.StatRef(statId);
+            }
+            default:
+                throw SYNTAX_ERROR;
+        }
+    }
+
+    // (SUM | AVG | MIN | MAX) LPAREN expression (COMMA expression)* RPAREN
+    private ExpressionNode aggregate(AggregateOp op) {
+        advance();
+        expect(LPAREN);
+        List<ExpressionNode> args = new ArrayList<>();
+        args.add(expression());
+        while (type == COMMA) {
+            advance();
+            args.add(expression());
+        }
+        expect(RPAREN);
+        return new ExpressionNode.Aggregate(op, args);
+    }
+
+    // statId : (IDENTIFIER DOT)? IDENTIFIER dimensionList?
+    private ExpressionStatId statId() {
+        String category = categoryId;
+        String name = identifier();
+        if (type == DOT) {
+            advance();
+            category = name;
+            name = identifier();
+        }
+
+        Map<String, String> dimensions = null;
+        if (type == DIM_LIST_START) {
+            advance();
+            dimensions = new TreeMap<>();
+            do {
+                String label = identifier();
+                expect(COLON);
+                if (type != DIM_VALUE) {
+                    throw SYNTAX_ERROR;
+                }
+                // the reference build fails on a repeated label, leave that error to it
+                if (dimensions.put(label, text().replace("\"", "")) != null) {
+                    throw SYNTAX_ERROR;
+                }
+                advance();
+            } while (acceptComma());
+            expect(DIM_LIST_END);
+        }
+
+        return new ExpressionStatIdBuilder()
+                .setStatId(name)
+                .setCategoryId(category)
+                .setDimensions(dimensions)
+                .build();
+    }
+
+    private boolean acceptComma() {
+        if (type != COMMA) {
+            return false;
+        }
+        advance();
+        return true;
+    }
+
+    private String identifier() {
+        if (type != IDENTIFIER) {
+            throw SYNTAX_ERROR;
+        }
+        String text = text();
+        advance();
+        return text;
+    }
+
+    private void expect(int expected) {
+        if (type != expected) {
+            throw SYNTAX_ERROR;
+        }
+        advance();
+    }
+
+    private String text() {
+        return expr.substring(start, end);
+    }
+
+    // Scans the next token, longest match first like the ANTLR lexer, so e.g. "-1" is one DECIMAL and "SUMS" an
+    // IDENTIFIER. Tokens the parser never accepts, such as '[' or a stray escape, are errors straight away.
+    private void advance() {
+        int length = expr.length();
+        int pos = end;
+        while ((pos < length) && isWhitespace(expr.charAt(pos))) {
+            pos++;
+        }
+        start = pos;
+        if (pos == length) {
+            type = EOF;
+            end = pos;
+            return;
+        }
+
+        char c = expr.charAt(pos);
+        char next = (pos + 1 < length) ? expr.charAt(pos + 1) : 0;
+        switch (c) {
+            case '?':
+                token(QUESTION, pos + 1);
+                return;
+            case ':':
+                token(COLON, pos + 1);
+                return;
+            case '<':
+                token((next == '=') ? LE : LT, (next == '=') ? pos + 2 : pos + 1);
+                return;
+            case '>':
+                token((next == '=') ? GE : GT, (next == '=') ? pos + 2 : pos + 1);
+                return;
+            case '=':
+                token((next == '=') ? EQ : ASSIGN, (next == '=') ? pos + 2 : pos + 1);
+                return;
+            case '!':
+                pair(next, '=', NEQ, pos);
+                return;
+            case '|':
+                pair(next, '|', LOGICAL_OR, pos);
+                return;
+            case '&':
+                pair(next, '&', LOGICAL_AND, pos);
+                return;
+            case '{':
+                token(DIM_LIST_START, pos + 1);
+                return;
+            case '}':
+                token(DIM_LIST_END, pos + 1);
+                return;
+            case '"':
+                token(DIM_VALUE, string(pos));
+                return;
+            case '.':
+                token(DOT, pos + 1);
+                return;
+            case ',':
+                token(COMMA, pos + 1);
+                return;
+            case '*':
+                token(MULT, pos + 1);
+                return;
+            case '/':
+                token(DIV, pos + 1);
+                return;
+            case '+':
+                token(PLUS, pos + 1);
+                return;
+            case '(':
+                token(LPAREN, pos + 1);
+                return;
+            case ')':
+                token(RPAREN, pos + 1);
+                return;
+            case '-':
+                if (isDigit(next)) {
+                    token(DECIMAL, decimal(pos + 1));
+                } else if (expr.startsWith(NEGATIVE_INFINITY_TEXT, pos)) {
+                    token(NEGATIVE_INFINITY, pos + NEGATIVE_INFINITY_TEXT.length());
+                } else {
+                    token(MINUS, pos + 1);
+                }
+                return;
+            default:
+                break;
+        }
+
+        if (isDigit(c)) {
+            token(DECIMAL, decimal(pos));
+        } else if (isIdentifierStart(c)) {
+            int stop = pos + 1;
+            while ((stop < length) && isIdentifierPart(expr.charAt(stop))) {
+                stop++;
+            }
+            token(keyword(pos, stop), stop);
+        } else {
+            throw SYNTAX_ERROR;
+        }
+    }
+
+    private void token(int type, int end) {
+        this.type = type;
+        this.end = end;
+    }
+
+    private void pair(char next, char expected, int type, int pos) {
+        if (next != expected) {
+            throw SYNTAX_ERROR;
+        }
+        token(type, pos + 2);
+    }
+
+    // '-'? [0-9]+ ('.' [0-9]+)?, from the first digit
+    private int decimal(int pos) {
+        int length = expr.length();
+        while ((pos < length) && isDigit(expr.charAt(pos))) {
+            pos++;
+        }
+        if ((pos + 1 < length) && (expr.charAt(pos) == '.') && isDigit(expr.charAt(pos + 1))) {
+            pos += 2;
+            while ((pos < length) && isDigit(expr.charAt(pos))) {
+                pos++;
+            }
+        }
+        return pos;
+    }
+
+    // '"' (ESC | ~["\\])* '"', returns the end of the closing quote
+    private int string(int pos) {
+        int length = expr.length();
+        pos++;
+        while (pos < length) {
+            char c = expr.charAt(pos);
+            if (c == '"') {
+                return pos + 1;
+            }
+            if (c == '\\') {
+                if ((pos + 1 == length) || ("\"\\/bfnr".indexOf(expr.charAt(pos + 1)) < 0)) {
+                    throw SYNTAX_ERROR;
+                }
+                pos += 2;
+            } else {
+                pos++;
+            }
+        }
+        throw SYNTAX_ERROR;
+    }
+
+    private int keyword(int start, int end) {
+        switch (end - start) {
+            case 3:
+                if (expr.startsWith("SUM", start)) {
+                    return SUM;
+                } else if (expr.startsWith("AVG", start)) {
+                    return AVG;
+                } else if (expr.startsWith("MIN", start)) {
+                    return MIN;
+                } else if (expr.startsWith("MAX", start)) {
+                    return MAX;
+                } else if (expr.startsWith("NaN", start)) {
+                    return NAN;
+                }
+                return IDENTIFIER;
+            case 8:
+                return expr.startsWith("Infinity", start) ? POSITIVE_INFINITY : IDENTIFIER;
+            default:
+                return IDENTIFIER;
+        }
+    }
+
+    private static boolean isWhitespace(char c) {
+        return (c == ' ') || (c == '\r') || (c == '\t') || (c == '\f') || (c == '\n');
+    }
+
+    private static boolean isDigit(char c) {
+        return (c >= '0') && (c <= '9');
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || (c == '_');
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return isIdentifierStart(c) || isDigit(c);
+    }
+}
@@ -0,0 +1,189 @@
+package com.newerty.derivedStats;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The stat reads that cover the dependent statIds of many evaluators, worked out once and replayed against a
+ * {@link StatStore} for every snapshot. StatIds read by several evaluators are fetched once. The ids are grouped by
+ * category and stat, and within a group a wildcard pattern, e.g. {@code kills{map:"*"}}, already fetches every
+ * statId with the same dimension names, so patterns with the same names are fetched once and exact ids they match,
+ * e.g. {@code kills{map:"nuke"}}, aren't fetched at all. What's left is packed into multi-get requests of at most
+ * the batch size, exact ids and patterns apart. Each request holds whole groups, a group only spans requests when
+ * it alone is larger than a batch.
+ * <p>
+ * A plan is immutable and safe to share between threads.
+ */
+public final class FetchPlan {
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /**
+     * One multi-get against the store, of either exact statIds or wildcard patterns
+     */
+    public static final class Request {
+        private final boolean wildcard;
+        private final List<ExpressionStatId> statIds;
+
+        Request(boolean wildcard, List<ExpressionStatId> statIds) {
+            this.wildcard = wildcard;
+            this.statIds = Collections.unmodifiableList(statIds);
+        }
+
+        /**
+         * @return Whether the statIds are patterns for {@link StatStore#getMatching}, rather than ids for
+         * {@link StatStore#getAll}
+         */
+        public boolean isWildcard() {
+            return wildcard;
+        }
+
+        public List<ExpressionStatId> getStatIds() {
+            return statIds;
+        }
+
+        @Override
+        public String toString() {
+            return (wildcard ? "getMatching" : "getAll") + statIds;
+        }
+    }
+
+    // the statIds of one category and stat
+    private static final class Group {
+        final Set<ExpressionStatId> exact = new LinkedHashSet<>();
+        // dimension names of the patterns, e.g. kills{map:"*"} for both kills{map:"*"} and kills{map:"*", mode:"x"}
+        final Map<ExpressionStatId, ExpressionStatId> patterns = new LinkedHashMap<>();
+    }
+
+    private final List<ExpressionStatId> exactStatIds;
+    private final List<ExpressionStatId> patterns;
+    private final List<Request> requests;
+
+    private FetchPlan(Collection<? extends Evaluator> evaluators, int batchSize) {
+        // groups in the order their stats first appear, keyed by the category and stat without dimensions
+        Map<ExpressionStatId, Group> groups = new LinkedHashMap<>();
+        for (Evaluator evaluator : evaluators) {
+            // the set itself, getDependentStatIds() would copy it
+            for (ExpressionStatId statId : evaluator.getStatIds().dependentStatIds) {
+                Group group = groups.computeIfAbsent(statId.withDimensions(Collections.emptyMap()), id -> new Group());
+                if (statId.isWildcarded()) {
+                    group.patterns.putIfAbsent(statId.keysPattern(), statId);
+                } else {
+                    group.exact.add(statId);
+                }
+            }
+        }
+
+        List<List<ExpressionStatId>> exactGroups = new ArrayList<>();
+        List<List<ExpressionStatId>> patternGroups = new ArrayList<>();
+        for (Group group : groups.values()) {
+            List<ExpressionStatId> exact = new ArrayList<>();
+            for (ExpressionStatId statId : group.exact) {
+                if (statId.getDimensions().isEmpty() || !group.patterns.containsKey(statId.keysPattern())) {
+                    exact.add(statId);
+                }
+            }
+            exactGroups.add(exact);
+            patternGroups.add(new ArrayList<>(group.patterns.values()));
+        }
+
+        this.exactStatIds = new ArrayList<>();
+        this.patterns = new ArrayList<>();
+        exactGroups.forEach(exactStatIds::addAll);
+        patternGroups.forEach(patterns::addAll);
+
+        this.requests = new ArrayList<>();
+        batch(false, exactGroups, batchSize);
+        batch(true, patternGroups, batchSize);
+    }
+
+    /**
+     * Plans the reads for evaluators with batches of {@link #DEFAULT_BATCH_SIZE}
+     *
+     * @param evaluators The evaluators whose dependent statIds are read
+     * @return The plan
+     */
+    public static FetchPlan build(Collection<? extends Evaluator> evaluators) {
+        return build(evaluators, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param evaluators The evaluators whose dependent statIds are read
+     * @param batchSize  The most statIds or patterns in one request
+     * @return The plan
+     */
+    public static FetchPlan build(Collection<? extends Evaluator> evaluators, int batchSize) {
+        if (evaluators == null) {
+            throw new IllegalArgumentException("Evaluators are required");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive, got " + batchSize);
+        }
+        return new FetchPlan(evaluators, batchSize);
+    }
+
+    /**
+     * @return The exact statIds fetched, without those a pattern fetches
+     */
+    public List<ExpressionStatId> getExactStatIds() {
+        return Collections.unmodifiableList(exactStatIds);
+    }
+
+    /**
+     * @return The wildcard patterns fetched, one per category, stat and set of dimension names
+     */
+    public List<ExpressionStatId> getPatterns() {
+        return Collections.unmodifiableList(patterns);
+    }
+
+    /**
+     * @return The requests {@link #fetch(StatStore)} makes, in order
+     */
+    public List<Request> getRequests() {
+        return Collections.unmodifiableList(requests);
+    }
+
+    /**
+     * Makes every request of the plan against the store
+     *
+     * @param store The store to read
+     * @return The values of every stat the store returned, ready for the evaluators. Stats the store doesn't have
+     * are missing, which evaluates as 0 like any other missing value
+     */
+    public Map<ExpressionStatId, Double> fetch(StatStore store) {
+        Map<ExpressionStatId, Double> values = new HashMap<>();
+        for (Request request : requests) {
+            values.putAll(request.wildcard ? store.getMatching(request.statIds) : store.getAll(request.statIds));
+        }
+        return values;
+    }
+
+    // packs the groups in order, starting a new request when the next group doesn't fit in what's left of this one
+    private void batch(boolean wildcard, List<List<ExpressionStatId>> groups, int batchSize) {
+        List<ExpressionStatId> batch = new ArrayList<>();
+        for (List<ExpressionStatId> group : groups) {
+            if (!batch.isEmpty() && (batch.size() + group.size() > batchSize)) {
+                requests.add(new Request(wildcard, batch));
+                batch = new ArrayList<>();
+            }
+            for (ExpressionStatId statId : group) {
+                // only a group larger than a batch fills one up part way through
+                if (batch.size() == batchSize) {
+                    requests.add(new Request(wildcard, batch));
+                    batch = new ArrayList<>();
+                }
+                batch.add(statId);
+            }
+        }
+        if (!batch.isEmpty()) {
+            requests.add(new Request(wildcard, batch));
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.newerty.derivedStats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Evaluates an expression against stat values that change one at a time. For every wildcarded statId aggregated in
+ * the expression, e.g. {@code kills{map:"*"}} in {@code SUM(kills{map:"*"})}, it keeps running state over all the
+ * matching values: a compensated sum and a count, plus an ordered multiset of the values when a MIN or MAX reads
+ * them. Changing one value updates that state in O(1), or O(log n) for MIN and MAX, and evaluating costs one step
+ * per aggregate rather than one per matching value.
+ * <p>
+ * Results match {@link DerivedExpressionEvaluator#evaluate(Map)} with the same values, except that sums of
+ * non-integer values can differ in the last bits, since values are added and retracted in another order.
+ * <p>
+ * An incremental evaluator holds mutable state and isn't thread-safe.
+ */
+public final class IncrementalEvaluator {
+
+    private final ExpressionProgram program;
+    private final Map<String, String> placeholder;
+    private final Map<ExpressionStatId, Double> values = new HashMap<>();
+    // the aggregated wildcards and their running state
+    private final ExpressionStatId[] wildcards;
+    private final WildcardState[] states;
+    private final Values provider = new Values();
+
+    IncrementalEvaluator(DerivedExpressionEvaluator evaluator) {
+        this.program = evaluator.getProgram();
+
+        ExpressionStatId derived = evaluator.getStatIds().getDerivedStatId();
+        this.placeholder = derived.isWildcarded() ? derived.getDimensions() : Collections.emptyMap();
+
+        Map<ExpressionStatId, Boolean> ordered = new HashMap<>();
+        collectWildcards(evaluator.getTree(), ordered);
+        this.wildcards = ordered.keySet().toArray(new ExpressionStatId[0]);
+        this.states = new WildcardState[wildcards.length];
+        for (int i = 0; i < wildcards.length; i++) {
+            states[i] = new WildcardState(ordered.get(wildcards[i]));
+        }
+    }
+
+    /**
+     * @param expr       The assignment expression, e.g. "total = SUM(kills{map:\"*\"})"
+     * @param categoryId The category of any statIds in the expression that aren't qualified
+     * @return An incremental evaluator without any values
+     */
+    public static IncrementalEvaluator build(String expr, String categoryId) {
+        return new IncrementalEvaluator(DerivedExpressionEvaluator.build(expr, categoryId, EvaluationMode.COMPILED));
+    }
+
+    /**
+     * Sets the value of a stat, retracting its previous value from the aggregates
+     *
+     * @return The previous value, or 0 if it had none
+     */
+    public double set(ExpressionStatId statId, double value) {
+        Double previous = values.put(statId, value);
+        for (int i = 0; i < wildcards.length; i++) {
+            if (wildcards[i].keysEquals(statId)) {
+                if (previous != null) {
+                    states[i].remove(previous);
+                }
+                states[i].add(value);
+            }
+        }
+        return (previous == null) ? 0d : previous;
+    }
+
+    /**
+     * Adds {@code delta} to the value of a stat, a stat without a value starts from 0
+     *
+     * @return The new value
+     */
+    public double add(ExpressionStatId statId, double delta) {
+        double value = getValue(statId) + delta;
+        set(statId, value);
+        return value;
+    }
+
+    /**
+     * Removes the value of a stat, it then counts as missing like an absent map entry
+     */
+    public void remove(ExpressionStatId statId) {
+        Double previous = values.remove(statId);
+        if (previous == null) {
+            return;
+        }
+        for (int i = 0; i < wildcards.length; i++) {
+            if (wildcards[i].keysEquals(statId)) {
+                states[i].remove(previous);
+            }
+        }
+    }
+
+    /**
+     * @return The current value of the stat, or 0 if it has none
+     */
+    public double getValue(ExpressionStatId statId) {
+        Double value = values.get(statId);
+        return (value == null) ? 0d : value;
+    }
+
+    /**
+     * Evaluates the expression with the current values. A placeholder expression is evaluated with the derived
+     * statId's dimensions, as {@link DerivedExpressionEvaluator#evaluate(Map)} does.
+     */
+    public double evaluate() {
+        return evaluate(placeholder);
+    }
+
+    /**
+     * @param placeholders The dimensions to substitute for wildcards, or an empty map. With placeholders, wildcards
+     *                     read the single stat they pick and the running state isn't used.
+     */
+    public double evaluate(Map<String, String> placeholders) {
+        return program.execute(provider, placeholders);
+    }
+
+    // the wildcarded statIds aggregated on their own, mapped to whether a MIN or MAX reads them
+    private static void collectWildcards(ExpressionNode node, Map<ExpressionStatId, Boolean> ordered) {
+        for (ExpressionNode child : children(node)) {
+            collectWildcards(child, ordered);
+        }
+        if (node instanceof ExpressionNode.Aggregate) {
+            ExpressionNode.Aggregate aggregate = (ExpressionNode.Aggregate) node;
+            boolean minOrMax = (aggregate.op == ExpressionNode.AggregateOp.MIN) || (aggregate.op == ExpressionNode.AggregateOp.MAX);
+            for (ExpressionNode arg : aggregate.args) {
+                if ((arg instanceof ExpressionNode.StatRef) && ((ExpressionNode.StatRef) arg).statId.isWildcarded()) {
+                    ordered.merge(((ExpressionNode.StatRef) arg).statId, minOrMax, Boolean::logicalOr);
+                }
+            }
+        }
+    }
+
+    private static List<ExpressionNode> children(ExpressionNode node) {
+        List<ExpressionNode> children = new ArrayList<>();
+        if (node instanceof ExpressionNode.Negate) {
+            children.add(((ExpressionNode.Negate) node).operand);
+        } else if (node instanceof ExpressionNode.Binary) {
+            children.add(((ExpressionNode.Binary) node).left);
+            children.add(((ExpressionNode.Binary) node).right);
+        } else if (node instanceof ExpressionNode.Ternary) {
+            children.add(((ExpressionNode.Ternary) node).condition);
+            children.add(((ExpressionNode.Ternary) node).whenTrue);
+            children.add(((ExpressionNode.Ternary) node).whenFalse);
+        } else if (node instanceof ExpressionNode.Aggregate) {
+            children.addAll(((ExpressionNode.Aggregate) node).args);
+        }
+        return children;
+    }
+
+    // reads plain stats from the values and wildcards from the running state
+    private final class Values implements StatValueProvider, WildcardAccumulator {
+
+        @Override
+        public double getValue(ExpressionStatId statId) {
+            return IncrementalEvaluator.this.getValue(statId);
+        }
+
+        @Override
+        public void accumulateMatching(ExpressionStatId statId, double[] acc, int offset) {
+            for (int i = 0; i < wildcards.length; i++) {
+                if (wildcards[i].equals(statId)) {
+                    states[i].accumulateInto(acc, offset);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Running aggregate state over the values matching one wildcard. NaN and infinite values are counted rather
+     * than summed, so retracting them restores the finite sum.
+     */
+    static final class WildcardState {
+        private long count;
+        private long finiteCount;
+        private long nanCount;
+        private long positiveInfinityCount;
+        private long negativeInfinityCount;
+        // Neumaier compensated sum of the finite values
+        private double sum;
+        private double compensation;
+        // value -> occurrences, for MIN and MAX, null when nothing reads them
+        private final TreeMap<Double, Integer> ordered;
+
+        WildcardState(boolean keepOrder) {
+            this.ordered = keepOrder ? new TreeMap<>() : null;
+        }
+
+        void add(double value) {
+            count++;
+            if (Double.isNaN(value)) {
+                nanCount++;
+                return;
+            } else if (value == Double.POSITIVE_INFINITY) {
+                positiveInfinityCount++;
+            } else if (value == Double.NEGATIVE_INFINITY) {
+                negativeInfinityCount++;
+            } else {
+                finiteCount++;
+                addToSum(value);
+            }
+            if (ordered != null) {
+                ordered.merge(value, 1, Integer::sum);
+            }
+        }
+
+        void remove(double value) {
+            count--;
+            if (Double.isNaN(value)) {
+                nanCount--;
+                return;
+            } else if (value == Double.POSITIVE_INFINITY) {
+                positiveInfinityCount--;
+            } else if (value == Double.NEGATIVE_INFINITY) {
+                negativeInfinityCount--;
+            } else if (--finiteCount == 0) {
+                // nothing left to sum, drop whatever rounding error the retractions left behind
+                sum = 0d;
+                compensation = 0d;
+            } else {
+                addToSum(-value);
+            }
+            if (ordered != null) {
+                ordered.computeIfPresent(value, (v, n) -> (n == 1) ? null : n - 1);
+            }
+        }
+
+        private void addToSum(double value) {
+            double t = sum + value;
+            if (Math.abs(sum) >= Math.abs(value)) {
+                compensation += (sum - t) + value;
+            } else {
+                compensation += (value - t) + sum;
+            }
+            sum = t;
+        }
+
+        // the sum EvaluationOps.sum gives for the same values
+        double sum() {
+            if ((nanCount > 0) || ((positiveInfinityCount > 0) && (negativeInfinityCount > 0))) {
+                return Double.NaN;
+            } else if (positiveInfinityCount > 0) {
+                return Double.POSITIVE_INFINITY;
+            } else if (negativeInfinityCount > 0) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            return sum + compensation;
+        }
+
+        // Math.min and Math.max over the values, the order of the TreeMap puts -0.0 before 0.0 as they do
+        double min() {
+            if (ordered == null) {
+                return Double.POSITIVE_INFINITY;
+            }
+            return (nanCount > 0) ? Double.NaN : ordered.firstKey();
+        }
+
+        double max() {
+            if (ordered == null) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            return (nanCount > 0) ? Double.NaN : ordered.lastKey();
+        }
+
+        void accumulateInto(double[] acc, int offset) {
+            if (count > 0) {
+                EvaluationOps.accumulateAll(acc, offset, sum(), count, min(), max());
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.newerty.derivedStats;
+
+import java.util.Map;
+
+/**
+ * The {@link StatValueProvider} over a values map, see {@link StatValueProvider#of(Map)}. Aggregates over wildcards
+ * add the matching values where they lie rather than copying them out, so reading a {@link StatValueIndex} or a
+ * {@link java.util.HashMap} through it allocates no more than reading the map directly.
+ */
+final class MapStatValues implements StatValueProvider, WildcardAccumulator {
+
+    private final Map<ExpressionStatId, Double> values;
+
+    MapStatValues(Map<ExpressionStatId, Double> values) {
+        this.values = values;
+    }
+
+    // not getOrDefault, which would box the default on every miss
+    @Override
+    public double getValue(ExpressionStatId statId) {
+        Double value = values.get(statId);
+        return (value == null) ? 0d : value;
+    }
+
+    @Override
+    public double[] getMatchingValues(ExpressionStatId statId) {
+        if (values instanceof StatValueIndex) {
+            return ((StatValueIndex) values).matching(statId).clone();
+        }
+        return values.entrySet().stream()
+                .filter(e -> statId.keysEquals(e.getKey()))
+                .mapToDouble(Map.Entry::getValue)
+                .toArray();
+    }
+
+    @Override
+    public void accumulateMatching(ExpressionStatId statId, double[] acc, int offset) {
+        ExpressionProgram.accumulateMatching(values, statId, acc, offset);
+    }
+}
@@ -0,0 +1,147 @@
+package com.newerty.derivedStats;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evaluates a set of expressions as one compiled program. Subexpressions that occur in more than one of the
+ * expressions, e.g. {@code kills / shots} or {@code SUM(damage{weapon:"*"})}, are computed once per evaluation and
+ * shared, while each derived stat still gets its own result.
+ * <p>
+ * Expressions with a wildcarded derived stat (placeholder expressions) can't be combined, since each would need
+ * its own placeholders.
+ */
+public final class MultiExpressionEvaluator {
+
+    private final List<ExpressionStatIdList> statIds;
+    private final Map<ExpressionStatId, Integer> indexes;
+    private final ExpressionProgram program;
+    private final SlotBinder binder;
+
+    private MultiExpressionEvaluator(List<DerivedExpressionEvaluator> evaluators) {
+        this.statIds = new ArrayList<>(evaluators.size());
+        this.indexes = new HashMap<>();
+
+        List<ExpressionNode> trees = new ArrayList<>(evaluators.size());
+        Set<ExpressionStatId> dependentStatIds = new LinkedHashSet<>();
+        for (DerivedExpressionEvaluator evaluator : evaluators) {
+            ExpressionStatIdList ids = evaluator.getStatIds();
+            if (ids.getDerivedStatId().isWildcarded()) {
+                throw new IllegalArgumentException("Placeholder expression for " + ids.getDerivedStatId() + " can't be combined");
+            }
+            if (indexes.put(ids.getDerivedStatId(), statIds.size()) != null) {
+                throw new IllegalArgumentException("Derived stat " + ids.getDerivedStatId() + " is defined more than once");
+            }
+
+            statIds.add(ids);
+            trees.add(evaluator.getTree());
+            dependentStatIds.addAll(ids.getDependentStatIds());
+        }
+
+        List<ExpressionStatId> slotOrder = new ArrayList<>(dependentStatIds);
+        this.binder = new SlotBinder(slotOrder);
+        this.program = ProgramCompiler.compileShared(trees, slotOrder);
+    }
+
+    /**
+     * Builds an evaluator for all of the expressions
+     *
+     * @param exprs The assignment expressions, e.g. "kill_ratio = kills / shots"
+     * @param categoryId The category of any statIds in the expressions that aren't qualified
+     * @return The evaluator
+     */
+    public static MultiExpressionEvaluator build(List<String> exprs, String categoryId) {
+        if ((exprs == null) || exprs.isEmpty()) {
+            throw new IllegalArgumentException("Expressions are required");
+        }
+
+        List<DerivedExpressionEvaluator> evaluators = new ArrayList<>(exprs.size());
+        for (String expr : exprs) {
+            evaluators.add(DerivedExpressionEvaluator.build(expr, categoryId, EvaluationMode.COMPILED));
+        }
+        return new MultiExpressionEvaluator(evaluators);
+    }
+
+    /**
+     * @return The statIds of each expression, in the order the expressions were given
+     */
+    public List<ExpressionStatIdList> getStatIds() {
+        return Collections.unmodifiableList(statIds);
+    }
+
+    /**
+     * @param derivedStatId The derived stat of one of the expressions
+     * @return The index of its result, or -1 if none of the expressions derives it
+     */
+    public int indexOf(ExpressionStatId derivedStatId) {
+        Integer index = indexes.get(derivedStatId);
+        return (index == null) ? -1 : index;
+    }
+
+    /**
+     * Returns the binder for {@link #evaluate(double[], double[])}, its slots cover the dependent statIds of every
+     * expression
+     */
+    public SlotBinder getBinder() {
+        return binder;
+    }
+
+    /**
+     * Evaluates every expression.
+     *
+     * @param values A map of the statIds in the expressions and their values
+     * @return The value of each expression, in the order the expressions were given
+     */
+    public double[] evaluate(Map<ExpressionStatId, Double> values) {
+        double[] results = new double[statIds.size()];
+        program.executeAll(program.loadSlots(values), values, Collections.emptyMap(), results);
+        return results;
+    }
+
+    /**
+     * Evaluates every expression with values resolved to slots up front.
+     *
+     * @param values The value of each dependent statId, indexed by the slots of {@link #getBinder()}
+     * @param results Receives the value of each expression, in the order the expressions were given
+     * @throws UnsupportedOperationException if an expression has wildcarded statIds
+     */
+    public void evaluate(double[] values, double[] results) {
+        if (!program.slotsOnly) {
+            throw new UnsupportedOperationException("Wildcarded statIds can't be evaluated from slots");
+        }
+        if (values.length < binder.size()) {
+            throw new IllegalArgumentException("Values array needs " + binder.size() + " slots, got " + values.length);
+        }
+        if (results.length < statIds.size()) {
+            throw new IllegalArgumentException("Results array needs " + statIds.size() + " entries, got " + results.length);
+        }
+        program.executeAll(values, null, Collections.emptyMap(), results);
+    }
+
+    /**
+     * Evaluates every expression.
+     *
+     * @param values A map of the statIds in the expressions and their values
+     * @return The value of each derived stat
+     */
+    public Map<ExpressionStatId, Double> evaluateToMap(Map<ExpressionStatId, Double> values) {
+        double[] results = evaluate(values);
+        Map<ExpressionStatId, Double> derived = new HashMap<>();
+        for (int i = 0; i < results.length; i++) {
+            derived.put(statIds.get(i).getDerivedStatId(), results[i]);
+        }
+        return derived;
+    }
+
+    @VisibleForTesting
+    int sharedSubexpressionCount() {
+        return program.tempCount;
+    }
+}
@@ -0,0 +1,354 @@
+package com.newerty.derivedStats;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stat values of many entities, e.g. players, kept off the heap in a memory-mapped file. Each value is a 24 byte
+ * record keyed by the {@link ExpressionStatId#getId() interned id} of its statId and the entity, found through an
+ * open-addressing table with linear probing that spans the file, so a value costs no box, map entry or statId on the
+ * heap. {@link #valuesOf(long)} reads one entity's values straight from the mapping for an evaluator.
+ * <p>
+ * The only heap state is the list of distinct statIds stored, grouped by category, stat and dimension names, which
+ * wildcards such as {@code kills{map:"*"}} are resolved against, one lookup per statId of the group.
+ * <p>
+ * The table has a fixed capacity chosen at creation, and the file is scratch space for this process: records hold
+ * ids from this process's {@link ExpressionStatIdRegistry}, so a file isn't reopened after a restart. {@link #close()}
+ * unmaps it, after which the caller deletes it. Reads may run concurrently, writes and closing must not run
+ * concurrently with anything else.
+ */
+public final class OffHeapStatValues implements AutoCloseable {
+
+    static final int RECORD_SIZE = 24;
+    // the table is mapped in segments of 2^25 records, 768MB, since one mapping can't exceed 2GB
+    private static final int SEGMENT_BITS = 25;
+    private static final double MAX_LOAD = 0.75;
+    // Unsafe.invokeCleaner, which unmaps a mapped buffer at once rather than when it's collected, or null if the JVM
+    // doesn't have it
+    private static final MethodHandle UNMAP = unmapHandle();
+
+    // record layout: statId id + 1 with 0 for an empty slot, 4 unused bytes, the entity, the value
+    private static final int ID = 0;
+    private static final int ENTITY = 8;
+    private static final int VALUE = 16;
+
+    private final MappedByteBuffer[] segments;
+    private final long mask;
+    private final long capacity;
+    private long size;
+    private boolean closed;
+
+    // the statIds with values, by their interned id and grouped by category, stat and dimension names
+    private final BitSet stored = new BitSet();
+    private final Map<ExpressionStatId, List<ExpressionStatId>> byKeys = new HashMap<>();
+    // the group of each wildcard evaluated, so evaluations don't build its pattern again, cleared by new statIds
+    private final Map<ExpressionStatId, List<ExpressionStatId>> matching = new ConcurrentHashMap<>();
+
+    private OffHeapStatValues(MappedByteBuffer[] segments, long slots, long capacity) {
+        this.segments = segments;
+        this.mask = slots - 1;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Creates an empty store in a new file, replacing any file there
+     *
+     * @param file     The backing file, it grows to the table's size, 32 to 64 bytes per value of capacity. The caller
+     *                 deletes it once the store is closed.
+     * @param capacity The most values the store will hold
+     * @return The store
+     */
+    public static OffHeapStatValues create(Path file, long capacity) throws IOException {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive, got " + capacity);
+        }
+        long slots = Long.highestOneBit((long) Math.ceil(capacity / MAX_LOAD) * 2 - 1);
+        long segmentSlots = Math.min(slots, 1L << SEGMENT_BITS);
+
+        MappedByteBuffer[] segments = new MappedByteBuffer[(int) (slots / segmentSlots)];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // a new file reads as zeros, i.e. every slot empty, and mappings stay valid once the channel is closed
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * segmentSlots * RECORD_SIZE, segmentSlots * RECORD_SIZE);
+            }
+        }
+        return new OffHeapStatValues(segments, slots, capacity);
+    }
+
+    /**
+     * @return The number of values stored
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return The most values the store holds
+     */
+    public long capacity() {
+        return capacity;
+    }
+
+    /**
+     * Sets the value of a stat of an entity
+     *
+     * @param statId A statId without wildcards
+     * @throws IllegalStateException if the store is full
+     */
+    public void put(ExpressionStatId statId, long entity, double value) {
+        checkOpen();
+        if (statId.isWildcarded()) {
+            throw new IllegalArgumentException("Wildcarded statId " + statId + " can't have a value");
+        }
+        ExpressionStatId interned = ExpressionStatIdRegistry.INSTANCE.intern(statId);
+        int id = interned.getId();
+
+        long slot = find(id, entity);
+        if (!isEmpty(slot)) {
+            buffer(slot).putDouble(offset(slot) + VALUE, value);
+            return;
+        }
+        if (size == capacity) {
+            throw new IllegalStateException("Store is full with " + capacity + " values");
+        }
+
+        MappedByteBuffer buffer = buffer(slot);
+        int offset = offset(slot);
+        buffer.putInt(offset + ID, id + 1);
+        buffer.putLong(offset + ENTITY, entity);
+        buffer.putDouble(offset + VALUE, value);
+        size++;
+
+        if (!stored.get(id)) {
+            stored.set(id);
+            byKeys.computeIfAbsent(interned.keysPattern(), keys -> new ArrayList<>()).add(interned);
+            matching.clear();
+        }
+    }
+
+    /**
+     * Sets the values of many stats of an entity
+     */
+    public void putAll(long entity, Map<ExpressionStatId, Double> values) {
+        values.forEach((statId, value) -> put(statId, entity, value));
+    }
+
+    /**
+     * @return The value of a stat of an entity, or 0 if it has none, the same default as a missing map entry
+     */
+    public double get(ExpressionStatId statId, long entity) {
+        checkOpen();
+        int id = idOf(statId);
+        if (id < 0) {
+            return 0d;
+        }
+        long slot = find(id, entity);
+        return isEmpty(slot) ? 0d : buffer(slot).getDouble(offset(slot) + VALUE);
+    }
+
+    public boolean contains(ExpressionStatId statId, long entity) {
+        checkOpen();
+        int id = idOf(statId);
+        return (id >= 0) && !isEmpty(find(id, entity));
+    }
+
+    /**
+     * Removes the value of a stat of an entity
+     *
+     * @return Whether it had one
+     */
+    public boolean remove(ExpressionStatId statId, long entity) {
+        checkOpen();
+        int id = idOf(statId);
+        if (id < 0) {
+            return false;
+        }
+        long hole = find(id, entity);
+        if (isEmpty(hole)) {
+            return false;
+        }
+
+        // shift later records of the probe run back into the hole when that doesn't move them before their home slot
+        for (long slot = (hole + 1) & mask; !isEmpty(slot); slot = (slot + 1) & mask) {
+            MappedByteBuffer buffer = buffer(slot);
+            int offset = offset(slot);
+            long home = home(buffer.getInt(offset + ID) - 1, buffer.getLong(offset + ENTITY));
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                MappedByteBuffer target = buffer(hole);
+                int targetOffset = offset(hole);
+                target.putInt(targetOffset + ID, buffer.getInt(offset + ID));
+                target.putLong(targetOffset + ENTITY, buffer.getLong(offset + ENTITY));
+                target.putDouble(targetOffset + VALUE, buffer.getDouble(offset + VALUE));
+                hole = slot;
+            }
+        }
+        buffer(hole).putInt(offset(hole) + ID, 0);
+        size--;
+        return true;
+    }
+
+    /**
+     * Returns the values of one entity for evaluators, e.g. {@code evaluator.evaluate(store.valuesOf(player))}. Each
+     * value is read from the mapping when the expression reads it, and aggregates over wildcards add the values
+     * of the matching statIds where they lie.
+     */
+    public StatValueProvider valuesOf(long entity) {
+        checkOpen();
+        return new EntityValues(entity);
+    }
+
+    /**
+     * Writes changed values through to the file
+     */
+    public void flush() {
+        checkOpen();
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Unmaps the file, releasing its memory and address space now rather than when the store is collected. The
+     * store and the providers of {@link #valuesOf} can't be used afterwards, and the file can be deleted. Values
+     * aren't flushed first, the file is scratch space. Closing twice does nothing.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (UNMAP != null) {
+            for (int i = 0; i < segments.length; i++) {
+                try {
+                    UNMAP.invoke(segments[i]);
+                } catch (Throwable e) {
+                    throw new IllegalStateException("Couldn't unmap segment " + i, e);
+                }
+                segments[i] = null;
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Store is closed");
+        }
+    }
+
+    private static MethodHandle unmapHandle() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // the mappings are released when the buffers are collected instead
+            return null;
+        }
+    }
+
+    // the slot holding the record, or the empty slot that ends its probe run
+    private long find(int id, long entity) {
+        for (long slot = home(id, entity); ; slot = (slot + 1) & mask) {
+            MappedByteBuffer buffer = buffer(slot);
+            int offset = offset(slot);
+            int key = buffer.getInt(offset + ID);
+            if ((key == 0) || ((key == id + 1) && (buffer.getLong(offset + ENTITY) == entity))) {
+                return slot;
+            }
+        }
+    }
+
+    // an entity's records start at a hash of the entity offset by the statId's id, stats interned together, e.g. the
+    // maps of kills{map:"*"}, then sit next to each other and one entity's aggregate reads a few cache lines
+    private long home(int id, long entity) {
+        long hash = entity * 0x9E3779B97F4A7C15L;
+        return ((hash ^ (hash >>> 29)) + id) & mask;
+    }
+
+    private boolean isEmpty(long slot) {
+        return buffer(slot).getInt(offset(slot) + ID) == 0;
+    }
+
+    private MappedByteBuffer buffer(long slot) {
+        return segments[(int) (slot >>> SEGMENT_BITS)];
+    }
+
+    private static int offset(long slot) {
+        return (int) (slot & ((1L << SEGMENT_BITS) - 1)) * RECORD_SIZE;
+    }
+
+    // the interned id, or -1 if the statId was never interned and so has no values
+    private static int idOf(ExpressionStatId statId) {
+        if (statId.isInterned()) {
+            return statId.getId();
+        }
+        ExpressionStatId interned = ExpressionStatIdRegistry.INSTANCE.find(statId);
+        return (interned == null) ? -1 : interned.getId();
+    }
+
+    private List<ExpressionStatId> matching(ExpressionStatId wildcard) {
+        return matching.computeIfAbsent(wildcard, w -> {
+            List<ExpressionStatId> group = byKeys.get(w.keysPattern());
+            return (group == null) ? new ArrayList<>() : new ArrayList<>(group);
+        });
+    }
+
+    private final class EntityValues implements StatValueProvider, WildcardAccumulator {
+        private final long entity;
+
+        EntityValues(long entity) {
+            this.entity = entity;
+        }
+
+        @Override
+        public double getValue(ExpressionStatId statId) {
+            return get(statId, entity);
+        }
+
+        @Override
+        public double[] getMatchingValues(ExpressionStatId statId) {
+            checkOpen();
+            List<ExpressionStatId> matches = matching(statId);
+            double[] values = new double[matches.size()];
+            int count = 0;
+            for (ExpressionStatId match : matches) {
+                long slot = find(match.getId(), entity);
+                if (!isEmpty(slot)) {
+                    values[count++] = buffer(slot).getDouble(offset(slot) + VALUE);
+                }
+            }
+            return (count == values.length) ? values : Arrays.copyOf(values, count);
+        }
+
+        @Override
+        public void accumulateMatching(ExpressionStatId statId, double[] acc, int accOffset) {
+            checkOpen();
+            for (ExpressionStatId match : matching(statId)) {
+                long slot = find(match.getId(), entity);
+                if (!isEmpty(slot)) {
+                    EvaluationOps.accumulate(acc, accOffset, buffer(slot).getDouble(offset(slot) + VALUE));
+                }
+            }
+        }
+    }
+}
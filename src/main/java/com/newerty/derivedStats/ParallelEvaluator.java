@@ -0,0 +1,169 @@
+package com.newerty.derivedStats;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates many expressions against one snapshot of stat values in parallel on a {@link ForkJoinPool}. The
+ * evaluators are packed into batches up front, in order, so each task covers enough program instructions to be
+ * worth forking, and cheap expressions share a task rather than paying for one each. Tasks split in halves down to
+ * single batches and idle workers steal the other halves.
+ * <p>
+ * Evaluators are safe to share between threads, see {@link DerivedExpressionEvaluator}, so any number of threads
+ * can evaluate with the same parallel evaluator. The snapshot is only read, and mustn't change during an
+ * evaluation.
+ */
+public final class ParallelEvaluator {
+
+    // the instructions a batch should cover at least, below it task overhead outweighs the work
+    static final int MIN_BATCH_COST = 512;
+    // a wildcard reads an unknown number of values, weigh it as this many instructions
+    static final int WILDCARD_COST = 64;
+
+    private final List<DerivedExpressionEvaluator> evaluators;
+    private final ForkJoinPool pool;
+    // batch i covers the evaluators from batchStarts[i] up to batchStarts[i + 1]
+    private final int[] batchStarts;
+
+    private ParallelEvaluator(List<DerivedExpressionEvaluator> evaluators, ForkJoinPool pool) {
+        this.evaluators = evaluators;
+        this.pool = pool;
+
+        List<Integer> starts = new ArrayList<>();
+        int cost = MIN_BATCH_COST;
+        for (int i = 0; i < evaluators.size(); i++) {
+            if (cost >= MIN_BATCH_COST) {
+                starts.add(i);
+                cost = 0;
+            }
+            cost += cost(evaluators.get(i));
+        }
+        starts.add(evaluators.size());
+        this.batchStarts = starts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Builds a parallel evaluator running on the common pool
+     *
+     * @param evaluators The evaluators, results are returned in their iteration order
+     * @return The parallel evaluator
+     */
+    public static ParallelEvaluator build(Collection<DerivedExpressionEvaluator> evaluators) {
+        return build(evaluators, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param evaluators The evaluators, results are returned in their iteration order
+     * @param pool       The pool to evaluate on
+     * @return The parallel evaluator
+     */
+    public static ParallelEvaluator build(Collection<DerivedExpressionEvaluator> evaluators, ForkJoinPool pool) {
+        if ((evaluators == null) || evaluators.isEmpty()) {
+            throw new IllegalArgumentException("Evaluators are required");
+        }
+        if (pool == null) {
+            throw new IllegalArgumentException("Pool is required");
+        }
+        return new ParallelEvaluator(new ArrayList<>(evaluators), pool);
+    }
+
+    /**
+     * @return The evaluators, in the order of the results
+     */
+    public List<DerivedExpressionEvaluator> getEvaluators() {
+        return Collections.unmodifiableList(evaluators);
+    }
+
+    /**
+     * @return The number of tasks an evaluation is split into at most
+     */
+    public int getBatchCount() {
+        return batchStarts.length - 1;
+    }
+
+    /**
+     * Evaluates every expression as {@link DerivedExpressionEvaluator#evaluate(Map)} does
+     *
+     * @param values A map of the statIds in the expressions and their values, shared by all of the tasks
+     * @return The value of each expression, in the order the evaluators were given
+     */
+    public double[] evaluate(Map<ExpressionStatId, Double> values) {
+        double[] results = new double[evaluators.size()];
+        run(new Batches(0, getBatchCount(), values, null, results));
+        return results;
+    }
+
+    /**
+     * Evaluates every expression as {@link DerivedExpressionEvaluator#evaluate(StatValueProvider)} does. The
+     * provider is called from several threads at once.
+     *
+     * @param values The source of the stat values, shared by all of the tasks
+     * @return The value of each expression, in the order the evaluators were given
+     */
+    public double[] evaluate(StatValueProvider values) {
+        double[] results = new double[evaluators.size()];
+        run(new Batches(0, getBatchCount(), null, values, results));
+        return results;
+    }
+
+    private void run(Batches task) {
+        // a single batch, or a pool with a single worker, isn't worth the hand-off
+        if ((getBatchCount() == 1) || (pool.getParallelism() == 1)) {
+            task.evaluate(0, evaluators.size());
+        } else {
+            pool.invoke(task);
+        }
+    }
+
+    // instructions in the evaluator's program, plus the weight of its wildcards
+    static int cost(DerivedExpressionEvaluator evaluator) {
+        int cost = evaluator.getProgram().code.length;
+        for (ExpressionStatId statId : evaluator.getStatIds().getDependentStatIds()) {
+            if (statId.isWildcarded()) {
+                cost += WILDCARD_COST;
+            }
+        }
+        return cost;
+    }
+
+    // the batches from lo up to hi, forked in halves down to a single batch
+    private final class Batches extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int lo;
+        private final int hi;
+        private final Map<ExpressionStatId, Double> map;
+        private final StatValueProvider provider;
+        private final double[] results;
+
+        Batches(int lo, int hi, Map<ExpressionStatId, Double> map, StatValueProvider provider, double[] results) {
+            this.lo = lo;
+            this.hi = hi;
+            this.map = map;
+            this.provider = provider;
+            this.results = results;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new Batches(lo, mid, map, provider, results), new Batches(mid, hi, map, provider, results));
+            } else {
+                evaluate(batchStarts[lo], batchStarts[hi]);
+            }
+        }
+
+        void evaluate(int from, int to) {
+            for (int i = from; i < to; i++) {
+                DerivedExpressionEvaluator evaluator = evaluators.get(i);
+                results[i] = (map != null) ? evaluator.evaluate(map) : evaluator.evaluate(provider);
+            }
+        }
+    }
+}
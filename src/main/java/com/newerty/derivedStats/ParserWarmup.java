@@ -0,0 +1,209 @@
+package com.newerty.derivedStats;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Warms up expression building before the first real request. ANTLR learns its lexer and parser DFA lazily and
+ * shares it between all parser instances, so the first expressions parsed after startup pay for full ATN simulation
+ * while later ones mostly hit the cache. Building a representative corpus up front moves that cost, along with the
+ * JIT compilation of the parse and build path of the evaluation mode in use, out of the request path.
+ * <p>
+ * ANTLR offers no way to serialize a learned DFA, so what is persisted is the corpus itself: {@link #saveCorpus}
+ * writes the expressions to a local file and {@link #loadCorpus} reads them back, and replaying them rebuilds the
+ * same DFA in a new instance.
+ */
+public final class ParserWarmup {
+
+    private static final int MAGIC = 0x44535743; // "DSWC"
+    private static final int VERSION = 1;
+
+    private static volatile boolean warm;
+
+    private ParserWarmup() {
+    }
+
+    /**
+     * Builds every expression in the corpus in every {@link EvaluationMode}, see {@link #warmUp(Collection, String,
+     * EvaluationMode)}. That includes generating a class per expression for {@link EvaluationMode#BYTECODE}, so
+     * prefer warming the mode the evaluators will be built in.
+     */
+    public static Report warmUp(Collection<String> corpus, String categoryId) {
+        return warmUp(corpus, categoryId, EvaluationMode.values());
+    }
+
+    /**
+     * Parses and builds every expression in the corpus on the calling thread, the way evaluators of the mode are
+     * built: with ANTLR and closures for {@link EvaluationMode#CLOSURE_TREE}, which is then also lowered to the
+     * program its slot and provider evaluations run, and with {@link FastAssignmentParser} and the program compiler
+     * for the others. Expressions that fail to build are counted and skipped, they still teach the parser
+     * something. The builds aren't reported to the installed {@link EvaluationMetrics}.
+     *
+     * @param corpus     Expressions representative of what will be built later
+     * @param categoryId The category to build the expressions in
+     * @param mode       The mode evaluators will be built in
+     * @return What the warm-up did
+     */
+    public static Report warmUp(Collection<String> corpus, String categoryId, EvaluationMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("EvaluationMode is required");
+        }
+        return warmUp(corpus, categoryId, new EvaluationMode[]{mode});
+    }
+
+    private static Report warmUp(Collection<String> corpus, String categoryId, EvaluationMode[] modes) {
+        int dfaStatesBefore = AssignmentParser.dfaStates();
+        long start = System.nanoTime();
+
+        int failures = 0;
+        for (String expr : corpus) {
+            boolean failed = false;
+            for (EvaluationMode mode : modes) {
+                try {
+                    new DerivedExpressionEvaluator(expr, categoryId, mode, EvaluationMetrics.NOOP).getProgram();
+                } catch (RuntimeException e) {
+                    failed = true;
+                }
+            }
+            if (failed) {
+                failures++;
+            }
+        }
+
+        Report report = new Report(corpus.size(), failures, System.nanoTime() - start,
+                AssignmentParser.dfaStates() - dfaStatesBefore);
+        warm = true;
+        return report;
+    }
+
+    /**
+     * Runs {@link #warmUp(Collection, String)} on the executor, the returned future completes once the parser is warm
+     */
+    public static CompletableFuture<Report> warmUpAsync(Collection<String> corpus, String categoryId, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> warmUp(corpus, categoryId), executor);
+    }
+
+    /**
+     * Runs {@link #warmUp(Collection, String, EvaluationMode)} on the executor, the returned future completes once
+     * the parser is warm
+     */
+    public static CompletableFuture<Report> warmUpAsync(Collection<String> corpus, String categoryId, EvaluationMode mode,
+                                                        Executor executor) {
+        return CompletableFuture.supplyAsync(() -> warmUp(corpus, categoryId, mode), executor);
+    }
+
+    /**
+     * @return Whether a warm-up has completed in this JVM
+     */
+    public static boolean isWarm() {
+        return warm;
+    }
+
+    /**
+     * Writes the corpus to a file that {@link #loadCorpus} can read back
+     */
+    public static void saveCorpus(Path file, Collection<String> corpus) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(corpus.size());
+            for (String expr : corpus) {
+                byte[] bytes = expr.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Reads a corpus written by {@link #saveCorpus}
+     *
+     * @throws IOException if the file can't be read or wasn't written by {@link #saveCorpus}
+     */
+    public static List<String> loadCorpus(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a warm-up corpus: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported warm-up corpus version " + version + ": " + file);
+            }
+
+            long size = Files.size(file);
+            int count = checkLength(in.readInt(), size, file);
+            List<String> corpus = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] bytes = new byte[checkLength(in.readInt(), size, file)];
+                in.readFully(bytes);
+                corpus.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            return corpus;
+        }
+    }
+
+    // a count or length read from the file, which can't be negative or more than the file holds
+    private static int checkLength(int length, long fileSize, Path file) throws IOException {
+        if ((length < 0) || (length > fileSize)) {
+            throw new IOException("Corrupt warm-up corpus, length " + length + " in " + fileSize + " bytes: " + file);
+        }
+        return length;
+    }
+
+    /**
+     * The outcome of a warm-up
+     */
+    public static final class Report {
+        private final int expressions;
+        private final int failures;
+        private final long elapsedNanos;
+        private final int dfaStatesAdded;
+
+        Report(int expressions, int failures, long elapsedNanos, int dfaStatesAdded) {
+            this.expressions = expressions;
+            this.failures = failures;
+            this.elapsedNanos = elapsedNanos;
+            this.dfaStatesAdded = dfaStatesAdded;
+        }
+
+        public int getExpressions() {
+            return expressions;
+        }
+
+        public int getFailures() {
+            return failures;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return How many lexer and parser DFA states the warm-up added, 0 once the corpus holds nothing new
+         */
+        public int getDfaStatesAdded() {
+            return dfaStatesAdded;
+        }
+
+        @Override
+        public String toString() {
+            return "Report{" +
+                    "expressions=" + expressions +
+                    ", failures=" + failures +
+                    ", elapsedNanos=" + elapsedNanos +
+                    ", dfaStatesAdded=" + dfaStatesAdded +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.newerty.derivedStats;
+
+import java.util.Map;
+
+/**
+ * The values of a placeholder expression for every placeholder binding, see
+ * {@link DerivedExpressionEvaluator#evaluatePlaceholders}. Each result is keyed by its derived statId, e.g.
+ * {@code foo{map:"nuke"}} for {@code foo{map:"*"}}, and looked up by the statId's interned
+ * {@link ExpressionStatId#getId() id} in an open-addressing table, so lookups neither hash dimension maps nor box.
+ */
+public final class PlaceholderResults {
+
+    private final ExpressionStatId[] statIds;
+    private final double[] values;
+    // interned id of each result's statId, hashed into slots holding the result index plus one, 0 for empty
+    private final int[] table;
+
+    PlaceholderResults(ExpressionStatId[] statIds, double[] values) {
+        this.statIds = statIds;
+        this.values = values;
+        this.table = new int[Integer.highestOneBit(Math.max(1, statIds.length) * 2) * 2];
+        for (int i = 0; i < statIds.length; i++) {
+            int slot = slot(statIds[i].getId());
+            while (table[slot] != 0) {
+                slot = (slot + 1) & (table.length - 1);
+            }
+            table[slot] = i + 1;
+        }
+    }
+
+    /**
+     * @return The number of placeholder bindings
+     */
+    public int size() {
+        return statIds.length;
+    }
+
+    /**
+     * @return The interned derived statId of the i'th binding
+     */
+    public ExpressionStatId getStatId(int i) {
+        return statIds[i];
+    }
+
+    /**
+     * @return The placeholder dimensions of the i'th binding, e.g. {@code {map=nuke}}
+     */
+    public Map<String, String> getDimensions(int i) {
+        return statIds[i].getDimensions();
+    }
+
+    public double getValue(int i) {
+        return values[i];
+    }
+
+    /**
+     * @param statId A derived statId with the placeholders filled in, e.g. {@code foo{map:"nuke"}}
+     * @return Its value, or NaN if the input had no values for that binding, the value a placeholder expression has
+     * without placeholders
+     */
+    public double getValue(ExpressionStatId statId) {
+        int index = indexOf(statId);
+        return (index < 0) ? Double.NaN : values[index];
+    }
+
+    public boolean contains(ExpressionStatId statId) {
+        return indexOf(statId) >= 0;
+    }
+
+    private int indexOf(ExpressionStatId statId) {
+        ExpressionStatId interned = ExpressionStatIdRegistry.INSTANCE.find(statId);
+        if (interned == null) {
+            return -1;
+        }
+
+        int id = interned.getId();
+        for (int slot = slot(id); table[slot] != 0; slot = (slot + 1) & (table.length - 1)) {
+            if (statIds[table[slot] - 1].getId() == id) {
+                return table[slot] - 1;
+            }
+        }
+        return -1;
+    }
+
+    // interned ids are sequential, the multiply spreads them and the fold brings the high bits into any table size
+    private int slot(int id) {
+        int mixed = id * 0x9E3779B9;
+        return (mixed ^ (mixed >>> 16)) & (table.length - 1);
+    }
+}
@@ -0,0 +1,354 @@
+package com.newerty.derivedStats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lowers an {@link ExpressionNode} tree into an {@link ExpressionProgram}. Constants are pooled, every distinct
+ * stat id gets one slot and the maximum operand stack and aggregate nesting depths are computed up front so the
+ * interpreter never has to grow its buffers.
+ */
+final class ProgramCompiler implements ExpressionNode.Visitor<Void> {
+
+    private int[] code = new int[32];
+    private int length;
+
+    private final Map<Long, Integer> constantIndex = new HashMap<>();
+    private double[] constants = new double[8];
+    private int constantCount;
+
+    private final Map<ExpressionStatId, Integer> slots = new LinkedHashMap<>();
+    private final Map<ExpressionNode, Integer> temps = new HashMap<>();
+    private int outputCount;
+
+    // compile ternaries to SELECT rather than jumps
+    private final boolean branchFree;
+
+    private int depth;
+    private int maxDepth;
+    private int aggregateDepth;
+    private int maxAggregateDepth;
+
+    private ProgramCompiler(boolean branchFree) {
+        this.branchFree = branchFree;
+    }
+
+    static ExpressionProgram compile(ExpressionNode root) {
+        return compile(root, Collections.emptyList());
+    }
+
+    /**
+     * Compiles the tree with the given statIds pre-assigned to slots 0..n-1, so callers can address the program's
+     * slots by the index of a statId in that list. Stat ids not in the list are given the slots after it.
+     */
+    static ExpressionProgram compile(ExpressionNode root, List<ExpressionStatId> slotOrder) {
+        return compile(root, slotOrder, false);
+    }
+
+    /**
+     * Compiles the tree without jumps, each ternary evaluates both sides and picks one with
+     * {@link ExpressionProgram#SELECT}. Every instruction then runs for every input, which is what a columnar
+     * interpreter needs.
+     */
+    static ExpressionProgram compileBranchFree(ExpressionNode root, List<ExpressionStatId> slotOrder) {
+        return compile(root, slotOrder, true);
+    }
+
+    private static ExpressionProgram compile(ExpressionNode root, List<ExpressionStatId> slotOrder, boolean branchFree) {
+        ProgramCompiler compiler = new ProgramCompiler(branchFree);
+        slotOrder.forEach(compiler::slot);
+        root.accept(compiler);
+        return compiler.toProgram();
+    }
+
+    /**
+     * Compiles several trees into one program that stores the result of the i'th tree with
+     * {@link ExpressionProgram#OUTPUT} i. A non-trivial subtree that occurs more than once across the trees is
+     * computed once into a temp before any of them and loaded from there. Since expressions have no side effects,
+     * computing a shared subtree up front gives the same results even when it sits in an untaken ternary branch.
+     */
+    static ExpressionProgram compileShared(List<ExpressionNode> roots, List<ExpressionStatId> slotOrder) {
+        ProgramCompiler compiler = new ProgramCompiler(false);
+        slotOrder.forEach(compiler::slot);
+
+        for (ExpressionNode shared : findSharedSubtrees(roots)) {
+            compiler.compileNode(shared);
+            compiler.emit(ExpressionProgram.TEMP_STORE, compiler.temps.size());
+            compiler.depth--;
+            compiler.temps.put(shared, compiler.temps.size());
+        }
+        for (int i = 0; i < roots.size(); i++) {
+            compiler.compileNode(roots.get(i));
+            compiler.emit(ExpressionProgram.OUTPUT, i);
+            compiler.depth--;
+        }
+        compiler.outputCount = roots.size();
+        return compiler.toProgram();
+    }
+
+    // Subtrees seen more than once, inner ones before the ones containing them. Counting stops at the second
+    // occurrence of a subtree, so the children of a shared subtree are only shared if they also occur elsewhere.
+    private static List<ExpressionNode> findSharedSubtrees(List<ExpressionNode> roots) {
+        Map<ExpressionNode, Integer> counts = new HashMap<>();
+        roots.forEach(root -> countSubtrees(root, counts));
+
+        Set<ExpressionNode> shared = new LinkedHashSet<>();
+        roots.forEach(root -> collectShared(root, counts, shared));
+        return new ArrayList<>(shared);
+    }
+
+    private static void countSubtrees(ExpressionNode node, Map<ExpressionNode, Integer> counts) {
+        if ((node instanceof ExpressionNode.Constant) || (node instanceof ExpressionNode.StatRef)) {
+            return;
+        }
+        if (counts.merge(node, 1, Integer::sum) > 1) {
+            return;
+        }
+        children(node).forEach(child -> countSubtrees(child, counts));
+    }
+
+    private static void collectShared(ExpressionNode node, Map<ExpressionNode, Integer> counts, Set<ExpressionNode> shared) {
+        if (shared.contains(node)) {
+            return;
+        }
+        children(node).forEach(child -> collectShared(child, counts, shared));
+        if (counts.getOrDefault(node, 0) > 1) {
+            shared.add(node);
+        }
+    }
+
+    private static List<ExpressionNode> children(ExpressionNode node) {
+        if (node instanceof ExpressionNode.Negate) {
+            return Collections.singletonList(((ExpressionNode.Negate) node).operand);
+        } else if (node instanceof ExpressionNode.Binary) {
+            ExpressionNode.Binary binary = (ExpressionNode.Binary) node;
+            return Arrays.asList(binary.left, binary.right);
+        } else if (node instanceof ExpressionNode.Ternary) {
+            ExpressionNode.Ternary ternary = (ExpressionNode.Ternary) node;
+            return Arrays.asList(ternary.condition, ternary.whenTrue, ternary.whenFalse);
+        } else if (node instanceof ExpressionNode.Aggregate) {
+            return ((ExpressionNode.Aggregate) node).args;
+        }
+        return Collections.emptyList();
+    }
+
+    private ExpressionProgram toProgram() {
+        return new ExpressionProgram(
+                Arrays.copyOf(code, length),
+                Arrays.copyOf(constants, constantCount),
+                slots.keySet().toArray(new ExpressionStatId[0]),
+                maxDepth,
+                maxAggregateDepth,
+                temps.size(),
+                outputCount);
+    }
+
+    // loads a shared subtree from its temp, compiles anything else in place
+    private void compileNode(ExpressionNode node) {
+        Integer temp = temps.isEmpty() ? null : temps.get(node);
+        if (temp != null) {
+            emit(ExpressionProgram.TEMP_LOAD, temp);
+            push();
+        } else {
+            node.accept(this);
+        }
+    }
+
+    @Override
+    public Void visitConstant(ExpressionNode.Constant node) {
+        emit(ExpressionProgram.CONST, constant(node.value));
+        push();
+        return null;
+    }
+
+    @Override
+    public Void visitStatRef(ExpressionNode.StatRef node) {
+        int opcode = node.statId.isWildcarded() ? ExpressionProgram.LOAD_PLACEHOLDER : ExpressionProgram.LOAD;
+        emit(opcode, slot(node.statId));
+        push();
+        return null;
+    }
+
+    @Override
+    public Void visitNegate(ExpressionNode.Negate node) {
+        compileNode(node.operand);
+        emit(ExpressionProgram.NEGATE);
+        return null;
+    }
+
+    @Override
+    public Void visitBinary(ExpressionNode.Binary node) {
+        if (!branchFree && (node.op == ExpressionNode.BinaryOp.AND)) {
+            compileShortCircuit(node, ExpressionProgram.JUMP_IF_ZERO, 0d);
+            return null;
+        }
+        if (!branchFree && (node.op == ExpressionNode.BinaryOp.OR)) {
+            compileShortCircuit(node, ExpressionProgram.JUMP_IF_NOT_ZERO, 1d);
+            return null;
+        }
+
+        compileNode(node.left);
+        compileNode(node.right);
+        emit(opcode(node.op));
+        depth--;
+        return null;
+    }
+
+    // left; JUMP_IF_x decided; right; JUMP_IF_x decided; CONST !result; JUMP end; decided: CONST result; end:
+    // && jumps on zero with result 0, || on non-zero with result 1, the same values EvaluationOps.and and or give
+    private void compileShortCircuit(ExpressionNode.Binary node, int jump, double decided) {
+        compileNode(node.left);
+        emit(jump, -1);
+        depth--;
+        int leftJump = length - 1;
+
+        compileNode(node.right);
+        emit(jump, -1);
+        depth--;
+        int rightJump = length - 1;
+
+        emit(ExpressionProgram.CONST, constant(1d - decided));
+        push();
+        emit(ExpressionProgram.JUMP, -1);
+        int endJump = length - 1;
+
+        code[leftJump] = length;
+        code[rightJump] = length;
+        depth--;
+        emit(ExpressionProgram.CONST, constant(decided));
+        push();
+        code[endJump] = length;
+    }
+
+    // cond; JUMP_IF_NOT_POSITIVE else; whenTrue; JUMP end; else: whenFalse; end:
+    // or when branch free: cond; whenTrue; whenFalse; SELECT
+    @Override
+    public Void visitTernary(ExpressionNode.Ternary node) {
+        if (branchFree) {
+            compileNode(node.condition);
+            compileNode(node.whenTrue);
+            compileNode(node.whenFalse);
+            emit(ExpressionProgram.SELECT);
+            depth -= 2;
+            return null;
+        }
+
+        compileNode(node.condition);
+        emit(ExpressionProgram.JUMP_IF_NOT_POSITIVE, -1);
+        depth--;
+        int elseJump = length - 1;
+
+        compileNode(node.whenTrue);
+        emit(ExpressionProgram.JUMP, -1);
+        int endJump = length - 1;
+
+        code[elseJump] = length;
+        depth--;
+        compileNode(node.whenFalse);
+        code[endJump] = length;
+        return null;
+    }
+
+    @Override
+    public Void visitAggregate(ExpressionNode.Aggregate node) {
+        emit(ExpressionProgram.AGG_BEGIN);
+        aggregateDepth++;
+        maxAggregateDepth = Math.max(maxAggregateDepth, aggregateDepth);
+
+        for (ExpressionNode arg : node.args) {
+            // a bare wildcarded stat id contributes every matching value, not a single one
+            if ((arg instanceof ExpressionNode.StatRef) && ((ExpressionNode.StatRef) arg).statId.isWildcarded()) {
+                emit(ExpressionProgram.AGG_WILDCARD, slot(((ExpressionNode.StatRef) arg).statId));
+            } else {
+                compileNode(arg);
+                emit(ExpressionProgram.AGG_PUSH);
+                depth--;
+            }
+        }
+
+        aggregateDepth--;
+        emit(opcode(node.op));
+        push();
+        return null;
+    }
+
+    private static int opcode(ExpressionNode.BinaryOp op) {
+        switch (op) {
+            case ADD:
+                return ExpressionProgram.ADD;
+            case SUBTRACT:
+                return ExpressionProgram.SUBTRACT;
+            case MULTIPLY:
+                return ExpressionProgram.MULTIPLY;
+            case DIVIDE:
+                return ExpressionProgram.DIVIDE;
+            case AND:
+                return ExpressionProgram.AND;
+            case OR:
+                return ExpressionProgram.OR;
+            case GT:
+                return ExpressionProgram.GT;
+            case GE:
+                return ExpressionProgram.GE;
+            case LT:
+                return ExpressionProgram.LT;
+            case LE:
+                return ExpressionProgram.LE;
+            case EQ:
+                return ExpressionProgram.EQ;
+            case NEQ:
+                return ExpressionProgram.NEQ;
+            default:
+                throw new IllegalStateException("Unknown operator " + op);
+        }
+    }
+
+    private static int opcode(ExpressionNode.AggregateOp op) {
+        switch (op) {
+            case SUM:
+                return ExpressionProgram.AGG_SUM;
+            case AVG:
+                return ExpressionProgram.AGG_AVG;
+            case MIN:
+                return ExpressionProgram.AGG_MIN;
+            case MAX:
+                return ExpressionProgram.AGG_MAX;
+            default:
+                throw new IllegalStateException("Unknown aggregate " + op);
+        }
+    }
+
+    private void push() {
+        depth++;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    private int constant(double value) {
+        return constantIndex.computeIfAbsent(Double.doubleToRawLongBits(value), bits -> {
+            if (constantCount == constants.length) {
+                constants = Arrays.copyOf(constants, constantCount * 2);
+            }
+            constants[constantCount] = value;
+            return constantCount++;
+        });
+    }
+
+    private int slot(ExpressionStatId statId) {
+        return slots.computeIfAbsent(statId, id -> slots.size());
+    }
+
+    private void emit(int... instruction) {
+        if (length + instruction.length > code.length) {
+            code = Arrays.copyOf(code, Math.max(code.length * 2, length + instruction.length));
+        }
+        System.arraycopy(instruction, 0, code, length, instruction.length);
+        length += instruction.length;
+    }
+}
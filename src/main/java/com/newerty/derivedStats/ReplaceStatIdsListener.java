@@ -15,6 +15,10 @@ import java.util.List;
 import java.util.Map;
 
 
+/**
+ * Rewrites an expression with values substituted for its dependent statIds by re-parsing it on every call.
+ * {@link ExpressionRenderer} produces the same text from an expression parsed once.
+ */
 public class ReplaceStatIdsListener extends DerivedExpressionBaseListener {
 
     private final String categoryId;
@@ -0,0 +1,97 @@
+package com.newerty.derivedStats;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps an evaluator's dependent statIds to the slot indexes used by {@link Evaluator#evaluate(double[])}. Slot
+ * {@code i} holds the value of the {@code i}th statId of {@link ExpressionStatIdList#getDependentStatIds()}.
+ * <p>
+ * A binder is immutable and may be shared between threads. Resolve the slots of the statIds you update once with
+ * {@link #slotOf(ExpressionStatId)} and write values straight into a reused array, or use {@link #bind(Map, double[])}
+ * to copy a map of values into one.
+ */
+public final class SlotBinder {
+
+    private final ExpressionStatId[] statIds;
+    private final Map<ExpressionStatId, Integer> slots;
+
+    SlotBinder(List<ExpressionStatId> statIds) {
+        this.statIds = statIds.toArray(new ExpressionStatId[0]);
+
+        Map<ExpressionStatId, Integer> slots = new HashMap<>();
+        for (int i = 0; i < this.statIds.length; i++) {
+            slots.put(this.statIds[i], i);
+        }
+        this.slots = Collections.unmodifiableMap(slots);
+    }
+
+    /**
+     * @return The number of slots, i.e. the required length of the values array
+     */
+    public int size() {
+        return statIds.length;
+    }
+
+    /**
+     * @param statId A dependent statId of the expression
+     * @return The statId's slot, or -1 if the expression doesn't depend on it
+     */
+    public int slotOf(ExpressionStatId statId) {
+        Integer slot = slots.get(statId);
+        return (slot == null) ? -1 : slot;
+    }
+
+    /**
+     * @param slot A slot index
+     * @return The statId held by the slot
+     */
+    public ExpressionStatId statIdAt(int slot) {
+        return statIds[slot];
+    }
+
+    /**
+     * @return A new, zeroed values array
+     */
+    public double[] newValues() {
+        return new double[statIds.length];
+    }
+
+    /**
+     * Copies the values of the expression's statIds into a new array. Missing values default to 0.
+     *
+     * @param values A map of statIds and their values
+     * @return The slot values
+     */
+    public double[] bind(Map<ExpressionStatId, Double> values) {
+        return bind(values, newValues());
+    }
+
+    /**
+     * Copies the values of the expression's statIds into {@code target}, overwriting every slot. Missing values
+     * default to 0.
+     *
+     * @param values A map of statIds and their values
+     * @param target The array to fill, at least {@link #size()} long
+     * @return {@code target}
+     */
+    public double[] bind(Map<ExpressionStatId, Double> values, double[] target) {
+        if (target.length < statIds.length) {
+            throw new IllegalArgumentException("Values array needs " + statIds.length + " slots, got " + target.length);
+        }
+
+        for (int i = 0; i < statIds.length; i++) {
+            Double value = values.get(statIds[i]);
+            target[i] = (value == null) ? 0d : value;
+        }
+        return target;
+    }
+
+    @Override
+    public String toString() {
+        return "SlotBinder" + Arrays.toString(statIds);
+    }
+}
@@ -0,0 +1,24 @@
+package com.newerty.derivedStats;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A store of stat values that {@link FetchPlan} reads in batches. Both calls are multi-gets, one round trip for a
+ * whole batch of statIds.
+ */
+public interface StatStore {
+
+    /**
+     * @param statIds StatIds without wildcards
+     * @return The values of those of the statIds the store has, stats it doesn't have are left out
+     */
+    Map<ExpressionStatId, Double> getAll(List<ExpressionStatId> statIds);
+
+    /**
+     * @param patterns Wildcarded statIds, e.g. {@code kills{map:"*"}}
+     * @return The values of every stat matching one of the patterns, i.e. with the same category, stat and
+     * dimension names as in {@link ExpressionStatId#keysEquals(ExpressionStatId)}
+     */
+    Map<ExpressionStatId, Double> getMatching(List<ExpressionStatId> patterns);
+}
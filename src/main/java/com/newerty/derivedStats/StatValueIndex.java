@@ -0,0 +1,84 @@
+package com.newerty.derivedStats;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable map of stat values that also indexes them by category, stat and dimension names. Evaluators accept
+ * it anywhere they take a values map, and resolve a wildcarded statId such as {@code kills{map:"*"}} against it in
+ * time proportional to the number of matches rather than the size of the map.
+ * <p>
+ * Build one per set of values and reuse it across evaluations; building costs about as much as one linear scan.
+ */
+public final class StatValueIndex extends AbstractMap<ExpressionStatId, Double> {
+
+    private static final double[] NO_VALUES = new double[0];
+
+    private final Map<ExpressionStatId, Double> values;
+    // by ExpressionStatId.keysPattern(), interned, so a lookup neither allocates nor compares dimensions
+    private final Map<ExpressionStatId, double[]> byKeys;
+
+    private StatValueIndex(Map<ExpressionStatId, Double> values) {
+        this.values = Collections.unmodifiableMap(new HashMap<>(values));
+
+        Map<ExpressionStatId, double[]> byKeys = new HashMap<>();
+        Map<ExpressionStatId, Integer> counts = new HashMap<>();
+        // in the map's iteration order, so aggregates add the values in the same order as a scan of entrySet()
+        this.values.forEach((statId, value) -> {
+            ExpressionStatId keys = statId.keysPattern();
+            int count = counts.merge(keys, 1, Integer::sum);
+            double[] group = byKeys.getOrDefault(keys, NO_VALUES);
+            if (count > group.length) {
+                group = Arrays.copyOf(group, Math.max(4, group.length * 2));
+                byKeys.put(keys, group);
+            }
+            group[count - 1] = value;
+        });
+        byKeys.replaceAll((keys, group) -> Arrays.copyOf(group, counts.get(keys)));
+        this.byKeys = byKeys;
+    }
+
+    /**
+     * @param values A map of statIds and their values
+     * @return An index over a copy of the values
+     */
+    public static StatValueIndex of(Map<ExpressionStatId, Double> values) {
+        if (values instanceof StatValueIndex) {
+            return (StatValueIndex) values;
+        }
+        return new StatValueIndex(values);
+    }
+
+    /**
+     * Returns the values of every statId with the same category, stat and dimension names as {@code statId},
+     * whatever their dimension values. The array is shared and must not be modified.
+     */
+    double[] matching(ExpressionStatId statId) {
+        double[] matching = byKeys.get(statId.keysPattern());
+        return (matching == null) ? NO_VALUES : matching;
+    }
+
+    @Override
+    public Double get(Object key) {
+        return values.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return values.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return values.size();
+    }
+
+    @Override
+    public Set<Entry<ExpressionStatId, Double>> entrySet() {
+        return values.entrySet();
+    }
+}
@@ -0,0 +1,71 @@
+package com.newerty.derivedStats;
+
+import java.nio.DoubleBuffer;
+import java.util.Map;
+
+/**
+ * Serves {@link DerivedExpressionEvaluator#evaluateList} style input, a list of values per statId, straight from
+ * primitive buffers. A wildcarded statId's values are all matches of that wildcard, and {@link ExpressionProgram}
+ * adds them to an aggregate's accumulator where they lie, without a synthetic statId or a copy per value. A statId
+ * without wildcards has the last of its values, as it does in {@code evaluateList}.
+ * <p>
+ * The values between each buffer's position and limit are read, the positions aren't changed.
+ */
+final class StatValueLists implements StatValueProvider, WildcardAccumulator {
+
+    private final Map<ExpressionStatId, DoubleBuffer> values;
+
+    StatValueLists(Map<ExpressionStatId, DoubleBuffer> values) {
+        this.values = values;
+    }
+
+    @Override
+    public double getValue(ExpressionStatId statId) {
+        DoubleBuffer buffer = values.get(statId);
+        return ((buffer == null) || !buffer.hasRemaining()) ? 0d : buffer.get(buffer.limit() - 1);
+    }
+
+    @Override
+    public double[] getMatchingValues(ExpressionStatId statId) {
+        int count = 0;
+        for (Map.Entry<ExpressionStatId, DoubleBuffer> e : values.entrySet()) {
+            if (statId.keysEquals(e.getKey())) {
+                count += matchingCount(e.getKey(), e.getValue());
+            }
+        }
+
+        double[] matching = new double[count];
+        int i = 0;
+        for (Map.Entry<ExpressionStatId, DoubleBuffer> e : values.entrySet()) {
+            if (statId.keysEquals(e.getKey())) {
+                DoubleBuffer buffer = e.getValue();
+                int n = matchingCount(e.getKey(), buffer);
+                for (int j = buffer.limit() - n; j < buffer.limit(); j++) {
+                    matching[i++] = buffer.get(j);
+                }
+            }
+        }
+        return matching;
+    }
+
+    @Override
+    public void accumulateMatching(ExpressionStatId statId, double[] acc, int offset) {
+        for (Map.Entry<ExpressionStatId, DoubleBuffer> e : values.entrySet()) {
+            if (statId.keysEquals(e.getKey())) {
+                DoubleBuffer buffer = e.getValue();
+                int n = matchingCount(e.getKey(), buffer);
+                for (int j = buffer.limit() - n; j < buffer.limit(); j++) {
+                    EvaluationOps.accumulate(acc, offset, buffer.get(j));
+                }
+            }
+        }
+    }
+
+    // every value of a wildcarded statId, only the last of any other
+    private static int matchingCount(ExpressionStatId statId, DoubleBuffer buffer) {
+        if ((buffer == null) || !buffer.hasRemaining()) {
+            return 0;
+        }
+        return statId.isWildcarded() ? buffer.remaining() : 1;
+    }
+}
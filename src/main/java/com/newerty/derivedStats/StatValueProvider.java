@@ -0,0 +1,40 @@
+package com.newerty.derivedStats;
+
+import java.util.Map;
+
+/**
+ * A source of stat values that an evaluator pulls from while it evaluates, see
+ * {@link Evaluator#evaluate(StatValueProvider, Map)}. Unlike a values map nothing has to be fetched up
+ * front: each dependent statId is asked for at most once per evaluation, and only if the expression reads it.
+ * Stats in the untaken branch of a ternary, or behind a short-circuited {@code &&} or {@code ||}, are never asked for.
+ */
+@FunctionalInterface
+public interface StatValueProvider {
+
+    /**
+     * @param statId A statId without wildcards
+     * @return The value of the stat, or 0 if it has none, the same default as a missing map entry
+     */
+    double getValue(ExpressionStatId statId);
+
+    /**
+     * Returns the values of every statId matching a wildcarded one, e.g. {@code kills{map:"*"}}, for aggregates over
+     * wildcards. Providers that can't list stats don't need to implement it.
+     *
+     * @param statId A wildcarded statId
+     * @return The values of every statId with the same category, stat and dimension names. Aggregates add them in
+     * the order given
+     * @throws UnsupportedOperationException if the provider can't resolve wildcards
+     */
+    default double[] getMatchingValues(ExpressionStatId statId) {
+        throw new UnsupportedOperationException("Can't resolve wildcarded statId " + statId);
+    }
+
+    /**
+     * @param values A map of statIds and their values, a {@link StatValueIndex} resolves wildcards without a scan
+     * @return A provider reading from the map
+     */
+    static StatValueProvider of(Map<ExpressionStatId, Double> values) {
+        return new MapStatValues(values);
+    }
+}
@@ -0,0 +1,358 @@
+package com.newerty.derivedStats;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link EvaluationMetrics} kept per derived stat in counters striped by thread: each thread adds to its own cell of
+ * counters with opaque stores, and reads sum the cells of every thread. Opaque access keeps each long whole, so a
+ * reader summing another thread's cell never sees a torn value, yet compiles to a plain store on common hardware.
+ * Recording an evaluation costs a thread-local lookup and a few increments, no atomic read-modify-write or contended
+ * cache line, which a {@link java.util.concurrent.atomic.LongAdder} still pays on every add. Timing takes two {@link System#nanoTime()} calls,
+ * so only one evaluation in {@code timingInterval} is timed and the latency histogram is a sample.
+ * <p>
+ * A thread keeps about 600 bytes of counters for each stat it evaluates. Counters of threads that have died are
+ * folded together when the metrics are next read.
+ * <p>
+ * Histograms have power of two buckets: bucket 0 counts zeros, bucket i counts values from 2^(i-1) up to 2^i, and
+ * the last bucket counts everything above.
+ */
+public final class StripedEvaluationMetrics implements EvaluationMetrics {
+
+    static final int DEFAULT_TIMING_INTERVAL = 64;
+    // the last bucket starts at 2^30, over a second or a billion matches
+    static final int BUCKETS = 32;
+
+    // the counters of a stat in a cell
+    private static final int BUILDS = 0;
+    private static final int BUILD_NANOS = 1;
+    private static final int EVALUATIONS = 2;
+    private static final int NANS = 3;
+    private static final int INFINITIES = 4;
+    private static final int TIMED_NANOS = 5;
+    private static final int WILDCARDS = 6;
+    private static final int MATCHES = 7;
+    private static final int LATENCIES = 8;
+    private static final int FAN_INS = LATENCIES + BUCKETS;
+    private static final int CELL_SIZE = FAN_INS + BUCKETS;
+    private static final int ID_SLOTS = 256;
+
+    // cells are written by their thread alone and read by others, opaque access keeps each long whole
+    private static final VarHandle COUNTS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle CELLS = MethodHandles.arrayElementVarHandle(long[][].class);
+
+    private final int timingMask;
+    private final Map<ExpressionStatId, Stats> stats = new ConcurrentHashMap<>();
+    private final AtomicInteger statCount = new AtomicInteger();
+    private final ThreadLocal<Cells> cells = ThreadLocal.withInitial(this::register);
+    // the cells of the first thread registered in each slot by thread id, a shortcut past the ThreadLocal lookup
+    private final Cells[] cellsById = new Cells[ID_SLOTS];
+    // the cells of every thread that has recorded, guarded by itself along with retired
+    private final List<Cells> threadCells = new ArrayList<>();
+    // the sums of the cells of threads that have died
+    private final Cells retired = new Cells(null);
+
+    private StripedEvaluationMetrics(int timingInterval) {
+        this.timingMask = timingInterval - 1;
+    }
+
+    /**
+     * Builds metrics timing one evaluation in {@value #DEFAULT_TIMING_INTERVAL}
+     */
+    public static StripedEvaluationMetrics build() {
+        return build(DEFAULT_TIMING_INTERVAL);
+    }
+
+    /**
+     * @param timingInterval Time one evaluation in this many, chosen at random, 1 to time every evaluation
+     * @return The metrics
+     * @throws IllegalArgumentException if the interval isn't a positive power of two
+     */
+    public static StripedEvaluationMetrics build(int timingInterval) {
+        if ((timingInterval < 1) || (Integer.bitCount(timingInterval) != 1)) {
+            throw new IllegalArgumentException("Timing interval must be a positive power of two, got " + timingInterval);
+        }
+        return new StripedEvaluationMetrics(timingInterval);
+    }
+
+    /**
+     * Evaluators deriving the same stat, e.g. rebuilt after a change, share its stats
+     */
+    @Override
+    public Recorder recorder(ExpressionStatId derivedStatId) {
+        return stats.computeIfAbsent(derivedStatId, statId -> new Stats(statCount.getAndIncrement()));
+    }
+
+    /**
+     * @return The stats of the evaluators deriving the statId, or null if none was built with these metrics
+     */
+    public Stats getStats(ExpressionStatId derivedStatId) {
+        return stats.get(derivedStatId);
+    }
+
+    /**
+     * @return The stats of every derived stat, live
+     */
+    public Map<ExpressionStatId, Stats> getAll() {
+        return Collections.unmodifiableMap(stats);
+    }
+
+    static int bucket(long value) {
+        return Math.min(64 - Long.numberOfLeadingZeros(value), BUCKETS - 1);
+    }
+
+    // the calling thread's cells
+    private Cells cells() {
+        Thread current = Thread.currentThread();
+        Cells threadCell = cellsById[(int) current.getId() & (ID_SLOTS - 1)];
+        // owner is final, so a cell seen through the racy slot is whole
+        return ((threadCell != null) && (threadCell.owner == current)) ? threadCell : cells.get();
+    }
+
+    private Cells register() {
+        Thread current = Thread.currentThread();
+        Cells threadCell = new Cells(current);
+        synchronized (threadCells) {
+            threadCells.add(threadCell);
+            int slot = (int) current.getId() & (ID_SLOTS - 1);
+            if (cellsById[slot] == null) {
+                cellsById[slot] = threadCell;
+            }
+        }
+        return threadCell;
+    }
+
+    // the counters from..from + count of the stat, summed over every thread
+    private long[] sum(int index, int from, int count) {
+        long[] sums = new long[count];
+        synchronized (threadCells) {
+            for (Iterator<Cells> it = threadCells.iterator(); it.hasNext(); ) {
+                Cells threadCell = it.next();
+                if (!threadCell.owner.isAlive()) {
+                    // a dead thread's writes are all visible, and it makes no more
+                    threadCell.addTo(retired);
+                    it.remove();
+                    int slot = (int) threadCell.owner.getId() & (ID_SLOTS - 1);
+                    if (cellsById[slot] == threadCell) {
+                        cellsById[slot] = null;
+                    }
+                } else {
+                    threadCell.addTo(sums, index, from);
+                }
+            }
+            retired.addTo(sums, index, from);
+        }
+        return sums;
+    }
+
+    private static void add(long[] cell, int counter, long value) {
+        COUNTS.setOpaque(cell, counter, cell[counter] + value);
+    }
+
+    // one thread's cell of counters for each stat it has recorded, by the stat's index
+    private static final class Cells {
+        private final Thread owner;
+        private volatile long[][] byStat = new long[16][];
+
+        Cells(Thread owner) {
+            this.owner = owner;
+        }
+
+        // called by the owner alone
+        long[] of(int index) {
+            long[][] all = byStat;
+            if (index < all.length) {
+                long[] cell = all[index];
+                if (cell != null) {
+                    return cell;
+                }
+            } else {
+                all = Arrays.copyOf(all, Math.max(index + 1, all.length * 2));
+                byStat = all;
+            }
+            long[] cell = new long[CELL_SIZE];
+            CELLS.setRelease(all, index, cell);
+            return cell;
+        }
+
+        void addTo(long[] sums, int index, int from) {
+            long[][] all = byStat;
+            long[] cell = (index < all.length) ? (long[]) CELLS.getAcquire(all, index) : null;
+            if (cell != null) {
+                for (int i = 0; i < sums.length; i++) {
+                    sums[i] += (long) COUNTS.getOpaque(cell, from + i);
+                }
+            }
+        }
+
+        void addTo(Cells total) {
+            long[][] all = byStat;
+            for (int index = 0; index < all.length; index++) {
+                if (all[index] != null) {
+                    long[] cell = total.of(index);
+                    for (int i = 0; i < CELL_SIZE; i++) {
+                        add(cell, i, all[index][i]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The measurements of one derived stat. Every getter sums the counters of each thread, reading them while
+     * evaluations run, so two getters may be a few counts apart.
+     */
+    public final class Stats implements Recorder {
+        private final int index;
+
+        Stats(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void built(long nanos) {
+            long[] cell = cells().of(index);
+            add(cell, BUILDS, 1);
+            add(cell, BUILD_NANOS, nanos);
+        }
+
+        @Override
+        public long start() {
+            if ((timingMask != 0) && ((ThreadLocalRandom.current().nextInt() & timingMask) != 0)) {
+                return UNTIMED;
+            }
+            return System.nanoTime();
+        }
+
+        @Override
+        public void evaluated(long start, double result) {
+            long[] cell = cells().of(index);
+            if (start != UNTIMED) {
+                long nanos = Math.max(0L, System.nanoTime() - start);
+                add(cell, TIMED_NANOS, nanos);
+                add(cell, LATENCIES + bucket(nanos), 1);
+            }
+            add(cell, EVALUATIONS, 1);
+            if (!Double.isFinite(result)) {
+                add(cell, Double.isNaN(result) ? NANS : INFINITIES, 1);
+            }
+        }
+
+        @Override
+        public void wildcard(int matched) {
+            long[] cell = cells().of(index);
+            add(cell, WILDCARDS, 1);
+            add(cell, MATCHES, matched);
+            add(cell, FAN_INS + bucket(matched), 1);
+        }
+
+        /**
+         * @return The number of evaluators built, or decoded, for the stat
+         */
+        public long getBuildCount() {
+            return count(BUILDS);
+        }
+
+        /**
+         * @return The total time taken to build them
+         */
+        public long getBuildNanos() {
+            return count(BUILD_NANOS);
+        }
+
+        public long getEvaluationCount() {
+            return count(EVALUATIONS);
+        }
+
+        public long getNaNCount() {
+            return count(NANS);
+        }
+
+        /**
+         * @return The number of evaluations giving positive or negative infinity
+         */
+        public long getInfinityCount() {
+            return count(INFINITIES);
+        }
+
+        /**
+         * @return The share of evaluations giving NaN, 0 before any
+         */
+        public double getNaNRate() {
+            return rate(NANS);
+        }
+
+        /**
+         * @return The share of evaluations giving an infinity, 0 before any
+         */
+        public double getInfinityRate() {
+            return rate(INFINITIES);
+        }
+
+        /**
+         * @return The number of evaluations sampled for timing
+         */
+        public long getTimedCount() {
+            return Arrays.stream(getLatencyHistogram()).sum();
+        }
+
+        /**
+         * @return The mean latency of the timed evaluations in nanoseconds, 0 before any
+         */
+        public double getMeanNanos() {
+            // the total latency, the counters between it and the histogram, then the histogram
+            long[] sums = sum(index, TIMED_NANOS, LATENCIES + BUCKETS - TIMED_NANOS);
+            long timed = 0;
+            for (int i = LATENCIES - TIMED_NANOS; i < sums.length; i++) {
+                timed += sums[i];
+            }
+            return (timed == 0) ? 0d : (double) sums[0] / timed;
+        }
+
+        /**
+         * @return The count of timed evaluations in each bucket of latency in nanoseconds
+         */
+        public long[] getLatencyHistogram() {
+            return sum(index, LATENCIES, BUCKETS);
+        }
+
+        /**
+         * @return The number of wildcarded statIds aggregated over, one per statId per evaluation
+         */
+        public long getWildcardCount() {
+            return count(WILDCARDS);
+        }
+
+        /**
+         * @return The total number of values those wildcards matched
+         */
+        public long getWildcardMatches() {
+            return count(MATCHES);
+        }
+
+        /**
+         * @return The count of wildcards in each bucket of the number of values they matched
+         */
+        public long[] getFanInHistogram() {
+            return sum(index, FAN_INS, BUCKETS);
+        }
+
+        private long count(int counter) {
+            return sum(index, counter, 1)[0];
+        }
+
+        private double rate(int counter) {
+            long[] sums = sum(index, EVALUATIONS, counter - EVALUATIONS + 1);
+            return (sums[0] == 0) ? 0d : (double) sums[counter - EVALUATIONS] / sums[0];
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.newerty.derivedStats;
+
+/**
+ * A {@link StatValueProvider} that adds the values matching a wildcarded statId to an aggregate itself, rather than
+ * handing them over as an array from {@link StatValueProvider#getMatchingValues}. {@link ExpressionProgram} uses
+ * it for aggregates over wildcards when there are no placeholders.
+ */
+interface WildcardAccumulator {
+
+    /**
+     * Adds the values {@link StatValueProvider#getMatchingValues} would return to the accumulator at {@code offset},
+     * see {@link EvaluationOps#accumulate(double[], int, double)}
+     */
+    void accumulateMatching(ExpressionStatId statId, double[] acc, int offset);
+}
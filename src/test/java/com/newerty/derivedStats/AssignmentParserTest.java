@@ -0,0 +1,71 @@
+package com.newerty.derivedStats;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AssignmentParserTest {
+
+    public final static String DUMMY_CATEGORY = "dummy";
+
+    @Test
+    public void reportsSyntaxErrorsLikeASingleParse() throws Exception {
+        Exception error = TestHelpers.expectException(() -> AssignmentParser.parse("foo = kills +"));
+        TestHelpers.checkError(ExpressionEvaluationException.class.getName(), "no viable alternative at input 'kills+'", error, false);
+
+        error = TestHelpers.expectException(() -> AssignmentParser.parse("foo = bar ^ kat"));
+        TestHelpers.checkError(ExpressionEvaluationException.class.getName(), "token recognition error at: '^'", error, false);
+    }
+
+    @Test
+    public void reusesParserAfterErrors() {
+        ParseTree first = AssignmentParser.parse("foo = kills / shots");
+        TestHelpers.expectException(() -> AssignmentParser.parse("foo == bar"));
+        ParseTree second = AssignmentParser.parse("bar = SUM(deaths{map:\"*\"}, 2)");
+
+        // earlier trees are untouched by later parses
+        assertEquals("foo=kills/shots<EOF>", first.getText());
+        assertEquals("bar=SUM(deaths{map:\"*\"},2)<EOF>", second.getText());
+    }
+
+    @Test
+    public void closureTreeLowersOnFirstUse() {
+        String expr = "foo = games > 10 ? kills / (deaths + 1) : SUM(kills, -shots)";
+        DerivedExpressionEvaluator closures = DerivedExpressionEvaluator.build(expr, DUMMY_CATEGORY, EvaluationMode.CLOSURE_TREE);
+        DerivedExpressionEvaluator compiled = DerivedExpressionEvaluator.build(expr, DUMMY_CATEGORY, EvaluationMode.COMPILED);
+
+        assertEquals(compiled.getStatIds().getDependentStatIds(), closures.getStatIds().getDependentStatIds());
+        assertEquals(compiled.getBinder().size(), closures.getBinder().size());
+        double[] slots = {12, 3, 2, 40};
+        assertEquals(compiled.evaluate(slots), closures.evaluate(slots), 0);
+        assertEquals(compiled.evaluateBatch(new double[][]{{12}, {3}, {2}, {40}}, null, 1)[0],
+                closures.evaluateBatch(new double[][]{{12}, {3}, {2}, {40}}, null, 1)[0], 0);
+    }
+
+    @Test
+    public void visitorsCollectSameStatIdsAsListener() throws Exception {
+        List<String> corpus = TestHelpers.loadFeatureExpressions();
+        corpus.add("kill_ratio{map:\"*\"} = kills{map:\"*\"} / (shots{map:\"*\"} + kills{map:\"*\"}) + catB.games");
+        corpus.add("foo = foo + SUM(bar{weapon:\"awp\", map:\"*\"}, baz) ? qux : bar{map:\"*\", weapon:\"awp\"}");
+        assertTrue(corpus.size() > 50);
+
+        for (String expr : corpus) {
+            ParseTree tree = AssignmentParser.parse(expr);
+            ExpressionNodeBuilderVisitor builder = new ExpressionNodeBuilderVisitor(DUMMY_CATEGORY);
+            builder.visit(tree);
+            ExpressionStatIdList expected = new ExtractDependentStatIdsListener(tree, DUMMY_CATEGORY).getStatIds();
+
+            assertEquals(expr, expected.getDerivedStatId(), builder.getStatIds().getDerivedStatId());
+            assertEquals(expr, expected.getDependentStatIds(), builder.getStatIds().getDependentStatIds());
+
+            DerivedExpressionEvaluatorVisitor closures = new DerivedExpressionEvaluatorVisitor(DUMMY_CATEGORY, true);
+            closures.visit(tree);
+            assertEquals(expr, expected.getDerivedStatId(), closures.getStatIds().getDerivedStatId());
+            assertEquals(expr, expected.getDependentStatIds(), closures.getStatIds().getDependentStatIds());
+        }
+    }
+}
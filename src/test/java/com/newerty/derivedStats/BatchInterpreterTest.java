@@ -0,0 +1,92 @@
+package com.newerty.derivedStats;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class BatchInterpreterTest {
+
+    public final static String DUMMY_CATEGORY = "dummy";
+
+    private static final String[] EXPRESSIONS = {
+            "kill_ratio = kills / shots",
+            "foo = games > 10 ? kills / (deaths + 1) : -kills",
+            "foo = (kills >= shots) || (deaths == 0) && games != 3",
+            "foo = kills < 0 ? (deaths <= 2 ? 1 : 2) : (games == kills ? 3 : -4)",
+            "foo = SUM(kills, catB.kills, MAX(shots, deaths)) / AVG(games, 2) - MIN(kills, -shots)",
+            "foo = 10 + 20 * (-5 + 15)"
+    };
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Test
+    public void matchesRowByRowEvaluation() {
+        Random random = new Random(7);
+        int rows = BatchInterpreter.BLOCK_SIZE * 2 + 17;
+
+        for (String expr : EXPRESSIONS) {
+            DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build(expr, DUMMY_CATEGORY);
+            SlotBinder binder = evaluator.getBinder();
+
+            double[][] columns = new double[binder.size()][rows];
+            long[][] presence = new long[binder.size()][(rows + 63) >>> 6];
+            for (int slot = 0; slot < binder.size(); slot++) {
+                for (int row = 0; row < rows; row++) {
+                    // absent rows hold junk which must read as 0
+                    columns[slot][row] = (random.nextInt(30) == 0) ? Double.NaN : random.nextInt(21) - 10;
+                    if (random.nextInt(6) != 0) {
+                        presence[slot][row >>> 6] |= 1L << row;
+                    }
+                }
+            }
+
+            double[] out = evaluator.evaluateBatch(columns, presence, rows);
+
+            for (int row = 0; row < rows; row++) {
+                Map<ExpressionStatId, Double> values = new HashMap<>();
+                for (int slot = 0; slot < binder.size(); slot++) {
+                    if (((presence[slot][row >>> 6] >>> row) & 1L) != 0) {
+                        values.put(binder.statIdAt(slot), columns[slot][row]);
+                    }
+                }
+                assertEquals(expr + " row " + row,
+                        Double.doubleToLongBits(evaluator.evaluate(values)), Double.doubleToLongBits(out[row]));
+            }
+        }
+    }
+
+    @Test
+    public void withoutPresenceEveryRowHasAValue() {
+        DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build("foo = a > b ? a : b", DUMMY_CATEGORY);
+        double[][] columns = {{1, 5, -2}, {3, 4, -2}};
+
+        double[] out = new double[3];
+        evaluator.evaluateBatch(columns, null, 3, out);
+        assertEquals(3, out[0], 0);
+        assertEquals(5, out[1], 0);
+        assertEquals(-2, out[2], 0);
+    }
+
+    @Test
+    public void wildcardsAreUnsupported() {
+        DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build("foo = SUM(kills{map:\"*\"})", DUMMY_CATEGORY);
+
+        thrown.expect(UnsupportedOperationException.class);
+        evaluator.evaluateBatch(new double[1][1], null, 1);
+    }
+
+    @Test
+    public void shortColumnFails() {
+        DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build("ratio = kills / shots", DUMMY_CATEGORY);
+
+        thrown.expect(IllegalArgumentException.class);
+        evaluator.evaluateBatch(new double[][]{new double[4], new double[3]}, null, 4);
+    }
+}
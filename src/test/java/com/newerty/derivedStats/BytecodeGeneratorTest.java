@@ -0,0 +1,90 @@
+package com.newerty.derivedStats;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BytecodeGeneratorTest {
+
+    public final static String DUMMY_CATEGORY = "dummy";
+
+    @Test
+    public void matchesVisitorOnFeatureCorpus() throws Exception {
+        List<String> corpus = TestHelpers.loadFeatureExpressions();
+        assertTrue(corpus.size() > 50);
+
+        for (String expr : corpus) {
+            DerivedExpressionEvaluator bytecode = DerivedExpressionEvaluator.build(expr, DUMMY_CATEGORY, EvaluationMode.BYTECODE);
+            assertTrue(expr, bytecode.usesGeneratedBytecode());
+            assertSameResult(expr, bytecode, Collections.emptyMap());
+        }
+    }
+
+    @Test
+    public void matchesVisitorWithStatIds() {
+        String[] expressions = {
+                "kill_ratio = kills / shots",
+                "foo = games > 10 ? kills / (deaths + 1) : -kills",
+                "foo = (kills >= shots) || (deaths == 0) && games != 3",
+                "foo = SUM(kills, catB.kills, MAX(shots, deaths)) / AVG(games, 2) - MIN(kills, -shots)",
+                "foo = kills{map:\"dust2\"} * 100 / shots{map:\"dust2\"}"
+        };
+        Random random = new Random(42);
+
+        for (String expr : expressions) {
+            DerivedExpressionEvaluator bytecode = DerivedExpressionEvaluator.build(expr, DUMMY_CATEGORY, EvaluationMode.BYTECODE);
+            assertTrue(expr, bytecode.usesGeneratedBytecode());
+
+            for (int i = 0; i < 200; i++) {
+                Map<ExpressionStatId, Double> values = new HashMap<>();
+                for (ExpressionStatId statId : bytecode.getStatIds().getDependentStatIds()) {
+                    // leave some values out to exercise the default of 0
+                    if (random.nextInt(8) != 0) {
+                        values.put(statId, (double) (random.nextInt(41) - 20));
+                    }
+                }
+                assertSameResult(expr, bytecode, values);
+            }
+        }
+    }
+
+    @Test
+    public void wildcardsFallBackToInterpreter() {
+        String expr = "foo = SUM(kills{map:\"*\"})";
+        DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build(expr, DUMMY_CATEGORY, EvaluationMode.BYTECODE);
+        assertFalse(evaluator.usesGeneratedBytecode());
+
+        Map<ExpressionStatId, Double> values = new HashMap<>();
+        values.put(new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", "foo")), 20.0);
+        values.put(new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", "bar")), 10.0);
+        assertEquals(30, evaluator.evaluate(values), .1);
+    }
+
+    @Test
+    public void hugeExpressionsFallBackToInterpreter() {
+        StringBuilder expr = new StringBuilder("foo = 1 + SUM(a0");
+        for (int i = 1; i < 3000; i++) {
+            expr.append(", a").append(i);
+        }
+        expr.append(")");
+        DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build(expr.toString(), DUMMY_CATEGORY, EvaluationMode.BYTECODE);
+        assertFalse(evaluator.usesGeneratedBytecode());
+        assertEquals(1, evaluator.evaluate(Collections.emptyMap()), .1);
+    }
+
+    private static void assertSameResult(String expr, DerivedExpressionEvaluator bytecode, Map<ExpressionStatId, Double> values) {
+        double expected = DerivedExpressionEvaluator.build(expr, DUMMY_CATEGORY, EvaluationMode.CLOSURE_TREE)
+                .evaluate(values, Collections.emptyMap());
+        double actual = bytecode.evaluate(values, Collections.emptyMap());
+        assertEquals(expr + " " + values, Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+    }
+}
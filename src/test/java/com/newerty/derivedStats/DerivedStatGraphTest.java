@@ -0,0 +1,162 @@
+package com.newerty.derivedStats;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static com.newerty.derivedStats.TestHelpers.statId;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DerivedStatGraphTest {
+
+    public final static String DUMMY_CATEGORY = "dummy";
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Test
+    public void ordersDerivedOfDerived() {
+        DerivedStatGraph graph = new DerivedStatGraph();
+        // added out of order on purpose
+        graph.add(evaluator("rating = kdr * 100 + accuracy"));
+        graph.add(evaluator("kdr = kills / deaths"));
+        graph.add(evaluator("accuracy = hits / shots"));
+        graph.add(evaluator("unrelated = games + 1"));
+
+        List<ExpressionStatId> order = graph.getTopologicalOrder();
+        assertEquals(4, order.size());
+        assertTrue(order.indexOf(statId("kdr")) < order.indexOf(statId("rating")));
+        assertTrue(order.indexOf(statId("accuracy")) < order.indexOf(statId("rating")));
+
+        Map<ExpressionStatId, Double> values = new HashMap<>();
+        values.put(statId("kills"), 10d);
+        values.put(statId("deaths"), 5d);
+        values.put(statId("hits"), 1d);
+        values.put(statId("shots"), 4d);
+        graph.recomputeAll(values);
+        assertEquals(200.25, values.get(statId("rating")), 1e-9);
+        assertEquals(1, values.get(statId("unrelated")), 0);
+
+        // only the stats downstream of the change are re-evaluated, each once
+        values.put(statId("deaths"), 2d);
+        assertEquals(ImmutableList.of(statId("kdr"), statId("rating")),
+                graph.recompute(values, Collections.singleton(statId("deaths"))));
+        assertEquals(500.25, values.get(statId("rating")), 1e-9);
+
+        assertEquals(ImmutableList.of(statId("kdr"), statId("accuracy"), statId("rating")),
+                graph.getDirty(ImmutableList.of(statId("shots"), statId("kills"))));
+    }
+
+    @Test
+    public void unchangedValuesStopPropagation() {
+        DerivedStatGraph graph = new DerivedStatGraph();
+        graph.add(evaluator("positive = kills > 0"));
+        graph.add(evaluator("flag = positive * 10"));
+
+        Map<ExpressionStatId, Double> values = new HashMap<>();
+        values.put(statId("kills"), 3d);
+        graph.recomputeAll(values);
+
+        values.put(statId("kills"), 4d);
+        assertEquals(ImmutableList.of(statId("positive")), graph.recompute(values, Collections.singleton(statId("kills"))));
+        assertEquals(10, values.get(statId("flag")), 0);
+    }
+
+    @Test
+    public void wildcardsDependOnEveryDimensionValue() {
+        DerivedStatGraph graph = new DerivedStatGraph();
+        graph.add(evaluator("total_kills = SUM(kills{map:\"*\"})"));
+        graph.add(evaluator("kills{map:\"dust2\"} = rifle_kills{map:\"dust2\"} + pistol_kills{map:\"dust2\"}"));
+
+        assertEquals(ImmutableList.of(new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", "dust2")), statId("total_kills")),
+                graph.getTopologicalOrder());
+        assertEquals(ImmutableList.of(statId("total_kills")),
+                graph.getDirty(Collections.singleton(new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", "nuke")))));
+        assertEquals(Collections.emptyList(),
+                graph.getDirty(Collections.singleton(new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("weapon", "awp")))));
+    }
+
+    @Test
+    public void rejectsCycles() {
+        DerivedStatGraph graph = new DerivedStatGraph();
+        graph.add(evaluator("a = b + 1"));
+        graph.add(evaluator("b = c + 1"));
+
+        try {
+            graph.add(evaluator("c = a + 1"));
+        } catch (IllegalArgumentException e) {
+            // the graph is left as it was
+            assertEquals(2, graph.size());
+            assertEquals(ImmutableList.of(statId("b"), statId("a")), graph.getTopologicalOrder());
+            return;
+        }
+        throw new AssertionError("cycle wasn't detected");
+    }
+
+    @Test
+    public void keepsTheOrderWhateverTheOrderOfAdding() {
+        // layers of stats each reading two stats of the layer below, added in a shuffled order
+        List<String> exprs = new ArrayList<>();
+        for (int layer = 1; layer < 6; layer++) {
+            for (int i = 0; i < 8; i++) {
+                exprs.add("s" + layer + "_" + i + " = s" + (layer - 1) + "_" + i + " + s" + (layer - 1) + "_" + ((i + 3) % 8));
+            }
+        }
+        Collections.shuffle(exprs, new Random(42));
+
+        DerivedStatGraph graph = new DerivedStatGraph();
+        exprs.forEach(expr -> graph.add(evaluator(expr)));
+
+        List<ExpressionStatId> order = graph.getTopologicalOrder();
+        assertEquals(40, order.size());
+        for (int layer = 2; layer < 6; layer++) {
+            for (int i = 0; i < 8; i++) {
+                int position = order.indexOf(statId("s" + layer + "_" + i));
+                assertTrue(order.indexOf(statId("s" + (layer - 1) + "_" + i)) < position);
+                assertTrue(order.indexOf(statId("s" + (layer - 1) + "_" + ((i + 3) % 8))) < position);
+            }
+        }
+
+        // s0_0 is read by s1_0 and s1_5, and each layer up adds one more stat
+        assertEquals(2 + 3 + 4 + 5 + 6, graph.getDirty(Collections.singleton(statId("s0_0"))).size());
+
+        try {
+            graph.add(evaluator("s0_0 = s5_0 + 1"));
+        } catch (IllegalArgumentException e) {
+            assertEquals(order, graph.getTopologicalOrder());
+            return;
+        }
+        throw new AssertionError("cycle wasn't detected");
+    }
+
+    @Test
+    public void rejectsSelfReference() {
+        DerivedStatGraph graph = new DerivedStatGraph();
+
+        thrown.expect(IllegalArgumentException.class);
+        graph.add(evaluator("a = a + 1"));
+    }
+
+    @Test
+    public void rejectsDuplicateDerivedStats() {
+        DerivedStatGraph graph = new DerivedStatGraph();
+        graph.add(evaluator("a = b + 1"));
+
+        thrown.expect(IllegalArgumentException.class);
+        graph.add(evaluator("a = c + 1"));
+    }
+
+    private static DerivedExpressionEvaluator evaluator(String expr) {
+        return DerivedExpressionEvaluator.build(expr, DUMMY_CATEGORY);
+    }
+}
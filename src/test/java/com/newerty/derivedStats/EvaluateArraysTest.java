@@ -0,0 +1,112 @@
+package com.newerty.derivedStats;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static com.newerty.derivedStats.TestHelpers.statId;
+import static org.junit.Assert.assertEquals;
+
+public class EvaluateArraysTest {
+
+    public final static String DUMMY_CATEGORY = "dummy";
+
+    private static final ExpressionStatId KILLS = statId("kills", "*");
+    private static final ExpressionStatId SHOTS = statId("shots", "*");
+    private static final ExpressionStatId NUKE_KILLS = statId("kills", "nuke");
+    private static final ExpressionStatId GAMES = new ExpressionStatId("games", DUMMY_CATEGORY, null);
+
+    @Test
+    public void matchesEvaluateList() {
+        String[] expressions = {
+                "foo = SUM(kills{map:\"*\"})",
+                "foo = AVG(kills{map:\"*\"}, games) / MAX(shots{map:\"*\"}, 1)",
+                "foo = MIN(kills{map:\"*\"}, shots{map:\"*\"}) - SUM(games, kills{map:\"*\"}) * games",
+                "foo = games > 2 ? SUM(shots{map:\"*\"}) : AVG(kills{map:\"*\"})",
+                "foo = kills{map:\"nuke\"} + games"
+        };
+        Random random = new Random(18);
+
+        for (String expr : expressions) {
+            for (EvaluationMode mode : EvaluationMode.values()) {
+                DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build(expr, DUMMY_CATEGORY, mode);
+                for (int i = 0; i < 30; i++) {
+                    Map<ExpressionStatId, double[]> arrays = new HashMap<>();
+                    arrays.put(KILLS, values(random, random.nextInt(6)));
+                    arrays.put(SHOTS, values(random, random.nextInt(6)));
+                    arrays.put(GAMES, values(random, 1 + random.nextInt(2)));
+                    if (random.nextBoolean()) {
+                        arrays.put(NUKE_KILLS, values(random, 1));
+                    }
+
+                    double expected = evaluator.evaluateList(lists(arrays));
+                    assertEquals(expr + " " + mode, expected, evaluator.evaluateArrays(arrays), 0);
+                    assertEquals(expr + " " + mode, expected, evaluator.evaluateBuffers(directBuffers(arrays)), 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void readsBuffersFromPositionToLimit() {
+        DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build(
+                "foo = SUM(kills{map:\"*\"}) + games", DUMMY_CATEGORY, EvaluationMode.COMPILED);
+        DoubleBuffer kills = DoubleBuffer.wrap(new double[]{100, 1, 2, 3, 100});
+        kills.position(1).limit(4);
+
+        assertEquals(6 + 7, evaluator.evaluateBuffers(ImmutableMap.of(KILLS, kills, GAMES, DoubleBuffer.wrap(new double[]{7}))), 0);
+        assertEquals(1, kills.position());
+        assertEquals(4, kills.limit());
+    }
+
+    @Test
+    public void evaluatesPlaceholderExpressions() throws Exception {
+        DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build(
+                "foo{map:\"*\"} = kills{map:\"*\"} / SUM(shots{map:\"*\"})", DUMMY_CATEGORY);
+        Map<ExpressionStatId, double[]> arrays = ImmutableMap.of(KILLS, new double[]{3}, SHOTS, new double[]{4});
+
+        assertEquals(evaluator.evaluateList(lists(arrays)), evaluator.evaluateArrays(arrays), 0);
+        assertEquals(0.75, evaluator.evaluateArrays(arrays), 0);
+
+        Exception error = TestHelpers.expectException(() -> evaluator.evaluateArrays(ImmutableMap.of(KILLS, new double[]{3, 4})));
+        TestHelpers.checkError(IllegalArgumentException.class.getName(), "exactly one element", error, false);
+    }
+
+    // small integers, so sums are exact whatever order the values are added in
+    private static double[] values(Random random, int count) {
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = random.nextInt(20) - 5;
+        }
+        return values;
+    }
+
+    private static Map<ExpressionStatId, List<Double>> lists(Map<ExpressionStatId, double[]> arrays) {
+        Map<ExpressionStatId, List<Double>> lists = new HashMap<>();
+        arrays.forEach((statId, values) -> {
+            List<Double> list = new ArrayList<>();
+            for (double value : values) {
+                list.add(value);
+            }
+            lists.put(statId, list);
+        });
+        return lists;
+    }
+
+    private static Map<ExpressionStatId, DoubleBuffer> directBuffers(Map<ExpressionStatId, double[]> arrays) {
+        Map<ExpressionStatId, DoubleBuffer> buffers = new HashMap<>();
+        arrays.forEach((statId, values) -> {
+            DoubleBuffer buffer = ByteBuffer.allocateDirect(values.length * Double.BYTES).asDoubleBuffer();
+            buffer.put(values).flip();
+            buffers.put(statId, buffer);
+        });
+        return buffers;
+    }
+}
@@ -0,0 +1,114 @@
+package com.newerty.derivedStats;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static com.newerty.derivedStats.TestHelpers.statId;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EvaluatePlaceholdersTest {
+
+    public final static String DUMMY_CATEGORY = "dummy";
+
+    @Test
+    public void matchesEvaluatingEachBinding() {
+        String[] expressions = {
+                "foo{map:\"*\"} = kills{map:\"*\"} / shots{map:\"*\"}",
+                "foo{map:\"*\"} = SUM(kills{map:\"*\"}, games) > 10 ? AVG(shots{map:\"*\"}, 2) : -kills{map:\"*\"}",
+                "foo{map:\"*\"} = kills{map:\"*\"} && (shots{map:\"*\"} || catB.kills{map:\"*\"}) + MIN(games)"
+        };
+        Random random = new Random(19);
+
+        Map<ExpressionStatId, Double> values = new HashMap<>();
+        values.put(statId("games"), 7d);
+        values.put(statId("kills"), 1000d);
+        values.put(new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("weapon", "awp")), 1000d);
+        Set<String> maps = new HashSet<>();
+        for (int i = 0; i < 300; i++) {
+            String map = "map_" + i;
+            // leave some values out to exercise the default of 0
+            if (random.nextInt(5) > 0) {
+                values.put(statId("kills", map), (double) random.nextInt(4));
+                maps.add(map);
+            }
+            if (random.nextInt(5) > 0) {
+                values.put(statId("shots", map), (double) random.nextInt(4));
+                maps.add(map);
+            }
+        }
+
+        for (String expr : expressions) {
+            for (EvaluationMode mode : EvaluationMode.values()) {
+                DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build(expr, DUMMY_CATEGORY, mode);
+                PlaceholderResults results = evaluator.evaluatePlaceholders(values);
+
+                assertEquals(expr + " " + mode, maps.size(), results.size());
+                for (int i = 0; i < results.size(); i++) {
+                    Map<String, String> binding = results.getDimensions(i);
+                    assertTrue(maps.contains(binding.get("map")));
+                    assertEquals(new ExpressionStatId("foo", DUMMY_CATEGORY, binding), results.getStatId(i));
+
+                    long expected = Double.doubleToLongBits(evaluator.evaluate(values, binding));
+                    assertEquals(expr + " " + mode + " " + binding, expected, Double.doubleToLongBits(results.getValue(i)));
+                    assertEquals(expected, Double.doubleToLongBits(results.getValue(statId("foo", binding.get("map")))));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void onlyBindsTheDerivedStatIdsDimensions() {
+        DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build(
+                "foo{map:\"*\", mode:\"ranked\"} = kills{map:\"*\", mode:\"*\"} * 2", DUMMY_CATEGORY, EvaluationMode.COMPILED);
+        PlaceholderResults results = evaluator.evaluatePlaceholders(ImmutableMap.of(
+                new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", "nuke", "mode", "ranked")), 3d,
+                new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", "nuke", "mode", "casual")), 5d,
+                statId("kills", "dust2"), 7d));
+
+        assertEquals(1, results.size());
+        ExpressionStatId nuke = new ExpressionStatId("foo", DUMMY_CATEGORY, ImmutableMap.of("map", "nuke", "mode", "ranked"));
+        assertEquals(6d, results.getValue(nuke), 0);
+
+        assertFalse(results.contains(statId("foo", "dust2")));
+        assertEquals(Double.NaN, results.getValue(statId("foo", "dust2")), 0);
+        assertFalse(results.contains(new ExpressionStatId("never_interned", DUMMY_CATEGORY, null)));
+    }
+
+    @Test
+    public void callersPlaceholdersAreNotInterned() {
+        for (EvaluationMode mode : EvaluationMode.values()) {
+            DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build(
+                    "foo{map:\"*\"} = kills{map:\"*\"} / SUM(shots{map:\"*\"})", DUMMY_CATEGORY, mode);
+            Map<ExpressionStatId, Double> values = new HashMap<>();
+            StatValueProvider provider = StatValueProvider.of(values);
+            assertEquals(0d / 0d, evaluator.evaluate(values), 0d);
+            assertEquals(0d / 0d, evaluator.evaluate(provider), 0d);
+
+            int size = ExpressionStatIdRegistry.INSTANCE.size();
+            for (int i = 0; i < 1000; i++) {
+                String map = "leak_" + mode + "_" + i;
+                values.put(statId("kills", map), 3d);
+                values.put(statId("shots", map), 2d);
+                Map<String, String> binding = ImmutableMap.of("map", map);
+                assertEquals(1.5, evaluator.evaluate(values, binding), 0d);
+                assertEquals(1.5, evaluator.evaluate(provider, binding), 0d);
+            }
+            assertEquals(mode.name(), size, ExpressionStatIdRegistry.INSTANCE.size());
+        }
+    }
+
+    @Test
+    public void rejectsExpressionsWithoutPlaceholders() throws Exception {
+        DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build("foo = SUM(kills{map:\"*\"})", DUMMY_CATEGORY);
+        Exception error = TestHelpers.expectException(() -> evaluator.evaluatePlaceholders(new HashMap<>()));
+        TestHelpers.checkError(UnsupportedOperationException.class.getName(), "Only placeholder expressions", error, false);
+    }
+}
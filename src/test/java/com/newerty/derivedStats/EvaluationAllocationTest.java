@@ -0,0 +1,159 @@
+package com.newerty.derivedStats;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+
+import static com.newerty.derivedStats.TestHelpers.statId;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class EvaluationAllocationTest {
+
+    public final static String DUMMY_CATEGORY = "dummy";
+
+    private static final String[] EXPRESSIONS = {
+            "foo = kills / shots",
+            "foo = games > 10 ? kills / (deaths + 1) : -kills",
+            "foo = (kills >= shots) || (deaths == 0) && games != 3",
+            "foo = SUM(kills, MAX(shots, deaths, AVG(games, 2))) / MIN(kills, -shots)"
+    };
+
+    private static final int WARMUP = 20_000;
+    private static final int ITERATIONS = 100_000;
+    // room for whatever reading the counter itself allocates, far less than a byte per evaluation
+    private static final long MAX_BYTES = 1024;
+
+    private com.sun.management.ThreadMXBean threads;
+
+    @Before
+    public void setUp() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void slotEvaluationDoesNotAllocate() {
+        for (String expr : EXPRESSIONS) {
+            for (EvaluationMode mode : EvaluationMode.values()) {
+                DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build(expr, DUMMY_CATEGORY, mode);
+                double[] slots = evaluator.getBinder().bind(values());
+
+                double expected = evaluator.evaluate(values());
+                assertEquals(expected, evaluator.evaluate(slots), 0);
+                assertNoAllocation(expr + " " + mode, () -> evaluator.evaluate(slots));
+            }
+        }
+    }
+
+    @Test
+    public void compiledMapAndProviderEvaluationDoNotAllocate() {
+        Map<ExpressionStatId, Double> values = values();
+        StatValueProvider provider = statId -> {
+            Double value = values.get(statId);
+            return (value == null) ? 0d : value;
+        };
+
+        for (String expr : EXPRESSIONS) {
+            for (EvaluationMode mode : new EvaluationMode[]{EvaluationMode.COMPILED, EvaluationMode.BYTECODE}) {
+                DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build(expr, DUMMY_CATEGORY, mode);
+                assertNoAllocation(expr + " " + mode, () -> evaluator.evaluate(values));
+                assertNoAllocation(expr + " " + mode, () -> evaluator.evaluate(provider));
+            }
+        }
+    }
+
+    @Test
+    public void wildcardAggregatesDoNotAllocate() {
+        Map<ExpressionStatId, Double> values = wildcardValues();
+        StatValueIndex index = StatValueIndex.of(values);
+        StatValueProvider mapProvider = StatValueProvider.of(values);
+        StatValueProvider indexProvider = StatValueProvider.of(index);
+        String expr = "foo = SUM(kills{map:\"*\"}) / MAX(deaths{map:\"*\"}) + AVG(kills{map:\"*\"}, games)";
+
+        for (EvaluationMode mode : new EvaluationMode[]{EvaluationMode.COMPILED, EvaluationMode.BYTECODE}) {
+            DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build(expr, DUMMY_CATEGORY, mode);
+            assertEquals(evaluator.evaluate(values), evaluator.evaluate(index), 0);
+            assertNoAllocation("map " + mode, () -> evaluator.evaluate(values));
+            assertNoAllocation("index " + mode, () -> evaluator.evaluate(index));
+            assertNoAllocation("map provider " + mode, () -> evaluator.evaluate(mapProvider));
+            assertNoAllocation("index provider " + mode, () -> evaluator.evaluate(indexProvider));
+        }
+    }
+
+    @Test
+    public void placeholderLookupsDoNotAllocate() {
+        Map<ExpressionStatId, Double> values = wildcardValues();
+        StatValueProvider provider = StatValueProvider.of(values);
+        Map<String, String> placeholders = ImmutableMap.of("map", "nuke");
+        String expr = "foo{map:\"*\"} = kills{map:\"*\"} / (deaths{map:\"*\"} + 1) + SUM(kills{map:\"*\"}, games)";
+
+        for (EvaluationMode mode : new EvaluationMode[]{EvaluationMode.COMPILED, EvaluationMode.BYTECODE}) {
+            DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build(expr, DUMMY_CATEGORY, mode);
+            assertEquals(7 / 3d + 7 + 11, evaluator.evaluate(values, placeholders), 1e-12);
+            assertNoAllocation("map " + mode, () -> evaluator.evaluate(values, placeholders));
+            assertNoAllocation("provider " + mode, () -> evaluator.evaluate(provider, placeholders));
+            // the derived statId's own dimensions are the placeholders by default
+            assertNoAllocation("default " + mode, () -> evaluator.evaluate(values));
+        }
+    }
+
+    @Test
+    public void multiExpressionEvaluationDoesNotAllocate() {
+        MultiExpressionEvaluator multi = MultiExpressionEvaluator.build(ImmutableList.of(
+                "a = kills / shots + 1", "b = (kills / shots) * deaths", "c = SUM(kills, games) > 3 ? deaths : 0"),
+                DUMMY_CATEGORY);
+        double[] slots = multi.getBinder().bind(values());
+        double[] results = new double[3];
+
+        assertNoAllocation("multi", () -> {
+            multi.evaluate(slots, results);
+            return results[0];
+        });
+    }
+
+    private void assertNoAllocation(String message, DoubleSupplier evaluation) {
+        double sink = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sink += evaluation.getAsDouble();
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += evaluation.getAsDouble();
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertTrue(message + " allocated " + allocated + " bytes over " + ITERATIONS + " evaluations (" + sink + ")",
+                allocated <= MAX_BYTES);
+    }
+
+    private static Map<ExpressionStatId, Double> values() {
+        Map<ExpressionStatId, Double> values = new HashMap<>();
+        values.put(statId("kills"), 12d);
+        values.put(statId("shots"), 40d);
+        values.put(statId("deaths"), 3d);
+        values.put(statId("games"), 11d);
+        return values;
+    }
+
+    private static Map<ExpressionStatId, Double> wildcardValues() {
+        Map<ExpressionStatId, Double> values = values();
+        String[] maps = {"dust2", "nuke", "inferno", "mirage"};
+        for (int i = 0; i < maps.length; i++) {
+            values.put(new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", maps[i])), i * 5d + 2);
+            values.put(new ExpressionStatId("deaths", DUMMY_CATEGORY, ImmutableMap.of("map", maps[i])), i + 1d);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,201 @@
+package com.newerty.derivedStats;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.newerty.derivedStats.TestHelpers.checkError;
+import static com.newerty.derivedStats.TestHelpers.expectException;
+import static com.newerty.derivedStats.TestHelpers.statId;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EvaluationMetricsTest {
+
+    public final static String DUMMY_CATEGORY = "dummy";
+
+    @After
+    public void uninstall() {
+        DerivedExpressionEvaluator.setMetrics(EvaluationMetrics.NOOP);
+    }
+
+    @Test
+    public void countsEvaluationsAndNonFiniteResults() {
+        StripedEvaluationMetrics metrics = StripedEvaluationMetrics.build();
+        DerivedExpressionEvaluator.setMetrics(metrics);
+
+        for (EvaluationMode mode : EvaluationMode.values()) {
+            String name = "ratio_" + mode.name().toLowerCase();
+            DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build(name + " = kills / shots", DUMMY_CATEGORY, mode);
+
+            evaluator.evaluate(values(3, 2));
+            evaluator.evaluate(StatValueProvider.of(values(0, 0)));
+            evaluator.evaluate(new double[]{1, 0});
+            evaluator.evaluateList(ImmutableMap.of(statId("kills"), listOf(-1d), statId("shots"), listOf(0d)));
+            evaluator.evaluateArrays(ImmutableMap.of(statId("kills"), new double[]{4}, statId("shots"), new double[]{2}));
+
+            StripedEvaluationMetrics.Stats stats = metrics.getStats(evaluator.getStatIds().getDerivedStatId());
+            assertEquals(1, stats.getBuildCount());
+            assertTrue(stats.getBuildNanos() > 0);
+            assertEquals(5, stats.getEvaluationCount());
+            assertEquals(1, stats.getNaNCount());
+            assertEquals(2, stats.getInfinityCount());
+            assertEquals(0.2, stats.getNaNRate(), 1e-12);
+            assertEquals(0.4, stats.getInfinityRate(), 1e-12);
+            assertEquals(0, stats.getWildcardCount());
+        }
+        assertEquals(EvaluationMode.values().length, metrics.getAll().size());
+    }
+
+    @Test
+    public void timesSampledEvaluations() {
+        StripedEvaluationMetrics metrics = StripedEvaluationMetrics.build(1);
+        DerivedExpressionEvaluator.setMetrics(metrics);
+        DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build("timed = kills * 2 + shots", DUMMY_CATEGORY, EvaluationMode.COMPILED);
+        for (int i = 0; i < 1000; i++) {
+            evaluator.evaluate(values(i, 1));
+        }
+
+        StripedEvaluationMetrics.Stats stats = metrics.getStats(evaluator.getStatIds().getDerivedStatId());
+        long[] histogram = stats.getLatencyHistogram();
+        assertEquals(StripedEvaluationMetrics.BUCKETS, histogram.length);
+        long timed = 0;
+        for (long count : histogram) {
+            timed += count;
+        }
+        assertEquals(1000, timed);
+        assertEquals(1000, stats.getTimedCount());
+        assertTrue(stats.getMeanNanos() >= 0);
+
+        // sampling times some evaluations but not all of them
+        StripedEvaluationMetrics sampled = StripedEvaluationMetrics.build(4);
+        EvaluationMetrics.Recorder recorder = sampled.recorder(statId("sampled"));
+        int untimed = 0;
+        for (int i = 0; i < 1000; i++) {
+            long start = recorder.start();
+            if (start == EvaluationMetrics.Recorder.UNTIMED) {
+                untimed++;
+            }
+            recorder.evaluated(start, i);
+        }
+        assertTrue(untimed > 500 && untimed < 1000);
+        assertEquals(1000 - untimed, sampled.getStats(statId("sampled")).getTimedCount());
+        assertEquals(1000, sampled.getStats(statId("sampled")).getEvaluationCount());
+    }
+
+    @Test
+    public void bucketsArePowersOfTwo() {
+        assertEquals(0, StripedEvaluationMetrics.bucket(0));
+        assertEquals(1, StripedEvaluationMetrics.bucket(1));
+        assertEquals(2, StripedEvaluationMetrics.bucket(2));
+        assertEquals(2, StripedEvaluationMetrics.bucket(3));
+        assertEquals(11, StripedEvaluationMetrics.bucket(1024));
+        assertEquals(StripedEvaluationMetrics.BUCKETS - 1, StripedEvaluationMetrics.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void recordsWildcardFanIn() {
+        StripedEvaluationMetrics metrics = StripedEvaluationMetrics.build();
+        DerivedExpressionEvaluator.setMetrics(metrics);
+        DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build(
+                "spread = SUM(kills{map:\"*\"}) + MAX(deaths{map:\"*\"})", DUMMY_CATEGORY, EvaluationMode.COMPILED);
+
+        Map<ExpressionStatId, Double> values = ImmutableMap.of(
+                statId("kills", "a"), 1d, statId("kills", "b"), 2d, statId("kills", "c"), 3d,
+                statId("deaths", "a"), 4d, statId("deaths", "b"), 5d);
+        assertEquals(11d, evaluator.evaluate(values), 0d);
+        assertEquals(11d, evaluator.evaluate(StatValueProvider.of(values)), 0d);
+
+        StripedEvaluationMetrics.Stats stats = metrics.getStats(evaluator.getStatIds().getDerivedStatId());
+        assertEquals(2, stats.getEvaluationCount());
+        assertEquals(4, stats.getWildcardCount());
+        assertEquals(10, stats.getWildcardMatches());
+        long[] fanIn = new long[StripedEvaluationMetrics.BUCKETS];
+        // 2 and 3 matches both fall in the bucket from 2 up to 4
+        fanIn[2] = 4;
+        assertEquals(Arrays.toString(fanIn), Arrays.toString(stats.getFanInHistogram()));
+    }
+
+    @Test
+    public void countsConcurrentEvaluations() throws Exception {
+        StripedEvaluationMetrics metrics = StripedEvaluationMetrics.build();
+        DerivedExpressionEvaluator.setMetrics(metrics);
+        DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build("shared = kills / shots", DUMMY_CATEGORY, EvaluationMode.COMPILED);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 10000; i++) {
+                        evaluator.evaluate(new double[]{i, i % 2});
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        StripedEvaluationMetrics.Stats stats = metrics.getStats(evaluator.getStatIds().getDerivedStatId());
+        assertEquals(40000, stats.getEvaluationCount());
+        // i / 0 is NaN for i = 0 and infinite otherwise, half of the evaluations divide by 0
+        assertEquals(4, stats.getNaNCount());
+        assertEquals(19996, stats.getInfinityCount());
+    }
+
+    @Test
+    public void recordsDecodedEvaluatorsAndNothingByDefault() {
+        assertSame(EvaluationMetrics.NOOP, DerivedExpressionEvaluator.getMetrics());
+        DerivedExpressionEvaluator before = DerivedExpressionEvaluator.build("quiet = kills + shots", DUMMY_CATEGORY, EvaluationMode.COMPILED);
+
+        StripedEvaluationMetrics metrics = StripedEvaluationMetrics.build();
+        DerivedExpressionEvaluator.setMetrics(metrics);
+        // built before the metrics were installed, so it keeps recording nothing
+        before.evaluate(values(1, 2));
+        assertNull(metrics.getStats(before.getStatIds().getDerivedStatId()));
+
+        DerivedExpressionEvaluator decoded = DerivedExpressionEvaluator.fromBytes(before.toBytes(), EvaluationMode.BYTECODE);
+        decoded.evaluate(values(1, 2));
+        StripedEvaluationMetrics.Stats stats = metrics.getStats(decoded.getStatIds().getDerivedStatId());
+        assertEquals(1, stats.getBuildCount());
+        assertEquals(1, stats.getEvaluationCount());
+    }
+
+    @Test
+    public void rejectsBadArguments() throws Exception {
+        Exception error = expectException(() -> {
+            DerivedExpressionEvaluator.setMetrics(null);
+            return null;
+        });
+        checkError("java.lang.IllegalArgumentException", "Metrics are required", error, false);
+
+        error = expectException(() -> StripedEvaluationMetrics.build(3));
+        checkError("java.lang.IllegalArgumentException", "Timing interval must be a positive power of two", error, false);
+
+        error = expectException(() -> StripedEvaluationMetrics.build(0));
+        checkError("java.lang.IllegalArgumentException", "Timing interval must be a positive power of two", error, false);
+    }
+
+    private static Map<ExpressionStatId, Double> values(double kills, double shots) {
+        return ImmutableMap.of(statId("kills"), kills, statId("shots"), shots);
+    }
+
+    private static List<Double> listOf(double value) {
+        List<Double> list = new ArrayList<>();
+        list.add(value);
+        return list;
+    }
+}
@@ -0,0 +1,67 @@
+package com.newerty.derivedStats;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EvaluatorCacheTest {
+
+    public final static String DUMMY_CATEGORY = "dummy";
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Test
+    public void repeatedBuildsHit() {
+        EvaluatorCache cache = new EvaluatorCache(100);
+
+        DerivedExpressionEvaluator first = cache.build("foo = 1 + 2", DUMMY_CATEGORY);
+        DerivedExpressionEvaluator second = cache.build("foo = 1 + 2", DUMMY_CATEGORY);
+        assertSame(first, second);
+        assertEquals(3, second.evaluate(), .1);
+
+        // the category and the mode are part of the key
+        assertNotSame(first, cache.build("foo = 1 + 2", "other"));
+        assertNotSame(first, cache.build("foo = 1 + 2", DUMMY_CATEGORY, EvaluationMode.COMPILED));
+
+        assertEquals(1, cache.hitCount());
+        assertEquals(3, cache.missCount());
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void boundedBySize() {
+        EvaluatorCache cache = new EvaluatorCache(2);
+        for (int i = 0; i < 10; i++) {
+            cache.build("foo = " + i, DUMMY_CATEGORY);
+        }
+
+        assertTrue(cache.size() <= 2);
+        assertEquals(10 - cache.size(), cache.evictionCount());
+    }
+
+    @Test
+    public void invalidExpressionsThrowAndArentCached() {
+        EvaluatorCache cache = new EvaluatorCache(10);
+
+        thrown.expect(ExpressionEvaluationException.class);
+        try {
+            cache.build("foo == bar", DUMMY_CATEGORY);
+        } finally {
+            assertEquals(0, cache.size());
+        }
+    }
+
+    @Test
+    public void missingCategoryFails() {
+        EvaluatorCache cache = new EvaluatorCache(10);
+
+        thrown.expect(IllegalArgumentException.class);
+        cache.build("foo = 1", null);
+    }
+}
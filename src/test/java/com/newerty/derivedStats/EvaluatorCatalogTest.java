@@ -0,0 +1,234 @@
+package com.newerty.derivedStats;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EvaluatorCatalogTest {
+
+    public final static String DUMMY_CATEGORY = "dummy";
+
+    private static final String[] EXPRESSIONS = {
+            "kill_ratio = kills / shots",
+            "ternary = games > 10 ? kills / (deaths + 1) : -kills + SUM(kills, shots, MAX(deaths, 1)) / 2",
+            "wildcards = SUM(kills{map:\"*\"}) / MAX(AVG(shots{map:\"*\"}, 2), 1) - MIN(catB.kills, 350.25)",
+            "foo{map:\"*\"} = kills{map:\"*\"} / (shots{map:\"*\"} + 1) * 100",
+            "logic = kills && (shots || deaths) >= 1 == (games != Infinity)",
+            "dimensions = damage{weapon:\"awp\", map:\"d\u00e9_dust\"} <= 4 ? 1 : NaN"
+    };
+
+    @Test
+    public void restoresEvaluatorsThatEvaluateTheSame() {
+        Random random = new Random(23);
+        for (DerivedExpressionEvaluator built : evaluators()) {
+            for (EvaluationMode mode : new EvaluationMode[]{EvaluationMode.COMPILED, EvaluationMode.BYTECODE}) {
+                DerivedExpressionEvaluator restored = DerivedExpressionEvaluator.fromBytes(built.toBytes(), mode);
+                assertSameEvaluator(built, restored, random);
+            }
+        }
+    }
+
+    @Test
+    public void serializesClosureTreeEvaluatorsAsCompiled() {
+        DerivedExpressionEvaluator built = DerivedExpressionEvaluator.build(EXPRESSIONS[2], DUMMY_CATEGORY, EvaluationMode.CLOSURE_TREE);
+        assertSameEvaluator(built, DerivedExpressionEvaluator.fromBytes(built.toBytes(), EvaluationMode.COMPILED), new Random(24));
+    }
+
+    @Test
+    public void rejectsBadBytes() throws Exception {
+        byte[] bytes = DerivedExpressionEvaluator.build(EXPRESSIONS[1], DUMMY_CATEGORY, EvaluationMode.COMPILED).toBytes();
+
+        Exception error = TestHelpers.expectException(() -> DerivedExpressionEvaluator.fromBytes(new byte[]{1, 2, 3}, EvaluationMode.COMPILED));
+        TestHelpers.checkError(IllegalArgumentException.class.getName(), "Not a serialized evaluator", error, false);
+
+        byte[] newer = bytes.clone();
+        newer[7] = 2;
+        error = TestHelpers.expectException(() -> DerivedExpressionEvaluator.fromBytes(newer, EvaluationMode.COMPILED));
+        TestHelpers.checkError(IllegalArgumentException.class.getName(), "Unsupported serialized evaluator version 2", error, false);
+
+        error = TestHelpers.expectException(() -> DerivedExpressionEvaluator.fromBytes(bytes, EvaluationMode.CLOSURE_TREE));
+        TestHelpers.checkError(IllegalArgumentException.class.getName(), "Serialized evaluators run in COMPILED or BYTECODE", error, false);
+
+        // every truncation fails cleanly
+        for (int length = 8; length < bytes.length; length++) {
+            byte[] truncated = Arrays.copyOf(bytes, length);
+            error = TestHelpers.expectException(() -> DerivedExpressionEvaluator.fromBytes(truncated, EvaluationMode.COMPILED));
+            TestHelpers.checkError(IllegalArgumentException.class.getName(), "Corrupt serialized evaluator", error, false);
+        }
+    }
+
+    @Test
+    public void rejectsCodeBreakingItsLimits() throws Exception {
+        DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build(EXPRESSIONS[1], DUMMY_CATEGORY, EvaluationMode.COMPILED);
+        ExpressionProgram program = evaluator.getProgram();
+        assertSameEvaluator(evaluator, reencoded(evaluator, program.code, program.maxStack, program.maxAggregateDepth), new Random(26));
+
+        checkCorrupt(evaluator, program.code, program.maxStack - 1, program.maxAggregateDepth, "stack depth");
+        checkCorrupt(evaluator, program.code, program.maxStack, program.maxAggregateDepth - 1, "aggregate depth");
+
+        int jump = indexOf(program.code, ExpressionProgram.JUMP);
+        int[] backward = program.code.clone();
+        backward[jump + 1] = 0;
+        checkCorrupt(evaluator, backward, program.maxStack, program.maxAggregateDepth, "jump back");
+
+        // the end of the ternary's true branch jumping into the operand of the first instruction of its else branch
+        int elseStart = program.code[indexOf(program.code, ExpressionProgram.JUMP_IF_NOT_POSITIVE) + 1];
+        assertEquals(1, ExpressionProgram.operandCount(program.code[elseStart]));
+        int[] intoOperand = program.code.clone();
+        intoOperand[jump + 1] = elseStart + 1;
+        checkCorrupt(evaluator, intoOperand, program.maxStack, program.maxAggregateDepth, "jump into the operand");
+    }
+
+    @Test
+    public void mapsCatalogAndLoadsLazily() throws Exception {
+        List<DerivedExpressionEvaluator> evaluators = new ArrayList<>(evaluators());
+        for (int i = 0; i < 500; i++) {
+            evaluators.add(DerivedExpressionEvaluator.build("r" + i + " = kills_" + i + " * " + i + " + SUM(hits{map:\"*\"})",
+                    DUMMY_CATEGORY, EvaluationMode.COMPILED));
+        }
+
+        Path file = Files.createTempFile("evaluators", ".catalog");
+        try {
+            EvaluatorCatalog.write(file, evaluators);
+            EvaluatorCatalog catalog = EvaluatorCatalog.open(file, EvaluationMode.COMPILED);
+            assertEquals(evaluators.size(), catalog.size());
+            assertEquals(0, catalog.getLoadedCount());
+
+            Random random = new Random(25);
+            DerivedExpressionEvaluator r42 = catalog.find(new ExpressionStatId("r42", DUMMY_CATEGORY, null));
+            assertEquals(1, catalog.getLoadedCount());
+            assertSame(r42, catalog.find(new ExpressionStatId("r42", DUMMY_CATEGORY, null)));
+            assertSameEvaluator(evaluators.get(EXPRESSIONS.length + 42), r42, random);
+            assertNull(catalog.find(new ExpressionStatId("r500", DUMMY_CATEGORY, null)));
+
+            List<DerivedExpressionEvaluator> all = catalog.loadAll();
+            assertEquals(evaluators.size(), catalog.getLoadedCount());
+            for (int i = 0; i < evaluators.size(); i++) {
+                assertSame(all.get(i), catalog.find(evaluators.get(i).getStatIds().getDerivedStatId()));
+                assertSameEvaluator(evaluators.get(i), all.get(i), random);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void rejectsBadCatalogs() throws Exception {
+        DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build(EXPRESSIONS[0], DUMMY_CATEGORY, EvaluationMode.COMPILED);
+        Path file = Files.createTempFile("evaluators", ".catalog");
+        try {
+            Exception error = TestHelpers.expectException(() -> {
+                EvaluatorCatalog.write(file, Arrays.asList(evaluator, evaluator));
+                return null;
+            });
+            TestHelpers.checkError(IllegalArgumentException.class.getName(), "is defined more than once", error, false);
+
+            Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16});
+            error = TestHelpers.expectException(() -> EvaluatorCatalog.open(file, EvaluationMode.COMPILED));
+            assertTrue(error instanceof IOException);
+            assertTrue(error.getMessage().startsWith("Not an evaluator catalog"));
+
+            // one evaluator: a 16 byte header, a table of 4 slots, its hash and its start and end offsets
+            EvaluatorCatalog.write(file, Arrays.asList(evaluator));
+            byte[] bytes = Files.readAllBytes(file);
+            ByteBuffer full = ByteBuffer.wrap(bytes.clone());
+            for (int slot = 0; slot < 4; slot++) {
+                full.putInt(16 + 4 * slot, 1);
+            }
+            checkCorruptCatalog(file, full.array(), "no empty table slot");
+
+            ByteBuffer unknown = ByteBuffer.wrap(bytes.clone());
+            unknown.putInt(16, 2);
+            checkCorruptCatalog(file, unknown.array(), "names evaluator 2");
+
+            ByteBuffer pastEnd = ByteBuffer.wrap(bytes.clone());
+            pastEnd.putInt(40, bytes.length + 1);
+            checkCorruptCatalog(file, pastEnd.array(), "offset " + (bytes.length + 1));
+
+            ByteBuffer notPowerOfTwo = ByteBuffer.wrap(bytes.clone());
+            notPowerOfTwo.putInt(12, 3);
+            checkCorruptCatalog(file, notPowerOfTwo.array(), "Corrupt evaluator catalog header");
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    // the evaluator serialized with other code and limits, read back
+    private static DerivedExpressionEvaluator reencoded(DerivedExpressionEvaluator evaluator, int[] code, int maxStack,
+                                                        int maxAggregateDepth) {
+        ExpressionProgram program = evaluator.getProgram();
+        DerivedExpressionEvaluator tampered = new DerivedExpressionEvaluator(evaluator.getCategoryId(), evaluator.getStatIds(),
+                evaluator.getTree(), new ExpressionProgram(code, program.constants, program.statIds, maxStack, maxAggregateDepth),
+                EvaluationMode.COMPILED);
+        return DerivedExpressionEvaluator.fromBytes(tampered.toBytes(), EvaluationMode.COMPILED);
+    }
+
+    private static void checkCorrupt(DerivedExpressionEvaluator evaluator, int[] code, int maxStack, int maxAggregateDepth,
+                                     String message) throws Exception {
+        Exception error = TestHelpers.expectException(() -> reencoded(evaluator, code, maxStack, maxAggregateDepth));
+        TestHelpers.checkError(IllegalArgumentException.class.getName(), "Corrupt serialized evaluator: " + message, error, false);
+    }
+
+    private static int indexOf(int[] code, int opcode) {
+        for (int pc = 0; pc < code.length; pc += 1 + ExpressionProgram.operandCount(code[pc])) {
+            if (code[pc] == opcode) {
+                return pc;
+            }
+        }
+        throw new AssertionError("No opcode " + opcode);
+    }
+
+    private static void checkCorruptCatalog(Path file, byte[] bytes, String message) throws Exception {
+        Files.write(file, bytes);
+        Exception error = TestHelpers.expectException(() -> EvaluatorCatalog.open(file, EvaluationMode.COMPILED));
+        assertTrue(error instanceof IOException);
+        assertTrue(error.getMessage(), error.getMessage().contains(message));
+    }
+
+    private static List<DerivedExpressionEvaluator> evaluators() {
+        List<DerivedExpressionEvaluator> evaluators = new ArrayList<>();
+        for (String expr : EXPRESSIONS) {
+            evaluators.add(DerivedExpressionEvaluator.build(expr, DUMMY_CATEGORY, EvaluationMode.COMPILED));
+        }
+        return evaluators;
+    }
+
+    private static void assertSameEvaluator(DerivedExpressionEvaluator expected, DerivedExpressionEvaluator actual, Random random) {
+        assertEquals(expected.getStatIds().getDerivedStatId(), actual.getStatIds().getDerivedStatId());
+        assertEquals(expected.getStatIds().getDependentStatIds(), actual.getStatIds().getDependentStatIds());
+        assertEquals(expected.getTree(), actual.getTree());
+        assertTrue(Arrays.equals(expected.getProgram().code, actual.getProgram().code));
+
+        // the dependent stats, with a few matches for each wildcard
+        Map<ExpressionStatId, Double> values = new HashMap<>();
+        for (ExpressionStatId statId : expected.getStatIds().getDependentStatIds()) {
+            if (statId.isWildcarded()) {
+                for (int i = 0; i < 3; i++) {
+                    Map<String, String> dimensions = new HashMap<>();
+                    statId.getDimensions().forEach((name, value) -> dimensions.put(name, "m" + random.nextInt(5)));
+                    values.put(statId.withDimensions(dimensions), (double) random.nextInt(20));
+                }
+            } else {
+                values.put(statId, (double) random.nextInt(20));
+            }
+        }
+        String message = expected.getStatIds().getDerivedStatId() + " " + values;
+        assertEquals(message, Double.doubleToLongBits(expected.evaluate(values)), Double.doubleToLongBits(actual.evaluate(values)));
+        assertEquals(message, Double.doubleToLongBits(expected.evaluate(StatValueProvider.of(values))),
+                Double.doubleToLongBits(actual.evaluate(StatValueProvider.of(values))));
+    }
+}
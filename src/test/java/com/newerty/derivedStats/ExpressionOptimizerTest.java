@@ -0,0 +1,112 @@
+package com.newerty.derivedStats;
+
+import com.google.common.collect.ImmutableMap;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExpressionOptimizerTest {
+
+    public final static String DUMMY_CATEGORY = "dummy";
+
+    @Test
+    public void foldsConstants() {
+        ExpressionNode node = optimize("foo = (100 / 60) * kills");
+        assertEquals(new ExpressionNode.Binary(ExpressionNode.BinaryOp.MULTIPLY,
+                new ExpressionNode.Constant(100d / 60), statRef("kills")), node);
+
+        assertEquals(new ExpressionNode.Constant(3), optimize("foo = -(-3)"));
+        assertEquals(new ExpressionNode.Constant(6), optimize("foo = SUM(1, 2, MAX(3, -1))"));
+        assertEquals(new ExpressionNode.Constant(Double.NaN), optimize("foo = 1 == NaN"));
+    }
+
+    @Test
+    public void resolvesConstantTernaries() {
+        assertEquals(statRef("kills"), optimize("foo = 2 > 1 ? kills : shots"));
+        assertEquals(statRef("shots"), optimize("foo = NaN ? kills : shots"));
+    }
+
+    @Test
+    public void removesSafeIdentities() {
+        assertEquals(statRef("kills"), optimize("foo = kills * 1"));
+        assertEquals(statRef("kills"), optimize("foo = 1 * kills / 1"));
+        assertEquals(statRef("kills"), optimize("foo = kills - 0"));
+        assertEquals(statRef("kills"), optimize("foo = -(-kills)"));
+        assertEquals(statRef("kills"), optimize("foo = kills + -0.0"));
+
+        // -0 + 0 is +0, so these have to stay
+        assertTrue(optimize("foo = kills + 0") instanceof ExpressionNode.Binary);
+        assertTrue(optimize("foo = 0 + kills") instanceof ExpressionNode.Binary);
+        assertTrue(optimize("foo = kills - -0.0") instanceof ExpressionNode.Binary);
+    }
+
+    @Test
+    public void keepsWildcardsOutOfAggregates() {
+        ExpressionNode.Aggregate node = (ExpressionNode.Aggregate) optimize("foo = SUM(kills{map:\"*\"} * 1)");
+        assertTrue(node.args.get(0) instanceof ExpressionNode.Binary);
+    }
+
+    @Test
+    public void bitIdenticalToUnoptimized() throws Exception {
+        List<String> expressions = new ArrayList<>(TestHelpers.loadFeatureExpressions());
+        expressions.addAll(Arrays.asList(
+                "foo = (100 / 60) * kills + kills * 1 - 0 * shots",
+                "foo = -(-kills) / 1 + (kills - 0) + (kills + -0.0)",
+                "foo = 3 > 2 ? kills / shots : kills",
+                "foo = 1 - 1 ? kills : SUM(kills, 2 * 3, MIN(1, 2))",
+                "foo = SUM(kills{map:\"*\"}, 2 * 1) + MAX(kills{map:\"*\"}) * 1"
+        ));
+
+        List<Map<ExpressionStatId, Double>> valueSets = new ArrayList<>();
+        valueSets.add(Collections.emptyMap());
+        for (double kills : new double[]{-0d, 0d, 3d, Double.NaN, Double.NEGATIVE_INFINITY}) {
+            Map<ExpressionStatId, Double> values = new HashMap<>();
+            values.put(new ExpressionStatId("kills", DUMMY_CATEGORY, null), kills);
+            values.put(new ExpressionStatId("shots", DUMMY_CATEGORY, null), 4d);
+            values.put(new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", "dust2")), kills);
+            values.put(new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", "nuke")), 2d);
+            valueSets.add(values);
+        }
+
+        for (String expr : expressions) {
+            ParseTree tree = parse(expr);
+            EvaluationFunction unoptimized = new DerivedExpressionEvaluatorVisitor(DUMMY_CATEGORY).visit(tree);
+            EvaluationFunction folded = new DerivedExpressionEvaluatorVisitor(DUMMY_CATEGORY, true).visit(tree);
+            ExpressionProgram program = ProgramCompiler.compile(
+                    ExpressionOptimizer.optimize(new ExpressionNodeBuilderVisitor(DUMMY_CATEGORY).visit(tree)));
+
+            for (Map<ExpressionStatId, Double> values : valueSets) {
+                long expected = Double.doubleToLongBits(unoptimized.apply(values, Collections.emptyMap()).getValue());
+                assertEquals(expr + " " + values, expected,
+                        Double.doubleToLongBits(folded.apply(values, Collections.emptyMap()).getValue()));
+                assertEquals(expr + " " + values, expected,
+                        Double.doubleToLongBits(program.execute(values, Collections.emptyMap())));
+            }
+        }
+    }
+
+    private static ExpressionNode optimize(String expr) {
+        return ExpressionOptimizer.optimize(new ExpressionNodeBuilderVisitor(DUMMY_CATEGORY).visit(parse(expr)));
+    }
+
+    private static ExpressionNode statRef(String name) {
+        return new ExpressionNode.StatRef(new ExpressionStatId(name, DUMMY_CATEGORY, null));
+    }
+
+    private static ParseTree parse(String expr) {
+        DerivedExpressionParser parser = new DerivedExpressionParser(
+                new CommonTokenStream(new DerivedExpressionLexer(CharStreams.fromString(expr))));
+        return parser.assignment();
+    }
+}
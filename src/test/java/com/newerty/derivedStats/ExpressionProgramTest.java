@@ -0,0 +1,101 @@
+package com.newerty.derivedStats;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.newerty.derivedStats.TestHelpers.statId;
+import static org.junit.Assert.assertEquals;
+
+public class ExpressionProgramTest {
+
+    public final static String DUMMY_CATEGORY = "dummy";
+
+    private static final String[] EXPRESSIONS = {
+            "foo = 10 + 20 * ( -5 + 15  )",
+            "foo = 1 - (10 - -100)",
+            "foo = -(-0.2)",
+            "foo = 5 > 3 > 2",
+            "foo = (20 >= 10) && (10 < 5)",
+            "foo = (20 <= 10) || (10 > 5)",
+            "foo = 1 == NaN",
+            "foo = NaN != NaN",
+            "foo = Infinity - Infinity",
+            "foo = 99 > 10.0 ? 99 >= 100.0 ? 99 - 100 : 99 : 99 > 0.0 ? 99 : 0.0",
+            "foo = (52.1125 > 11.12) && (52.1125 > -24.0) ? 11.12 >= 1.0? 75.9: 21.0 : 11.12",
+            "foo = SUM(AVG(3.0,4.0,5.0),1.0,2.0)",
+            "foo = MIN(kills, shots, -3) + MAX(kills, shots)",
+            "foo = kills / shots",
+            "foo = games > 10 ? kills / shots : 0",
+            "foo = SUM(kills{map:\"*\"}) / SUM(shots{map:\"*\"}, 1)",
+            "foo = AVG(kills{map:\"*\"}, shots{map:\"*\"}) - MAX((kills{map:\"*\"}))",
+            "foo = MIN(kills{map:\"*\"}) * MAX(+shots{map:\"*\"})",
+            "foo = SUM(kills{map:\"missing\"}, catB.kills)"
+    };
+
+    @Test
+    public void compiledMatchesClosureTree() {
+        for (String expr : EXPRESSIONS) {
+            assertSameResult(expr, values(), Collections.emptyMap());
+        }
+    }
+
+    @Test
+    public void compiledMatchesClosureTreeWithPlaceholders() {
+        String expr = "foo{map:\"*\"} = kills{map:\"*\"} / shots{map:\"*\"} + SUM(kills{map:\"*\"}, 1)";
+        assertSameResult(expr, values(), ImmutableMap.of("map", "dust2"));
+        assertSameResult(expr, values(), ImmutableMap.of("map", "unknown"));
+    }
+
+    @Test
+    public void compiledHandlesEmptyValues() {
+        for (String expr : EXPRESSIONS) {
+            assertSameResult(expr, Collections.emptyMap(), Collections.emptyMap());
+        }
+    }
+
+    @Test
+    public void pooledConstantsAndSlots() {
+        // kills + kills * 2 + 2
+        ExpressionNode kills = new ExpressionNode.StatRef(statId("kills"));
+        ExpressionNode two = new ExpressionNode.Constant(2);
+        ExpressionProgram program = ProgramCompiler.compile(
+                new ExpressionNode.Binary(ExpressionNode.BinaryOp.ADD,
+                        new ExpressionNode.Binary(ExpressionNode.BinaryOp.ADD,
+                                kills,
+                                new ExpressionNode.Binary(ExpressionNode.BinaryOp.MULTIPLY, kills, two)),
+                        two));
+
+        assertEquals(1, program.constants.length);
+        assertEquals(1, program.statIds.length);
+        assertEquals(3, program.maxStack);
+        assertEquals(3.5, program.execute(ImmutableMap.of(statId("kills"), 0.5), Collections.emptyMap()), 1e-9);
+    }
+
+    private static void assertSameResult(String expr,
+                                         Map<ExpressionStatId, Double> values,
+                                         Map<String, String> placeholders) {
+        double expected = DerivedExpressionEvaluator.build(expr, DUMMY_CATEGORY, EvaluationMode.CLOSURE_TREE)
+                .evaluate(values, placeholders);
+        double actual = DerivedExpressionEvaluator.build(expr, DUMMY_CATEGORY, EvaluationMode.COMPILED)
+                .evaluate(values, placeholders);
+        assertEquals(expr, Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+    }
+
+    private static Map<ExpressionStatId, Double> values() {
+        Map<ExpressionStatId, Double> values = new HashMap<>();
+        values.put(statId("kills"), 12d);
+        values.put(statId("shots"), 40d);
+        values.put(statId("games"), 11d);
+        values.put(new ExpressionStatId("kills", "catB", null), 7d);
+        values.put(new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", "dust2")), 0.1);
+        values.put(new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", "inferno")), 0.2);
+        values.put(new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", "nuke")), 1e17);
+        values.put(new ExpressionStatId("shots", DUMMY_CATEGORY, ImmutableMap.of("map", "dust2")), 3d);
+        values.put(new ExpressionStatId("shots", DUMMY_CATEGORY, ImmutableMap.of("map", "inferno")), -0.0);
+        return values;
+    }
+}
@@ -0,0 +1,86 @@
+package com.newerty.derivedStats;
+
+import com.google.common.collect.ImmutableMap;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.newerty.derivedStats.TestHelpers.statId;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ExpressionRendererTest {
+
+    public final static String DUMMY_CATEGORY = "dummy";
+
+    private static final ExpressionStatId KILLS = statId("kills");
+    private static final ExpressionStatId SHOTS = statId("shots");
+    private static final ExpressionStatId ANY_MAP_KILLS = new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", "*"));
+
+    @Test
+    public void rendersLikeReplaceStatIdsListener() {
+        String[] expressions = {
+                "kill_ratio = kills / shots",
+                "kills = kills + 1",
+                "foo = SUM(kills{map:\"*\"}, shots) / MAX(kills{map:\"*\"}, 2) ? catB.games : -kills",
+                "foo{map:\"*\"} = kills{map:\"*\"} * (shots - NaN) >= Infinity && unknown{x:\"a b\"}",
+                "foo = AVG(kills, MIN(kills{map:\"*\"}, shots))"
+        };
+        List<Map<ExpressionStatId, List<Double>>> valueSets = Arrays.asList(
+                Collections.emptyMap(),
+                ImmutableMap.of(KILLS, Collections.singletonList(12d), SHOTS, Collections.singletonList(-40.5)),
+                ImmutableMap.of(KILLS, Collections.emptyList(), ANY_MAP_KILLS, Arrays.asList(1d, 2d, 3.25)),
+                ImmutableMap.of(ANY_MAP_KILLS, Collections.singletonList(Double.NaN), SHOTS,
+                        Collections.singletonList(Double.NEGATIVE_INFINITY)));
+
+        StringBuilder out = new StringBuilder();
+        for (String expr : expressions) {
+            ExpressionRenderer renderer = ExpressionRenderer.build(expr, DUMMY_CATEGORY);
+            for (Map<ExpressionStatId, List<Double>> values : valueSets) {
+                String expected;
+                try {
+                    expected = new ReplaceStatIdsListener(parser(expr), DUMMY_CATEGORY).replace(values);
+                } catch (ExpressionEvaluationException e) {
+                    // several values for a statId outside an aggregate
+                    TestHelpers.expectException(() -> renderer.render(values));
+                    continue;
+                }
+                assertEquals(expr, expected, renderer.render(values));
+
+                out.setLength(0);
+                assertSame(out, renderer.render(values, out));
+                assertEquals(expr, expected, out.toString());
+            }
+        }
+    }
+
+    @Test
+    public void rendersNullValuesAsZero() {
+        Map<ExpressionStatId, List<Double>> values = new HashMap<>();
+        values.put(KILLS, null);
+        assertEquals("foo=0.0/shots<EOF>", ExpressionRenderer.build("foo = kills / shots", DUMMY_CATEGORY).render(values));
+    }
+
+    @Test
+    public void rejectsSeveralValuesOutsideAggregates() throws Exception {
+        ExpressionRenderer renderer = ExpressionRenderer.build("foo = SUM(kills{map:\"*\"}) + kills{map:\"*\"}", DUMMY_CATEGORY);
+        Exception error = TestHelpers.expectException(() -> renderer.render(ImmutableMap.of(ANY_MAP_KILLS, Arrays.asList(1d, 2d))));
+        TestHelpers.checkError(ExpressionEvaluationException.class.getName(), "Unrecoverable error", error, false);
+    }
+
+    @Test
+    public void rejectsInvalidExpressions() throws Exception {
+        Exception error = TestHelpers.expectException(() -> ExpressionRenderer.build("foo = kills +", DUMMY_CATEGORY));
+        TestHelpers.checkError(ExpressionEvaluationException.class.getName(), "no viable alternative at input 'kills+'", error, false);
+    }
+
+    private static DerivedExpressionParser parser(String expr) {
+        return new DerivedExpressionParser(new CommonTokenStream(new DerivedExpressionLexer(CharStreams.fromString(expr))));
+    }
+}
@@ -1,7 +1,16 @@
 package com.newerty.derivedStats;
 
+import com.google.common.collect.ImmutableMap;
 import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class ExpressionStatIdTest {
 
@@ -18,4 +27,78 @@ public class ExpressionStatIdTest {
         // test toString()
         assertEquals("catA.weapon_accuracy{A:\"bounty_hunter\",B:\"deathstar\",C:\"blaster\"}", weapon_accuracy.toString());
     }
+
+    @Test
+    public void builtStatIdsAreInterned() {
+        ExpressionStatId first = new ExpressionStatIdBuilder()
+                .setStatId("kills")
+                .setCategoryId("catA")
+                .addDimension("map", "dust2")
+                .build();
+        ExpressionStatId second = new ExpressionStatIdBuilder()
+                .setStatId("kills")
+                .setCategoryId("catA")
+                .setDimensions(ImmutableMap.of("map", "dust2"))
+                .build();
+
+        assertSame(first, second);
+        assertTrue(first.isInterned());
+        assertSame(first, ExpressionStatIdRegistry.INSTANCE.get(first.getId()));
+        assertTrue(first.getId() < ExpressionStatIdRegistry.INSTANCE.size());
+
+        ExpressionStatId other = new ExpressionStatIdBuilder()
+                .setStatId("kills")
+                .setCategoryId("catA")
+                .addDimension("map", "nuke")
+                .build();
+        assertNotEquals(first, other);
+        assertNotEquals(first.getId(), other.getId());
+    }
+
+    @Test
+    public void internedEqualsUninterned() {
+        ExpressionStatId plain = new ExpressionStatId("shots", "catA", ImmutableMap.of("map", "dust2"));
+        ExpressionStatId interned = ExpressionStatIdRegistry.INSTANCE.intern(plain);
+
+        assertFalse(plain.isInterned());
+        assertEquals(plain, interned);
+        assertEquals(plain.hashCode(), interned.hashCode());
+        assertSame(interned, ExpressionStatIdRegistry.INSTANCE.intern(interned));
+        assertSame(interned, ExpressionStatIdRegistry.INSTANCE.intern("shots", "catA", ImmutableMap.of("map", "dust2")));
+
+        // a map lookup with either instance finds the value
+        Map<ExpressionStatId, Double> values = new HashMap<>();
+        values.put(plain, 1d);
+        assertEquals(1d, values.get(interned), 0);
+    }
+
+    @Test
+    public void dimensionsAreCopied() {
+        Map<String, String> dimensions = new HashMap<>();
+        dimensions.put("map", "dust2");
+        ExpressionStatId statId = new ExpressionStatId("kills", "catA", dimensions);
+        int hash = statId.hashCode();
+
+        dimensions.put("map", "nuke");
+        assertEquals("dust2", statId.getDimensions().get("map"));
+        assertEquals(hash, statId.hashCode());
+    }
+
+    @Test
+    public void keysPatternIsSharedByStatIdsWithTheSameKeys() {
+        ExpressionStatId dust2 = new ExpressionStatId("kills", "catA", ImmutableMap.of("map", "dust2", "weapon", "awp"));
+        ExpressionStatId nuke = ExpressionStatIdRegistry.INSTANCE.intern("kills", "catA", ImmutableMap.of("map", "nuke", "weapon", "*"));
+        ExpressionStatId pattern = dust2.keysPattern();
+
+        assertEquals(new ExpressionStatId("kills", "catA", ImmutableMap.of("map", "*", "weapon", "*")), pattern);
+        assertTrue(pattern.isInterned());
+        assertSame(pattern, dust2.keysPattern());
+        assertSame(pattern, nuke.keysPattern());
+        assertSame(pattern, pattern.keysPattern());
+        assertNotEquals(pattern, new ExpressionStatId("kills", "catA", ImmutableMap.of("map", "dust2")).keysPattern());
+        assertNotEquals(pattern, new ExpressionStatId("deaths", "catA", ImmutableMap.of("map", "dust2", "weapon", "awp")).keysPattern());
+
+        ExpressionStatId shots = new ExpressionStatId("shots", "catA", null);
+        assertEquals(shots, shots.keysPattern());
+    }
 }
@@ -0,0 +1,132 @@
+package com.newerty.derivedStats;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FastAssignmentParserTest {
+
+    public final static String DUMMY_CATEGORY = "dummy";
+
+    private static final String[] TOKENS = {
+            "?", ":", "<=", ">=", "<", ">", "==", "!=", "||", "&&", "{", "}", "[", "]", "=", ".", ",", "*", "/",
+            "+", "-", "(", ")", "SUM", "AVG", "MIN", "MAX", "0", "12", "-3", "4.5", "-0.25", "Infinity",
+            "-Infinity", "NaN", "kills", "shots", "catB", "map", "_x1", "SUMS", "NaNa", "\"*\"", "\"dust2\"",
+            "\"a\\\"b\"", "\"", "!", "|", "&", "\\n", "^"
+    };
+
+    @Test
+    public void matchesAntlrOnValidExpressions() throws Exception {
+        List<String> corpus = new ArrayList<>(TestHelpers.loadFeatureExpressions());
+        corpus.add("kill_ratio{map:\"*\"} = kills{map:\"*\"} / (shots{map:\"*\"} + kills{map:\"*\"}) + catB.games");
+        corpus.add("foo = foo + SUM(bar{weapon:\"awp\", map:\"*\"}, baz) ? qux : bar{map:\"*\", weapon:\"awp\"}");
+        corpus.add("foo = a ? b ? c : d : e ? f : g || h && i == j != k < l > m <= n >= o + p - q * r / s");
+        corpus.add("foo=-1*- 1+-Infinity-+NaN/-(Infinity)*+2.50");
+        corpus.add("foo = MIN(AVG(a, MAX(b{x:\"\\\"q\\\\\", y:\"\"})), catC.z{w:\"\\/\\b\\f\\n\\r\"})");
+        corpus.add(" \t\r\nfoo\f=\nSUM ( kills ) \n");
+
+        for (String expr : corpus) {
+            assertSameAsAntlr(expr);
+        }
+    }
+
+    @Test
+    public void rejectsWhatAntlrRejects() {
+        String[] invalid = {
+                "", "foo", "foo =", "foo = kills +", "foo == bar", "foo = bar ^ kat", "foo = kills -1",
+                "foo = --kills", "foo = SUM()", "foo = SUM(kills,)", "foo = a ? b", "foo = a ? b : c : d",
+                "foo = a{}", "foo = a{x:y}", "foo = a{x:\"y\",}", "foo = a{x:\"y\"", "foo = a.b.c",
+                "foo = a{x:\"y\", x:\"z\"}", "foo = \"unterminated", "foo = a{x:\"\\q\"}", "foo = [a]",
+                "foo = a ! b", "foo = a | b", "foo = a & b", "foo = 1.", "foo = .5", "foo = Infinityx",
+                "foo = -Infinityx", "SUM = kills", "foo = kills)", "foo = (kills", "foo = 1 2"
+        };
+
+        for (String expr : invalid) {
+            assertSameAsAntlr(expr);
+        }
+    }
+
+    @Test
+    public void matchesAntlrOnRandomInput() throws Exception {
+        Random random = new Random(16);
+        List<String> inputs = new ArrayList<>();
+
+        // random token sequences, mostly invalid
+        for (int i = 0; i < 3000; i++) {
+            StringBuilder expr = new StringBuilder(random.nextInt(4) == 0 ? "" : "foo = ");
+            int tokens = 1 + random.nextInt(8);
+            for (int t = 0; t < tokens; t++) {
+                expr.append(TOKENS[random.nextInt(TOKENS.length)]);
+                if (random.nextBoolean()) {
+                    expr.append(' ');
+                }
+            }
+            inputs.add(expr.toString());
+        }
+
+        // valid expressions with a character dropped, doubled or swapped
+        for (String expr : TestHelpers.loadFeatureExpressions()) {
+            for (int i = 0; i < 20; i++) {
+                StringBuilder mutated = new StringBuilder(expr);
+                int pos = random.nextInt(expr.length());
+                switch (random.nextInt(3)) {
+                    case 0:
+                        mutated.deleteCharAt(pos);
+                        break;
+                    case 1:
+                        mutated.insert(pos, expr.charAt(pos));
+                        break;
+                    default:
+                        mutated.setCharAt(pos, expr.charAt(random.nextInt(expr.length())));
+                        break;
+                }
+                inputs.add(mutated.toString());
+            }
+        }
+
+        int valid = 0;
+        for (String expr : inputs) {
+            valid += assertSameAsAntlr(expr) ? 1 : 0;
+        }
+        // the inputs have to exercise both outcomes
+        assertTrue(valid > 100);
+        assertTrue(valid < inputs.size() - 100);
+    }
+
+    @Test
+    public void compiledModesReportAntlrErrors() throws Exception {
+        for (EvaluationMode mode : EvaluationMode.values()) {
+            Exception error = TestHelpers.expectException(() -> DerivedExpressionEvaluator.build("foo = kills +", DUMMY_CATEGORY, mode));
+            TestHelpers.checkError(ExpressionEvaluationException.class.getName(), "no viable alternative at input 'kills+'", error, false);
+        }
+    }
+
+    // returns whether the expression is valid
+    private static boolean assertSameAsAntlr(String expr) {
+        ExpressionNode expected;
+        ExpressionStatIdList expectedStatIds;
+        try {
+            ExpressionNodeBuilderVisitor builder = new ExpressionNodeBuilderVisitor(DUMMY_CATEGORY);
+            expected = builder.visit(AssignmentParser.parse(expr));
+            expectedStatIds = builder.getStatIds();
+        } catch (RuntimeException e) {
+            assertNull(expr, FastAssignmentParser.parse(expr, DUMMY_CATEGORY, new ExpressionStatIdList()));
+            return false;
+        }
+
+        ExpressionStatIdList statIds = new ExpressionStatIdList();
+        ExpressionNode actual = FastAssignmentParser.parse(expr, DUMMY_CATEGORY, statIds);
+        assertNotNull(expr, actual);
+        assertEquals(expr, expected, actual);
+        assertEquals(expr, expectedStatIds.getDerivedStatId(), statIds.getDerivedStatId());
+        assertEquals(expr, expectedStatIds.getDependentStatIds(), statIds.getDependentStatIds());
+        return true;
+    }
+}
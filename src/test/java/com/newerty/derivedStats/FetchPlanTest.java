@@ -0,0 +1,130 @@
+package com.newerty.derivedStats;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static com.newerty.derivedStats.TestHelpers.statId;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FetchPlanTest {
+
+    public final static String DUMMY_CATEGORY = "dummy";
+
+    @Test
+    public void fetchesEachStatOnce() {
+        FetchPlan plan = FetchPlan.build(evaluators(
+                "a = kills / shots",
+                "b = kills * 2 + catB.kills",
+                "c = shots - catB.kills"));
+
+        assertEquals(ImmutableList.of(statId("kills"), statId("shots"), new ExpressionStatId("kills", "catB", null)),
+                plan.getExactStatIds());
+        assertTrue(plan.getPatterns().isEmpty());
+        assertEquals(1, plan.getRequests().size());
+    }
+
+    @Test
+    public void patternsSubsumeTheExactIdsTheyMatch() {
+        FetchPlan plan = FetchPlan.build(evaluators(
+                "a = SUM(kills{map:\"*\"}) + kills{map:\"nuke\"} + kills",
+                "b = MAX(kills{map:\"*\"}) - kills{map:\"nuke\", mode:\"ranked\"}",
+                "c{map:\"*\"} = kills{map:\"*\"} / shots{map:\"dust2\"}"));
+
+        // kills without dimensions and kills{map, mode} have other dimension names than the pattern
+        assertEquals(ImmutableList.of(statId("kills"), statId("kills", ImmutableMap.of("map", "nuke", "mode", "ranked")),
+                statId("shots", ImmutableMap.of("map", "dust2"))), plan.getExactStatIds());
+        assertEquals(ImmutableList.of(statId("kills", ImmutableMap.of("map", "*"))), plan.getPatterns());
+        assertEquals(2, plan.getRequests().size());
+        assertFalse(plan.getRequests().get(0).isWildcard());
+        assertTrue(plan.getRequests().get(1).isWildcard());
+    }
+
+    @Test
+    public void packsRequestsUpToTheBatchSize() {
+        List<String> exprs = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            exprs.add("r" + i + " = kills_" + i + " + SUM(hits_" + i + "{map:\"*\"})");
+        }
+        FetchPlan plan = FetchPlan.build(evaluators(exprs.toArray(new String[0])), 10);
+
+        int[] sizes = plan.getRequests().stream().mapToInt(r -> r.getStatIds().size()).toArray();
+        assertEquals(6, sizes.length);
+        assertEquals("[10, 10, 5, 10, 10, 5]", Arrays.toString(sizes));
+    }
+
+    @Test
+    public void keepsEachGroupInOneRequest() {
+        FetchPlan plan = FetchPlan.build(evaluators(
+                "a = kills{map:\"a\"} + kills{map:\"b\"} + kills{map:\"c\"}",
+                "b = deaths{map:\"a\"} + deaths{map:\"b\"} + deaths{map:\"c\"}",
+                "c = shots{map:\"a\"} + shots{map:\"b\"} + shots{map:\"c\"} + shots{map:\"d\"} + shots{map:\"e\"}",
+                "d = games"), 4);
+
+        // a group larger than a batch is the only one split, the rest of it shares with the next group
+        List<String> requests = new ArrayList<>();
+        plan.getRequests().forEach(request -> requests.add(request.getStatIds().toString()));
+        assertEquals(Arrays.asList(
+                "[dummy.kills{map:\"a\"}, dummy.kills{map:\"b\"}, dummy.kills{map:\"c\"}]",
+                "[dummy.deaths{map:\"a\"}, dummy.deaths{map:\"b\"}, dummy.deaths{map:\"c\"}]",
+                "[dummy.shots{map:\"a\"}, dummy.shots{map:\"b\"}, dummy.shots{map:\"c\"}, dummy.shots{map:\"d\"}]",
+                "[dummy.shots{map:\"e\"}, dummy.games]"), requests);
+    }
+
+    @Test
+    public void fetchedValuesEvaluateAsTheFullSnapshot() {
+        String[] exprs = {
+                "a = SUM(kills{map:\"*\"}) / MAX(shots, 1) + kills{map:\"nuke\"}",
+                "b = AVG(damage{weapon:\"*\"}, kills{map:\"dust2\"}) - catB.kills",
+                "c{map:\"*\"} = kills{map:\"*\"} * 2 + shots",
+                "d = games > 3 ? wins / games : 0"
+        };
+        Random random = new Random(22);
+        Map<ExpressionStatId, Double> snapshot = new HashMap<>();
+        snapshot.put(statId("shots"), 40d);
+        snapshot.put(statId("games"), 7d);
+        snapshot.put(statId("wins"), 3d);
+        snapshot.put(new ExpressionStatId("kills", "catB", null), 9d);
+        for (int i = 0; i < 50; i++) {
+            snapshot.put(statId("kills", ImmutableMap.of("map", "map_" + i)), (double) random.nextInt(10));
+            snapshot.put(statId("damage", ImmutableMap.of("weapon", "w_" + i)), (double) random.nextInt(100));
+            snapshot.put(statId("unrelated_" + i), 1d);
+        }
+        snapshot.put(statId("kills", ImmutableMap.of("map", "nuke")), 5d);
+        snapshot.put(statId("kills", ImmutableMap.of("map", "dust2")), 4d);
+
+        List<DerivedExpressionEvaluator> evaluators = evaluators(exprs);
+        FetchPlan plan = FetchPlan.build(evaluators, 2);
+        InMemoryStatStore store = new InMemoryStatStore(snapshot);
+        Map<ExpressionStatId, Double> fetched = plan.fetch(store);
+
+        assertEquals(plan.getRequests().size(), store.getRequests().size());
+        assertFalse(fetched.containsKey(statId("unrelated_0")));
+        for (DerivedExpressionEvaluator evaluator : evaluators) {
+            assertEquals(evaluator.evaluate(StatValueProvider.of(snapshot)), evaluator.evaluate(StatValueProvider.of(fetched)), 1e-9);
+        }
+    }
+
+    @Test
+    public void rejectsBadBatchSizes() throws Exception {
+        Exception error = TestHelpers.expectException(() -> FetchPlan.build(evaluators("a = b"), 0));
+        TestHelpers.checkError(IllegalArgumentException.class.getName(), "Batch size must be positive", error, false);
+    }
+
+    private static List<DerivedExpressionEvaluator> evaluators(String... exprs) {
+        List<DerivedExpressionEvaluator> evaluators = new ArrayList<>();
+        for (String expr : exprs) {
+            evaluators.add(DerivedExpressionEvaluator.build(expr, DUMMY_CATEGORY, EvaluationMode.COMPILED));
+        }
+        return evaluators;
+    }
+}
@@ -0,0 +1,54 @@
+package com.newerty.derivedStats;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link StatStore} over a map, standing in for a real store in tests. It records every request it serves.
+ */
+public class InMemoryStatStore implements StatStore {
+
+    private final Map<ExpressionStatId, Double> values;
+    private final List<FetchPlan.Request> requests = new ArrayList<>();
+
+    public InMemoryStatStore(Map<ExpressionStatId, Double> values) {
+        this.values = values;
+    }
+
+    @Override
+    public Map<ExpressionStatId, Double> getAll(List<ExpressionStatId> statIds) {
+        requests.add(new FetchPlan.Request(false, new ArrayList<>(statIds)));
+        Map<ExpressionStatId, Double> found = new HashMap<>();
+        for (ExpressionStatId statId : statIds) {
+            Double value = values.get(statId);
+            if (value != null) {
+                found.put(statId, value);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public Map<ExpressionStatId, Double> getMatching(List<ExpressionStatId> patterns) {
+        requests.add(new FetchPlan.Request(true, new ArrayList<>(patterns)));
+        Map<ExpressionStatId, Double> found = new HashMap<>();
+        for (Map.Entry<ExpressionStatId, Double> e : values.entrySet()) {
+            for (ExpressionStatId pattern : patterns) {
+                if (pattern.keysEquals(e.getKey())) {
+                    found.put(e.getKey(), e.getValue());
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return The requests served so far, in order
+     */
+    public List<FetchPlan.Request> getRequests() {
+        return requests;
+    }
+}
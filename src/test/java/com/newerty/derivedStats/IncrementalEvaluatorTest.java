@@ -0,0 +1,105 @@
+package com.newerty.derivedStats;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static com.newerty.derivedStats.TestHelpers.statId;
+import static org.junit.Assert.assertEquals;
+
+public class IncrementalEvaluatorTest {
+
+    public final static String DUMMY_CATEGORY = "dummy";
+
+    private static final String[] EXPRESSIONS = {
+            "total = SUM(kills{map:\"*\"})",
+            "foo = AVG(kills{map:\"*\"}, games) + MIN(kills{map:\"*\"}) * MAX(shots{map:\"*\"}, 1)",
+            "foo = games > 3 ? MAX(kills{map:\"*\"}) : SUM(shots{map:\"*\"}) / AVG(shots{map:\"*\"})",
+            "foo = MIN(kills{map:\"*\"}, shots{map:\"*\"}) - MAX(kills{map:\"*\"})",
+            "foo{map:\"*\"} = kills{map:\"*\"} / SUM(shots{map:\"*\"})"
+    };
+
+    private static final double[] SPECIAL_VALUES = {
+            Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, -0.0, 0.0
+    };
+
+    @Test
+    public void matchesFullEvaluationAfterEachChange() {
+        Random random = new Random(20);
+
+        for (String expr : EXPRESSIONS) {
+            DerivedExpressionEvaluator full = DerivedExpressionEvaluator.build(expr, DUMMY_CATEGORY, EvaluationMode.COMPILED);
+            IncrementalEvaluator incremental = IncrementalEvaluator.build(expr, DUMMY_CATEGORY);
+            Map<ExpressionStatId, Double> values = new HashMap<>();
+
+            for (int i = 0; i < 2000; i++) {
+                ExpressionStatId statId = randomStatId(random);
+                switch (random.nextInt(4)) {
+                    case 0:
+                        incremental.remove(statId);
+                        values.remove(statId);
+                        break;
+                    case 1:
+                        double delta = random.nextInt(7) - 3;
+                        assertEquals(values.getOrDefault(statId, 0d) + delta, incremental.add(statId, delta), 0);
+                        values.put(statId, values.getOrDefault(statId, 0d) + delta);
+                        break;
+                    default:
+                        // small integers sum exactly in any order, the special values only now and then
+                        double value = (random.nextInt(40) == 0)
+                                ? SPECIAL_VALUES[random.nextInt(SPECIAL_VALUES.length)]
+                                : random.nextInt(21) - 10;
+                        assertEquals(values.getOrDefault(statId, 0d), incremental.set(statId, value), 0);
+                        values.put(statId, value);
+                        break;
+                }
+
+                assertEquals(expr + " after " + i + " changes",
+                        Double.doubleToLongBits(full.evaluate(values)), Double.doubleToLongBits(incremental.evaluate()));
+            }
+        }
+    }
+
+    @Test
+    public void keepsFractionalSumsAccurate() {
+        Random random = new Random(21);
+        DerivedExpressionEvaluator full = DerivedExpressionEvaluator.build(
+                "foo = SUM(kills{map:\"*\"}) / AVG(kills{map:\"*\"})", DUMMY_CATEGORY, EvaluationMode.COMPILED);
+        IncrementalEvaluator incremental = IncrementalEvaluator.build(
+                "foo = SUM(kills{map:\"*\"}) / AVG(kills{map:\"*\"})", DUMMY_CATEGORY);
+        Map<ExpressionStatId, Double> values = new HashMap<>();
+
+        for (int i = 0; i < 100_000; i++) {
+            ExpressionStatId statId = statId("kills", "map_" + random.nextInt(300));
+            double value = random.nextDouble() * 1e6;
+            incremental.set(statId, value);
+            values.put(statId, value);
+        }
+        assertEquals(full.evaluate(values), incremental.evaluate(), 1e-9);
+    }
+
+    @Test
+    public void evaluatesWithPlaceholders() {
+        IncrementalEvaluator incremental = IncrementalEvaluator.build(
+                "foo{map:\"*\"} = kills{map:\"*\"} / SUM(shots{map:\"*\"})", DUMMY_CATEGORY);
+        incremental.set(statId("kills", "nuke"), 3);
+        incremental.set(statId("shots", "nuke"), 4);
+        incremental.set(statId("shots", "dust2"), 100);
+
+        assertEquals(0.75, incremental.evaluate(ImmutableMap.of("map", "nuke")), 0);
+    }
+
+    private static ExpressionStatId randomStatId(Random random) {
+        switch (random.nextInt(5)) {
+            case 0:
+                return new ExpressionStatId("games", DUMMY_CATEGORY, null);
+            case 1:
+                return statId("shots", "map_" + random.nextInt(10));
+            default:
+                return statId("kills", "map_" + random.nextInt(10));
+        }
+    }
+}
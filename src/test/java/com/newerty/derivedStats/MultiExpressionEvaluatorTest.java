@@ -0,0 +1,85 @@
+package com.newerty.derivedStats;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static com.newerty.derivedStats.TestHelpers.statId;
+import static org.junit.Assert.assertEquals;
+
+public class MultiExpressionEvaluatorTest {
+
+    public final static String DUMMY_CATEGORY = "dummy";
+
+    private static final List<String> EXPRESSIONS = ImmutableList.of(
+            "accuracy = kills / shots",
+            "rating = (kills / shots) * 100 + SUM(damage{weapon:\"*\"}) / (deaths + 1)",
+            "score = deaths + 1 > 3 ? kills / shots : -(kills / shots)",
+            "dmg_per_life = SUM(damage{weapon:\"*\"}) / (deaths + 1)",
+            "same_accuracy = kills / shots",
+            "unrelated = games * 2"
+    );
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Test
+    public void sharesCommonSubexpressions() {
+        MultiExpressionEvaluator evaluator = MultiExpressionEvaluator.build(EXPRESSIONS, DUMMY_CATEGORY);
+
+        // kills / shots, deaths + 1 and SUM(damage{weapon:"*"}) / (deaths + 1), the SUM itself only occurs in the latter
+        assertEquals(3, evaluator.sharedSubexpressionCount());
+        assertEquals(3, evaluator.indexOf(statId("dmg_per_life")));
+        assertEquals(-1, evaluator.indexOf(statId("nope")));
+    }
+
+    @Test
+    public void matchesSeparateEvaluators() {
+        MultiExpressionEvaluator multi = MultiExpressionEvaluator.build(EXPRESSIONS, DUMMY_CATEGORY);
+        Random random = new Random(3);
+
+        for (int i = 0; i < 200; i++) {
+            Map<ExpressionStatId, Double> values = new HashMap<>();
+            values.put(statId("kills"), (double) random.nextInt(10));
+            values.put(statId("shots"), (double) random.nextInt(10));
+            values.put(statId("deaths"), (double) random.nextInt(5));
+            values.put(statId("games"), (double) random.nextInt(5));
+            values.put(new ExpressionStatId("damage", DUMMY_CATEGORY, ImmutableMap.of("weapon", "awp")), random.nextDouble());
+            values.put(new ExpressionStatId("damage", DUMMY_CATEGORY, ImmutableMap.of("weapon", "ak")), random.nextDouble());
+
+            double[] results = multi.evaluate(values);
+            Map<ExpressionStatId, Double> byStat = multi.evaluateToMap(values);
+            for (int e = 0; e < EXPRESSIONS.size(); e++) {
+                DerivedExpressionEvaluator single = DerivedExpressionEvaluator.build(EXPRESSIONS.get(e), DUMMY_CATEGORY);
+                double expected = single.evaluate(values);
+                assertEquals(EXPRESSIONS.get(e), Double.doubleToLongBits(expected), Double.doubleToLongBits(results[e]));
+                assertEquals(expected, byStat.get(single.getStatIds().getDerivedStatId()), 0);
+            }
+        }
+    }
+
+    @Test
+    public void evaluatesFromSlots() {
+        MultiExpressionEvaluator multi = MultiExpressionEvaluator.build(
+                ImmutableList.of("a = kills / shots + 1", "b = (kills / shots) * deaths"), DUMMY_CATEGORY);
+        double[] slots = multi.getBinder().bind(ImmutableMap.of(statId("kills"), 3d, statId("shots"), 4d, statId("deaths"), 2d));
+
+        double[] results = new double[2];
+        multi.evaluate(slots, results);
+        assertEquals(1.75, results[0], 0);
+        assertEquals(1.5, results[1], 0);
+    }
+
+    @Test
+    public void rejectsDuplicateDerivedStats() {
+        thrown.expect(IllegalArgumentException.class);
+        MultiExpressionEvaluator.build(ImmutableList.of("a = b + 1", "a = c"), DUMMY_CATEGORY);
+    }
+}
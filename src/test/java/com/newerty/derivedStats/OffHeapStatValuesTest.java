@@ -0,0 +1,153 @@
+package com.newerty.derivedStats;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static com.newerty.derivedStats.TestHelpers.statId;
+import static org.junit.Assert.assertEquals;
+
+public class OffHeapStatValuesTest {
+
+    public final static String DUMMY_CATEGORY = "dummy";
+
+    @Test
+    public void behavesLikeAMap() throws Exception {
+        Random random = new Random(24);
+        List<ExpressionStatId> statIds = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            statIds.add(new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", "map_" + i)));
+        }
+        statIds.add(new ExpressionStatId("never_stored_" + random.nextLong(), DUMMY_CATEGORY, null));
+
+        Path file = Files.createTempFile("values", ".offheap");
+        try {
+            // a small table, so probe runs are long and removals shift records
+            OffHeapStatValues store = OffHeapStatValues.create(file, 500);
+            Map<Map.Entry<ExpressionStatId, Long>, Double> expected = new HashMap<>();
+
+            for (int i = 0; i < 50_000; i++) {
+                ExpressionStatId statId = statIds.get(random.nextInt(statIds.size() - 1));
+                long entity = random.nextInt(40) - 20;
+                Map.Entry<ExpressionStatId, Long> key = new AbstractMap.SimpleImmutableEntry<>(statId, entity);
+                if ((random.nextInt(3) == 0) || (expected.size() == store.capacity())) {
+                    assertEquals(expected.remove(key) != null, store.remove(statId, entity));
+                } else {
+                    double value = random.nextDouble();
+                    store.put(statId, entity, value);
+                    expected.put(key, value);
+                }
+                assertEquals(expected.size(), store.size());
+
+                ExpressionStatId probe = statIds.get(random.nextInt(statIds.size()));
+                long probeEntity = random.nextInt(40) - 20;
+                Double value = expected.get(new AbstractMap.SimpleImmutableEntry<>(probe, probeEntity));
+                assertEquals(value != null, store.contains(probe, probeEntity));
+                assertEquals((value == null) ? 0d : value, store.get(probe, probeEntity), 0);
+            }
+            expected.forEach((key, value) -> assertEquals(value, store.get(key.getKey(), key.getValue()), 0));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void evaluatesAsTheEntitysValuesMap() throws Exception {
+        String[] exprs = {
+                "ratio = kills / (shots + 1)",
+                "foo = SUM(kills{map:\"*\"}) / MAX(AVG(shots{map:\"*\"}), 1) + MIN(kills{map:\"*\"}, games)",
+                "foo{map:\"*\"} = kills{map:\"*\"} * 2 - shots{map:\"*\"}"
+        };
+        Random random = new Random(25);
+
+        Path file = Files.createTempFile("values", ".offheap");
+        try {
+            OffHeapStatValues store = OffHeapStatValues.create(file, 10_000);
+            List<Map<ExpressionStatId, Double>> entities = new ArrayList<>();
+            for (int entity = 0; entity < 50; entity++) {
+                Map<ExpressionStatId, Double> values = new HashMap<>();
+                values.put(statId("kills"), (double) random.nextInt(50));
+                values.put(statId("shots"), (double) random.nextInt(50));
+                values.put(statId("games"), (double) random.nextInt(5));
+                for (int map = 0; map < 30; map++) {
+                    if (random.nextBoolean()) {
+                        values.put(statId("kills", "map_" + map), (double) random.nextInt(20));
+                        values.put(statId("shots", "map_" + map), (double) random.nextInt(20));
+                    }
+                }
+                store.putAll(entity, values);
+                entities.add(values);
+            }
+
+            for (String expr : exprs) {
+                for (EvaluationMode mode : EvaluationMode.values()) {
+                    DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build(expr, DUMMY_CATEGORY, mode);
+                    for (int entity = 0; entity < entities.size(); entity++) {
+                        Map<ExpressionStatId, Double> values = entities.get(entity);
+                        StatValueProvider offHeap = store.valuesOf(entity);
+                        // small integers sum exactly in any order
+                        assertEquals(expr + " " + mode, evaluator.evaluate(values), evaluator.evaluate(offHeap), 0);
+                        assertEquals(evaluator.evaluate(values, ImmutableMap.of("map", "map_3")),
+                                evaluator.evaluate(offHeap, ImmutableMap.of("map", "map_3")), 0);
+                    }
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void rejectsWildcardsAndOverflow() throws Exception {
+        Path file = Files.createTempFile("values", ".offheap");
+        try {
+            OffHeapStatValues store = OffHeapStatValues.create(file, 2);
+            Exception error = TestHelpers.expectException(() -> {
+                store.put(statId("kills", "*"), 1, 1d);
+                return null;
+            });
+            TestHelpers.checkError(IllegalArgumentException.class.getName(), "can't have a value", error, false);
+
+            store.put(statId("kills"), 1, 1d);
+            store.put(statId("kills"), 2, 1d);
+            store.put(statId("kills"), 2, 3d);
+            error = TestHelpers.expectException(() -> {
+                store.put(statId("kills"), 3, 1d);
+                return null;
+            });
+            TestHelpers.checkError(IllegalStateException.class.getName(), "Store is full", error, false);
+            assertEquals(3d, store.get(statId("kills"), 2), 0);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void closeReleasesTheStore() throws Exception {
+        Path file = Files.createTempFile("values", ".offheap");
+        try {
+            StatValueProvider values;
+            try (OffHeapStatValues store = OffHeapStatValues.create(file, 10)) {
+                store.put(statId("kills"), 1, 2d);
+                values = store.valuesOf(1);
+                assertEquals(2d, values.getValue(statId("kills")), 0);
+
+                store.close();
+                Exception error = TestHelpers.expectException(() -> store.get(statId("kills"), 1));
+                TestHelpers.checkError(IllegalStateException.class.getName(), "Store is closed", error, false);
+            }
+            Exception error = TestHelpers.expectException(() -> values.getValue(statId("kills")));
+            TestHelpers.checkError(IllegalStateException.class.getName(), "Store is closed", error, false);
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.newerty.derivedStats;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static com.newerty.derivedStats.TestHelpers.statId;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelEvaluatorTest {
+
+    public final static String DUMMY_CATEGORY = "dummy";
+
+    private static final String[] TEMPLATES = {
+            "r%d = kills_%d / shots_%d",
+            "r%d = kills_%d > 3 ? shots_%d * 2 : -kills_%d",
+            "r%d = SUM(kills{map:\"*\"}) / MAX(shots_%d, 1) + kills_%d",
+            "r%d = AVG(kills{map:\"*\"}, shots_%d) - MIN(kills{map:\"*\"}, kills_%d)",
+            "r%d{map:\"*\"} = kills{map:\"*\"} * shots_%d + kills_%d"
+    };
+
+    @Test
+    public void matchesSequentialEvaluation() {
+        List<DerivedExpressionEvaluator> evaluators = evaluators(400);
+        Map<ExpressionStatId, Double> values = values(new Random(21));
+
+        ParallelEvaluator parallel = ParallelEvaluator.build(evaluators);
+        assertEquals(evaluators, parallel.getEvaluators());
+        assertTrue(parallel.getBatchCount() > 1);
+
+        double[] expected = new double[evaluators.size()];
+        for (int i = 0; i < evaluators.size(); i++) {
+            expected[i] = evaluators.get(i).evaluate(values);
+        }
+        assertBitsEqual(expected, parallel.evaluate(values));
+
+        StatValueProvider provider = StatValueProvider.of(values);
+        for (int i = 0; i < evaluators.size(); i++) {
+            expected[i] = evaluators.get(i).evaluate(provider);
+        }
+        assertBitsEqual(expected, parallel.evaluate(provider));
+    }
+
+    @Test
+    public void runsOnTheGivenPool() throws Exception {
+        List<DerivedExpressionEvaluator> evaluators = evaluators(200);
+        Map<ExpressionStatId, Double> values = values(new Random(22));
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            double[] expected = ParallelEvaluator.build(evaluators).evaluate(values);
+            assertBitsEqual(expected, ParallelEvaluator.build(evaluators, pool).evaluate(values));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void batchesCheapExpressions() {
+        List<DerivedExpressionEvaluator> cheap = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            cheap.add(DerivedExpressionEvaluator.build("r" + i + " = kills + " + i, DUMMY_CATEGORY, EvaluationMode.COMPILED));
+        }
+        int cost = ParallelEvaluator.cost(cheap.get(0));
+        int perBatch = (ParallelEvaluator.MIN_BATCH_COST + cost - 1) / cost;
+        assertEquals((400 + perBatch - 1) / perBatch, ParallelEvaluator.build(cheap).getBatchCount());
+
+        // a single expression is evaluated on the calling thread
+        ParallelEvaluator single = ParallelEvaluator.build(cheap.subList(0, 1));
+        assertEquals(1, single.getBatchCount());
+        assertEquals(5d, single.evaluate(ImmutableMap.of(statId("kills"), 5d))[0], 0);
+    }
+
+    /**
+     * Evaluators of every mode are shared by threads evaluating different values at the same time, each thread
+     * must get the results a single thread gets
+     */
+    @Test
+    public void evaluatorsAreSafeToShareBetweenThreads() throws Exception {
+        List<DerivedExpressionEvaluator> evaluators = evaluators(60);
+        int threads = 8;
+        List<Map<ExpressionStatId, Double>> inputs = new ArrayList<>();
+        List<double[]> expected = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Map<ExpressionStatId, Double> values = values(new Random(t));
+            inputs.add(values);
+            double[] results = new double[evaluators.size()];
+            for (int i = 0; i < evaluators.size(); i++) {
+                results[i] = evaluators.get(i).evaluate(values);
+            }
+            expected.add(results);
+        }
+
+        ParallelEvaluator parallel = ParallelEvaluator.build(evaluators);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                Map<ExpressionStatId, Double> values = inputs.get(t);
+                double[] results = expected.get(t);
+                futures.add(executor.submit(() -> {
+                    StatValueProvider provider = StatValueProvider.of(values);
+                    for (int round = 0; round < 200; round++) {
+                        for (int i = 0; i < evaluators.size(); i++) {
+                            DerivedExpressionEvaluator evaluator = evaluators.get(i);
+                            assertEquals(Double.doubleToLongBits(results[i]), Double.doubleToLongBits(evaluator.evaluate(values)));
+                            assertEquals(Double.doubleToLongBits(evaluator.evaluate(provider)),
+                                    Double.doubleToLongBits(evaluator.evaluate(provider)));
+                        }
+                        assertBitsEqual(results, parallel.evaluate(values));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void requiresEvaluators() throws Exception {
+        Exception error = TestHelpers.expectException(() -> ParallelEvaluator.build(Collections.emptyList()));
+        TestHelpers.checkError(IllegalArgumentException.class.getName(), "Evaluators are required", error, false);
+    }
+
+    // expressions of every shape over a few shared stats, cycling through the evaluation modes
+    private static List<DerivedExpressionEvaluator> evaluators(int count) {
+        EvaluationMode[] modes = EvaluationMode.values();
+        List<DerivedExpressionEvaluator> evaluators = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int stat = i % 10;
+            String expr = String.format(TEMPLATES[i % TEMPLATES.length], i, stat, stat, stat);
+            evaluators.add(DerivedExpressionEvaluator.build(expr, DUMMY_CATEGORY, modes[(i / TEMPLATES.length) % modes.length]));
+        }
+        return evaluators;
+    }
+
+    private static Map<ExpressionStatId, Double> values(Random random) {
+        Map<ExpressionStatId, Double> values = new HashMap<>();
+        for (int i = 0; i < 10; i++) {
+            values.put(statId("kills_" + i), (double) random.nextInt(10));
+            values.put(statId("shots_" + i), (double) random.nextInt(10));
+        }
+        for (int i = 0; i < 50; i++) {
+            values.put(new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", "map_" + i)), random.nextDouble());
+        }
+        return values;
+    }
+
+    private static void assertBitsEqual(double[] expected, double[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("result " + i, Double.doubleToLongBits(expected[i]), Double.doubleToLongBits(actual[i]));
+        }
+    }
+}
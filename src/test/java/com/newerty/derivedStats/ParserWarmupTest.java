@@ -0,0 +1,105 @@
+package com.newerty.derivedStats;
+
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParserWarmupTest {
+
+    public final static String DUMMY_CATEGORY = "dummy";
+
+    @Test
+    public void buildsCorpusAndCountsFailures() throws Exception {
+        List<String> corpus = new ArrayList<>(TestHelpers.loadFeatureExpressions());
+        corpus.add("foo = kills +");
+        corpus.add("foo == bar");
+
+        ParserWarmup.Report report = ParserWarmup.warmUp(corpus, DUMMY_CATEGORY);
+        assertEquals(corpus.size(), report.getExpressions());
+        assertEquals(2, report.getFailures());
+        assertTrue(ParserWarmup.isWarm());
+
+        // everything the corpus can teach the parser it has learned already
+        assertEquals(0, ParserWarmup.warmUp(corpus, DUMMY_CATEGORY).getDfaStatesAdded());
+    }
+
+    @Test
+    public void warmsUpEachModeWithoutRecording() throws Exception {
+        List<String> corpus = new ArrayList<>(TestHelpers.loadFeatureExpressions());
+        corpus.add("foo = kills +");
+
+        StripedEvaluationMetrics metrics = StripedEvaluationMetrics.build();
+        DerivedExpressionEvaluator.setMetrics(metrics);
+        try {
+            for (EvaluationMode mode : EvaluationMode.values()) {
+                ParserWarmup.Report report = ParserWarmup.warmUp(corpus, DUMMY_CATEGORY, mode);
+                assertEquals(mode.name(), corpus.size(), report.getExpressions());
+                assertEquals(mode.name(), 1, report.getFailures());
+            }
+            assertTrue(metrics.getAll().isEmpty());
+        } finally {
+            DerivedExpressionEvaluator.setMetrics(EvaluationMetrics.NOOP);
+        }
+    }
+
+    @Test
+    public void warmsUpInBackground() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ParserWarmup.Report report = ParserWarmup.warmUpAsync(
+                    TestHelpers.loadFeatureExpressions(), DUMMY_CATEGORY, executor).get(1, TimeUnit.MINUTES);
+            assertEquals(0, report.getFailures());
+            assertTrue(ParserWarmup.isWarm());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void savesAndLoadsCorpus() throws Exception {
+        List<String> corpus = new ArrayList<>(TestHelpers.loadFeatureExpressions());
+        corpus.add("kill_ratio{map:\"*\"} = kills{map:\"*\"} /\n\tshots{map:\"d\u00e9_dust\"}");
+        corpus.add("");
+
+        Path file = Files.createTempFile("warmup", ".corpus");
+        try {
+            ParserWarmup.saveCorpus(file, corpus);
+            assertEquals(corpus, ParserWarmup.loadCorpus(file));
+
+            Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+            Exception error = TestHelpers.expectException(() -> ParserWarmup.loadCorpus(file));
+            assertTrue(error instanceof IOException);
+            assertTrue(error.getMessage().startsWith("Not a warm-up corpus"));
+
+            // a negative count, then a length past the end of the file
+            checkCorruptCorpus(file, -1);
+            checkCorruptCorpus(file, 1, Integer.MAX_VALUE);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void checkCorruptCorpus(Path file, int... ints) throws Exception {
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file))) {
+            out.writeInt(0x44535743);
+            out.writeInt(1);
+            for (int value : ints) {
+                out.writeInt(value);
+            }
+        }
+        Exception error = TestHelpers.expectException(() -> ParserWarmup.loadCorpus(file));
+        assertTrue(error instanceof IOException);
+        assertTrue(error.getMessage(), error.getMessage().startsWith("Corrupt warm-up corpus"));
+    }
+}
@@ -0,0 +1,78 @@
+package com.newerty.derivedStats;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.newerty.derivedStats.TestHelpers.statId;
+import static org.junit.Assert.assertEquals;
+
+public class SlotBinderTest {
+
+    public final static String DUMMY_CATEGORY = "dummy";
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Test
+    public void slotsFollowDependentStatIds() {
+        DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build("foo = b + a * b - catB.c", DUMMY_CATEGORY);
+        SlotBinder binder = evaluator.getBinder();
+
+        assertEquals(3, binder.size());
+        for (int i = 0; i < binder.size(); i++) {
+            assertEquals(evaluator.getStatIds().getDependentStatIds().get(i), binder.statIdAt(i));
+            assertEquals(i, binder.slotOf(binder.statIdAt(i)));
+        }
+        assertEquals(-1, binder.slotOf(statId("nope")));
+    }
+
+    @Test
+    public void slotsMatchMapInEveryMode() {
+        String expr = "foo = games > 10 ? SUM(kills, assists) / (deaths + 1) : -kills";
+        Map<ExpressionStatId, Double> values = new HashMap<>();
+        values.put(statId("games"), 12d);
+        values.put(statId("kills"), 30d);
+        values.put(statId("deaths"), 4d);
+
+        for (EvaluationMode mode : EvaluationMode.values()) {
+            DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build(expr, DUMMY_CATEGORY, mode);
+            double[] slots = evaluator.getBinder().bind(values);
+            assertEquals(mode.name(), evaluator.evaluate(values), evaluator.evaluate(slots), 0);
+        }
+    }
+
+    @Test
+    public void reusesValuesArray() {
+        DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build("ratio = kills / shots", DUMMY_CATEGORY);
+        SlotBinder binder = evaluator.getBinder();
+        double[] slots = binder.newValues();
+
+        assertEquals(0.5, evaluator.evaluate(binder.bind(ImmutableMap.of(statId("kills"), 5d, statId("shots"), 10d), slots)), 0);
+        // missing values are reset to 0 rather than left over from the previous bind
+        assertEquals(0, evaluator.evaluate(binder.bind(ImmutableMap.of(statId("shots"), 4d), slots)), 0);
+
+        slots[binder.slotOf(statId("kills"))] = 3d;
+        assertEquals(0.75, evaluator.evaluate(slots), 0);
+    }
+
+    @Test
+    public void wildcardsAreUnsupported() {
+        DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build("foo = SUM(kills{map:\"*\"})", DUMMY_CATEGORY);
+
+        thrown.expect(UnsupportedOperationException.class);
+        evaluator.evaluate(evaluator.getBinder().newValues());
+    }
+
+    @Test
+    public void shortValuesArrayFails() {
+        DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build("ratio = kills / shots", DUMMY_CATEGORY);
+
+        thrown.expect(IllegalArgumentException.class);
+        evaluator.evaluate(new double[1]);
+    }
+}
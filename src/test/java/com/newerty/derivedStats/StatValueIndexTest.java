@@ -0,0 +1,63 @@
+package com.newerty.derivedStats;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class StatValueIndexTest {
+
+    public final static String DUMMY_CATEGORY = "dummy";
+
+    @Test
+    public void matchesByCategoryStatAndDimensionNames() {
+        Map<ExpressionStatId, Double> values = new HashMap<>();
+        values.put(new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", "dust2")), 1d);
+        values.put(new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", "nuke")), 2d);
+        values.put(new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", "nuke", "weapon", "awp")), 4d);
+        values.put(new ExpressionStatId("kills", "catB", ImmutableMap.of("map", "nuke")), 8d);
+        values.put(new ExpressionStatId("kills", DUMMY_CATEGORY, null), 16d);
+        values.put(new ExpressionStatId("shots", DUMMY_CATEGORY, ImmutableMap.of("map", "nuke")), 32d);
+
+        StatValueIndex index = StatValueIndex.of(values);
+        assertEquals(values, index);
+        assertSame(index, StatValueIndex.of(index));
+
+        double[] matches = index.matching(new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", "*")));
+        assertEquals(2, matches.length);
+        assertEquals(3d, matches[0] + matches[1], 0);
+
+        assertArrayEquals(new double[]{4d},
+                index.matching(new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", "*", "weapon", "*"))), 0);
+        assertEquals(0, index.matching(new ExpressionStatId("deaths", DUMMY_CATEGORY, ImmutableMap.of("map", "*"))).length);
+    }
+
+    @Test
+    public void sameResultsAsPlainMap() {
+        String[] expressions = {
+                "foo = SUM(kills{map:\"*\"})",
+                "foo = AVG(kills{map:\"*\"}, shots{map:\"*\"}) - MAX(kills{map:\"*\"})",
+                "foo = MIN(kills{map:\"*\", weapon:\"*\"}, 3) + kills{map:\"map_7\", weapon:\"awp\"}"
+        };
+
+        Map<ExpressionStatId, Double> values = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            values.put(new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", "map_" + i)), i * 0.1);
+            values.put(new ExpressionStatId("shots", DUMMY_CATEGORY, ImmutableMap.of("map", "map_" + i)), i * 1.7);
+            values.put(new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", "map_" + i, "weapon", "awp")), i * 3d);
+        }
+        StatValueIndex index = StatValueIndex.of(values);
+
+        for (String expr : expressions) {
+            for (EvaluationMode mode : EvaluationMode.values()) {
+                DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build(expr, DUMMY_CATEGORY, mode);
+                assertEquals(expr + " " + mode, evaluator.evaluate(values), evaluator.evaluate(index), 1e-9);
+            }
+        }
+    }
+}
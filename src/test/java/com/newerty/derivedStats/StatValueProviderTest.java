@@ -0,0 +1,119 @@
+package com.newerty.derivedStats;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static com.newerty.derivedStats.TestHelpers.statId;
+import static org.junit.Assert.assertEquals;
+
+public class StatValueProviderTest {
+
+    public final static String DUMMY_CATEGORY = "dummy";
+
+    @Test
+    public void skipsUntakenBranches() {
+        String[][] cases = {
+                // expression, games, stats that must not be fetched
+                {"foo = games > 10 ? expensive_ratio : 0", "5", "expensive_ratio"},
+                {"foo = games > 10 ? expensive_ratio : cheap", "20", "cheap"},
+                {"foo = games > 10 && expensive_ratio > 0.5", "5", "expensive_ratio"},
+                {"foo = games > 10 || expensive_ratio > 0.5", "20", "expensive_ratio"},
+                {"foo = (games && expensive_ratio) + (games || cheap)", "0", "expensive_ratio"}
+        };
+
+        for (String[] c : cases) {
+            for (EvaluationMode mode : EvaluationMode.values()) {
+                DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build(c[0], DUMMY_CATEGORY, mode);
+                CountingProvider provider = new CountingProvider(ImmutableMap.of(
+                        statId("games"), Double.valueOf(c[1]), statId("expensive_ratio"), 0.7, statId("cheap"), 1d));
+
+                double expected = evaluator.evaluate(new HashMap<>(provider.values));
+                assertEquals(c[0] + " " + mode, expected, evaluator.evaluate(provider), 0);
+                assertEquals(c[0] + " " + mode, 0, provider.count(statId(c[2])));
+            }
+        }
+    }
+
+    @Test
+    public void fetchesEachStatOnce() {
+        DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build(
+                "foo = kills / shots + kills * SUM(kills, shots)", DUMMY_CATEGORY, EvaluationMode.COMPILED);
+        CountingProvider provider = new CountingProvider(ImmutableMap.of(statId("kills"), 3d, statId("shots"), 4d));
+
+        assertEquals(3d / 4 + 3 * 7, evaluator.evaluate(provider), 0);
+        assertEquals(1, provider.count(statId("kills")));
+        assertEquals(1, provider.count(statId("shots")));
+    }
+
+    @Test
+    public void matchesMapEvaluation() throws Exception {
+        List<String> expressions = new ArrayList<>(TestHelpers.loadFeatureExpressions());
+        expressions.add("foo = (kills >= shots) || (deaths == 0) && games != 3");
+        expressions.add("foo = NaN && kills || -0.0 && shots");
+        expressions.add("foo = SUM(kills{map:\"*\"}) / (shots + 1) && AVG(kills{map:\"*\"}, deaths)");
+        Random random = new Random(11);
+
+        for (String expr : expressions) {
+            for (EvaluationMode mode : EvaluationMode.values()) {
+                DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build(expr, DUMMY_CATEGORY, mode);
+
+                for (int i = 0; i < 20; i++) {
+                    Map<ExpressionStatId, Double> values = new HashMap<>();
+                    for (String name : new String[]{"kills", "shots", "deaths", "games"}) {
+                        // leave some values out to exercise the default of 0
+                        if (random.nextInt(4) > 0) {
+                            values.put(statId(name), (double) random.nextInt(3));
+                        }
+                    }
+                    values.put(new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", "nuke")), random.nextDouble());
+                    values.put(new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", "dust2")), random.nextDouble());
+                    StatValueIndex index = StatValueIndex.of(values);
+
+                    long expected = Double.doubleToLongBits(evaluator.evaluate(index));
+                    assertEquals(expr + " " + mode, expected,
+                            Double.doubleToLongBits(evaluator.evaluate(StatValueProvider.of(index))));
+                    assertEquals(expr + " " + mode, expected,
+                            Double.doubleToLongBits(evaluator.evaluate(StatValueProvider.of(values))));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void resolvesPlaceholders() {
+        DerivedExpressionEvaluator evaluator = DerivedExpressionEvaluator.build(
+                "foo{map:\"*\"} = kills{map:\"*\"} / SUM(shots{map:\"*\"})", DUMMY_CATEGORY);
+        CountingProvider provider = new CountingProvider(ImmutableMap.of(
+                new ExpressionStatId("kills", DUMMY_CATEGORY, ImmutableMap.of("map", "nuke")), 3d,
+                new ExpressionStatId("shots", DUMMY_CATEGORY, ImmutableMap.of("map", "nuke")), 4d));
+
+        assertEquals(0.75, evaluator.evaluate(provider, ImmutableMap.of("map", "nuke")), 0);
+        assertEquals(Double.NaN, evaluator.evaluate(provider, ImmutableMap.of("map", "dust2")), 0);
+    }
+
+    // serves values from a map, without wildcard support, and counts the fetches
+    private static final class CountingProvider implements StatValueProvider {
+        private final Map<ExpressionStatId, Double> values;
+        private final Map<ExpressionStatId, Integer> counts = new HashMap<>();
+
+        CountingProvider(Map<ExpressionStatId, Double> values) {
+            this.values = values;
+        }
+
+        @Override
+        public double getValue(ExpressionStatId statId) {
+            counts.merge(statId, 1, Integer::sum);
+            return values.getOrDefault(statId, 0d);
+        }
+
+        int count(ExpressionStatId statId) {
+            return counts.getOrDefault(statId, 0);
+        }
+    }
+}
@@ -1,5 +1,14 @@
 package com.newerty.derivedStats;
 
+import com.google.common.collect.ImmutableMap;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 
 import static com.google.common.truth.Truth.assertThat;
@@ -10,6 +19,29 @@ public final class TestHelpers {
         throw new IllegalAccessException();
     }
 
+    /**
+     * The category of the statIds built by {@link #statId}, and of unqualified statIds in the tests' expressions
+     */
+    public final static String DUMMY_CATEGORY = "dummy";
+
+    /**
+     * Returns a statId in {@link #DUMMY_CATEGORY} without dimensions
+     */
+    public static ExpressionStatId statId(String name) {
+        return new ExpressionStatId(name, DUMMY_CATEGORY, null);
+    }
+
+    /**
+     * Returns a statId in {@link #DUMMY_CATEGORY} with a single "map" dimension, e.g. {@code kills{map:"dust2"}}
+     */
+    public static ExpressionStatId statId(String name, String map) {
+        return new ExpressionStatId(name, DUMMY_CATEGORY, ImmutableMap.of("map", map));
+    }
+
+    public static ExpressionStatId statId(String name, Map<String, String> dimensions) {
+        return new ExpressionStatId(name, DUMMY_CATEGORY, dimensions);
+    }
+
     public static Exception expectException(Callable<?> fn) {
         Exception exception = null;
         try {
@@ -28,6 +60,34 @@ public final class TestHelpers {
         assertThat(cause).hasMessageThat().contains(expectedMessage);
     }
 
+    /**
+     * Returns every example expression from the evaluateExpression cucumber feature, as "foo = expression"
+     * assignments, so other tests can run the same corpus.
+     */
+    public static List<String> loadFeatureExpressions() throws IOException {
+        List<String> expressions = new ArrayList<>();
+        String resource = "/features/com/newerty/derivedStats/cucumber/evaluateExpression.feature";
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                TestHelpers.class.getResourceAsStream(resource), StandardCharsets.UTF_8))) {
+            boolean header = false;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("Examples:")) {
+                    header = true;
+                } else if (line.startsWith("|")) {
+                    if (header) {
+                        header = false;
+                    } else {
+                        String expression = line.substring(1).split("(?<!\\\\)\\|")[0];
+                        expressions.add("foo = " + expression.replace("\\|", "|").trim());
+                    }
+                }
+            }
+        }
+        return expressions;
+    }
+
     public static Throwable getRootCause(Throwable throwable) {
         Throwable cause = throwable;
         while (cause.getCause() != null) {